@@ -16,6 +16,8 @@
  */
 package fr.umlv.qroxy;
 
+import fr.umlv.qroxy.cache.CacheAccess;
+import fr.umlv.qroxy.cache.CacheException;
 import fr.umlv.qroxy.cache.CacheProxy;
 import fr.umlv.qroxy.cache.CacheTmpImpl;
 import fr.umlv.qroxy.config.Config;
@@ -84,8 +86,20 @@ public class Main {
             System.err.println("Configuration file malformated: " + e.getMessage());
         }
 
+        CacheAccess cache;
+        if (config.getCachePath() == null) {
+            cache = new CacheTmpImpl();
+        } else {
+            try {
+                cache = new CacheProxy(config);
+            } catch (CacheException e) {
+                System.err.println("Cache disabled: " + e.getMessage());
+                cache = new CacheTmpImpl();
+            }
+        }
+
         try {
-            new Proxy(config, new CacheTmpImpl()).launch(); // CacheProxy
+            new Proxy(config, cache).launch();
         } catch (IOException e) {
             System.err.println("Proxy stopped due to a network error: " + e.getMessage());
         }
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2012 Joan Goyeau & Guillaume Demurger
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.qroxy.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct buffers shared by the connections. Sockets read and write
+ * direct buffers without the copy the JDK does for heap buffers, but they are
+ * expensive to allocate, so they are recycled.
+ *
+ * Buffers are pooled by size classes. A long-lived thread which enabled its
+ * cache keeps a few released buffers of each class for itself, the others go
+ * to a queue shared by all the threads. A buffer bigger than the biggest class
+ * is not pooled.
+ *
+ * With the system property {@value #LEAK_DETECTION_PROPERTY} set to true,
+ * the pool remembers where each outstanding buffer was acquired, and detects
+ * buffers released twice or not coming from the pool.
+ *
+ * @author joan
+ */
+public class BufferPool {
+
+    public static final String LEAK_DETECTION_PROPERTY = "qroxy.leakDetection";
+    private static final int[] DEFAULT_SIZE_CLASSES = {2048, 4096, 16384, 65536};
+    private static final int THREAD_CACHE_SIZE = 8;
+    private static final int SHARED_QUEUE_SIZE = 1024;
+    private static final BufferPool DEFAULT = new BufferPool(DEFAULT_SIZE_CLASSES, SHARED_QUEUE_SIZE,
+            Boolean.getBoolean(LEAK_DETECTION_PROPERTY));
+    private final int[] sizeClasses;
+    private final int sharedQueueSize;
+    private final ConcurrentLinkedQueue<ByteBuffer>[] sharedQueues;
+    private final AtomicInteger[] sharedQueueLengths;
+    /**
+     * Caches of the threads which enabled one, null for the others
+     */
+    private final ThreadLocal<ArrayDeque<ByteBuffer>[]> threadCaches = new ThreadLocal<>();
+    /**
+     * Acquisition site of each outstanding buffer, null without leak
+     * detection
+     */
+    private final Map<ByteBuffer, Throwable> outstandingBuffers;
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    /**
+     * @param sizeClasses Capacities of the pooled buffers, in increasing
+     * order
+     * @param sharedQueueSize Maximum number of buffers of a class kept in the
+     * shared queue
+     * @param leakDetection If the outstanding buffers are tracked
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(int[] sizeClasses, int sharedQueueSize, boolean leakDetection) {
+        if (sizeClasses.length == 0) {
+            throw new IllegalArgumentException("At least one size class is required");
+        }
+        for (int i = 0; i < sizeClasses.length; i++) {
+            if (sizeClasses[i] <= 0 || (i > 0 && sizeClasses[i] <= sizeClasses[i - 1])) {
+                throw new IllegalArgumentException("Size classes have to be positive and increasing");
+            }
+        }
+        this.sizeClasses = sizeClasses.clone();
+        this.sharedQueueSize = sharedQueueSize;
+        this.sharedQueues = new ConcurrentLinkedQueue[sizeClasses.length];
+        this.sharedQueueLengths = new AtomicInteger[sizeClasses.length];
+        for (int i = 0; i < sizeClasses.length; i++) {
+            sharedQueues[i] = new ConcurrentLinkedQueue<>();
+            sharedQueueLengths[i] = new AtomicInteger();
+        }
+        this.outstandingBuffers = leakDetection ? Collections.synchronizedMap(new IdentityHashMap<ByteBuffer, Throwable>()) : null;
+    }
+
+    /**
+     * @return The pool shared by the whole proxy
+     */
+    public static BufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Keep a few released buffers for the current thread, to recycle them
+     * without contention. Only for long-lived threads running a loop, such as
+     * the reactors: the buffers of the cache are lost when the thread ends.
+     * The other threads, and virtual threads in particular, release straight
+     * to the shared queue.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public void enableThreadCache() {
+        if (threadCaches.get() != null) {
+            return;
+        }
+        ArrayDeque<ByteBuffer>[] caches = new ArrayDeque[sizeClasses.length];
+        for (int i = 0; i < caches.length; i++) {
+            caches[i] = new ArrayDeque<>(THREAD_CACHE_SIZE);
+        }
+        threadCaches.set(caches);
+    }
+
+    /**
+     * Take a cleared buffer from the pool. It has to be given back with
+     * {@link #release(ByteBuffer)}.
+     *
+     * @param capacity The minimum capacity of the buffer
+     * @return A direct buffer whose limit is the asked capacity
+     */
+    public ByteBuffer acquire(int capacity) {
+        acquired.incrementAndGet();
+        outstanding.incrementAndGet();
+
+        ByteBuffer buffer = null;
+        int sizeClass = sizeClassOf(capacity);
+        if (sizeClass != -1) {
+            ArrayDeque<ByteBuffer>[] caches = threadCaches.get();
+            if (caches != null) {
+                buffer = caches[sizeClass].poll();
+            }
+            if (buffer == null) {
+                buffer = sharedQueues[sizeClass].poll();
+                if (buffer != null) {
+                    sharedQueueLengths[sizeClass].decrementAndGet();
+                }
+            }
+        }
+        if (buffer != null) {
+            hits.incrementAndGet();
+        } else {
+            buffer = ByteBuffer.allocateDirect(sizeClass == -1 ? capacity : sizeClasses[sizeClass]);
+        }
+
+        if (outstandingBuffers != null) {
+            outstandingBuffers.put(buffer, new Throwable("Buffer acquired here"));
+        }
+        buffer.clear();
+        buffer.limit(capacity);
+        return buffer;
+    }
+
+    /**
+     * Give a buffer back to the pool. The buffer must not be used anymore.
+     *
+     * @param buffer A buffer acquired from this pool, or null
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        if (outstandingBuffers != null && outstandingBuffers.remove(buffer) == null) {
+            throw new IllegalStateException("Buffer released twice or not acquired from this pool");
+        }
+        outstanding.decrementAndGet();
+
+        int sizeClass = sizeClassOf(buffer.capacity());
+        if (sizeClass == -1 || !buffer.isDirect() || sizeClasses[sizeClass] != buffer.capacity()) {
+            // Not pooled
+            return;
+        }
+        buffer.clear();
+        ArrayDeque<ByteBuffer>[] caches = threadCaches.get();
+        if (caches != null && caches[sizeClass].size() < THREAD_CACHE_SIZE) {
+            caches[sizeClass].push(buffer);
+        } else if (sharedQueueLengths[sizeClass].incrementAndGet() <= sharedQueueSize) {
+            sharedQueues[sizeClass].add(buffer);
+        } else {
+            // Pool is full, let the GC free it
+            sharedQueueLengths[sizeClass].decrementAndGet();
+        }
+    }
+
+    private int sizeClassOf(int capacity) {
+        for (int i = 0; i < sizeClasses.length; i++) {
+            if (capacity <= sizeClasses[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The number of buffers acquired and not released yet
+     */
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * @return The number of acquisitions since the start
+     */
+    public long getAcquired() {
+        return acquired.get();
+    }
+
+    /**
+     * @return The part of the acquisitions served by a recycled buffer, from
+     * 0 to 1
+     */
+    public double getHitRate() {
+        long total = acquired.get();
+        return total == 0 ? 0 : (double) hits.get() / total;
+    }
+
+    /**
+     * @return The acquisition sites of the outstanding buffers, empty without
+     * leak detection
+     */
+    public List<Throwable> getOutstandingSites() {
+        if (outstandingBuffers == null) {
+            return Collections.emptyList();
+        }
+        synchronized (outstandingBuffers) {
+            return new ArrayList<>(outstandingBuffers.values());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Buffers: %d acquired, %.1f%% recycled, %d outstanding",
+                getAcquired(), getHitRate() * 100, getOutstanding());
+    }
+}
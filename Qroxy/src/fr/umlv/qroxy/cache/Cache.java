@@ -20,50 +20,258 @@ import fr.umlv.qroxy.config.Config;
 import java.io.IOException;
 import java.net.URI;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 import java.util.Objects;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Represents a cache. It supports the following operations:
- * - add an entry to the cache 
+ * - add an entry to the cache, visible once its resource is written
  * - get an entry given an URI
  * - get a FileChannel to read data from the cache
  * Note: No algorithm of size management has been implemented due to a lack of 
  * time
+ *
+ * All the operations can be used by several threads at the same time. The
+ * index is saved in the cache path, so the cached resources survive a restart.
+ * The small resources are stored together in segments, the others in a file
+ * each.
  * @author gdemurge
  */
 public class Cache {
 
-    private final Config config;
-    private final Map<CacheEntry, Path> cache = new HashMap<>();
+    private final Path directory;
+    private final CacheIndex index = new CacheIndex();
+    /**
+     * Saves the changes of the index, in the order of the index. Locked while
+     * changing the index to keep that order, it never waits for the disk.
+     */
+    private final CacheJournal journal;
+    private final SegmentStore segments;
+    private Thread compactor;
+    /**
+     * Entries whose resource is being written, by the channel writing it
+     */
+    private final ConcurrentHashMap<FileChannel, CacheEntry> pending = new ConcurrentHashMap<>();
 
-    Cache(Config config) {
-        this.config = config;
+    /**
+     * Load the entries saved in the cache path by the previous runs.
+     * @param config
+     * @throws CacheException if the saved index cannot be read
+     */
+    Cache(Config config) throws CacheException {
+        Objects.requireNonNull(config.getCachePath());
+        directory = Paths.get(config.getCachePath());
+        try {
+            journal = CacheJournal.open(directory, index);
+            segments = SegmentStore.open(directory, index);
+        } catch (IOException e) {
+            throw new CacheException("Cannot load the cache index: " + e.getMessage(), e);
+        }
+        startCompaction();
+    }
+
+    private void startCompaction() {
+        compactor = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(Config.CACHE_COMPACTION_PERIOD);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    compact();
+                }
+            }
+        }, "Qroxy cache compactor");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    /**
+     * Stop the compaction, then write the changes of the index still queued
+     * for the journal.
+     * @throws CacheException if the journal cannot be closed
+     */
+    void close() throws CacheException {
+        compactor.interrupt();
+        try {
+            compactor.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            throw new CacheException("Cannot close the cache journal: " + e.getMessage(), e);
+        }
     }
 
     /**
-     * Add an entry to the cache. It returns a FileChannel in order to 
-     * write data in the cache after the given entry has been added.
+     * Prepare a new entry of the cache. It returns a FileChannel in order to
+     * write data in the cache, the entry is added by
+     * {@link #commitCacheEntry(FileChannel)} once the data is written.
      * @param entry
      * @return the channel to write the new resource in the cache
      * @throws CacheException 
      */
     FileChannel addCacheEntry(CacheEntry entry) throws CacheException {
         Objects.requireNonNull(entry);
-        Path path = cache.remove(entry);
-        cache.put(entry, Paths.get(entry.getUri()));
         try {
-            return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            Path path = Files.createTempFile(directory, "qroxy", ".cache");
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            pending.put(channel, entry.stored(path, 0));
+            return channel;
         } catch (IOException e) {
-            throw new CacheException(e.getMessage(), e.getCause());
+            throw new CacheException(e.getMessage(), e);
         }
     }
 
+    /**
+     * Add the entry written by a channel to the cache, in place of the
+     * previous entry of its URI.
+     * @param channel the channel returned by addCacheEntry
+     * @throws CacheException 
+     */
+    void commitCacheEntry(FileChannel channel) throws CacheException {
+        CacheEntry entry = pending.remove(channel);
+        Path file = entry.getPath();
+        try {
+            long size = channel.size();
+            if (size <= Config.CACHE_SEGMENT_OBJECT_LIMIT) {
+                // Small resource, moved to a segment
+                entry = segments.append(entry, channel, 0, size);
+                channel.close();
+                deleteQuietly(file);
+            } else {
+                entry = entry.stored(file, size);
+                channel.close();
+            }
+        } catch (IOException e) {
+            try {
+                channel.close();
+            } catch (IOException ce) {
+                // Do nothing
+            }
+            deleteQuietly(file);
+            throw new CacheException(e.getMessage(), e);
+        }
+        CacheEntry previous;
+        synchronized (journal) {
+            previous = index.put(entry);
+            journal.put(entry);
+        }
+        if (previous != null) {
+            release(previous);
+        }
+    }
+
+    /**
+     * Free the storage of an entry no more in the index.
+     */
+    private void release(CacheEntry entry) {
+        if (entry.isInSegment()) {
+            segments.free(entry);
+        } else {
+            deleteQuietly(entry.getPath());
+        }
+    }
+
+    /**
+     * Move the live resources of the segments mostly made of dead space to
+     * the last segment, then delete them.
+     */
+    void compact() {
+        final List<Path> sparse = segments.sparseSegments();
+        if (sparse.isEmpty()) {
+            return;
+        }
+        try {
+            for (CacheEntry entry : index.entries()) {
+                if (!entry.isInSegment() || !sparse.contains(entry.getPath())) {
+                    continue;
+                }
+                CacheEntry moved = segments.move(entry);
+                if (moved == null) {
+                    continue;
+                }
+                boolean replaced;
+                synchronized (journal) {
+                    replaced = index.replace(entry, moved);
+                    if (replaced) {
+                        journal.put(moved);
+                    }
+                }
+                if (!replaced) {
+                    // Replaced or removed meanwhile
+                    segments.free(moved);
+                }
+            }
+        } catch (IOException e) {
+            // Compacted later
+            return;
+        }
+        // Deleted once the moved entries are in the journal, so a crash never
+        // leaves entries in a deleted segment
+        journal.afterWrite(new Runnable() {
+
+            @Override
+            public void run() {
+                for (Path segment : sparse) {
+                    segments.retire(segment);
+                }
+            }
+        });
+    }
+
+    /**
+     * Give up the entry written by a channel and delete its data.
+     * @param channel the channel returned by addCacheEntry
+     */
+    void abortCacheEntry(FileChannel channel) {
+        CacheEntry entry = pending.remove(channel);
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Do nothing
+        }
+        deleteQuietly(entry.getPath());
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            // Do nothing
+        }
+    }
+
+    /**
+     * Returns the segment containing the resource of an entry, it has to be
+     * closed once the resource is read.
+     * @param entry an entry stored in a segment
+     * @return the segment
+     * @throws CacheException if the segment has been deleted
+     */
+    SegmentStore.Segment getCacheSegment(CacheEntry entry) throws CacheException {
+        Objects.requireNonNull(entry);
+        SegmentStore.Segment segment = segments.retain(entry);
+        if (segment == null) {
+            // Compacted since it was looked up, the entry has been moved, or
+            // deleted from the cache path, the entry is dropped
+            removeCacheEntry(entry);
+            throw new CacheException("Segment deleted");
+        }
+        return segment;
+    }
+
     /**
      * Returns a channel to read cached data related to the given entry 
      * from the cache.
@@ -73,34 +281,37 @@ public class Cache {
      */
     FileChannel getCacheFileChannel(CacheEntry entry) throws CacheException {
         Objects.requireNonNull(entry);
-        Path path = cache.get(entry);        
-        if (path == null) {
-            throw new CacheException("Ressource not found");
-        }
         try {
-            return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ);
+            return FileChannel.open(entry.getPath(), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            // Removed from the cache path since it was indexed
+            removeCacheEntry(entry);
+            throw new CacheException(e.getMessage(), e);
         } catch (IOException e) {
-            throw new CacheException(e.getMessage(), e.getCause());
+            throw new CacheException(e.getMessage(), e);
         }
     }
     
+    private void removeCacheEntry(CacheEntry entry) {
+        synchronized (journal) {
+            if (index.remove(entry)) {
+                journal.remove(entry);
+            }
+        }
+    }
+
     /**
-     * Return the entry containing the given URI.
-     * Note: For the moment the implementation of the class Cache implies that
-     * this method work in linear complexity. It has to be improve in a future
-     * version.
+     * Return the entry containing the given URI, in constant time.
      * @param uri
      * @return the CacheEntry containing the given uri if it exists
      * @throws CacheException 
      */
     CacheEntry getCacheEntry(URI uri) throws CacheException {
-        Set<CacheEntry> entries = cache.keySet();
-        for(CacheEntry e: entries) {
-            if(e.getUri().equals(uri)) {
-                return e;
-            }
+        CacheEntry entry = index.get(uri);
+        if (entry == null) {
+            throw new CacheException("Entry does not exist in cache");
         }
-        throw new CacheException("Entry does not exist in cache");
+        return entry;
     }
 }
 
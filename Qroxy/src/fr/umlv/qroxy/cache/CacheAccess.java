@@ -19,7 +19,6 @@ package fr.umlv.qroxy.cache;
 import fr.umlv.qroxy.cache.channels.CacheInputChannel;
 import fr.umlv.qroxy.cache.channels.CacheOutputChannel;
 import fr.umlv.qroxy.http.HttpRequestHeader;
-import java.net.URI;
 
 /**
  * Interface describing methods for submit to and retrieving resources from
@@ -41,10 +40,11 @@ public interface CacheAccess {
     /**
      * Cache resource
      * 
+     * @param requestHeader The request of the resource
      * @return The FileOutputStream were to cache the resource
      * @throws CacheException If the HttpRequestHeader doesn't match preconditions.
      */
-    public CacheOutputChannel cacheResource(URI uri) throws CacheException;
+    public CacheOutputChannel cacheResource(HttpRequestHeader requestHeader) throws CacheException;
     
     /**
      * Advertise a corrupt resource.
@@ -53,4 +53,11 @@ public interface CacheAccess {
      * @return If the resource has been removed.
      */
     public boolean corruptCachedResource(CacheInputChannel resource);
+
+    /**
+     * Save what is not saved yet, once the proxy has stopped.
+     *
+     * @throws CacheException If the cache cannot be saved.
+     */
+    public void close() throws CacheException;
 }
@@ -16,41 +16,187 @@
  */
 package fr.umlv.qroxy.cache;
 
-import fr.umlv.qroxy.http.HttpResponseHeader;
 import java.net.URI;
+import java.nio.file.Path;
+import java.util.Date;
 
 /**
  * Represents a cache entry. The cache entry is intended to store all data
- * related to a given cached ressource.
+ * related to a given cached ressource: the metadata needed to serve it, so a
+ * hit does not read the file of the resource to decide if it is fresh.
+ * Entries are immutable, so they can be shared by the threads of the proxy.
  * @author gdemurge
  */
-class CacheEntry {
-    private final HttpResponseHeader header;
-    private final URI uri;
+public class CacheEntry {
+    private static final long NONE = Long.MIN_VALUE;
+    /**
+     * The offset of a resource stored in a file of its own
+     */
+    static final long WHOLE_FILE = -1;
+
+    /**
+     * The URI of the resource, kept as a string so the entries loaded at
+     * startup are not parsed
+     */
+    private final String location;
+    /**
+     * The normalized URI and its fingerprint, the key of the entry in the
+     * index
+     */
+    private final String key;
+    private final long fingerprint;
+    private final String category;
+    private final long date;
+    private final long expires;
+    private final long lastModified;
+    private final String eTag;
+    private final Path path;
+    private final long offset;
+    private final long size;
     
     /**
      * Constructor.
      * Package visibility to ensure nothing can instanciate it outdoor the 
      * cache package.
-     * @param header
-     * @param uri 
+     * @param uri
+     * @param category the name of the category of the request, or null
+     * @param date the Date of the response, or null
+     * @param expires the Expires of the response, or null
+     * @param lastModified the Last-Modified of the response, or null
+     * @param eTag the ETag of the response, or null
+     */
+    CacheEntry(URI uri, String category, Date date, Date expires, Date lastModified, String eTag) {
+        this(uri.toString(), CacheIndex.normalize(uri), category, timeOf(date), timeOf(expires), timeOf(lastModified), eTag, null, WHOLE_FILE, 0);
+    }
+
+    /**
+     * Constructor of an entry stored by a previous run, read from the journal.
+     * @param location the URI of the resource
+     * @param key the normalized URI of the resource
+     * @param date the Date of the response in milliseconds, or Long.MIN_VALUE
+     * @param expires the Expires of the response, or Long.MIN_VALUE
+     * @param lastModified the Last-Modified of the response, or Long.MIN_VALUE
+     * @param path the file of the resource, or the segment containing it
+     * @param offset the position of the resource in its segment, or
+     * WHOLE_FILE
+     */
+    CacheEntry(String location, String key, String category, long date, long expires, long lastModified, String eTag, Path path, long offset, long size) {
+        this.location = location;
+        this.key = key;
+        this.fingerprint = CacheIndex.fingerprint(key);
+        this.category = category;
+        this.date = date;
+        this.expires = expires;
+        this.lastModified = lastModified;
+        this.eTag = eTag;
+        this.path = path;
+        this.offset = offset;
+        this.size = size;
+    }
+
+    /**
+     * The same entry, once its resource is stored.
+     * @param path the file of the resource
+     * @param size the size of the file
+     * @return the stored entry
      */
-    CacheEntry(HttpResponseHeader header, URI uri) {
-        this.header = header;
-        this.uri = uri;
+    CacheEntry stored(Path path, long size) {
+        return new CacheEntry(location, key, category, date, expires, lastModified, eTag, path, WHOLE_FILE, size);
+    }
+
+    /**
+     * The same entry, once its resource is stored in a segment.
+     * @param segment the segment containing the resource
+     * @param offset the position of the resource in the segment
+     * @param size the size of the resource
+     * @return the stored entry
+     */
+    CacheEntry stored(Path segment, long offset, long size) {
+        return new CacheEntry(location, key, category, date, expires, lastModified, eTag, segment, offset, size);
+    }
+
+    static long timeOf(Date date) {
+        return date == null ? NONE : date.getTime();
+    }
+
+    private static Date dateOf(long time) {
+        return time == NONE ? null : new Date(time);
     }
     
     public URI getUri() {
-        return uri;
+        return URI.create(location);
     }
-   
-    public HttpResponseHeader getHeader() {
-        return header;
+
+    String getLocation() {
+        return location;
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    long getFingerprint() {
+        return fingerprint;
+    }
+
+    public String getCategory() {
+        return category;
+    }
+
+    public Date getDate() {
+        return dateOf(date);
+    }
+
+    public Date getExpires() {
+        return dateOf(expires);
+    }
+
+    public Date getLastModified() {
+        return dateOf(lastModified);
+    }
+
+    public String getETag() {
+        return eTag;
+    }
+
+    /**
+     * Test whether or not the resource is expired, without Expires it is.
+     * @param now the current time in milliseconds
+     * @return if the resource has to be validated by the server
+     */
+    public boolean isExpired(long now) {
+        return expires == NONE || expires < now;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * @return the position of the stored response in its file, 0 unless it
+     * is stored in a segment
+     */
+    public long getOffset() {
+        return offset == WHOLE_FILE ? 0 : offset;
+    }
+
+    /**
+     * @return if the response is stored in a segment shared with other ones
+     */
+    boolean isInSegment() {
+        return offset != WHOLE_FILE;
+    }
+
+    /**
+     * @return the size of the stored response, header included
+     */
+    public long getSize() {
+        return size;
     }
    
     @Override
     public int hashCode() {
-        return 0;
+        return (int) (fingerprint ^ (fingerprint >>> 32));
     }
     
     @Override
@@ -65,6 +211,6 @@ class CacheEntry {
             return false;
         }
         CacheEntry ce = (CacheEntry)o;
-        return uri.equals(ce.uri);
+        return key.equals(ce.key);
     }
 }
@@ -29,10 +29,11 @@ class CacheEntryFactory {
      * argument.
      * @param header
      * @param uri
+     * @param category the name of the category of the request, or null
      * @return the created CacheEntry
      */
-    public CacheEntry createCacheEntry(HttpResponseHeader header, URI uri) {
-        return new CacheEntry(header, uri);
+    public CacheEntry createCacheEntry(HttpResponseHeader header, URI uri, String category) {
+        return new CacheEntry(uri, category, header.getDate(), header.getExpires(), header.getLastModified(), header.getETag());
     }
             
 }
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2012 Joan Goyeau & Guillaume Demurger
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.qroxy.cache;
+
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of the cache entries by the fingerprint of their normalized URI, a
+ * 64 bits hash. Lookups are lock free and in constant time, whatever the
+ * number of entries. The rare entries whose fingerprints collide share a slot
+ * and are told apart by their normalized URI.
+ *
+ * Slots are immutable arrays, replaced atomically, so readers and writers of
+ * any thread can use the index at the same time.
+ *
+ * @author gdemurge
+ */
+class CacheIndex {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private final ConcurrentHashMap<Long, CacheEntry[]> slots = new ConcurrentHashMap<>();
+
+    /**
+     * The form of a URI identifying a resource: scheme and host in lower case,
+     * no default port, "/" for an empty path and no fragment (see section
+     * 3.2.3 in RFC 2616).
+     *
+     * @param uri An absolute URI
+     * @return The normalized URI
+     */
+    static String normalize(URI uri) {
+        StringBuilder key = new StringBuilder();
+        if (uri.getScheme() != null) {
+            key.append(uri.getScheme().toLowerCase(Locale.ROOT)).append("://");
+        }
+        if (uri.getRawUserInfo() != null) {
+            key.append(uri.getRawUserInfo()).append('@');
+        }
+        if (uri.getHost() != null) {
+            key.append(uri.getHost().toLowerCase(Locale.ROOT));
+        }
+        if (uri.getPort() != -1 && uri.getPort() != 80) {
+            key.append(':').append(uri.getPort());
+        }
+        String path = uri.getRawPath();
+        key.append(path == null || path.isEmpty() ? "/" : path);
+        if (uri.getRawQuery() != null) {
+            key.append('?').append(uri.getRawQuery());
+        }
+        return key.toString();
+    }
+
+    /**
+     * 64 bits FNV-1a hash of a normalized URI, with a final mix spreading
+     * its bits.
+     */
+    static long fingerprint(String key) {
+        long hash = FNV_OFFSET_BASIS;
+        for (byte b : key.getBytes(UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= FNV_PRIME;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * @return The entry of a URI, or null
+     */
+    CacheEntry get(URI uri) {
+        return get(normalize(uri));
+    }
+
+    /**
+     * @param key A normalized URI
+     * @return The entry of the URI, or null
+     */
+    CacheEntry get(String key) {
+        CacheEntry[] slot = slots.get(fingerprint(key));
+        if (slot == null) {
+            return null;
+        }
+        for (CacheEntry entry : slot) {
+            if (entry.getKey().equals(key)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Add an entry, in place of the entry of the same URI.
+     *
+     * @return The replaced entry, or null
+     */
+    CacheEntry put(CacheEntry entry) {
+        Long fingerprint = entry.getFingerprint();
+        while (true) {
+            CacheEntry[] slot = slots.get(fingerprint);
+            if (slot == null) {
+                if (slots.putIfAbsent(fingerprint, new CacheEntry[]{entry}) == null) {
+                    return null;
+                }
+                continue;
+            }
+            int index = indexOf(slot, entry.getKey());
+            CacheEntry[] updated;
+            if (index == -1) {
+                // Collision of fingerprints
+                updated = Arrays.copyOf(slot, slot.length + 1);
+                updated[slot.length] = entry;
+            } else {
+                updated = slot.clone();
+                updated[index] = entry;
+            }
+            if (slots.replace(fingerprint, slot, updated)) {
+                return index == -1 ? null : slot[index];
+            }
+        }
+    }
+
+    /**
+     * Replace an entry, unless it has already been replaced or removed.
+     *
+     * @return If the entry has been replaced
+     */
+    boolean replace(CacheEntry expected, CacheEntry entry) {
+        Long fingerprint = entry.getFingerprint();
+        while (true) {
+            CacheEntry[] slot = slots.get(fingerprint);
+            if (slot == null) {
+                return false;
+            }
+            int index = indexOf(slot, entry.getKey());
+            if (index == -1 || slot[index] != expected) {
+                return false;
+            }
+            CacheEntry[] updated = slot.clone();
+            updated[index] = entry;
+            if (slots.replace(fingerprint, slot, updated)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Remove an entry, unless it has been replaced.
+     *
+     * @return If the entry has been removed
+     */
+    boolean remove(CacheEntry entry) {
+        Long fingerprint = entry.getFingerprint();
+        while (true) {
+            CacheEntry[] slot = slots.get(fingerprint);
+            if (slot == null) {
+                return false;
+            }
+            int index = indexOf(slot, entry.getKey());
+            if (index == -1 || slot[index] != entry) {
+                return false;
+            }
+            boolean removed;
+            if (slot.length == 1) {
+                removed = slots.remove(fingerprint, slot);
+            } else {
+                CacheEntry[] updated = new CacheEntry[slot.length - 1];
+                System.arraycopy(slot, 0, updated, 0, index);
+                System.arraycopy(slot, index + 1, updated, index, slot.length - index - 1);
+                removed = slots.replace(fingerprint, slot, updated);
+            }
+            if (removed) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * The entries of the index, without a copy. The changes made while
+     * iterating may be missed.
+     */
+    Iterable<CacheEntry> entries() {
+        return new Iterable<CacheEntry>() {
+
+            @Override
+            public Iterator<CacheEntry> iterator() {
+                final Iterator<CacheEntry[]> slotIterator = slots.values().iterator();
+                return new Iterator<CacheEntry>() {
+                    private CacheEntry[] slot = new CacheEntry[0];
+                    private int next;
+
+                    @Override
+                    public boolean hasNext() {
+                        while (next == slot.length) {
+                            if (!slotIterator.hasNext()) {
+                                return false;
+                            }
+                            slot = slotIterator.next();
+                            next = 0;
+                        }
+                        return true;
+                    }
+
+                    @Override
+                    public CacheEntry next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        return slot[next++];
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    private static int indexOf(CacheEntry[] slot, String key) {
+        for (int i = 0; i < slot.length; i++) {
+            if (slot[i].getKey().equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
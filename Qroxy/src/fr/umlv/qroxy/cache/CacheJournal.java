@@ -0,0 +1,378 @@
+/*
+ * Copyright (C) 2012 Joan Goyeau & Guillaume Demurger
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.qroxy.cache;
+
+import fr.umlv.qroxy.config.Config;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+/**
+ * Persistence of the cache index, so a restart keeps the cached resources.
+ *
+ * Every change of the index is appended to a journal. When the journal grows
+ * bigger than the last snapshot, the whole index is written in a new snapshot
+ * and the journal starts again empty. On startup the snapshot then the journal
+ * are read through memory mappings, the files of the resources are never
+ * opened.
+ *
+ * The changes are queued in the order of the index and written by a dedicated
+ * thread, which also writes the snapshots. A thread changing the index never
+ * waits for the disk.
+ *
+ * A record is its length, its CRC32 and its content. A record torn by a crash
+ * ends the journal. Replaying a record twice is harmless, so a crash between
+ * the writing of a snapshot and the truncation of the journal loses nothing.
+ *
+ * @author gdemurge
+ */
+class CacheJournal implements Runnable {
+
+    private static final String SNAPSHOT = "index.snapshot";
+    private static final String JOURNAL = "index.journal";
+    /**
+     * "QroxyIDX", the first bytes of a snapshot
+     */
+    private static final long SNAPSHOT_MAGIC = 0x51726f7879494458L;
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final int RECORD_HEADER_LENGTH = 8;
+    private static final int MAX_RECORD_LENGTH = 1024 * 1024;
+    private static final int MAP_WINDOW = 64 * 1024 * 1024;
+    private static final int SNAPSHOT_BUFFER_SIZE = 1024 * 1024;
+    private static final int WRITE_BATCH = 256;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private final Path directory;
+    private final CacheIndex index;
+    private final FileChannel journal;
+    private final LinkedBlockingQueue<Change> changes = new LinkedBlockingQueue<>();
+    private final Thread thread;
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer record = ByteBuffer.allocate(4096);
+    private long journalSize;
+    private long snapshotSize;
+
+    private CacheJournal(Path directory, CacheIndex index, FileChannel journal, long journalSize, long snapshotSize) {
+        this.directory = directory;
+        this.index = index;
+        this.journal = journal;
+        this.journalSize = journalSize;
+        this.snapshotSize = snapshotSize;
+        this.thread = new Thread(this, "Qroxy cache journal");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * A change of the index to save, a task to run once the previous changes
+     * are written, or the end of the journal if both are null.
+     */
+    private static class Change {
+
+        private final byte operation;
+        private final CacheEntry entry;
+        private final Runnable task;
+
+        Change(byte operation, CacheEntry entry, Runnable task) {
+            this.operation = operation;
+            this.entry = entry;
+            this.task = task;
+        }
+    }
+
+    /**
+     * Load the index saved in a directory and open its journal.
+     *
+     * @param directory The directory of the cache
+     * @param index The index to fill
+     * @return The journal, appending after the last complete record
+     * @throws IOException
+     */
+    static CacheJournal open(Path directory, CacheIndex index) throws IOException {
+        Files.createDirectories(directory);
+
+        long snapshotSize = 0;
+        Path snapshotPath = directory.resolve(SNAPSHOT);
+        if (Files.exists(snapshotPath)) {
+            try (FileChannel snapshot = FileChannel.open(snapshotPath, StandardOpenOption.READ)) {
+                snapshotSize = snapshot.size();
+                ByteBuffer magic = ByteBuffer.allocate(8);
+                while (magic.hasRemaining() && snapshot.read(magic) != -1) {
+                }
+                magic.flip();
+                if (magic.remaining() == 8 && magic.getLong() == SNAPSHOT_MAGIC) {
+                    replay(snapshot, 8, directory, index);
+                }
+            }
+        }
+
+        FileChannel journal = FileChannel.open(directory.resolve(JOURNAL),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long end = replay(journal, 0, directory, index);
+            // Drop a record torn by a crash
+            journal.truncate(end);
+            journal.position(end);
+            CacheJournal cacheJournal = new CacheJournal(directory, index, journal, end, snapshotSize);
+            cacheJournal.thread.start();
+            return cacheJournal;
+        } catch (IOException e) {
+            journal.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Apply the records of a file to an index.
+     *
+     * @return The position following the last complete record
+     */
+    private static long replay(FileChannel channel, long position, Path directory, CacheIndex index) throws IOException {
+        long size = channel.size();
+        CRC32 crc = new CRC32();
+        byte[] content = new byte[256];
+        while (position < size) {
+            // Mapped by windows, the files of millions of entries can exceed 2 GB
+            ByteBuffer window = channel.map(MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, size - position));
+            while (window.remaining() >= RECORD_HEADER_LENGTH) {
+                int start = window.position();
+                int length = window.getInt();
+                int checksum = window.getInt();
+                if (length <= 0 || length > MAX_RECORD_LENGTH) {
+                    return position + start;
+                }
+                if (window.remaining() < length) {
+                    window.position(start);
+                    break;
+                }
+                if (content.length < length) {
+                    content = new byte[Math.max(length, content.length * 2)];
+                }
+                window.get(content, 0, length);
+                crc.reset();
+                crc.update(content, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    return position + start;
+                }
+                apply(ByteBuffer.wrap(content, 0, length), directory, index);
+            }
+            if (window.position() == 0) {
+                // Torn record at the end of the file
+                return position;
+            }
+            position += window.position();
+        }
+        return position;
+    }
+
+    private static void apply(ByteBuffer content, Path directory, CacheIndex index) {
+        byte operation = content.get();
+        String location = getString(content);
+        String key = getString(content);
+        if (operation == REMOVE) {
+            CacheEntry entry = index.get(key);
+            if (entry != null) {
+                index.remove(entry);
+            }
+            return;
+        }
+        String category = getString(content);
+        long date = content.getLong();
+        long expires = content.getLong();
+        long lastModified = content.getLong();
+        String eTag = getString(content);
+        Path path = directory.resolve(getString(content));
+        long size = content.getLong();
+        // Records written before the segments have no offset
+        long offset = content.hasRemaining() ? content.getLong() : CacheEntry.WHOLE_FILE;
+        index.put(new CacheEntry(location, key, category, date, expires, lastModified, eTag, path, offset, size));
+    }
+
+    /**
+     * Save the addition of an entry, or its replacement. The changes have to
+     * be saved in the order of the index. Never blocks.
+     */
+    void put(CacheEntry entry) {
+        changes.add(new Change(PUT, entry, null));
+    }
+
+    /**
+     * Save the removal of an entry. Never blocks.
+     */
+    void remove(CacheEntry entry) {
+        changes.add(new Change(REMOVE, entry, null));
+    }
+
+    /**
+     * Run a task on the thread of the journal once the changes saved before
+     * are written. The task is dropped if they cannot be written. Never
+     * blocks.
+     */
+    void afterWrite(Runnable task) {
+        changes.add(new Change((byte) 0, null, task));
+    }
+
+    /**
+     * Write the pending changes, then close the journal.
+     */
+    void close() throws IOException {
+        changes.add(new Change((byte) 0, null, null));
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        journal.close();
+    }
+
+    @Override
+    public void run() {
+        ArrayList<Change> batch = new ArrayList<>(WRITE_BATCH);
+        while (true) {
+            try {
+                batch.add(changes.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            changes.drainTo(batch, WRITE_BATCH - 1);
+            try {
+                for (Change change : batch) {
+                    if (change.task != null) {
+                        change.task.run();
+                    } else if (change.entry == null) {
+                        return;
+                    } else {
+                        append(encode(change.operation, change.entry));
+                    }
+                }
+                if (journalSize > Math.max(Config.CACHE_JOURNAL_COMPACTION, snapshotSize)) {
+                    // The index keeps changing while it is written
+                    snapshot();
+                }
+            } catch (IOException e) {
+                // Still cached, until the proxy restarts
+            }
+            batch.clear();
+        }
+    }
+
+    private void append(ByteBuffer record) throws IOException {
+        journalSize += record.remaining();
+        while (record.hasRemaining()) {
+            journal.write(record);
+        }
+    }
+
+    /**
+     * Write the whole index in a new snapshot, then empty the journal.
+     */
+    private void snapshot() throws IOException {
+        Path temporary = directory.resolve(SNAPSHOT + ".tmp");
+        try (FileChannel snapshot = FileChannel.open(temporary,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(SNAPSHOT_BUFFER_SIZE);
+            buffer.putLong(SNAPSHOT_MAGIC);
+            for (CacheEntry entry : index.entries()) {
+                ByteBuffer record = encode(PUT, entry);
+                if (buffer.remaining() < record.remaining()) {
+                    flush(snapshot, buffer);
+                }
+                buffer.put(record);
+            }
+            flush(snapshot, buffer);
+            snapshot.force(false);
+            snapshotSize = snapshot.size();
+        }
+        Files.move(temporary, directory.resolve(SNAPSHOT), StandardCopyOption.ATOMIC_MOVE);
+        journal.truncate(0);
+        journalSize = 0;
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private ByteBuffer encode(byte operation, CacheEntry entry) {
+        record.clear();
+        record.position(RECORD_HEADER_LENGTH);
+        record.put(operation);
+        putString(entry.getLocation());
+        putString(entry.getKey());
+        if (operation == PUT) {
+            putString(entry.getCategory());
+            ensureRemaining(24);
+            record.putLong(CacheEntry.timeOf(entry.getDate()));
+            record.putLong(CacheEntry.timeOf(entry.getExpires()));
+            record.putLong(CacheEntry.timeOf(entry.getLastModified()));
+            putString(entry.getETag());
+            putString(entry.getPath().getFileName().toString());
+            ensureRemaining(16);
+            record.putLong(entry.getSize());
+            record.putLong(entry.isInSegment() ? entry.getOffset() : CacheEntry.WHOLE_FILE);
+        }
+        int length = record.position() - RECORD_HEADER_LENGTH;
+        crc.reset();
+        crc.update(record.array(), RECORD_HEADER_LENGTH, length);
+        record.putInt(0, length);
+        record.putInt(4, (int) crc.getValue());
+        record.flip();
+        return record;
+    }
+
+    private void putString(String value) {
+        if (value == null) {
+            ensureRemaining(4);
+            record.putInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        ensureRemaining(4 + bytes.length);
+        record.putInt(bytes.length);
+        record.put(bytes);
+    }
+
+    private void ensureRemaining(int length) {
+        if (record.remaining() < length) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(record.capacity() * 2, record.position() + length));
+            record.flip();
+            bigger.put(record);
+            record = bigger;
+        }
+    }
+
+    private static String getString(ByteBuffer content) {
+        int length = content.getInt();
+        if (length == -1) {
+            return null;
+        }
+        String value = new String(content.array(), content.arrayOffset() + content.position(), length, UTF_8);
+        content.position(content.position() + length);
+        return value;
+    }
+}
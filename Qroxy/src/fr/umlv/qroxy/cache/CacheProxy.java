@@ -20,9 +20,12 @@ import fr.umlv.qroxy.cache.channels.CacheInputChannel;
 import fr.umlv.qroxy.cache.channels.CacheInputChannelFactory;
 import fr.umlv.qroxy.cache.channels.CacheOutputChannel;
 import fr.umlv.qroxy.cache.channels.CacheOutputChannelFactory;
+import fr.umlv.qroxy.config.Category;
 import fr.umlv.qroxy.config.Config;
+import fr.umlv.qroxy.http.HttpMethod;
 import fr.umlv.qroxy.http.HttpRequestHeader;
 import fr.umlv.qroxy.http.HttpResponseHeader;
+import fr.umlv.qroxy.http.HttpStatusCode;
 import java.net.URI;
 import java.nio.channels.FileChannel;
 import java.util.Objects;
@@ -39,7 +42,13 @@ public class CacheProxy implements CacheAccess {
     private final CacheEntryFactory cacheEntryFactory = new CacheEntryFactory();
     private final Cache cache;
 
-    public CacheProxy(Config config) {
+    /**
+     * Open the cache in the cache path of the configuration, with the
+     * resources cached by the previous runs.
+     * @param config
+     * @throws CacheException if the saved index cannot be read
+     */
+    public CacheProxy(Config config) throws CacheException {
         cache = new Cache(config);
     }
 
@@ -47,16 +56,25 @@ public class CacheProxy implements CacheAccess {
     public CacheInputChannel getResource(HttpRequestHeader requestHeader) throws CacheException {
         Objects.requireNonNull(requestHeader);
         CacheEntry entry = cache.getCacheEntry(requestHeader.getUri());
-        if(!checkIfCacheResourceMatchRequest(requestHeader, entry.getHeader())) {
+        if(!checkIfCacheResourceMatchRequest(requestHeader, entry)) {
             throw new CacheException("Cannot return cached resource for request: "+requestHeader);
         }
-        return inputChannelFactory.createCacheInputeChannel(cache.getCacheFileChannel(entry));
+        if (entry.isInSegment()) {
+            SegmentStore.Segment segment = cache.getCacheSegment(entry);
+            return inputChannelFactory.createCacheInputeChannel(segment.getChannel(), entry, segment);
+        }
+        FileChannel channel = cache.getCacheFileChannel(entry);
+        return inputChannelFactory.createCacheInputeChannel(channel, entry, channel);
     }
 
     @Override
-    public CacheOutputChannel cacheResource(URI uri) throws CacheException {
-        Objects.requireNonNull(uri);
-        return outputChannelFactory.createOutputChannel(this, uri);
+    public CacheOutputChannel cacheResource(HttpRequestHeader requestHeader) throws CacheException {
+        Objects.requireNonNull(requestHeader);
+        if (requestHeader.getMethod() != HttpMethod.GET) {
+            throw new CacheException("Only the responses to GET are cached");
+        }
+        Category category = requestHeader.getCategory();
+        return outputChannelFactory.createOutputChannel(this, requestHeader.getUri(), category == null ? null : category.getName());
     }
     
     @Override
@@ -65,16 +83,21 @@ public class CacheProxy implements CacheAccess {
         throw new UnsupportedOperationException("Not supported yet.");
     }
 
+    @Override
+    public void close() throws CacheException {
+        cache.close();
+    }
+
     /**
      * Test if a resource can be stored in cache. 
-     * Note: it is made just by regarding the expiration value for the moment.
-     * More test can be added in order to deal with more cases.
+     * Note: it is made just by regarding the status and the expiration value
+     * for the moment. More test can be added in order to deal with more cases.
      * @param responseHeader
      * @return the result of the test
      */
     private boolean isValid(HttpResponseHeader responseHeader) {
         Objects.requireNonNull(responseHeader);
-        return expirationModel.isExpired(responseHeader);
+        return responseHeader.getStatusCode() == HttpStatusCode.OK && !expirationModel.isExpired(responseHeader);
     }
 
     /**
@@ -82,27 +105,47 @@ public class CacheProxy implements CacheAccess {
      * cache add a new entry if it is valid.
      * @param responseHeader
      * @param uri
+     * @param category the name of the category of the request, or null
      * @return the file channel to write the new resource in cache
      * @throws CacheException 
      */
-    public FileChannel add(HttpResponseHeader responseHeader, URI uri) throws CacheException {
+    public FileChannel add(HttpResponseHeader responseHeader, URI uri, String category) throws CacheException {
         Objects.requireNonNull(responseHeader);
         Objects.requireNonNull(uri);
         if(!isValid(responseHeader)) {
             throw new CacheException("Resource must not be cached");
         }
-        return cache.addCacheEntry(cacheEntryFactory.createCacheEntry(responseHeader, uri));
+        return cache.addCacheEntry(cacheEntryFactory.createCacheEntry(responseHeader, uri, category));
+    }
+
+    /**
+     * Add a resource to the cache once it has been completely written.
+     * @param channel the file channel returned by add
+     * @throws CacheException 
+     */
+    public void commit(FileChannel channel) throws CacheException {
+        Objects.requireNonNull(channel);
+        cache.commitCacheEntry(channel);
+    }
+
+    /**
+     * Give up a resource being written, it is not added to the cache.
+     * @param channel the file channel returned by add
+     */
+    public void abort(FileChannel channel) {
+        Objects.requireNonNull(channel);
+        cache.abortCacheEntry(channel);
     }
 
     /**
      * Check if for a given request, the matched resource in cache can be
-     * returned.
-     * Note: It has not been implemented yet
+     * returned. Only the responses to GET are cached, they are also announced
+     * to the neighbor caches asking for them.
      * @param requestHeader
-     * @param cacheheader
+     * @param entry
      * @return the result of the test
      */
-    private boolean checkIfCacheResourceMatchRequest(HttpRequestHeader requestHeader, HttpResponseHeader cacheheader) {
-        return true;
+    private boolean checkIfCacheResourceMatchRequest(HttpRequestHeader requestHeader, CacheEntry entry) {
+        return requestHeader.getMethod() == HttpMethod.GET || requestHeader.getMethod() == HttpMethod.WHOHAS;
     }
 }
@@ -19,7 +19,6 @@ package fr.umlv.qroxy.cache;
 import fr.umlv.qroxy.cache.channels.CacheInputChannel;
 import fr.umlv.qroxy.cache.channels.CacheOutputChannel;
 import fr.umlv.qroxy.http.HttpRequestHeader;
-import java.net.URI;
 
 /**
  *
@@ -33,7 +32,7 @@ public class CacheTmpImpl implements CacheAccess {
     }
 
     @Override
-    public CacheOutputChannel cacheResource(URI uri) throws CacheException {
+    public CacheOutputChannel cacheResource(HttpRequestHeader requestHeader) throws CacheException {
         throw new CacheException("Not supported yet.");
     }
 
@@ -41,5 +40,9 @@ public class CacheTmpImpl implements CacheAccess {
     public boolean corruptCachedResource(CacheInputChannel resource) {
         return false;
     }
+
+    @Override
+    public void close() {
+    }
     
 }
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2012 Joan Goyeau & Guillaume Demurger
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.qroxy.cache;
+
+import fr.umlv.qroxy.config.Config;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Storage of the small resources. Instead of a file each, they are appended
+ * one after the other in big segment files, and addressed by their segment,
+ * offset and size. The segments stay open, so a hit opens no file.
+ *
+ * Only the last segment receives new resources. The space of a replaced
+ * resource is dead until the compaction moves the live resources of a
+ * segment to the last one and deletes it.
+ *
+ * @author gdemurge
+ */
+class SegmentStore {
+
+    private static final String PREFIX = "segment-";
+    private static final String SUFFIX = ".seg";
+    private final Path directory;
+    private final ConcurrentHashMap<Path, Segment> segments = new ConcurrentHashMap<>();
+    /**
+     * The segment receiving the new resources, guarded by the store
+     */
+    private Segment current;
+    private int nextId;
+
+    private SegmentStore(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Open the segments of a directory, the ones no entry of the index
+     * refers to are deleted.
+     *
+     * @param directory The directory of the cache
+     * @param index The loaded index of the cache
+     * @return The store
+     * @throws IOException
+     */
+    static SegmentStore open(Path directory, CacheIndex index) throws IOException {
+        SegmentStore store = new SegmentStore(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path path : files) {
+                String name = path.getFileName().toString();
+                int id;
+                try {
+                    id = Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                store.segments.put(path, new Segment(path, channel, channel.size()));
+                store.nextId = Math.max(store.nextId, id + 1);
+            }
+        }
+        for (CacheEntry entry : index.entries()) {
+            if (entry.isInSegment()) {
+                Segment segment = store.segments.get(entry.getPath());
+                if (segment != null) {
+                    segment.live.addAndGet(entry.getSize());
+                }
+            }
+        }
+        Path last = store.directory.resolve(PREFIX + (store.nextId - 1) + SUFFIX);
+        for (Segment segment : store.segments.values()) {
+            if (segment.live.get() == 0) {
+                store.retire(segment);
+            } else if (segment.path.equals(last) && segment.end < Config.CACHE_SEGMENT_SIZE) {
+                // Appended again, rather than a new segment at each start
+                store.current = segment;
+            }
+        }
+        return store;
+    }
+
+    /**
+     * Copy a resource at the end of the last segment.
+     *
+     * @param entry The entry of the resource
+     * @param source The file containing the resource
+     * @param position The position of the resource in the file
+     * @param size The size of the resource
+     * @return The entry of the resource stored in the segment
+     */
+    synchronized CacheEntry append(CacheEntry entry, FileChannel source, long position, long size) throws IOException {
+        if (current == null || current.end + size > Config.CACHE_SEGMENT_SIZE) {
+            Path path = directory.resolve(PREFIX + nextId++ + SUFFIX);
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            current = new Segment(path, channel, 0);
+            segments.put(path, current);
+        }
+        long offset = current.end;
+        current.channel.position(offset);
+        long transferred = 0;
+        while (transferred < size) {
+            long n = source.transferTo(position + transferred, size - transferred, current.channel);
+            if (n <= 0) {
+                throw new IOException("Truncated resource");
+            }
+            transferred += n;
+        }
+        current.end += size;
+        current.live.addAndGet(size);
+        return entry.stored(current.path, offset, size);
+    }
+
+    /**
+     * The space of a resource is no more used.
+     */
+    void free(CacheEntry entry) {
+        Segment segment = segments.get(entry.getPath());
+        if (segment != null) {
+            segment.live.addAndGet(-entry.getSize());
+        }
+    }
+
+    /**
+     * Get the segment of a resource to read it, it has to be closed once read.
+     *
+     * @return The segment, or null if it has been deleted
+     */
+    Segment retain(CacheEntry entry) {
+        Segment segment = segments.get(entry.getPath());
+        if (segment == null || !segment.retain()) {
+            return null;
+        }
+        return segment;
+    }
+
+    /**
+     * The segments worth compacting: not receiving resources anymore, and
+     * mostly made of dead space.
+     */
+    synchronized List<Path> sparseSegments() {
+        ArrayList<Path> sparse = new ArrayList<>();
+        for (Segment segment : segments.values()) {
+            if (segment != current && segment.live.get() * 100 < segment.end * Config.CACHE_SEGMENT_MIN_LIVE_PERCENT) {
+                sparse.add(segment.path);
+            }
+        }
+        return sparse;
+    }
+
+    /**
+     * Copy a resource of a compacted segment at the end of the last segment.
+     *
+     * @return The entry of the moved resource, or null if its segment is gone
+     */
+    CacheEntry move(CacheEntry entry) throws IOException {
+        Segment segment = retain(entry);
+        if (segment == null) {
+            return null;
+        }
+        try {
+            return append(entry, segment.channel, entry.getOffset(), entry.getSize());
+        } finally {
+            segment.close();
+        }
+    }
+
+    /**
+     * Delete a segment, once all its live resources have been moved. The
+     * readers still reading it can finish.
+     */
+    void retire(Path path) {
+        Segment segment = segments.get(path);
+        if (segment != null) {
+            retire(segment);
+        }
+    }
+
+    private void retire(Segment segment) {
+        segments.remove(segment.path);
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            // Deleted at the next start, no entry refers to it
+        }
+        segment.retire();
+    }
+
+    /**
+     * An open segment file. It is closed once deleted and no more read.
+     */
+    static class Segment implements Closeable {
+
+        private final Path path;
+        private final FileChannel channel;
+        /**
+         * The end of the resources, guarded by the store
+         */
+        private long end;
+        /**
+         * The bytes of the resources in use
+         */
+        private final AtomicLong live = new AtomicLong();
+        private int readers;
+        private boolean retired;
+
+        private Segment(Path path, FileChannel channel, long end) {
+            this.path = path;
+            this.channel = channel;
+            this.end = end;
+        }
+
+        FileChannel getChannel() {
+            return channel;
+        }
+
+        private synchronized boolean retain() {
+            if (retired) {
+                return false;
+            }
+            readers++;
+            return true;
+        }
+
+        private synchronized void retire() {
+            retired = true;
+            closeIfUnused();
+        }
+
+        /**
+         * A reader has finished reading the segment.
+         */
+        @Override
+        public synchronized void close() throws IOException {
+            readers--;
+            closeIfUnused();
+        }
+
+        private void closeIfUnused() {
+            if (retired && readers == 0) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // Do nothing
+                }
+            }
+        }
+    }
+}
@@ -16,23 +16,41 @@
  */
 package fr.umlv.qroxy.cache.channels;
 
+import fr.umlv.qroxy.cache.CacheEntry;
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 
 /**
  * Represents a connection to the cache in order to read cached data for
  * the the outdoors environment. It encapsulates a FileChannel to read
- * from he cache.
+ * from he cache. The data can be a part of the file, the file can then be
+ * read by several CacheInputChannel at the same time.
  * @author jgoyau
  */
 public class CacheInputChannel implements Closeable, AutoCloseable {
     private final FileChannel cacheFileChannel;
+    private final CacheEntry entry;
+    private final Closeable owner;
+    private long position;
+    private boolean closed;
 
-    CacheInputChannel(FileChannel cacheFileChannel) {
+    CacheInputChannel(FileChannel cacheFileChannel, CacheEntry entry, Closeable owner) {
         this.cacheFileChannel = cacheFileChannel;
+        this.entry = entry;
+        this.owner = owner;
+    }
+
+    /**
+     * The metadata of the cached ressource, to decide if it is fresh without
+     * reading it.
+     * @return the entry of the ressource
+     */
+    public CacheEntry getEntry() {
+        return entry;
     }
 
     /**
@@ -42,7 +60,51 @@ public class CacheInputChannel implements Closeable, AutoCloseable {
      * @throws IOException 
      */
     public int read(ByteBuffer src) throws IOException {
-        return cacheFileChannel.read(src);
+        long remaining = entry.getSize() - position;
+        if (remaining <= 0) {
+            return -1;
+        }
+        ByteBuffer window = src;
+        if (src.remaining() > remaining) {
+            window = src.duplicate();
+            window.limit(src.position() + (int) remaining);
+        }
+        int nbReaded = cacheFileChannel.read(window, entry.getOffset() + position);
+        if (nbReaded > 0) {
+            position += nbReaded;
+            if (window != src) {
+                src.position(window.position());
+            }
+        }
+        return nbReaded;
+    }
+
+    /**
+     * Transfer cached data directly to a channel. The system can send it
+     * without copying it in the memory of the proxy (sendfile), the reading
+     * pointer is not moved.
+     * @param target the channel to write to
+     * @param position the position of the first byte to transfer
+     * @param count the maximum number of bytes to transfer
+     * @return the number of transferred bytes, possibly 0 if the target is
+     * non-blocking
+     * @throws IOException 
+     */
+    public long transferTo(WritableByteChannel target, long position, long count) throws IOException {
+        long remaining = entry.getSize() - position;
+        if (remaining <= 0) {
+            return 0;
+        }
+        return cacheFileChannel.transferTo(entry.getOffset() + position, Math.min(count, remaining), target);
+    }
+
+    /**
+     * Size of the cached data.
+     * @return the number of bytes
+     * @throws IOException 
+     */
+    public long size() throws IOException {
+        return entry.getSize();
     }
 
     /**
@@ -50,12 +112,15 @@ public class CacheInputChannel implements Closeable, AutoCloseable {
      * @return true if the channel is open, else false 
      */
     public boolean isOpen() {
-        return cacheFileChannel.isOpen();
+        return !closed && cacheFileChannel.isOpen();
     }
 
     @Override
     public void close() throws IOException {
-        cacheFileChannel.close();
+        if (!closed) {
+            closed = true;
+            owner.close();
+        }
     }
 
     /**
@@ -63,6 +128,6 @@ public class CacheInputChannel implements Closeable, AutoCloseable {
      * @throws IOException 
      */
     public void resetPosition() throws IOException {
-        cacheFileChannel.position(0);
+        position = 0;
     }
 }
\ No newline at end of file
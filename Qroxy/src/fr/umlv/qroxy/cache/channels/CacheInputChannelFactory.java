@@ -16,6 +16,8 @@
  */
 package fr.umlv.qroxy.cache.channels;
 
+import fr.umlv.qroxy.cache.CacheEntry;
+import java.io.Closeable;
 import java.nio.channels.FileChannel;
 
 /**
@@ -25,10 +27,13 @@ import java.nio.channels.FileChannel;
 public class CacheInputChannelFactory {
     /**
      * Returns the CacheInputChannel instance initialized with the given FileChannel.
-     * @param fileChannel
+     * @param fileChannel the file containing the cached ressource
+     * @param entry the entry of the cached ressource
+     * @param owner closed with the CacheInputChannel, the file channel itself
+     * or the segment it belongs to
      * @return CacheInputChannel instance
      */
-    public CacheInputChannel createCacheInputeChannel(FileChannel fileChannel) {
-        return new CacheInputChannel(fileChannel);
+    public CacheInputChannel createCacheInputeChannel(FileChannel fileChannel, CacheEntry entry, Closeable owner) {
+        return new CacheInputChannel(fileChannel, entry, owner);
     }
 }
\ No newline at end of file
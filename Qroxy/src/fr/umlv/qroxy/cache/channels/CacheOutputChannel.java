@@ -1,93 +1,199 @@
-/*
- * Copyright (C) 2012 Joan Goyeau <joan.goyeau@gmail.com>
- *
- * This program is free software: you can redistribute it and/or modify
- * it under the terms of the GNU General Public License as published by
- * the Free Software Foundation, either version 3 of the License, or
- * (at your option) any later version.
- *
- * This program is distributed in the hope that it will be useful,
- * but WITHOUT ANY WARRANTY; without even the implied warranty of
- * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
- * GNU General Public License for more details.
- *
- * You should have received a copy of the GNU General Public License
- * along with this program.  If not, see <http://www.gnu.org/licenses/>.
- */
-package fr.umlv.qroxy.cache.channels;
-
-import fr.umlv.qroxy.cache.CacheException;
-import fr.umlv.qroxy.cache.CacheProxy;
-import fr.umlv.qroxy.http.HttpHeader;
-import fr.umlv.qroxy.http.HttpResponseHeader;
-import fr.umlv.qroxy.http.exceptions.HttpMalformedHeaderException;
-
-import java.io.Closeable;
-import java.io.IOException;
-
-import java.net.URI;
-
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-
-/**
- * Represents a connection to the cache in order to write a new resource in the
- * cache.
- *
- * @author jgoyau
- */
-public class CacheOutputChannel implements Closeable, AutoCloseable {
-
-    private final CacheProxy proxy;
-    private final URI uri;
-    private FileChannel cacheFileChannel;
-    private boolean cachable;
-
-    CacheOutputChannel(CacheProxy proxy, URI uri) {
-        this.uri = uri;
-        this.proxy = proxy;
-    }
-
-    /**
-     * Write data contained in the ByteBuffer parsed in argument in the cache.
-     * To avoid the storage of the resource while test if it is cacheable, we
-     * check it directly in this method.
-     *
-     * @param src
-     * @return the number of written bytes
-     * @throws IOException
-     */
-    public int write(ByteBuffer src) throws IOException {
-        if (!cachable) {
-            // Check if it's cachable
-            String data = HttpHeader.DECODER.decode(src).toString();
-            try {
-                HttpResponseHeader responseHeader = HttpResponseHeader.parse(data);
-                cachable = true;
-                cacheFileChannel = proxy.add(responseHeader, uri);
-            } catch (HttpMalformedHeaderException e) {
-                if (data.contains("\r\n\r\n")) {
-                    throw new CacheException("No response header in this message");
-                }
-                return 0;
-            }
-        }
-        return cacheFileChannel.write(src);
-    }
-
-    /**
-     * Test wether or not the channel is open.
-     *
-     * @return true if it is open, else false
-     */
-    public boolean isOpen() {
-        return cacheFileChannel.isOpen();
-    }
-
-    @Override
-    public void close() throws IOException {
-        if (cacheFileChannel != null) {
-            cacheFileChannel.close();
-        }
-    }
-}
\ No newline at end of file
+/*
+ * Copyright (C) 2012 Joan Goyeau <joan.goyeau@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.qroxy.cache.channels;
+
+import fr.umlv.qroxy.cache.CacheException;
+import fr.umlv.qroxy.cache.CacheProxy;
+import fr.umlv.qroxy.config.Config;
+import fr.umlv.qroxy.http.HttpHeaderParser;
+import fr.umlv.qroxy.http.HttpResponseHeader;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import java.net.URI;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Represents a connection to the cache in order to write a new resource in the
+ * cache.
+ *
+ * The bytes are written to the disk behind the relay by a {@link CacheWriter}.
+ * The resource is added to the cache only if it has been committed, once its
+ * last bytes are on the disk.
+ *
+ * @author jgoyau
+ */
+public class CacheOutputChannel implements Closeable, AutoCloseable {
+
+    private final CacheProxy proxy;
+    private final URI uri;
+    private final String category;
+    private final CacheWriter writer;
+    /**
+     * The caching of the resource has been given up, by the relay or by the
+     * writer
+     */
+    private volatile boolean dropped;
+    private boolean committed;
+    private boolean closed;
+    /**
+     * Used by the thread of the writer only: the beginning of the response
+     * until its header is complete, then the file of the resource
+     */
+    private ByteBuffer header;
+    private HttpHeaderParser headerParser;
+    private FileChannel cacheFileChannel;
+
+    CacheOutputChannel(CacheProxy proxy, URI uri, String category, CacheWriter writer) {
+        this.uri = uri;
+        this.category = category;
+        this.proxy = proxy;
+        this.writer = writer;
+    }
+
+    /**
+     * Write data contained in the ByteBuffer parsed in argument in the cache.
+     * The data is copied and written later, this method never blocks. If too
+     * much data is waiting for the disk, the resource is not cached.
+     *
+     * @param src
+     * @return the number of bytes taken from src
+     */
+    public int write(ByteBuffer src) {
+        int length = src.remaining();
+        if (!dropped && !closed && !writer.offer(this, src)) {
+            // The disk does not keep up
+            dropped = true;
+        }
+        src.position(src.limit());
+        return length;
+    }
+
+    /**
+     * Mark the resource as complete: it is added to the cache when the channel
+     * is closed. A resource closed without being committed is discarded.
+     */
+    public void commit() {
+        committed = true;
+    }
+
+    /**
+     * Test wether or not the channel is open.
+     *
+     * @return true if it is open, else false
+     */
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        writer.end(this, committed && !dropped);
+    }
+
+    /**
+     * Write bytes of the resource, called by the writer. The header of the
+     * response is checked first to know if the resource can be cached.
+     */
+    void store(ByteBuffer[] data) {
+        if (dropped) {
+            return;
+        }
+        try {
+            if (cacheFileChannel == null) {
+                if (!storeHeader(data)) {
+                    return;
+                }
+            }
+            while (data[data.length - 1].hasRemaining()) {
+                cacheFileChannel.write(data);
+            }
+        } catch (IOException e) {
+            dropped = true;
+        }
+    }
+
+    /**
+     * Gather the header of the response.
+     *
+     * @return If the header is complete and the file of the resource is open,
+     * the bytes following the header are left in data
+     */
+    private boolean storeHeader(ByteBuffer[] data) throws IOException {
+        if (header == null) {
+            header = ByteBuffer.allocate(Config.MAX_HEADER_LENGTH);
+            headerParser = new HttpHeaderParser();
+        }
+        for (ByteBuffer buffer : data) {
+            ByteBuffer part = buffer.duplicate();
+            part.limit(part.position() + Math.min(part.remaining(), header.remaining()));
+            buffer.position(part.limit());
+            header.put(part);
+
+            ByteBuffer received = header.duplicate();
+            received.flip();
+            if (headerParser.parse(received)) {
+                // Throws CacheException if the resource must not be cached
+                cacheFileChannel = proxy.add(HttpResponseHeader.parse(headerParser), uri, category);
+                header.flip();
+                while (header.hasRemaining()) {
+                    cacheFileChannel.write(header);
+                }
+                header = null;
+                headerParser = null;
+                return true;
+            }
+            if (!header.hasRemaining()) {
+                // No header, or too long
+                dropped = true;
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * End of the resource, called by the writer once all its bytes have been
+     * written.
+     *
+     * @param commit If the resource is complete
+     */
+    void finish(boolean commit) {
+        header = null;
+        headerParser = null;
+        if (cacheFileChannel == null) {
+            return;
+        }
+        if (commit && !dropped) {
+            try {
+                proxy.commit(cacheFileChannel);
+            } catch (CacheException e) {
+                // Not cached
+            }
+        } else {
+            proxy.abort(cacheFileChannel);
+        }
+        cacheFileChannel = null;
+    }
+}
@@ -24,14 +24,22 @@ import java.net.URI;
  * @author gdemurge
  */
 public class CacheOutputChannelFactory {
+
+    private final CacheWriter writer = new CacheWriter();
+
+    public CacheOutputChannelFactory() {
+        writer.start();
+    }
+
     /**
      * Returns a CacheOutputChannel instance initialized with the owning 
      * CacheProxy instance and the given URI;
      * @param proxy
      * @param uri
+     * @param category the name of the category of the request, or null
      * @return a CacheOutputChannel instance
      */
-    public CacheOutputChannel createOutputChannel(CacheProxy proxy, URI uri) {
-        return new CacheOutputChannel(proxy, uri);
+    public CacheOutputChannel createOutputChannel(CacheProxy proxy, URI uri, String category) {
+        return new CacheOutputChannel(proxy, uri, category, writer);
     }
 }
\ No newline at end of file
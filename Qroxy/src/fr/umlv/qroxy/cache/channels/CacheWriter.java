@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2012 Joan Goyeau & Guillaume Demurger
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.qroxy.cache.channels;
+
+import fr.umlv.qroxy.buffer.BufferPool;
+import fr.umlv.qroxy.config.Config;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind stage of the cache. The relays hand the bytes of the responses
+ * to cache over to a queue, a dedicated thread writes them to the disk in
+ * batches. A slow disk therefore never stalls a connection: when the bytes
+ * waiting for the disk exceed {@link Config#CACHE_WRITE_BACKLOG}, the caching
+ * of the resource is given up instead.
+ *
+ * @author jgoyau
+ */
+class CacheWriter implements Runnable {
+
+    private final LinkedBlockingQueue<Slice> queue = new LinkedBlockingQueue<>();
+    /**
+     * Bytes queued and not written yet
+     */
+    private final AtomicLong backlog = new AtomicLong();
+
+    /**
+     * Bytes of a resource, or the end of a resource if data is null.
+     */
+    private static class Slice {
+
+        private final CacheOutputChannel channel;
+        private final ByteBuffer data;
+        private final boolean commit;
+
+        Slice(CacheOutputChannel channel, ByteBuffer data, boolean commit) {
+            this.channel = channel;
+            this.data = data;
+            this.commit = commit;
+        }
+    }
+
+    /**
+     * Start the thread of the writer.
+     */
+    void start() {
+        Thread thread = new Thread(this, "Qroxy cache writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queue a copy of the bytes of a resource. Never blocks.
+     *
+     * @param channel The channel of the resource
+     * @param src The bytes, from the position to the limit
+     * @return If the bytes have been queued, false if the backlog is full
+     */
+    boolean offer(CacheOutputChannel channel, ByteBuffer src) {
+        int length = src.remaining();
+        if (backlog.addAndGet(length) > Config.CACHE_WRITE_BACKLOG) {
+            backlog.addAndGet(-length);
+            return false;
+        }
+        ByteBuffer copy = BufferPool.getDefault().acquire(length);
+        copy.put(src.duplicate());
+        copy.flip();
+        queue.add(new Slice(channel, copy, false));
+        return true;
+    }
+
+    /**
+     * Queue the end of a resource, after its bytes.
+     *
+     * @param channel The channel of the resource
+     * @param commit If the resource is complete and can be added to the cache
+     */
+    void end(CacheOutputChannel channel, boolean commit) {
+        queue.add(new Slice(channel, null, commit));
+    }
+
+    @Override
+    public void run() {
+        ArrayList<Slice> batch = new ArrayList<>(Config.CACHE_WRITE_BATCH);
+        ArrayList<ByteBuffer> run = new ArrayList<>(Config.CACHE_WRITE_BATCH);
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, Config.CACHE_WRITE_BATCH - 1);
+
+            // Consecutive bytes of a resource are written at once
+            for (int i = 0; i < batch.size(); i++) {
+                Slice slice = batch.get(i);
+                if (slice.data == null) {
+                    slice.channel.finish(slice.commit);
+                    continue;
+                }
+                run.add(slice.data);
+                Slice next = i + 1 < batch.size() ? batch.get(i + 1) : null;
+                if (next == null || next.channel != slice.channel || next.data == null) {
+                    slice.channel.store(run.toArray(new ByteBuffer[run.size()]));
+                    for (ByteBuffer data : run) {
+                        backlog.addAndGet(-data.limit());
+                        BufferPool.getDefault().release(data);
+                    }
+                    run.clear();
+                }
+            }
+            batch.clear();
+        }
+    }
+}
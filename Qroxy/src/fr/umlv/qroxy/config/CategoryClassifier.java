@@ -0,0 +1,448 @@
+/*
+ * Copyright (C) 2012 Joan Goyeau & Guillaume Demurger
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.qroxy.config;
+
+import fr.umlv.qroxy.http.HttpRequestHeader;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * Categories of the proxy compiled once, to classify the requests.
+ *
+ * The regexs of the categories are compiled when the classifier is built. The
+ * literal prefix or suffix of a regex, like the host of an URL, is indexed by
+ * the value it applies on: a category is only tried on the requests whose
+ * value starts or ends with this literal. The other categories are always
+ * tried. As with {@link HttpRequestHeader#matchesCatagories(Collection)}, the
+ * first matching category in the order of the configuration wins.
+ *
+ * The categories of the last requests are remembered, keyed by the values
+ * the categories inspect. When all the regexs applying on a value only test
+ * a literal prefix or suffix, like "http://host/.*" or ".*\\.mp4", only that
+ * much of the value is part of the key, so the requests to the same host
+ * share their entry. The memo lives as long as the classifier: a new list of
+ * categories gets a new classifier, and so starts with an empty memo.
+ *
+ * The classifier is shared by all the connections.
+ *
+ * @author joan
+ */
+public class CategoryClassifier {
+
+    /**
+     * Metacharacters of {@link Pattern}
+     */
+    private static final String METACHARACTERS = "\\^$.|?*+()[]{}";
+    private final CompiledCategory[] categories;
+    /**
+     * The values the regexs apply on, fetched once per request
+     */
+    private final String[] applyOns;
+    private final LiteralIndex[] indexes;
+    /**
+     * Categories which can not be indexed
+     */
+    private final BitSet unindexed = new BitSet();
+    /**
+     * Length of the prefix and of the suffix of each value making the memo
+     * key, -1 if the whole value is needed
+     */
+    private final int[] keyPrefixLengths;
+    private final int[] keySuffixLengths;
+    private final ClassificationMemo memo;
+    private final ClassificationMemo.Result[] results;
+    private final ClassificationMemo.Result noCategory = new ClassificationMemo.Result(null);
+
+    public CategoryClassifier(Collection<Category> categories) {
+        Objects.requireNonNull(categories);
+        ArrayList<String> applyOnList = new ArrayList<>();
+        this.categories = new CompiledCategory[categories.size()];
+        int order = 0;
+        for (Category category : categories) {
+            this.categories[order++] = new CompiledCategory(category, applyOnList);
+        }
+        this.applyOns = applyOnList.toArray(new String[applyOnList.size()]);
+        this.indexes = new LiteralIndex[applyOns.length];
+
+        for (order = 0; order < this.categories.length; order++) {
+            CompiledCategory category = this.categories[order];
+            if (!index(category, order)) {
+                unindexed.set(order);
+            }
+        }
+        for (LiteralIndex index : indexes) {
+            if (index != null) {
+                index.seal();
+            }
+        }
+
+        keyPrefixLengths = new int[applyOns.length];
+        keySuffixLengths = new int[applyOns.length];
+        for (CompiledCategory category : this.categories) {
+            for (int i = 0; i < category.fields.length; i++) {
+                reduceKey(category.fields[i], category.patterns[i].pattern());
+            }
+        }
+        memo = new ClassificationMemo(Config.CLASSIFICATION_MEMO_SIZE);
+        results = new ClassificationMemo.Result[this.categories.length];
+        for (order = 0; order < results.length; order++) {
+            results[order] = new ClassificationMemo.Result(this.categories[order].category);
+        }
+    }
+
+    /**
+     * Keep in the memo key only the part of the value the regex inspects.
+     */
+    private void reduceKey(int field, String regex) {
+        if (keyPrefixLengths[field] == -1) {
+            return;
+        }
+        int length = regex.length();
+        StringBuilder literal = new StringBuilder();
+        if (isSimple(regex) && regex.endsWith(".*") && !isEscaped(regex, length - 2)
+                && literalEnd(regex.substring(0, length - 2), literal) == length - 2) {
+            // Only tests the start of the value
+            keyPrefixLengths[field] = Math.max(keyPrefixLengths[field], literal.length());
+        } else if (isSimple(regex) && regex.startsWith(".*")
+                && literalEnd(regex.substring(2), literal) == length - 2) {
+            // Only tests the end of the value
+            keySuffixLengths[field] = Math.max(keySuffixLengths[field], literal.length());
+        } else {
+            keyPrefixLengths[field] = -1;
+        }
+    }
+
+    /**
+     * Index a category on the longest literal of its regexs.
+     *
+     * @return If the category has been indexed
+     */
+    private boolean index(CompiledCategory category, int order) {
+        int bestField = -1;
+        String bestLiteral = "";
+        boolean bestIsPrefix = true;
+        for (int i = 0; i < category.fields.length; i++) {
+            String regex = category.patterns[i].pattern();
+            String prefix = literalPrefix(regex);
+            String suffix = literalSuffix(regex);
+            if (prefix.length() > bestLiteral.length()) {
+                bestField = category.fields[i];
+                bestLiteral = prefix;
+                bestIsPrefix = true;
+            }
+            if (suffix.length() > bestLiteral.length()) {
+                bestField = category.fields[i];
+                bestLiteral = suffix;
+                bestIsPrefix = false;
+            }
+        }
+        if (bestField == -1) {
+            return false;
+        }
+        if (indexes[bestField] == null) {
+            indexes[bestField] = new LiteralIndex();
+        }
+        indexes[bestField].add(bestLiteral, bestIsPrefix, order);
+        return true;
+    }
+
+    /**
+     * Find the first category matching the request.
+     *
+     * @param request The request to classify
+     * @return The category or null if none matches
+     */
+    public Category classify(HttpRequestHeader request) {
+        Objects.requireNonNull(request);
+        String[] values = new String[applyOns.length];
+        String[] keyValues = new String[applyOns.length * 2];
+        for (int field = 0; field < applyOns.length; field++) {
+            String value = request.getValueToMatch(applyOns[field]);
+            values[field] = value;
+            int prefixLength = keyPrefixLengths[field];
+            int suffixLength = keySuffixLengths[field];
+            if (prefixLength == -1 || value.length() <= prefixLength + suffixLength) {
+                keyValues[field * 2] = value;
+            } else {
+                keyValues[field * 2] = value.substring(0, prefixLength);
+                keyValues[field * 2 + 1] = value.substring(value.length() - suffixLength);
+            }
+        }
+
+        ClassificationMemo.Key key = new ClassificationMemo.Key(keyValues);
+        ClassificationMemo.Result result = memo.get(key);
+        if (result == null) {
+            int order = classify(request, values);
+            result = order == -1 ? noCategory : results[order];
+            memo.put(key, result);
+        }
+        return result.category;
+    }
+
+    /**
+     * @return The order of the first category matching the request, -1 if
+     * none matches
+     */
+    private int classify(HttpRequestHeader request, String[] values) {
+        BitSet candidates = (BitSet) unindexed.clone();
+        for (int field = 0; field < indexes.length; field++) {
+            if (indexes[field] != null) {
+                indexes[field].lookup(values[field], candidates);
+            }
+        }
+        for (int order = candidates.nextSetBit(0); order >= 0; order = candidates.nextSetBit(order + 1)) {
+            if (categories[order].matches(values)) {
+                return order;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The number of categories
+     */
+    public int size() {
+        return categories.length;
+    }
+
+    /**
+     * @return The number of requests classified from the memo
+     */
+    public long getMemoHits() {
+        return memo.getHits();
+    }
+
+    /**
+     * @return The number of requests matched against the regexs
+     */
+    public long getMemoMisses() {
+        return memo.getMisses();
+    }
+
+    /**
+     * @return The rate of requests classified from the memo
+     */
+    public double getMemoHitRate() {
+        long total = getMemoHits() + getMemoMisses();
+        return total == 0 ? 0 : (double) getMemoHits() / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Classifier: %d categories, %d requests, %.1f%% memo hits",
+                size(), getMemoHits() + getMemoMisses(), getMemoHitRate() * 100);
+    }
+
+    /**
+     * The literal every string matched by the regex starts with.
+     */
+    static String literalPrefix(String regex) {
+        if (!isSimple(regex)) {
+            return "";
+        }
+        StringBuilder prefix = new StringBuilder();
+        literalEnd(regex, prefix);
+        return prefix.toString();
+    }
+
+    /**
+     * Read the literal at the start of the regex.
+     *
+     * @param literal Receives the literal
+     * @return The index of the regex where the literal ends
+     */
+    private static int literalEnd(String regex, StringBuilder literal) {
+        int i = 0;
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            int next;
+            if (c == '\\') {
+                if (i + 1 == regex.length() || Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                    break;
+                }
+                c = regex.charAt(i + 1);
+                next = i + 2;
+            } else if (METACHARACTERS.indexOf(c) != -1) {
+                break;
+            } else {
+                next = i + 1;
+            }
+            if (next < regex.length() && "?*{".indexOf(regex.charAt(next)) != -1) {
+                // The character is optional
+                break;
+            }
+            literal.append(c);
+            i = next;
+        }
+        return i;
+    }
+
+    /**
+     * The literal every string matched by the regex ends with.
+     */
+    static String literalSuffix(String regex) {
+        if (!isSimple(regex)) {
+            return "";
+        }
+        StringBuilder suffix = new StringBuilder();
+        int i = regex.length() - 1;
+        while (i >= 0) {
+            char c = regex.charAt(i);
+            if (isEscaped(regex, i)) {
+                if (Character.isLetterOrDigit(c)) {
+                    // Class or special construct like \d
+                    break;
+                }
+                suffix.append(c);
+                i -= 2;
+            } else if (METACHARACTERS.indexOf(c) != -1) {
+                break;
+            } else {
+                suffix.append(c);
+                i--;
+            }
+        }
+        return suffix.reverse().toString();
+    }
+
+    /**
+     * @return If the character at this index follows an odd number of
+     * backslashes
+     */
+    private static boolean isEscaped(String regex, int index) {
+        int backslashes = 0;
+        for (int i = index - 1; i >= 0 && regex.charAt(i) == '\\'; i--) {
+            backslashes++;
+        }
+        return backslashes % 2 == 1;
+    }
+
+    /**
+     * Alternatives, quotes and flags change the meaning of the literals, such
+     * regexs are not indexed.
+     */
+    private static boolean isSimple(String regex) {
+        return regex.indexOf('|') == -1 && !regex.contains("\\Q") && !regex.contains("(?");
+    }
+
+    private static class CompiledCategory {
+
+        private final Category category;
+        private final int[] fields;
+        private final Pattern[] patterns;
+
+        CompiledCategory(Category category, List<String> applyOnList) {
+            this.category = category;
+            int size = category.getRegexs().size();
+            this.fields = new int[size];
+            this.patterns = new Pattern[size];
+            int i = 0;
+            for (Entry<String, String> entry : category.getRegexs().entrySet()) {
+                int field = applyOnList.indexOf(entry.getKey());
+                if (field == -1) {
+                    field = applyOnList.size();
+                    applyOnList.add(entry.getKey());
+                }
+                fields[i] = field;
+                patterns[i] = Pattern.compile(entry.getValue());
+                i++;
+            }
+        }
+
+        /**
+         * @param values The values the regexs apply on
+         */
+        boolean matches(String[] values) {
+            for (int i = 0; i < patterns.length; i++) {
+                if (!patterns[i].matcher(values[fields[i]]).matches()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Categories by the literal prefix or suffix of one of their regexs.
+     */
+    private static class LiteralIndex {
+
+        private final HashMap<String, BitSet> prefixes = new HashMap<>();
+        private final HashMap<String, BitSet> suffixes = new HashMap<>();
+        private int[] prefixLengths;
+        private int[] suffixLengths;
+
+        void add(String literal, boolean prefix, int order) {
+            HashMap<String, BitSet> literals = prefix ? prefixes : suffixes;
+            BitSet orders = literals.get(literal);
+            if (orders == null) {
+                orders = new BitSet();
+                literals.put(literal, orders);
+            }
+            orders.set(order);
+        }
+
+        void seal() {
+            prefixLengths = lengthsOf(prefixes);
+            suffixLengths = lengthsOf(suffixes);
+        }
+
+        private static int[] lengthsOf(HashMap<String, BitSet> literals) {
+            TreeSet<Integer> lengths = new TreeSet<>();
+            for (String literal : literals.keySet()) {
+                lengths.add(literal.length());
+            }
+            int[] array = new int[lengths.size()];
+            int i = 0;
+            for (int length : lengths) {
+                array[i++] = length;
+            }
+            return array;
+        }
+
+        /**
+         * Add the categories whose literal the value starts or ends with.
+         */
+        void lookup(String value, BitSet candidates) {
+            for (int length : prefixLengths) {
+                if (length > value.length()) {
+                    break;
+                }
+                BitSet orders = prefixes.get(value.substring(0, length));
+                if (orders != null) {
+                    candidates.or(orders);
+                }
+            }
+            for (int length : suffixLengths) {
+                if (length > value.length()) {
+                    break;
+                }
+                BitSet orders = suffixes.get(value.substring(value.length() - length));
+                if (orders != null) {
+                    candidates.or(orders);
+                }
+            }
+        }
+    }
+}
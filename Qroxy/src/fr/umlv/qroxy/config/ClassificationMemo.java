@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2012 Joan Goyeau & Guillaume Demurger
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.qroxy.config;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded memo of the categories of the requests, for
+ * {@link CategoryClassifier}.
+ *
+ * The memo is split in stripes, each one locked on its own and evicting its
+ * least recently used entry, so the reactors rarely wait for each other.
+ *
+ * @author joan
+ */
+class ClassificationMemo {
+
+    private static final int STRIPES = 16;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param capacity The maximum number of requests remembered
+     */
+    ClassificationMemo(int capacity) {
+        if (capacity < STRIPES) {
+            throw new IllegalArgumentException("The capacity has to be at least " + STRIPES);
+        }
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(capacity / STRIPES);
+        }
+    }
+
+    /**
+     * @param key The values inspected by the categories
+     * @return The remembered result or null if unknown
+     */
+    Result get(Key key) {
+        Stripe stripe = stripeOf(key);
+        Result result;
+        synchronized (stripe) {
+            result = stripe.get(key);
+        }
+        if (result == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return result;
+    }
+
+    void put(Key key, Result result) {
+        Stripe stripe = stripeOf(key);
+        synchronized (stripe) {
+            stripe.put(key, result);
+        }
+    }
+
+    private Stripe stripeOf(Key key) {
+        // The low bits select the bucket of the stripe
+        return stripes[(key.hash >>> 16) & (STRIPES - 1)];
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * The category of a request, null if no category matches.
+     */
+    static class Result {
+
+        final Category category;
+
+        Result(Category category) {
+            this.category = category;
+        }
+    }
+
+    /**
+     * The values inspected by the categories, as compared by the memo.
+     */
+    static class Key {
+
+        private final String[] values;
+        private final int hash;
+
+        Key(String[] values) {
+            this.values = values;
+            this.hash = Arrays.hashCode(values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hash == other.hash && Arrays.equals(values, other.values);
+        }
+    }
+
+    private static class Stripe extends LinkedHashMap<Key, Result> {
+
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+
+        Stripe(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Result> eldest) {
+            return size() > capacity;
+        }
+    }
+}
@@ -41,16 +41,38 @@ import org.xml.sax.helpers.DefaultHandler;
 public class Config extends DefaultHandler {
 
     public static final int WHOHAS_CANCEL_TIME_OUT = 100;
+    public static final int REQUEST_TIME_OUT = 30000;
+    public static final int IDLE_TIME_OUT = 60000;
+    public static final int ORIGIN_IDLE_TIME_OUT = 15000;
+    public static final int MAX_IDLE_ORIGIN_CONNECTIONS = 8;
+    public static final int RESOLVER_THREADS = 4;
+    public static final int RESOLVER_POSITIVE_TTL = 60000;
+    public static final int RESOLVER_NEGATIVE_TTL = 5000;
+    public static final int CLASSIFICATION_MEMO_SIZE = 4096;
     public static final int MAX_HEADER_LENGTH = 4096;
+    public static final int MAX_PIPELINED_REQUESTS = 8;
+    public static final int CACHE_WRITE_BACKLOG = 16 * 1024 * 1024;
+    public static final int CACHE_WRITE_BATCH = 64;
+    public static final int CACHE_JOURNAL_COMPACTION = 16 * 1024 * 1024;
+    public static final int CACHE_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final int CACHE_SEGMENT_OBJECT_LIMIT = 32 * 1024;
+    public static final int CACHE_SEGMENT_MIN_LIVE_PERCENT = 50;
+    public static final int CACHE_COMPACTION_PERIOD = 60000;
+    public static final int STATISTICS_PERIOD = 600000;
     private static final Double XML_CONFIG_VERSION = 1.0;
     private static final int DEFAULT_WEBUI_BIND_PORT = 7777;
     private static final int DEFAULT_PROXY_BIND_PORT = 8080;
+    private static final int DEFAULT_WORKERS = Runtime.getRuntime().availableProcessors();
     private final ArrayList<Category> categories = new ArrayList<>();
     private InetSocketAddress proxyBindSocketAddress;
     private SocketAddress webUiBindSocketAddress;
     private String cachePath;
     private int cacheDefaultMaxSize;
     private InetAddress cacheExchangingMulticastAddress;
+    private int workers = DEFAULT_WORKERS;
+    private ConnectionEngine engine = ConnectionEngine.SELECTOR;
+    private long linkCapacity;
+    private long uplinkCapacity;
 
     public Config(InetSocketAddress setListeningAddress, SocketAddress webUiBindAddress, String cachePath, int cacheDefaultMaxSize, InetAddress cacheExchangingMulticastAddress) {
         this.proxyBindSocketAddress = setListeningAddress;
@@ -83,6 +105,10 @@ public class Config extends DefaultHandler {
     boolean proxyTags;
     boolean proxyBindAddressTags;
     boolean proxyBindPortTags;
+    boolean workersTags;
+    boolean engineTags;
+    boolean linkCapacityTags;
+    boolean uplinkCapacityTags;
     boolean webUiTags;
     boolean cacheBindAddressTags;
     boolean cacheBindPortTags;
@@ -95,8 +121,12 @@ public class Config extends DefaultHandler {
     boolean regexsTags;
     boolean regexTags;
     boolean qosRuleTags;
+    boolean downloadTags;
+    boolean uploadTags;
     boolean minSpeedTags;
     boolean maxSpeedTags;
+    boolean burstTags;
+    boolean requestMaxSpeedTags;
     boolean priorityTags;
     boolean cacheRuleTags;
     boolean maxSizeTags;
@@ -108,9 +138,10 @@ public class Config extends DefaultHandler {
     HashMap<String, String> currentRegexs;
     String currentApplyOn;
     QosRule currentQosRule;
-    Integer currentMinSpeed;
-    Integer currentMaxSpeed;
-    int currentPriority;
+    RateValues currentDirectValues;
+    RateValues currentDownloadValues;
+    RateValues currentUploadValues;
+    RateValues currentValues;
     CacheRule currentCacheRule;
     int currentMaxSize;
 
@@ -128,6 +159,14 @@ public class Config extends DefaultHandler {
             proxyBindAddressTags = true;
         } else if (qName.equalsIgnoreCase("bindPort")) {
             proxyBindPortTags = true;
+        } else if (qName.equalsIgnoreCase("workers")) {
+            workersTags = true;
+        } else if (qName.equalsIgnoreCase("engine")) {
+            engineTags = true;
+        } else if (qName.equalsIgnoreCase("linkCapacity")) {
+            linkCapacityTags = true;
+        } else if (qName.equalsIgnoreCase("uplinkCapacity")) {
+            uplinkCapacityTags = true;
         } else if (qName.equalsIgnoreCase("webUi")) {
             webUiTags = true;
         } else if (qName.equalsIgnoreCase("bindAddress")) {
@@ -146,6 +185,8 @@ public class Config extends DefaultHandler {
             categoriesTags = true;
         } else if (qName.equalsIgnoreCase("category")) {
             currentCategoryName = attributes.getValue("name");
+            currentQosRule = null;
+            currentCacheRule = null;
             categoryTags = true;
         } else if (qName.equalsIgnoreCase("regexs")) {
             currentRegexs = new HashMap<>();
@@ -154,11 +195,27 @@ public class Config extends DefaultHandler {
             currentApplyOn = attributes.getValue("applyOn");
             regexTags = true;
         } else if (qName.equalsIgnoreCase("qosRule")) {
+            currentDirectValues = new RateValues();
+            currentDownloadValues = null;
+            currentUploadValues = null;
+            currentValues = currentDirectValues;
             qosRuleTags = true;
+        } else if (qName.equalsIgnoreCase("download")) {
+            currentDownloadValues = new RateValues();
+            currentValues = currentDownloadValues;
+            downloadTags = true;
+        } else if (qName.equalsIgnoreCase("upload")) {
+            currentUploadValues = new RateValues();
+            currentValues = currentUploadValues;
+            uploadTags = true;
         } else if (qName.equalsIgnoreCase("minSpeed")) {
             minSpeedTags = true;
         } else if (qName.equalsIgnoreCase("maxSpeed")) {
             maxSpeedTags = true;
+        } else if (qName.equalsIgnoreCase("burst")) {
+            burstTags = true;
+        } else if (qName.equalsIgnoreCase("requestMaxSpeed")) {
+            requestMaxSpeedTags = true;
         } else if (qName.equalsIgnoreCase("priority")) {
             priorityTags = true;
         } else if (qName.equalsIgnoreCase("cacheRule")) {
@@ -181,6 +238,46 @@ public class Config extends DefaultHandler {
                 throw new SAXException("Invalid port number format: " + value, e);
             }
             proxyBindPortTags = false;
+        } else if (workersTags) {
+            String value = new String(chars, start, length);
+            try {
+                workers = Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                throw new SAXException("Invalid workers number format: " + value, e);
+            }
+            if (workers < 1) {
+                throw new SAXException("The number of workers has to be at least 1: " + value);
+            }
+            workersTags = false;
+        } else if (engineTags) {
+            String value = new String(chars, start, length);
+            engine = ConnectionEngine.valueFor(value);
+            if (engine == null) {
+                throw new SAXException("Invalid engine, expected selector or thread: " + value);
+            }
+            engineTags = false;
+        } else if (linkCapacityTags) {
+            String value = new String(chars, start, length);
+            try {
+                linkCapacity = Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                throw new SAXException("Invalid link capacity number format: " + value, e);
+            }
+            if (linkCapacity < 0) {
+                throw new SAXException("The link capacity has to be positive: " + value);
+            }
+            linkCapacityTags = false;
+        } else if (uplinkCapacityTags) {
+            String value = new String(chars, start, length);
+            try {
+                uplinkCapacity = Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                throw new SAXException("Invalid uplink capacity number format: " + value, e);
+            }
+            if (uplinkCapacity < 0) {
+                throw new SAXException("The uplink capacity has to be positive: " + value);
+            }
+            uplinkCapacityTags = false;
         } else if (cacheBindAddressTags) {
             webUiBindAddress = new String(chars, start, length);
             cacheBindAddressTags = false;
@@ -219,7 +316,7 @@ public class Config extends DefaultHandler {
         } else if (minSpeedTags) {
             String value = new String(chars, start, length);
             try {
-                currentMinSpeed = Integer.parseInt(value);
+                currentValues.minSpeed = Integer.parseInt(value);
             } catch (NumberFormatException e) {
                 throw new SAXException("Invalid minSpeed number format: " + value, e);
             }
@@ -227,15 +324,31 @@ public class Config extends DefaultHandler {
         } else if (maxSpeedTags) {
             String value = new String(chars, start, length);
             try {
-                currentMaxSpeed = Integer.parseInt(value);
+                currentValues.maxSpeed = Integer.parseInt(value);
             } catch (NumberFormatException e) {
                 throw new SAXException("Invalid maxSpeed number format: " + value, e);
             }
             maxSpeedTags = false;
+        } else if (burstTags) {
+            String value = new String(chars, start, length);
+            try {
+                currentValues.burst = Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                throw new SAXException("Invalid burst number format: " + value, e);
+            }
+            burstTags = false;
+        } else if (requestMaxSpeedTags) {
+            String value = new String(chars, start, length);
+            try {
+                currentValues.requestMaxSpeed = Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                throw new SAXException("Invalid requestMaxSpeed number format: " + value, e);
+            }
+            requestMaxSpeedTags = false;
         } else if (priorityTags) {
             String value = new String(chars, start, length);
             try {
-                currentPriority = Integer.parseInt(value);
+                currentValues.priority = Integer.parseInt(value);
             } catch (NumberFormatException e) {
                 throw new SAXException("Invalid priority number format: " + value, e);
             }
@@ -265,10 +378,15 @@ public class Config extends DefaultHandler {
             } else {
                 webUiBindSocketAddress = new InetSocketAddress(webUiBindAddress, webUiBindPort);
             }
+        } else if ((qName.equalsIgnoreCase("download") && downloadTags) || (qName.equalsIgnoreCase("upload") && uploadTags)) {
+            currentValues = currentDirectValues;
         } else if (qName.equalsIgnoreCase("qosRule") && qosRuleTags) {
+            // Direct children are the download settings
+            RateValues download = currentDownloadValues == null ? currentDirectValues : currentDownloadValues;
             try {
-                currentQosRule = new QosRule(currentMinSpeed, currentMaxSpeed, currentPriority);
-            } catch (NullPointerException e) {
+                currentQosRule = new QosRule(download.toRateRule(currentDirectValues),
+                        currentUploadValues == null ? null : currentUploadValues.toRateRule(currentDirectValues));
+            } catch (NullPointerException | IllegalArgumentException e) {
                 throw new SAXException(e.getMessage(), e);
             }
         } else if (qName.equalsIgnoreCase("cacheRule") && cacheRuleTags) {
@@ -280,6 +398,50 @@ public class Config extends DefaultHandler {
             } catch (NullPointerException e) {
                 throw new SAXException(e.getMessage(), e);
             }
+        } else if (qName.equalsIgnoreCase("qroxyConfig") && qroxyConfigTags) {
+            checkMinSpeeds(linkCapacity, false);
+            checkMinSpeeds(uplinkCapacity, true);
+        }
+    }
+
+    private void checkMinSpeeds(long capacity, boolean upload) throws SAXException {
+        if (capacity == 0) {
+            return;
+        }
+        long guaranteed = 0;
+        for (Category category : categories) {
+            if (category.getQosRule() == null) {
+                continue;
+            }
+            RateRule rateRule = upload ? category.getQosRule().getUpload() : category.getQosRule().getDownload();
+            if (rateRule != null && rateRule.getMinSpeed() != null) {
+                guaranteed += rateRule.getMinSpeed();
+            }
+        }
+        if (guaranteed > capacity) {
+            throw new SAXException("The sum of the " + (upload ? "upload" : "download") + " minSpeeds (" + guaranteed + ") exceeds the link capacity (" + capacity + ")");
+        }
+    }
+
+    /**
+     * Values of a qosRule, or of its download or upload element, being parsed
+     */
+    private static class RateValues {
+
+        Integer minSpeed;
+        Integer maxSpeed;
+        Integer burst;
+        Integer requestMaxSpeed;
+        Integer priority;
+
+        /**
+         * @param defaults Values of the qosRule element, its priority applies
+         * to both directions unless they have their own
+         */
+        RateRule toRateRule(RateValues defaults) {
+            Integer rulePriority = priority != null ? priority : defaults.priority;
+            return new RateRule(minSpeed, maxSpeed, burst, requestMaxSpeed,
+                    rulePriority != null ? rulePriority : QosRule.DEFAULT_PRIORITY);
         }
     }
 
@@ -306,4 +468,41 @@ public class Config extends DefaultHandler {
     public InetSocketAddress getProxyListeningAddress() {
         return proxyBindSocketAddress;
     }
+
+    /**
+     * Number of selector loops sharing the client connections. Defaults to the
+     * number of available processors.
+     *
+     * @return The number of worker selector loops
+     */
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * @return The way client connections are served
+     */
+    public ConnectionEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Download capacity of the link shared by the clients, needed to
+     * guarantee the minSpeed of the categories.
+     *
+     * @return The capacity in bytes per second or 0 if unknown
+     */
+    public long getLinkCapacity() {
+        return linkCapacity;
+    }
+
+    /**
+     * Upload capacity of the link shared by the clients, needed to guarantee
+     * the upload minSpeed of the categories.
+     *
+     * @return The capacity in bytes per second or 0 if unknown
+     */
+    public long getUplinkCapacity() {
+        return uplinkCapacity;
+    }
 }
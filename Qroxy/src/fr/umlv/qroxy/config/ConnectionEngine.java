@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2012 Joan Goyeau & Guillaume Demurger
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.qroxy.config;
+
+/**
+ * The way client connections are served by the proxy.
+ *
+ * @author joan
+ */
+public enum ConnectionEngine {
+
+    /**
+     * Non blocking connections multiplexed on the reactors selector loops.
+     */
+    SELECTOR,
+    /**
+     * One thread per connection doing blocking I/O. Virtual threads are used
+     * when the running JVM provides them.
+     */
+    THREAD;
+
+    public static ConnectionEngine valueFor(String engine) {
+        for (ConnectionEngine connectionEngine : ConnectionEngine.values()) {
+            if (connectionEngine.name().equalsIgnoreCase(engine)) {
+                return connectionEngine;
+            }
+        }
+        return null;
+    }
+}
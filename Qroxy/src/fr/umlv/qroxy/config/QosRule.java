@@ -17,40 +17,56 @@
 package fr.umlv.qroxy.config;
 
 /**
+ * QoS of a category, in download (server to client) and upload (client to
+ * server).
  *
  * @author joan
  */
 public class QosRule {
     
-    private final Integer minSpeed;
-    private final Integer maxSpeed;
-    private final int priority;
+    /**
+     * Priority used when no rule applies
+     */
+    public static final int DEFAULT_PRIORITY = 5;
+    /**
+     * Weight of the best priority (1)
+     */
+    public static final int MAX_WEIGHT = 10;
+    private final RateRule download;
+    private final RateRule upload;
 
-    public QosRule(Integer minSpeed, Integer maxSpeed, int priority) {
-        if (minSpeed != null && minSpeed < 0) {
-            throw new IllegalArgumentException("The minSpeed has to be positive");
+    /**
+     * @param download Settings of the download direction
+     * @param upload Settings of the upload direction, null if the uploads
+     * are not shaped
+     */
+    public QosRule(RateRule download, RateRule upload) {
+        if (download == null) {
+            throw new NullPointerException("The download settings are required");
         }
-        if (minSpeed != null && maxSpeed < 0) {
-            throw new IllegalArgumentException("The minSpeed has to be positive");
-        }
-        if (priority < 1 || priority > 10 ) {
-            throw new IllegalArgumentException("The priority has to be in range [1-10]");
-        }
-        
-        this.minSpeed = minSpeed;
-        this.maxSpeed = maxSpeed;
-        this.priority = priority;
+        this.download = download;
+        this.upload = upload;
+    }
+
+    public RateRule getDownload() {
+        return download;
     }
 
-    public Integer getMaxSpeed() {
-        return maxSpeed;
+    /**
+     * @return The upload settings or null if the uploads are not shaped
+     */
+    public RateRule getUpload() {
+        return upload;
     }
 
-    public Integer getMinSpeed() {
-        return minSpeed;
+    /**
+     * @return If the requests of the category have to be rejected
+     */
+    public boolean isFiltering() {
+        return download.isFiltering() || (upload != null && upload.isFiltering());
     }
 
-    public int getPriority() {
-        return priority;
+    public static int weightOf(int priority) {
+        return MAX_WEIGHT + 1 - priority;
     }
 }
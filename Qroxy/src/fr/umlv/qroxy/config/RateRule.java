@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2012 Joan Goyeau & Guillaume Demurger
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.qroxy.config;
+
+/**
+ * Speed settings of one direction of a {@link QosRule}.
+ *
+ * @author joan
+ */
+public class RateRule {
+
+    /**
+     * Default burst, as a fraction of the max speed (100ms of traffic)
+     */
+    private static final int DEFAULT_BURST_DIVISOR = 10;
+    private final Integer minSpeed;
+    private final Integer maxSpeed;
+    private final Integer burst;
+    private final Integer requestMaxSpeed;
+    private final int priority;
+
+    public RateRule(Integer minSpeed, Integer maxSpeed, Integer burst, Integer requestMaxSpeed, int priority) {
+        if (minSpeed != null && minSpeed < 0) {
+            throw new IllegalArgumentException("The minSpeed has to be positive");
+        }
+        if (maxSpeed != null && maxSpeed < 0) {
+            throw new IllegalArgumentException("The maxSpeed has to be positive");
+        }
+        if (requestMaxSpeed != null && requestMaxSpeed < 0) {
+            throw new IllegalArgumentException("The requestMaxSpeed has to be positive");
+        }
+        if (minSpeed != null && maxSpeed != null && minSpeed > maxSpeed) {
+            throw new IllegalArgumentException("The minSpeed has to be lower than the maxSpeed");
+        }
+        if (burst != null && burst <= 0) {
+            throw new IllegalArgumentException("The burst has to be strictly positive");
+        }
+        if (priority < 1 || priority > 10 ) {
+            throw new IllegalArgumentException("The priority has to be in range [1-10]");
+        }
+        
+        this.minSpeed = minSpeed;
+        this.maxSpeed = maxSpeed;
+        this.burst = burst;
+        this.requestMaxSpeed = requestMaxSpeed;
+        this.priority = priority;
+    }
+
+    public Integer getMinSpeed() {
+        return minSpeed;
+    }
+
+    /**
+     * Speed limit of all the requests of the category together.
+     *
+     * @return The max speed in bytes per second or null if not limited
+     */
+    public Integer getMaxSpeed() {
+        return maxSpeed;
+    }
+
+    /**
+     * Speed limit of each request of the category.
+     *
+     * @return The max speed in bytes per second or null if not limited
+     */
+    public Integer getRequestMaxSpeed() {
+        return requestMaxSpeed;
+    }
+
+    /**
+     * A max speed of 0 filters the resources of the category.
+     *
+     * @return If the requests of the category have to be rejected
+     */
+    public boolean isFiltering() {
+        return (maxSpeed != null && maxSpeed == 0) || (requestMaxSpeed != null && requestMaxSpeed == 0);
+    }
+
+    /**
+     * Number of bytes which can be transfered at once without exceeding the
+     * max speed.
+     *
+     * @return The configured burst or a tenth of the max speed
+     */
+    public int getBurst() {
+        if (burst != null) {
+            return burst;
+        }
+        return Math.max(maxSpeed / DEFAULT_BURST_DIVISOR, 1);
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Share of the surplus bandwidth. The best priority is 1 and has the
+     * biggest weight.
+     *
+     * @return The weight, from 1 to {@link QosRule#MAX_WEIGHT}
+     */
+    public int getWeight() {
+        return QosRule.weightOf(priority);
+    }
+}
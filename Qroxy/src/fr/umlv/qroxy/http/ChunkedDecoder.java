@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2012 Joan Goyeau & Guillaume Demurger
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.qroxy.http;
+
+import fr.umlv.qroxy.http.exceptions.HttpMalformedBodyException;
+import java.nio.ByteBuffer;
+
+/**
+ * Streaming reader of a body with the chunked transfer-coding (see section
+ * 3.6.1 in RFC 2616).
+ *
+ * The decoder follows the chunk boundaries over the bytes as they are
+ * received, without copying them: the data of the chunks is skipped, only the
+ * chunk-size lines and the trailer are read byte per byte. It tells where
+ * the message ends, after the last chunk and the trailer, so the connection
+ * can be used for the next message.
+ *
+ * @author joan
+ */
+public class ChunkedDecoder {
+
+    /**
+     * Longest chunk-size line, with its extensions, or trailer line
+     */
+    private static final int MAX_LINE_LENGTH = 8192;
+
+    private enum State {
+
+        SIZE, EXTENSION, SIZE_LF, DATA, DATA_CR, DATA_LF, TRAILER_START, TRAILER, LAST_LF, DONE
+    }
+    private State state = State.SIZE;
+    private long chunkSize;
+    private int sizeDigits;
+    private long chunkRemaining;
+    private int lineLength;
+    private long consumed;
+
+    /**
+     * Read the bytes of the buffer from its position to its limit. The
+     * position of the buffer is not moved.
+     *
+     * @param buffer The following bytes of the message
+     * @return The number of bytes belonging to the chunked body, less than
+     * the remaining bytes if the body ends before the limit
+     * @throws HttpMalformedBodyException If the bytes are not a chunked body
+     */
+    public int scan(ByteBuffer buffer) throws HttpMalformedBodyException {
+        int position = buffer.position();
+        int limit = buffer.limit();
+        while (position < limit && state != State.DONE) {
+            if (state == State.DATA) {
+                int skipped = (int) Math.min(chunkRemaining, limit - position);
+                position += skipped;
+                chunkRemaining -= skipped;
+                if (chunkRemaining == 0) {
+                    state = State.DATA_CR;
+                }
+                continue;
+            }
+            next(buffer.get(position++));
+        }
+        int count = position - buffer.position();
+        consumed += count;
+        return count;
+    }
+
+    private void next(byte b) throws HttpMalformedBodyException {
+        if (++lineLength > MAX_LINE_LENGTH) {
+            throw new HttpMalformedBodyException("Chunk line too long");
+        }
+        switch (state) {
+            case SIZE:
+                int digit = Character.digit(b, 16);
+                if (digit != -1) {
+                    if (chunkSize > Long.MAX_VALUE >> 4) {
+                        throw new HttpMalformedBodyException("Chunk size too large");
+                    }
+                    chunkSize = chunkSize << 4 | digit;
+                    sizeDigits++;
+                } else if (sizeDigits == 0) {
+                    throw new HttpMalformedBodyException("Invalid chunk size (see section 3.6.1 in RFC 2616)");
+                } else if (b == '\r') {
+                    state = State.SIZE_LF;
+                } else if (b == '\n') {
+                    endSizeLine();
+                } else if (b == ';' || b == ' ' || b == '\t') {
+                    // chunk-extension, ignored
+                    state = State.EXTENSION;
+                } else {
+                    throw new HttpMalformedBodyException("Invalid chunk size (see section 3.6.1 in RFC 2616)");
+                }
+                return;
+            case EXTENSION:
+                if (b == '\r') {
+                    state = State.SIZE_LF;
+                } else if (b == '\n') {
+                    endSizeLine();
+                }
+                return;
+            case SIZE_LF:
+                expect(b, '\n');
+                endSizeLine();
+                return;
+            case DATA_CR:
+                if (b == '\n') {
+                    // A bare LF is tolerated (see section 19.3 in RFC 2616)
+                    startSizeLine();
+                    return;
+                }
+                expect(b, '\r');
+                state = State.DATA_LF;
+                return;
+            case DATA_LF:
+                expect(b, '\n');
+                startSizeLine();
+                return;
+            case TRAILER_START:
+                if (b == '\r') {
+                    state = State.LAST_LF;
+                } else if (b == '\n') {
+                    state = State.DONE;
+                } else {
+                    state = State.TRAILER;
+                }
+                return;
+            case TRAILER:
+                if (b == '\n') {
+                    lineLength = 0;
+                    state = State.TRAILER_START;
+                }
+                return;
+            case LAST_LF:
+                expect(b, '\n');
+                state = State.DONE;
+                return;
+            default:
+                throw new AssertionError(state);
+        }
+    }
+
+    private static void expect(byte b, char expected) throws HttpMalformedBodyException {
+        if (b != expected) {
+            throw new HttpMalformedBodyException("Invalid end of chunk (see section 3.6.1 in RFC 2616)");
+        }
+    }
+
+    private void startSizeLine() {
+        chunkSize = 0;
+        sizeDigits = 0;
+        lineLength = 0;
+        state = State.SIZE;
+    }
+
+    private void endSizeLine() {
+        lineLength = 0;
+        if (chunkSize == 0) {
+            // last-chunk, then the trailer
+            state = State.TRAILER_START;
+        } else {
+            chunkRemaining = chunkSize;
+            state = State.DATA;
+        }
+    }
+
+    /**
+     * @return If the last chunk and the trailer have been read
+     */
+    public boolean isComplete() {
+        return state == State.DONE;
+    }
+
+    /**
+     * @return The number of bytes of the chunked body read so far
+     */
+    public long getConsumed() {
+        return consumed;
+    }
+
+    /**
+     * Forget the current body, to read the next one.
+     */
+    public void reset() {
+        startSizeLine();
+        chunkRemaining = 0;
+        consumed = 0;
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2012 Joan Goyeau & Guillaume Demurger
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.qroxy.http;
+
+import java.text.ParseException;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * HTTP-date codec (see section 3.3.1 in RFC 2616).
+ *
+ * Dates are parsed in the three formats of the RFC and always formatted as
+ * RFC 1123 dates in GMT. The codec has no mutable shared state but its
+ * caches, so it can be used by any thread. Recently parsed strings are
+ * remembered, since the Date and Expires fields of many responses share the
+ * same value, and the Date field of the responses of the proxy is built once
+ * per second.
+ *
+ * @author joan
+ */
+public final class HttpDates {
+
+    private static final String[] DAYS = {"Sun", "Mon", "Tue", "Wed", "Thu", "Fri", "Sat"};
+    private static final String[] MONTHS = {"Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"};
+    private static final int MAX_PARSED_DATES = 1024;
+    private static final ConcurrentHashMap<String, Long> parsedDates = new ConcurrentHashMap<>();
+    private static volatile FormattedDate lastFormatted = new FormattedDate(Long.MIN_VALUE, null);
+    private static volatile CurrentDate currentDate = new CurrentDate(Long.MIN_VALUE);
+
+    private HttpDates() {
+    }
+
+    /**
+     * Parse a date in the format of RFC 1123, RFC 850 or ANSI C's asctime().
+     *
+     * @param value The value of a date field
+     * @return The date
+     * @throws ParseException If the value is not an HTTP-date
+     */
+    public static Date parse(String value) throws ParseException {
+        Long time = parsedDates.get(value);
+        if (time == null) {
+            time = parseTime(value.trim());
+            if (parsedDates.size() >= MAX_PARSED_DATES) {
+                parsedDates.clear();
+            }
+            parsedDates.put(value, time);
+        }
+        return new Date(time);
+    }
+
+    private static long parseTime(String value) throws ParseException {
+        // Sun, 06 Nov 1994 08:49:37 GMT, Sunday, 06-Nov-94 08:49:37 GMT or Sun Nov  6 08:49:37 1994
+        String[] tokens = new String[6];
+        int count = 0;
+        int start = -1;
+        for (int i = 0; i <= value.length(); i++) {
+            char c = i == value.length() ? ' ' : value.charAt(i);
+            if (c == ' ' || c == ',' || c == '-') {
+                if (start != -1) {
+                    if (count == tokens.length) {
+                        throw new ParseException("Invalid HTTP date: " + value, i);
+                    }
+                    tokens[count++] = value.substring(start, i);
+                    start = -1;
+                }
+            } else if (start == -1) {
+                start = i;
+            }
+        }
+
+        int day;
+        int month;
+        int year;
+        String time;
+        if (count == 6) {
+            // RFC 1123 or RFC 850
+            if (!tokens[5].equals("GMT") && !tokens[5].equals("UTC")) {
+                throw new ParseException("HTTP dates are in GMT: " + value, 0);
+            }
+            day = parseNumber(tokens[1], 1, 31, value);
+            month = parseMonth(tokens[2], value);
+            year = parseNumber(tokens[3], 0, 9999, value);
+            if (tokens[3].length() == 2) {
+                // Two digit year of RFC 850
+                year += year < 70 ? 2000 : 1900;
+            }
+            time = tokens[4];
+        } else if (count == 5) {
+            // asctime
+            month = parseMonth(tokens[1], value);
+            day = parseNumber(tokens[2], 1, 31, value);
+            time = tokens[3];
+            year = parseNumber(tokens[4], 0, 9999, value);
+        } else {
+            throw new ParseException("Invalid HTTP date: " + value, 0);
+        }
+
+        if (time.length() != 8 || time.charAt(2) != ':' || time.charAt(5) != ':') {
+            throw new ParseException("Invalid time of HTTP date: " + value, 0);
+        }
+        int hours = parseNumber(time.substring(0, 2), 0, 23, value);
+        int minutes = parseNumber(time.substring(3, 5), 0, 59, value);
+        int seconds = parseNumber(time.substring(6, 8), 0, 60, value);
+
+        long days = daysFromCivil(year, month, day);
+        return ((days * 24 + hours) * 60 + minutes) * 60000L + seconds * 1000L;
+    }
+
+    private static int parseNumber(String token, int min, int max, String value) throws ParseException {
+        if (token.isEmpty() || token.length() > 4) {
+            throw new ParseException("Invalid HTTP date: " + value, 0);
+        }
+        int number = 0;
+        for (int i = 0; i < token.length(); i++) {
+            char c = token.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new ParseException("Invalid HTTP date: " + value, 0);
+            }
+            number = number * 10 + c - '0';
+        }
+        if (number < min || number > max) {
+            throw new ParseException("Invalid HTTP date: " + value, 0);
+        }
+        return number;
+    }
+
+    private static int parseMonth(String token, String value) throws ParseException {
+        for (int i = 0; i < MONTHS.length; i++) {
+            if (MONTHS[i].equals(token)) {
+                return i + 1;
+            }
+        }
+        throw new ParseException("Invalid month of HTTP date: " + value, 0);
+    }
+
+    /**
+     * Format a date as an RFC 1123 date in GMT.
+     *
+     * @param date The date
+     * @return The HTTP-date
+     */
+    public static String format(Date date) {
+        long second = floorDiv(date.getTime(), 1000);
+        FormattedDate formatted = lastFormatted;
+        if (formatted.second != second) {
+            formatted = new FormattedDate(second, formatSecond(second));
+            lastFormatted = formatted;
+        }
+        return formatted.value;
+    }
+
+    /**
+     * @return The Date field of a response sent now, with its CRLF
+     */
+    public static String currentDateField() {
+        return currentDate().field;
+    }
+
+    private static CurrentDate currentDate() {
+        long second = floorDiv(System.currentTimeMillis(), 1000);
+        CurrentDate current = currentDate;
+        if (current.second != second) {
+            current = new CurrentDate(second);
+            currentDate = current;
+        }
+        return current;
+    }
+
+    private static String formatSecond(long second) {
+        long days = floorDiv(second, 86400);
+        int secondOfDay = (int) (second - days * 86400);
+
+        // Civil date from the number of days since 1970-01-01
+        long z = days + 719468;
+        long era = floorDiv(z, 146097);
+        int dayOfEra = (int) (z - era * 146097);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int shiftedMonth = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+        int month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        // 1970-01-01 was a Thursday
+        int dayOfWeek = (int) ((days % 7 + 11) % 7);
+
+        StringBuilder builder = new StringBuilder(29);
+        builder.append(DAYS[dayOfWeek]).append(", ");
+        appendTwoDigits(builder, day);
+        builder.append(' ').append(MONTHS[month - 1]).append(' ').append(year).append(' ');
+        appendTwoDigits(builder, secondOfDay / 3600);
+        builder.append(':');
+        appendTwoDigits(builder, secondOfDay / 60 % 60);
+        builder.append(':');
+        appendTwoDigits(builder, secondOfDay % 60);
+        return builder.append(" GMT").toString();
+    }
+
+    private static void appendTwoDigits(StringBuilder builder, int number) {
+        builder.append((char) ('0' + number / 10)).append((char) ('0' + number % 10));
+    }
+
+    /**
+     * @return The number of days from 1970-01-01 to this date
+     */
+    private static long daysFromCivil(long year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        long era = floorDiv(year, 400);
+        int yearOfEra = (int) (year - era * 400);
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private static long floorDiv(long x, long y) {
+        long quotient = x / y;
+        if ((x % y != 0) && ((x < 0) != (y < 0))) {
+            quotient--;
+        }
+        return quotient;
+    }
+
+    private static class FormattedDate {
+
+        private final long second;
+        private final String value;
+
+        FormattedDate(long second, String value) {
+            this.second = second;
+            this.value = value;
+        }
+    }
+
+    private static class CurrentDate {
+
+        private final long second;
+        private final String field;
+
+        CurrentDate(long second) {
+            this.second = second;
+            this.field = second == Long.MIN_VALUE ? null : "Date: " + formatSecond(second) + "\r\n";
+        }
+    }
+}
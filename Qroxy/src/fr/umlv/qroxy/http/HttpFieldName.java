@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2012 Joan Goyeau & Guillaume Demurger
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.qroxy.http;
+
+/**
+ * Well-known header fields of RFC 2616, identified by their ordinal.
+ *
+ * The names are found with a perfect hash: the seed of the hash is chosen
+ * when the class is loaded so that every name has its own slot, and a lookup
+ * is one hash and one comparison.
+ *
+ * @author joan
+ */
+public enum HttpFieldName {
+
+    /**
+     * General Header Fields (see section 4.5 in RFC 2616)
+     */
+    CACHE_CONTROL("Cache-Control"),
+    CONNECTION("Connection"),
+    DATE("Date"),
+    PRAGMA("Pragma"),
+    TRAILER("Trailer"),
+    TRANSFER_ENCODING("Transfer-Encoding"),
+    UPGRADE("Upgrade"),
+    VIA("Via"),
+    WARNING("Warning"),
+    /**
+     * Request Header Fields (see section 5.3 in RFC 2616)
+     */
+    ACCEPT("Accept"),
+    ACCEPT_CHARSET("Accept-Charset"),
+    ACCEPT_ENCODING("Accept-Encoding"),
+    ACCEPT_LANGUAGE("Accept-Language"),
+    AUTHORIZATION("Authorization"),
+    EXPECT("Expect"),
+    FROM("From"),
+    HOST("Host"),
+    IF_MATCH("If-Match"),
+    IF_MODIFIED_SINCE("If-Modified-Since"),
+    IF_NONE_MATCH("If-None-Match"),
+    IF_RANGE("If-Range"),
+    IF_UNMODIFIED_SINCE("If-Unmodified-Since"),
+    MAX_FORWARDS("Max-Forwards"),
+    PROXY_AUTHORIZATION("Proxy-Authorization"),
+    RANGE("Range"),
+    REFERER("Referer"),
+    TE("TE"),
+    USER_AGENT("User-Agent"),
+    /**
+     * Response Header Fields (see section 6.2 in RFC 2616)
+     */
+    ACCEPT_RANGES("Accept-Ranges"),
+    AGE("Age"),
+    ETAG("ETag"),
+    LOCATION("Location"),
+    PROXY_AUTHENTICATE("Proxy-Authenticate"),
+    RETRY_AFTER("Retry-After"),
+    SERVER("Server"),
+    VARY("Vary"),
+    WWW_AUTHENTICATE("WWW-Authenticate"),
+    /**
+     * Entity Header Fields (see section 7.1 in RFC 2616)
+     */
+    ALLOW("Allow"),
+    CONTENT_ENCODING("Content-Encoding"),
+    CONTENT_LANGUAGE("Content-Language"),
+    CONTENT_LENGTH("Content-Length"),
+    CONTENT_LOCATION("Content-Location"),
+    CONTENT_MD5("Content-MD5"),
+    CONTENT_RANGE("Content-Range"),
+    CONTENT_TYPE("Content-Type"),
+    EXPIRES("Expires"),
+    LAST_MODIFIED("Last-Modified");
+    private static final int TABLE_BITS = 8;
+    private static final HttpFieldName[] TABLE = new HttpFieldName[1 << TABLE_BITS];
+    private static final int SEED;
+    private final String fieldName;
+
+    static {
+        int seed = 1;
+        while (!fill(seed)) {
+            seed += 2;
+        }
+        SEED = seed;
+    }
+
+    private HttpFieldName(String fieldName) {
+        this.fieldName = fieldName;
+    }
+
+    private static boolean fill(int seed) {
+        java.util.Arrays.fill(TABLE, null);
+        for (HttpFieldName name : values()) {
+            int slot = slotOf(hashOf(name.fieldName), seed);
+            if (TABLE[slot] != null) {
+                return false;
+            }
+            TABLE[slot] = name;
+        }
+        return true;
+    }
+
+    private static int slotOf(int hash, int seed) {
+        return (hash * seed) >>> (32 - TABLE_BITS);
+    }
+
+    /**
+     * Hash of a field name, ignoring case.
+     */
+    static int hashOf(CharSequence name) {
+        int hash = 0;
+        for (int i = 0; i < name.length(); i++) {
+            hash = hash * 31 + Character.toLowerCase(name.charAt(i));
+        }
+        return mix(hash);
+    }
+
+    /**
+     * Spread the bits of the hash, so the top bits taken by the table depend
+     * on every character.
+     */
+    static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        return hash ^ (hash >>> 13);
+    }
+
+    /**
+     * @param name A field name, in any case
+     * @return The well-known field or null
+     */
+    public static HttpFieldName forName(String name) {
+        HttpFieldName candidate = TABLE[slotOf(hashOf(name), SEED)];
+        return candidate != null && candidate.fieldName.equalsIgnoreCase(name) ? candidate : null;
+    }
+
+    /**
+     * @param hash The hash of a name, computed like {@link #hashOf}
+     * @return The only field which may have this name, or null
+     */
+    static HttpFieldName candidateFor(int hash) {
+        return TABLE[slotOf(hash, SEED)];
+    }
+
+    /**
+     * @return The name of the field as written by the RFC
+     */
+    public String getFieldName() {
+        return fieldName;
+    }
+
+    @Override
+    public String toString() {
+        return fieldName;
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2012 Joan Goyeau & Guillaume Demurger
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.qroxy.http;
+
+import fr.umlv.qroxy.http.exceptions.HttpMalformedHeaderException;
+import java.util.Arrays;
+
+/**
+ * The fields of a header, kept as bytes.
+ *
+ * The values, and the names of the extension fields, are copied one after
+ * the other in a byte arena. The well-known fields are found through a small
+ * open-addressed table from their {@link HttpFieldName} to the offset and the
+ * length of their value; the extension fields are a list of offsets. Values
+ * are only decoded when asked for.
+ *
+ * The fields can be cleared and loaded again for the next message of a
+ * connection. A large arena is not kept after a clear, so an idle connection
+ * only retains a few hundred bytes.
+ *
+ * @author joan
+ */
+final class HttpFields {
+
+    private static final int INITIAL_SLOTS = 8;
+    private static final int RETAINED_ARENA_SIZE = 128;
+    private static final int RETAINED_EXTENSIONS = 8;
+    private static final int EXTENSION_SLOTS = 4;
+    private static final byte[] NO_BYTES = new byte[0];
+    private static final int[] NO_EXTENSIONS = new int[0];
+    /**
+     * A slot packs the ordinal of the field plus one on its 8 high bits, then
+     * the offset and the length of the value on 28 bits each. An empty slot
+     * is 0.
+     */
+    private static final int OFFSET_SHIFT = 28;
+    private static final int NAME_SHIFT = 56;
+    private static final long MASK = (1L << OFFSET_SHIFT) - 1;
+    /**
+     * Offset of a field which has been removed
+     */
+    private static final long REMOVED = MASK;
+    private byte[] arena = NO_BYTES;
+    private int arenaLength;
+    private long[] slots = new long[INITIAL_SLOTS];
+    private int slotCount;
+    /**
+     * For each extension field: offset and length of the name, offset and
+     * length of the value
+     */
+    private int[] extensions = NO_EXTENSIONS;
+    private int extensionCount;
+
+    /**
+     * Copy the fields of a header fully received by a parser into empty
+     * fields. The values of a well-known field appearing several times are
+     * combined into one value, separated by commas (see section 4.2 in RFC
+     * 2616). Repeated extension fields are kept and combined when read.
+     */
+    void load(HttpHeaderParser parser) throws HttpMalformedHeaderException {
+        // Length of the combined value of each well-known field
+        int fieldCount = parser.getFieldCount();
+        int size = 0;
+        for (int i = 0; i < fieldCount; i++) {
+            parser.checkFieldName(i);
+            int valueLength = parser.getValueEnd(i) - parser.getValueStart(i);
+            HttpFieldName name = knownNameOf(parser, i);
+            if (name == null) {
+                size += parser.getFieldColon(i) - parser.getFieldStart(i) + valueLength;
+                continue;
+            }
+            int index = find(name);
+            if (slots[index] == 0) {
+                put(name, 0, valueLength);
+            } else {
+                valueLength += 2;
+                slots[index] += valueLength;
+            }
+            size += valueLength;
+        }
+        ensureArena(size);
+
+        // Room of each combined value, filled below
+        for (int index = 0; index < slots.length; index++) {
+            long slot = slots[index];
+            if (slot != 0) {
+                slots[index] = (slot >>> NAME_SHIFT) << NAME_SHIFT | (long) arenaLength << OFFSET_SHIFT;
+                arenaLength += (int) (slot & MASK);
+            }
+        }
+
+        for (int i = 0; i < fieldCount; i++) {
+            int valueStart = parser.getValueStart(i);
+            int valueEnd = parser.getValueEnd(i);
+            HttpFieldName name = knownNameOf(parser, i);
+            if (name != null) {
+                int index = find(name);
+                int offset = (int) offsetOf(slots[index]);
+                int length = (int) (slots[index] & MASK);
+                if (length != 0) {
+                    arena[offset + length++] = ',';
+                    arena[offset + length++] = ' ';
+                }
+                parser.copyTo(valueStart, valueEnd, arena, offset + length);
+                put(name, offset, length + valueEnd - valueStart);
+            } else {
+                int nameStart = parser.getFieldStart(i);
+                int nameEnd = parser.getFieldColon(i);
+                parser.copyTo(nameStart, nameEnd, arena, arenaLength);
+                addExtension(arenaLength, nameEnd - nameStart, arenaLength + nameEnd - nameStart, valueEnd - valueStart);
+                arenaLength += nameEnd - nameStart;
+                parser.copyTo(valueStart, valueEnd, arena, arenaLength);
+                arenaLength += valueEnd - valueStart;
+            }
+        }
+    }
+
+    private static HttpFieldName knownNameOf(HttpHeaderParser parser, int field) {
+        HttpFieldName name = HttpFieldName.candidateFor(parser.hashFieldName(field));
+        return name != null && parser.isFieldNamed(field, name.getFieldName()) ? name : null;
+    }
+
+    /**
+     * Forget every field, keeping the storage if it is small.
+     */
+    void clear() {
+        if (arena.length > RETAINED_ARENA_SIZE) {
+            arena = NO_BYTES;
+        }
+        arenaLength = 0;
+        if (slots.length > INITIAL_SLOTS) {
+            slots = new long[INITIAL_SLOTS];
+        } else {
+            Arrays.fill(slots, 0);
+        }
+        slotCount = 0;
+        if (extensions.length > RETAINED_EXTENSIONS * EXTENSION_SLOTS) {
+            extensions = NO_EXTENSIONS;
+        }
+        extensionCount = 0;
+    }
+
+    /**
+     * @return The value of the field or null if the header does not have it
+     */
+    String get(HttpFieldName name) {
+        long slot = slots[find(name)];
+        if (slot == 0 || offsetOf(slot) == REMOVED) {
+            return null;
+        }
+        return decode((int) offsetOf(slot), (int) (slot & MASK));
+    }
+
+    /**
+     * @param name The name of a well-known or an extension field, in any case
+     * @return The values of the field separated by commas, or null if the
+     * header does not have it
+     */
+    String get(String name) {
+        HttpFieldName knownName = HttpFieldName.forName(name);
+        if (knownName != null) {
+            return get(knownName);
+        }
+        String value = null;
+        for (int i = 0; i < extensionCount; i++) {
+            int slot = i * EXTENSION_SLOTS;
+            if (regionMatches(extensions[slot], extensions[slot + 1], name)) {
+                String next = decode(extensions[slot + 2], extensions[slot + 3]);
+                value = value == null ? next : value + ", " + next;
+            }
+        }
+        return value;
+    }
+
+    boolean contains(HttpFieldName name) {
+        long slot = slots[find(name)];
+        return slot != 0 && offsetOf(slot) != REMOVED;
+    }
+
+    /**
+     * Compare the value of a field without decoding it.
+     *
+     * @return If the header has the field with this value, ignoring case
+     */
+    boolean valueEquals(HttpFieldName name, String value) {
+        long slot = slots[find(name)];
+        if (slot == 0 || offsetOf(slot) == REMOVED) {
+            return false;
+        }
+        return regionMatches((int) offsetOf(slot), (int) (slot & MASK), value);
+    }
+
+    /**
+     * @param value The new value of the field, null to remove it
+     */
+    void set(HttpFieldName name, String value) {
+        if (value == null) {
+            int index = find(name);
+            if (slots[index] != 0) {
+                slots[index] = ((long) name.ordinal() + 1) << NAME_SHIFT | REMOVED << OFFSET_SHIFT;
+            }
+            return;
+        }
+        ensureArena(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            arena[arenaLength + i] = (byte) value.charAt(i);
+        }
+        put(name, arenaLength, value.length());
+        arenaLength += value.length();
+    }
+
+    /**
+     * Append the fields, the well-known ones in the order of the RFC then the
+     * extension ones in the order of the message, each followed by CRLF.
+     */
+    void appendTo(StringBuilder builder) {
+        for (HttpFieldName name : HttpFieldName.values()) {
+            String value = get(name);
+            if (value != null) {
+                builder.append(name.getFieldName()).append(": ").append(value).append("\r\n");
+            }
+        }
+        for (int i = 0; i < extensionCount; i++) {
+            int slot = i * EXTENSION_SLOTS;
+            builder.append(decode(extensions[slot], extensions[slot + 1])).append(": ")
+                    .append(decode(extensions[slot + 2], extensions[slot + 3])).append("\r\n");
+        }
+    }
+
+    private void put(HttpFieldName name, int offset, int length) {
+        int index = find(name);
+        if (slots[index] == 0) {
+            if ((slotCount + 1) * 4 > slots.length * 3) {
+                grow();
+                index = find(name);
+            }
+            slotCount++;
+        }
+        slots[index] = ((long) name.ordinal() + 1) << NAME_SHIFT | (long) offset << OFFSET_SHIFT | length;
+    }
+
+    /**
+     * @return The slot of the field, or the empty slot where it would go
+     */
+    private int find(HttpFieldName name) {
+        long key = (long) name.ordinal() + 1;
+        int mask = slots.length - 1;
+        int index = name.ordinal() & mask;
+        while (slots[index] != 0 && slots[index] >>> NAME_SHIFT != key) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private void grow() {
+        long[] old = slots;
+        slots = new long[old.length * 2];
+        for (long slot : old) {
+            if (slot != 0) {
+                int mask = slots.length - 1;
+                int index = (int) ((slot >>> NAME_SHIFT) - 1) & mask;
+                while (slots[index] != 0) {
+                    index = (index + 1) & mask;
+                }
+                slots[index] = slot;
+            }
+        }
+    }
+
+    private static long offsetOf(long slot) {
+        return (slot >>> OFFSET_SHIFT) & MASK;
+    }
+
+    private void addExtension(int nameOffset, int nameLength, int valueOffset, int valueLength) {
+        if ((extensionCount + 1) * EXTENSION_SLOTS > extensions.length) {
+            extensions = Arrays.copyOf(extensions, Math.max(RETAINED_EXTENSIONS * EXTENSION_SLOTS, extensions.length * 2));
+        }
+        int slot = extensionCount * EXTENSION_SLOTS;
+        extensions[slot] = nameOffset;
+        extensions[slot + 1] = nameLength;
+        extensions[slot + 2] = valueOffset;
+        extensions[slot + 3] = valueLength;
+        extensionCount++;
+    }
+
+    private void ensureArena(int size) {
+        if (arenaLength + size > arena.length) {
+            arena = Arrays.copyOf(arena, Math.max(arenaLength + size, arena.length * 2));
+        }
+    }
+
+    private boolean regionMatches(int offset, int length, String string) {
+        if (length != string.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (Character.toLowerCase((char) (arena[offset + i] & 0xFF)) != Character.toLowerCase(string.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The header is in ISO-8859-1, each byte is a char.
+     */
+    private String decode(int offset, int length) {
+        return new String(arena, offset, length, HttpHeader.CHARSET);
+    }
+}
@@ -20,10 +20,7 @@ import fr.umlv.qroxy.http.exceptions.HttpMalformedHeaderException;
 import fr.umlv.qroxy.http.exceptions.HttpPreconditionFailedException;
 import fr.umlv.qroxy.http.exceptions.HttpUnsupportedVersionException;
 import java.nio.charset.Charset;
-import java.nio.charset.CharsetDecoder;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Map.Entry;
 import java.util.*;
 
 /**
@@ -36,54 +33,22 @@ import java.util.*;
 public abstract class HttpHeader {
 
     public static final Charset CHARSET = Charset.forName("ISO-8859-1");
-    public static final CharsetDecoder DECODER = CHARSET.newDecoder();
-    public static final SimpleDateFormat DATE_FORMATER = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z", Locale.US);
+    public static final int DEFAULT_PORT = 80;
     ContentTransferMode contentTransferMethod;
     /**
      * <b>HTTP Version (see section 3.1 in RFC 2616)
      */
     protected HttpVersion version;
     /**
-     * General Header Fields (see section 4.5 in RFC 2616)
+     * General, request, response and entity header fields (see sections 4.5,
+     * 5.3, 6.2 and 7.1 in RFC 2616), and the extension-header fields.
      */
+    protected final HttpFields fields = new HttpFields();
     /**
-     *
-     */
-    protected String cacheControl;
-    protected String connection;
-    protected Date date;
-    protected String pragma;
-    protected String trailer;
-    protected String transferEncoding;
-    protected String upgrade;
-    protected String via;
-    protected String warning;
-    /**
-     * Entity Header Fields (see section 7.1 in RFC 2616)
-     */
-    /**
-     *
+     * Content-Length, decoded when the fields are loaded as it is needed for
+     * every message
      */
-    protected String allow;
-    protected String contentEncoding;
-    protected String contentLanguage;
     protected Integer contentLength;
-    protected String contentLocation;
-    protected String contentMD5;
-    protected String contentRange;
-    protected String contentType;
-    protected Date expires;
-    protected Date lastModified;
-    /**
-     * <b>extension-header (see section 7.1 in RFC 2616)</b><p>
-     *
-     * The extension-header mechanism allows additional entity-header fields to
-     * be defined without changing the protocol, but these fields cannot be
-     * assumed to be recognizable by the recipient. Unrecognized header fields
-     * SHOULD be ignored by the recipient and MUST be forwarded by transparent
-     * proxies.
-     */
-    protected HashMap<String, String> extensionHeader = new HashMap<>();
 
     protected HttpHeader() {
     }
@@ -124,109 +89,116 @@ public abstract class HttpHeader {
     }
 
     /**
-     * general-header (see section 4.5 in RFC 2616)
+     * Split a Request-Line or a Status-Line in its three parts. The last part
+     * is everything after the second space and may be null.
      *
-     * @param fieldName
-     * @param fieldValue
-     * @return
+     * @param startLine The start line of the message
+     * @return The three parts of the line
      */
-    protected boolean setGeneralHeaderField(String fieldName, String fieldValue) throws HttpMalformedHeaderException {
-        Objects.requireNonNull(fieldName);
-        Objects.requireNonNull(fieldValue);
-
-        switch (fieldName) {
-            case "Cache-Control":
-                cacheControl = fieldValue;
-                return true;
-            case "Connection":
-                connection = fieldValue;
-                return true;
-            case "Date":
-                try {
-                    date = DATE_FORMATER.parse(fieldValue);
-                } catch (ParseException e) {
-                    throw new HttpPreconditionFailedException("Invalid date format of the field " + fieldName + ": " + fieldValue, e);
-                }
-                return true;
-            case "Pragma":
-                pragma = fieldValue;
-                return true;
-            case "Trailer":
-                trailer = fieldValue;
-                return true;
-            case "Transfer-Encoding":
-                transferEncoding = fieldValue;
-                return true;
-            case "Upgrade":
-                upgrade = fieldValue;
-                return true;
-            case "Via":
-                via = fieldValue;
-                return true;
-            case "Warning":
-                warning = fieldValue;
-                return true;
-            default:
-                return false;
+    protected static String[] splitStartLine(String startLine) throws HttpMalformedHeaderException {
+        int firstSpace = startLine.indexOf(' ');
+        if (firstSpace <= 0) {
+            throw new HttpMalformedHeaderException("Unexpected end of the header (see section 4.1 in RFC 2616)");
+        }
+        int secondSpace = startLine.indexOf(' ', firstSpace + 1);
+        if (secondSpace == -1) {
+            return new String[]{startLine.substring(0, firstSpace), startLine.substring(firstSpace + 1), null};
         }
+        return new String[]{
+            startLine.substring(0, firstSpace),
+            startLine.substring(firstSpace + 1, secondSpace),
+            startLine.substring(secondSpace + 1)
+        };
     }
 
     /**
-     * entity-header (see section 7.1 in RFC 2616)
+     * Load the fields of a header fully received by a parser, and check the
+     * ones used by the proxy (see section 4.5 and 7.1 in RFC 2616).
      *
-     * @param fieldName
-     * @param fieldValue
-     * @return
+     * @param parser The parser having received the whole header
      */
-    protected void setEntityHeaderField(String fieldName, String fieldValue) throws HttpMalformedHeaderException {
-        Objects.requireNonNull(fieldName);
-        Objects.requireNonNull(fieldValue);
-
-        switch (fieldName) {
-            case "Allow":
-                allow = fieldValue;
-                return;
-            case "Content-Encoding":
-                contentEncoding = fieldValue;
-                return;
-            case "Content-Language":
-                contentLanguage = fieldValue;
-                return;
-            case "Content-Length":
-                try {
-                    contentLength = Integer.parseInt(fieldValue);
-                } catch (NumberFormatException e) {
-                    throw new HttpPreconditionFailedException("Invalid number format of the field " + fieldName + ": " + fieldValue, e);
-                }
-                return;
-            case "Content-Location":
-                contentLocation = fieldValue;
-                return;
-            case "Content-MD5":
-                contentMD5 = fieldValue;
-                return;
-            case "Content-Range":
-                contentRange = fieldValue;
-                return;
-            case "Content-Type":
-                contentType = fieldValue;
-                return;
-            case "Expires":
-                try {
-                    expires = DATE_FORMATER.parse(fieldValue);
-                } catch (ParseException e) {
-                    throw new HttpPreconditionFailedException("Invalid date format of the field " + fieldName + ": " + fieldValue, e);
-                }
-                return;
-            case "Last-Modified":
-                try {
-                    lastModified = DATE_FORMATER.parse(fieldValue);
-                } catch (ParseException e) {
-                    throw new HttpPreconditionFailedException("Invalid date format of the field " + fieldName + ": " + fieldValue, e);
+    protected void loadFields(HttpHeaderParser parser) throws HttpMalformedHeaderException {
+        fields.load(parser);
+        String length = fields.get(HttpFieldName.CONTENT_LENGTH);
+        if (length != null) {
+            contentLength = parseContentLength(length);
+        }
+        checkDateField(HttpFieldName.DATE);
+        checkDateField(HttpFieldName.EXPIRES);
+        checkDateField(HttpFieldName.LAST_MODIFIED);
+    }
+
+    /**
+     * Several Content-Length fields must have the same value, otherwise the
+     * next hop may delimit the body differently (see section 4.4 in RFC 2616).
+     *
+     * @param value The combined values of the Content-Length fields
+     * @return The length of the body, only made of digits (see section 14.13
+     * in RFC 2616)
+     */
+    private static int parseContentLength(String value) throws HttpMalformedHeaderException {
+        String[] elements = value.split(",");
+        int length = 0;
+        for (int i = 0; i < elements.length; i++) {
+            String element = elements[i].trim();
+            if (element.isEmpty()) {
+                throw new HttpMalformedHeaderException("Invalid number format of the field Content-Length: " + value);
+            }
+            for (int j = 0; j < element.length(); j++) {
+                char c = element.charAt(j);
+                if (c < '0' || c > '9') {
+                    // Integer.parseInt would take a sign
+                    throw new HttpMalformedHeaderException("Invalid number format of the field Content-Length: " + value);
                 }
-                return;
-            default:
-                extensionHeader.put(fieldName, fieldValue);
+            }
+            int elementLength;
+            try {
+                elementLength = Integer.parseInt(element);
+            } catch (NumberFormatException e) {
+                throw new HttpPreconditionFailedException("Invalid number format of the field Content-Length: " + value, e);
+            }
+            if (i > 0 && elementLength != length) {
+                throw new HttpMalformedHeaderException("Different values of the field Content-Length: " + value);
+            }
+            length = elementLength;
+        }
+        return length;
+    }
+
+    protected void checkDateField(HttpFieldName name) throws HttpPreconditionFailedException {
+        String value = fields.get(name);
+        if (value != null) {
+            try {
+                HttpDates.parse(value);
+            } catch (ParseException e) {
+                throw new HttpPreconditionFailedException("Invalid date format of the field " + name + ": " + value, e);
+            }
+        }
+    }
+
+    /**
+     * Forget the message, to load the next one of the connection in this
+     * object.
+     */
+    protected void clear() {
+        contentTransferMethod = null;
+        version = null;
+        fields.clear();
+        contentLength = null;
+    }
+
+    /**
+     * @return The date of the field, or null if the header does not have it
+     */
+    protected Date getDateField(HttpFieldName name) {
+        String value = fields.get(name);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return HttpDates.parse(value);
+        } catch (ParseException e) {
+            return null;
         }
     }
 
@@ -240,97 +212,55 @@ public abstract class HttpHeader {
      */
     public abstract ContentTransferMode contentTransferMode();
 
+    /**
+     * @return If the body has a transfer coding other than identity, which
+     * delimits it whatever the Content-Length (see section 4.4 in RFC 2616)
+     */
+    protected boolean isTransferEncoded() {
+        return fields.contains(HttpFieldName.TRANSFER_ENCODING) && !fields.valueEquals(HttpFieldName.TRANSFER_ENCODING, "identity");
+    }
+
+    /**
+     * A message with both a transfer coding and a Content-Length may be read
+     * differently by the next hop, to smuggle a message in the body of an
+     * other one. The proxy follows the transfer coding.
+     *
+     * @return If the message has both a transfer coding and a Content-Length
+     */
+    public boolean hasConflictingLength() {
+        return contentLength != null && isTransferEncoded();
+    }
+
     @Override
     public abstract String toString();
     
-    protected String toStringGeneralFields() {
-        StringBuilder fields = new StringBuilder();
-        if (cacheControl != null) {
-            fields.append("Cache-Control: ").append(cacheControl).append("\r\n");
-        }
-        if (connection != null) {
-            fields.append("Connection: ").append(connection).append("\r\n");
-        }
-        if (date != null) {
-            fields.append("Date: ").append(DATE_FORMATER.format(date)).append("\r\n");
-        }
-        if (pragma != null) {
-            fields.append("Pragma: ").append(pragma).append("\r\n");
-        }
-        if (trailer != null) {
-            fields.append("Trailer: ").append(trailer).append("\r\n");
-        }
-        if (transferEncoding != null) {
-            fields.append("Transfer-Encoding: ").append(transferEncoding).append("\r\n");
-        }
-        if (upgrade != null) {
-            fields.append("Upgrade: ").append(upgrade).append("\r\n");
-        }
-        if (via != null) {
-            fields.append("Via: ").append(via).append("\r\n");
-        }
-        if (warning != null) {
-            fields.append("Warning: ").append(warning).append("\r\n");
-        }
-        return fields.toString();
-    }
-    
-    protected String toStringEntityFields() {
-        StringBuilder fields = new StringBuilder();
-        if (allow != null) {
-            fields.append("Allow: ").append(allow).append("\r\n");
-        }
-        if (contentEncoding != null) {
-            fields.append("Content-Encoding: ").append(contentEncoding).append("\r\n");
-        }
-        if (contentLanguage != null) {
-            fields.append("Content-Language: ").append(contentLanguage).append("\r\n");
-        }
-        if (contentLength != null) {
-            fields.append("Content-Length: ").append(contentLength).append("\r\n");
-        }
-        if (contentLocation != null) {
-            fields.append("Content-Location: ").append(contentLocation).append("\r\n");
-        }
-        if (contentMD5 != null) {
-            fields.append("Content-MD5: ").append(contentMD5).append("\r\n");
-        }
-        if (contentRange != null) {
-            fields.append("Content-Range: ").append(contentRange).append("\r\n");
-        }
-        if (contentType != null) {
-            fields.append("Content-Type: ").append(contentType).append("\r\n");
-        }
-        if (expires != null) {
-            fields.append("Expires: ").append(DATE_FORMATER.format(expires)).append("\r\n");
-        }
-        if (lastModified != null) {
-            fields.append("Last-Modified: ").append(lastModified).append("\r\n");
-        }
-        for (Entry field : extensionHeader.entrySet()) {
-            fields.append(field.getKey()). append(": ").append(field.getValue()).append("\r\n");
-        }
-        return fields.toString();
+    /**
+     * @return The fields of the header, each followed by CRLF
+     */
+    protected String toStringFields() {
+        StringBuilder builder = new StringBuilder();
+        fields.appendTo(builder);
+        return builder.toString();
     }
 
     public String getAllow() {
-        return allow;
+        return fields.get(HttpFieldName.ALLOW);
     }
 
     public String getCacheControl() {
-        return cacheControl;
+        return fields.get(HttpFieldName.CACHE_CONTROL);
     }
 
     public String getConnection() {
-        return connection;
+        return fields.get(HttpFieldName.CONNECTION);
     }
 
     public String getContentEncoding() {
-        return contentEncoding;
+        return fields.get(HttpFieldName.CONTENT_ENCODING);
     }
 
     public String getContentLanguage() {
-        return contentLanguage;
+        return fields.get(HttpFieldName.CONTENT_LANGUAGE);
     }
 
     public Integer getContentLength() {
@@ -338,27 +268,27 @@ public abstract class HttpHeader {
     }
 
     public String getContentLocation() {
-        return contentLocation;
+        return fields.get(HttpFieldName.CONTENT_LOCATION);
     }
 
     public String getContentMD5() {
-        return contentMD5;
+        return fields.get(HttpFieldName.CONTENT_MD5);
     }
 
     public String getContentRange() {
-        return contentRange;
+        return fields.get(HttpFieldName.CONTENT_RANGE);
     }
 
     public String getContentType() {
-        return contentType;
+        return fields.get(HttpFieldName.CONTENT_TYPE);
     }
 
     public Date getDate() {
-        return date;
+        return getDateField(HttpFieldName.DATE);
     }
 
     public Date getExpires() {
-        return expires;
+        return getDateField(HttpFieldName.EXPIRES);
     }
 
     /**
@@ -371,27 +301,27 @@ public abstract class HttpHeader {
      * proxies.
      */
     public String getFromExtensionHeader(String fieldName) {
-        return extensionHeader.get(fieldName);
+        return fields.get(fieldName);
     }
 
     public Date getLastModified() {
-        return lastModified;
+        return getDateField(HttpFieldName.LAST_MODIFIED);
     }
 
     public String getPragma() {
-        return pragma;
+        return fields.get(HttpFieldName.PRAGMA);
     }
 
     public String getTrailer() {
-        return trailer;
+        return fields.get(HttpFieldName.TRAILER);
     }
 
     public String getTransferEncoding() {
-        return transferEncoding;
+        return fields.get(HttpFieldName.TRANSFER_ENCODING);
     }
 
     public String getUpgrade() {
-        return upgrade;
+        return fields.get(HttpFieldName.UPGRADE);
     }
 
     public HttpVersion getVersion() {
@@ -399,10 +329,10 @@ public abstract class HttpHeader {
     }
 
     public String getVia() {
-        return via;
+        return fields.get(HttpFieldName.VIA);
     }
 
     public String getWarning() {
-        return warning;
+        return fields.get(HttpFieldName.WARNING);
     }
 }
@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2012 Joan Goyeau & Guillaume Demurger
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.qroxy.http;
+
+import fr.umlv.qroxy.http.exceptions.HttpMalformedHeaderException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Incremental parser of the header of an HTTP message, working on the bytes of
+ * a ByteBuffer in place.
+ *
+ * Each byte of the header is scanned once: the offset reached is kept between
+ * two calls to {@link #parse(ByteBuffer)}, so a header arriving in several
+ * reads is not scanned again from its beginning. The start line and the
+ * fields are only recorded as offsets from the beginning of the message, and
+ * decoded on demand.
+ *
+ * The message has to start at the position of the buffer, and its bytes must
+ * not be moved between two calls other than by compacting the buffer.
+ *
+ * @author joan
+ */
+public class HttpHeaderParser {
+
+    private static final int INITIAL_FIELDS = 16;
+    private static final int FIELD_SLOTS = 4;
+    /**
+     * For each field: start of the line, first colon, end of the line and
+     * start of the next line
+     */
+    private int[] fields = new int[INITIAL_FIELDS * FIELD_SLOTS];
+    private int fieldCount;
+    private ByteBuffer source;
+    private int base;
+    private int scanned;
+    private int lineStart;
+    private int colon = -1;
+    private int startLineStart = -1;
+    private int startLineEnd = -1;
+    private int startLineNext = -1;
+    private int terminatorStart = -1;
+    private int headerLength = -1;
+
+    /**
+     * Scan the bytes received since the last call.
+     *
+     * @param buffer The buffer holding the message from its position to its
+     * limit
+     * @return If the whole header has been received, false if more bytes are
+     * needed
+     */
+    public boolean parse(ByteBuffer buffer) {
+        source = buffer;
+        base = buffer.position();
+        if (headerLength != -1) {
+            return true;
+        }
+        int end = buffer.limit() - base;
+        while (scanned < end) {
+            byte b = buffer.get(base + scanned);
+            if (b == ':') {
+                if (colon == -1) {
+                    colon = scanned;
+                }
+            } else if (b == '\n') {
+                // Lines end with CRLF, a bare LF is tolerated (see section 19.3 in RFC 2616)
+                int lineEnd = scanned > lineStart && buffer.get(base + scanned - 1) == '\r' ? scanned - 1 : scanned;
+                if (lineEnd == lineStart) {
+                    if (startLineStart != -1) {
+                        terminatorStart = lineStart;
+                        headerLength = ++scanned;
+                        return true;
+                    }
+                    // Empty lines before the start line are ignored (see section 4.1 in RFC 2616)
+                } else if (startLineStart == -1) {
+                    startLineStart = lineStart;
+                    startLineEnd = lineEnd;
+                    startLineNext = scanned + 1;
+                } else {
+                    addField(lineStart, colon, lineEnd, scanned + 1);
+                }
+                lineStart = scanned + 1;
+                colon = -1;
+            }
+            scanned++;
+        }
+        return false;
+    }
+
+    private void addField(int start, int colon, int end, int next) {
+        if (fieldCount * FIELD_SLOTS == fields.length) {
+            fields = Arrays.copyOf(fields, fields.length * 2);
+        }
+        int slot = fieldCount * FIELD_SLOTS;
+        fields[slot] = start;
+        fields[slot + 1] = colon;
+        fields[slot + 2] = end;
+        fields[slot + 3] = next;
+        fieldCount++;
+    }
+
+    /**
+     * Forget the current message, to parse the next one.
+     */
+    public void reset() {
+        if (fields.length > INITIAL_FIELDS * FIELD_SLOTS) {
+            // Do not keep the room of an unusually large header
+            fields = new int[INITIAL_FIELDS * FIELD_SLOTS];
+        }
+        fieldCount = 0;
+        source = null;
+        scanned = 0;
+        lineStart = 0;
+        colon = -1;
+        startLineStart = -1;
+        startLineEnd = -1;
+        startLineNext = -1;
+        terminatorStart = -1;
+        headerLength = -1;
+    }
+
+    /**
+     * @return If the whole header has been received
+     */
+    public boolean isComplete() {
+        return headerLength != -1;
+    }
+
+    /**
+     * @return The length of the header including the empty line ending it,
+     * -1 if it has not been fully received
+     */
+    public int getHeaderLength() {
+        return headerLength;
+    }
+
+    /**
+     * @return The Request-Line or the Status-Line of the message
+     */
+    public String getStartLine() {
+        checkComplete();
+        return decode(startLineStart, startLineEnd);
+    }
+
+    public int getFieldCount() {
+        checkComplete();
+        return fieldCount;
+    }
+
+    /**
+     * @param index The index of the field, in the order of the message
+     * @return The name of the field
+     * @throws HttpMalformedHeaderException If the line of the field has no
+     * name
+     */
+    public String getFieldName(int index) throws HttpMalformedHeaderException {
+        checkFieldName(index);
+        return decode(fields[index * FIELD_SLOTS], fields[index * FIELD_SLOTS + 1]);
+    }
+
+    /**
+     * @throws HttpMalformedHeaderException If the line of the field has no
+     * name
+     */
+    void checkFieldName(int index) throws HttpMalformedHeaderException {
+        checkComplete();
+        int start = fields[index * FIELD_SLOTS];
+        int colon = fields[index * FIELD_SLOTS + 1];
+        if (colon <= start || isWhitespace(source.get(base + start)) || isWhitespace(source.get(base + colon - 1))) {
+            throw new HttpMalformedHeaderException("Invalid message header (see section 4.2 in RFC 2616)");
+        }
+    }
+
+    /**
+     * @param index The index of the field, in the order of the message
+     * @return The value of the field without its leading and trailing
+     * whitespaces
+     */
+    public String getFieldValue(int index) {
+        checkComplete();
+        return decode(getValueStart(index), getValueEnd(index));
+    }
+
+    /**
+     * Compare the name of a field without decoding it.
+     *
+     * @param index The index of the field
+     * @param name The name, compared ignoring case
+     * @return If the field has this name
+     */
+    public boolean isFieldNamed(int index, String name) {
+        checkComplete();
+        int start = fields[index * FIELD_SLOTS];
+        int colon = fields[index * FIELD_SLOTS + 1];
+        if (colon - start != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = (char) (source.get(base + start + i) & 0xFF);
+            if (Character.toLowerCase(c) != Character.toLowerCase(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Offsets of the lines from the beginning of the message, to forward the
+     * header without decoding it
+     */
+    int getStartLineStart() {
+        return startLineStart;
+    }
+
+    int getStartLineEnd() {
+        return startLineEnd;
+    }
+
+    int getStartLineNext() {
+        return startLineNext;
+    }
+
+    int getFieldStart(int index) {
+        return fields[index * FIELD_SLOTS];
+    }
+
+    int getFieldNext(int index) {
+        return fields[index * FIELD_SLOTS + 3];
+    }
+
+    int getFieldColon(int index) {
+        return fields[index * FIELD_SLOTS + 1];
+    }
+
+    /**
+     * @return The offset of the value of the field, after its leading
+     * whitespaces
+     */
+    int getValueStart(int index) {
+        int start = fields[index * FIELD_SLOTS + 1] + 1;
+        int end = fields[index * FIELD_SLOTS + 2];
+        while (start < end && isWhitespace(source.get(base + start))) {
+            start++;
+        }
+        return start;
+    }
+
+    /**
+     * @return The offset of the end of the value of the field, before its
+     * trailing whitespaces
+     */
+    int getValueEnd(int index) {
+        // Not before the start, for a value made of whitespaces
+        int start = getValueStart(index);
+        int end = fields[index * FIELD_SLOTS + 2];
+        while (end > start && isWhitespace(source.get(base + end - 1))) {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * @return The hash of the name of the field, as computed by
+     * {@link HttpFieldName}
+     */
+    int hashFieldName(int index) {
+        int hash = 0;
+        for (int offset = fields[index * FIELD_SLOTS]; offset < fields[index * FIELD_SLOTS + 1]; offset++) {
+            hash = hash * 31 + Character.toLowerCase((char) (source.get(base + offset) & 0xFF));
+        }
+        return HttpFieldName.mix(hash);
+    }
+
+    /**
+     * Copy bytes of the message.
+     */
+    void copyTo(int start, int end, byte[] destination, int destinationOffset) {
+        for (int offset = start; offset < end; offset++) {
+            destination[destinationOffset++] = source.get(base + offset);
+        }
+    }
+
+    /**
+     * @return The offset of the empty line ending the header
+     */
+    int getTerminatorStart() {
+        return terminatorStart;
+    }
+
+    /**
+     * @return The byte of the message at this offset
+     */
+    byte byteAt(int offset) {
+        return source.get(base + offset);
+    }
+
+    private void checkComplete() {
+        if (headerLength == -1) {
+            throw new IllegalStateException("The header has not been fully received");
+        }
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    /**
+     * The header is in ISO-8859-1, each byte is a char.
+     */
+    private String decode(int start, int end) {
+        char[] chars = new char[end - start];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) (source.get(base + start + i) & 0xFF);
+        }
+        return new String(chars);
+    }
+}
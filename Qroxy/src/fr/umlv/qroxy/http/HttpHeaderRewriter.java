@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2012 Joan Goyeau & Guillaume Demurger
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.qroxy.http;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Forward the header of a request as it has been received, with the few
+ * edits the proxy has to make.
+ *
+ * The rewriter only keeps offsets of the original header. The forwarded
+ * header is a list of slices of the received bytes, with the inserted fields
+ * in between, to be sent with one gathering write. The order and the
+ * spelling of the fields are kept, and nothing is encoded again. The edits
+ * are:
+ * <ul>
+ * <li>the absolute URI of the Request-Line in origin form (see section 5.1.2
+ * in RFC 2616)</li>
+ * <li>the Host field taken from the absolute URI, the one of the client being
+ * ignored (see section 5.2 in RFC 2616)</li>
+ * <li>no hop-by-hop field, nor field listed in Connection (see section 13.5.1
+ * in RFC 2616)</li>
+ * <li>no Content-Length if a transfer coding delimits the body (see section
+ * 4.4 in RFC 2616)</li>
+ * <li>the conditional fields of the proxy, to check a cached resource</li>
+ * <li>a Via field (see section 14.45 in RFC 2616)</li>
+ * </ul>
+ *
+ * @author joan
+ */
+public class HttpHeaderRewriter {
+
+    /**
+     * Fields meaningful only for a single connection. Transfer-Encoding is
+     * kept because the body is forwarded as is.
+     */
+    private static final String[] HOP_BY_HOP_FIELDS = {"Connection", "Keep-Alive", "Proxy-Connection",
+        "Proxy-Authorization", "TE", "Trailer", "Upgrade"};
+    private static final String[] CONDITIONAL_FIELDS = {"If-Modified-Since", "If-None-Match"};
+    private static final byte[] VIA_FIELD = "Via: 1.1 qroxy\r\n".getBytes(HttpHeader.CHARSET);
+    private static final byte[] ROOT_PATH = "/".getBytes(HttpHeader.CHARSET);
+    private static final byte[] HOST_NAME = "Host: ".getBytes(HttpHeader.CHARSET);
+    private static final byte[] CRLF = "\r\n".getBytes(HttpHeader.CHARSET);
+    /**
+     * Kinds of the fields which may be skipped
+     */
+    private static final int CONDITIONAL = 1;
+    private static final int HOST = 2;
+    private final int startLineStart;
+    private final int startLineNext;
+    /**
+     * Slices of the Request-Line in origin form: start and end offsets, or a
+     * literal
+     */
+    private final Segments requestLine = new Segments();
+    private final Segments fields = new Segments();
+    private final ArrayList<byte[]> addedFields = new ArrayList<>();
+    private final int terminatorStart;
+    private final int headerLength;
+    /**
+     * Host and port of the absolute URI, -1 if the URI is not absolute
+     */
+    private int hostStart = -1;
+    private int hostEnd = -1;
+    private boolean originForm = true;
+    private boolean conditionalFieldsReplaced;
+
+    private HttpHeaderRewriter(HttpHeaderParser parser) {
+        startLineStart = parser.getStartLineStart();
+        startLineNext = parser.getStartLineNext();
+        terminatorStart = parser.getTerminatorStart();
+        headerLength = parser.getHeaderLength();
+    }
+
+    /**
+     * Plan the edits of the header of a request.
+     *
+     * @param parser The parser having received the whole header, the header
+     * having been parsed successfully
+     * @return The rewriter of the header
+     */
+    public static HttpHeaderRewriter forRequest(HttpHeaderParser parser) {
+        HttpHeaderRewriter rewriter = new HttpHeaderRewriter(parser);
+
+        // Request-Line: Method SP Request-URI SP HTTP-Version CRLF
+        int lineEnd = parser.getStartLineEnd();
+        int targetStart = indexOf(parser, ' ', rewriter.startLineStart, lineEnd) + 1;
+        int targetEnd = indexOf(parser, ' ', targetStart, lineEnd);
+        int authorityStart = authorityStart(parser, targetStart, targetEnd);
+        if (authorityStart == -1) {
+            rewriter.requestLine.add(rewriter.startLineStart, rewriter.startLineNext, 0);
+        } else {
+            int pathStart = indexOf(parser, '/', '?', authorityStart, targetEnd);
+            rewriter.requestLine.add(rewriter.startLineStart, targetStart, 0);
+            if (pathStart == targetEnd) {
+                rewriter.requestLine.add(ROOT_PATH);
+            } else {
+                rewriter.requestLine.add(pathStart, targetEnd, 0);
+            }
+            rewriter.requestLine.add(targetEnd, rewriter.startLineNext, 0);
+
+            // Without the userinfo
+            rewriter.hostStart = authorityStart;
+            for (int i = authorityStart; i < pathStart; i++) {
+                if (parser.byteAt(i) == '@') {
+                    rewriter.hostStart = i + 1;
+                }
+            }
+            rewriter.hostEnd = pathStart;
+        }
+
+        String[] connectionTokens = connectionTokens(parser);
+        boolean transferEncoded = isTransferEncoded(parser);
+        for (int i = 0; i < parser.getFieldCount(); i++) {
+            if (isNamedIn(parser, i, HOP_BY_HOP_FIELDS) || isNamedIn(parser, i, connectionTokens)
+                    || (transferEncoded && parser.isFieldNamed(i, "Content-Length"))) {
+                continue;
+            }
+            int kind = 0;
+            if (isNamedIn(parser, i, CONDITIONAL_FIELDS)) {
+                kind = CONDITIONAL;
+            } else if (parser.isFieldNamed(i, "Host")) {
+                kind = HOST;
+            }
+            rewriter.fields.add(parser.getFieldStart(i), parser.getFieldNext(i), kind);
+        }
+        return rewriter;
+    }
+
+    /**
+     * @return The offset of the authority of an absolute URI, or -1 if the URI
+     * is not absolute
+     */
+    private static int authorityStart(HttpHeaderParser parser, int start, int end) {
+        for (int i = start; i + 2 < end; i++) {
+            byte b = parser.byteAt(i);
+            if (b == ':') {
+                if (parser.byteAt(i + 1) == '/' && parser.byteAt(i + 2) == '/') {
+                    return i + 3;
+                }
+                return -1;
+            }
+            if (b == '/' || b == '?') {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(HttpHeaderParser parser, char c1, char c2, int from, int to) {
+        for (int i = from; i < to; i++) {
+            byte b = parser.byteAt(i);
+            if (b == c1 || b == c2) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    private static int indexOf(HttpHeaderParser parser, char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (parser.byteAt(i) == c) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    /**
+     * @return The field names listed in the Connection fields
+     */
+    private static String[] connectionTokens(HttpHeaderParser parser) {
+        ArrayList<String> tokens = null;
+        for (int i = 0; i < parser.getFieldCount(); i++) {
+            if (parser.isFieldNamed(i, "Connection")) {
+                if (tokens == null) {
+                    tokens = new ArrayList<>();
+                }
+                for (String token : parser.getFieldValue(i).split(",")) {
+                    tokens.add(token.trim());
+                }
+            }
+        }
+        return tokens == null ? new String[0] : tokens.toArray(new String[tokens.size()]);
+    }
+
+    private static boolean isTransferEncoded(HttpHeaderParser parser) {
+        for (int i = 0; i < parser.getFieldCount(); i++) {
+            if (parser.isFieldNamed(i, "Transfer-Encoding") && !"identity".equalsIgnoreCase(parser.getFieldValue(i).trim())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isNamedIn(HttpHeaderParser parser, int index, String[] names) {
+        for (String name : names) {
+            if (parser.isFieldNamed(index, name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Keep the absolute URI of the request, to forward it to another proxy.
+     */
+    public void keepAbsoluteForm() {
+        originForm = false;
+    }
+
+    /**
+     * Replace the conditional fields of the client by the ones of the proxy.
+     *
+     * @param ifModifiedSince The If-Modified-Since date or null
+     * @param ifNoneMatch The If-None-Match entity tags or null
+     */
+    public void setConditionalFields(Date ifModifiedSince, String ifNoneMatch) {
+        conditionalFieldsReplaced = true;
+        if (ifModifiedSince != null) {
+            addField("If-Modified-Since", HttpDates.format(ifModifiedSince));
+        }
+        if (ifNoneMatch != null) {
+            addField("If-None-Match", ifNoneMatch);
+        }
+    }
+
+    /**
+     * Add a field at the end of the header.
+     *
+     * @param name The name of the field
+     * @param value The value of the field
+     */
+    public void addField(String name, String value) {
+        addedFields.add((name + ": " + value + "\r\n").getBytes(HttpHeader.CHARSET));
+    }
+
+    /**
+     * @return The length of the header once received
+     */
+    public int getReceivedLength() {
+        return headerLength;
+    }
+
+    /**
+     * Build the forwarded header. The slices share the bytes of the source,
+     * which must not be modified until they are written.
+     *
+     * @param source The buffer holding the received header
+     * @param base The index of the source where the header starts
+     * @return The slices of the forwarded header, in order
+     */
+    public ByteBuffer[] toBuffers(ByteBuffer source, int base) {
+        ArrayList<ByteBuffer> buffers = new ArrayList<>();
+        int skippedKinds = conditionalFieldsReplaced ? CONDITIONAL : 0;
+        if (originForm) {
+            requestLine.appendTo(buffers, source, base, 0);
+            if (hostStart != -1) {
+                // The host of the absolute URI replaces the Host of the client
+                buffers.add(ByteBuffer.wrap(HOST_NAME));
+                buffers.add(slice(source, base, hostStart, hostEnd));
+                buffers.add(ByteBuffer.wrap(CRLF));
+                skippedKinds |= HOST;
+            }
+        } else {
+            buffers.add(slice(source, base, startLineStart, startLineNext));
+        }
+        fields.appendTo(buffers, source, base, skippedKinds);
+        for (byte[] field : addedFields) {
+            buffers.add(ByteBuffer.wrap(field));
+        }
+        buffers.add(ByteBuffer.wrap(VIA_FIELD));
+        buffers.add(slice(source, base, terminatorStart, headerLength));
+        return buffers.toArray(new ByteBuffer[buffers.size()]);
+    }
+
+    private static ByteBuffer slice(ByteBuffer source, int base, int start, int end) {
+        ByteBuffer slice = source.duplicate();
+        slice.limit(base + end);
+        slice.position(base + start);
+        return slice;
+    }
+
+    /**
+     * Consecutive ranges of the received header, merged when contiguous and
+     * of the same kind, and literals.
+     */
+    private static class Segments {
+
+        private int[] ranges = new int[16];
+        private byte[][] literals = new byte[8][];
+        private int[] kinds = new int[8];
+        private int count;
+
+        void add(int start, int end, int kind) {
+            if (start == end) {
+                return;
+            }
+            if (count > 0 && literals[count - 1] == null && ranges[count * 2 - 1] == start
+                    && kinds[count - 1] == kind) {
+                // Contiguous
+                ranges[count * 2 - 1] = end;
+                return;
+            }
+            grow();
+            ranges[count * 2] = start;
+            ranges[count * 2 + 1] = end;
+            kinds[count] = kind;
+            count++;
+        }
+
+        void add(byte[] literal) {
+            grow();
+            literals[count] = literal;
+            count++;
+        }
+
+        private void grow() {
+            if (count == literals.length) {
+                ranges = Arrays.copyOf(ranges, ranges.length * 2);
+                literals = Arrays.copyOf(literals, literals.length * 2);
+                kinds = Arrays.copyOf(kinds, kinds.length * 2);
+            }
+        }
+
+        void appendTo(ArrayList<ByteBuffer> buffers, ByteBuffer source, int base, int skippedKinds) {
+            for (int i = 0; i < count; i++) {
+                if (literals[i] != null) {
+                    buffers.add(ByteBuffer.wrap(literals[i]));
+                } else if ((kinds[i] & skippedKinds) == 0) {
+                    buffers.add(slice(source, base, ranges[i * 2], ranges[i * 2 + 1]));
+                }
+            }
+        }
+    }
+}
@@ -17,12 +17,11 @@
 package fr.umlv.qroxy.http;
 
 import fr.umlv.qroxy.config.Category;
+import fr.umlv.qroxy.config.CategoryClassifier;
 import fr.umlv.qroxy.http.exceptions.HttpMalformedHeaderException;
-import fr.umlv.qroxy.http.exceptions.HttpPreconditionFailedException;
 import fr.umlv.qroxy.http.exceptions.HttpUnsupportedMethodException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.text.ParseException;
 import java.util.*;
 import java.util.Map.Entry;
 
@@ -42,32 +41,6 @@ public class HttpRequestHeader extends HttpHeader {
      */
     protected HttpMethod method;
     protected URI uri;
-    /**
-     * Request Header Fields (see section 5.3 in RFC 2616)
-     */
-    /**
-     *
-     */
-    protected String accept;
-    protected String acceptCharset;
-    protected String acceptEncoding;
-    protected String acceptLanguage;
-    protected String authorization;
-    protected String expect;
-    protected String from;
-    protected String host;
-    protected String ifMatch;
-    protected Date ifModifiedSince;
-    protected String ifNoneMatch;
-    protected String ifRange;
-    protected Date ifUnmodifiedSince;
-    protected String maxForwards;
-    protected String proxyAuthorization;
-    protected String range;
-    protected String referer;
-    protected String te;
-    protected String userAgent;
-
     private HttpRequestHeader() {
     }
     
@@ -80,349 +53,127 @@ public class HttpRequestHeader extends HttpHeader {
      */
     public static HttpRequestHeader parse(String httpRequestMessage) throws HttpMalformedHeaderException {
         Objects.requireNonNull(httpRequestMessage);
-        HttpRequestHeader httpHeader = new HttpRequestHeader();
-        
-        // Cut the message body
-        int endOfHeader = httpRequestMessage.indexOf("\r\n\r\n");
-        if (endOfHeader == -1) {
+        HttpHeaderParser parser = new HttpHeaderParser();
+        if (!parser.parse(CHARSET.encode(httpRequestMessage))) {
             throw new HttpMalformedHeaderException("No HTTP header reconised");
         }
-        
-        StringTokenizer stringTokenizer = new StringTokenizer(httpRequestMessage.substring(0, endOfHeader));
+        return parse(parser);
+    }
+
+    /**
+     * Build the header of a request fully received by a parser.
+     *
+     * @param parser The parser having received the whole header
+     * @return The request header
+     */
+    public static HttpRequestHeader parse(HttpHeaderParser parser) throws HttpMalformedHeaderException {
+        return parse(parser, null);
+    }
+
+    /**
+     * Build the header of a request fully received by a parser, in the object
+     * of a previous request of the connection.
+     *
+     * @param parser The parser having received the whole header
+     * @param recycled A header no longer used, or null
+     * @return The request header
+     */
+    public static HttpRequestHeader parse(HttpHeaderParser parser, HttpRequestHeader recycled) throws HttpMalformedHeaderException {
+        Objects.requireNonNull(parser);
+        HttpRequestHeader httpHeader;
+        if (recycled == null) {
+            httpHeader = new HttpRequestHeader();
+        } else {
+            httpHeader = recycled;
+            httpHeader.clear();
+        }
 
         // Request-Line (see section 5.1 in RFC 2616)
+        String[] requestLine = splitStartLine(parser.getStartLine());
         try {
-            try {
-                // Method (see section 5.1.1 in RFC 2616)
-                httpHeader.method = HttpMethod.valueOf(stringTokenizer.nextToken());
-            } catch (IllegalArgumentException e) {
-                throw new HttpUnsupportedMethodException("Unsupported method (see section 5.1.1 in RFC 2616)", e);
-            }
+            // Method (see section 5.1.1 in RFC 2616)
+            httpHeader.method = HttpMethod.valueOf(requestLine[0]);
+        } catch (IllegalArgumentException e) {
+            throw new HttpUnsupportedMethodException("Unsupported method (see section 5.1.1 in RFC 2616)", e);
+        }
 
-            try {
-                // Request-URI (see section 5.1.2 in RFC 2616)
-                httpHeader.uri = new URI(stringTokenizer.nextToken());
-                if (httpHeader.uri.getPort() == -1) {
-                    httpHeader.uri = new URI(httpHeader.uri.getScheme(),
-                            httpHeader.uri.getUserInfo(),
-                            httpHeader.uri.getHost(),
-                            80,
-                            httpHeader.uri.getPath(),
-                            httpHeader.uri.getQuery(),
-                            httpHeader.uri.getFragment());
-                }
-            } catch (URISyntaxException e) {
-                throw new HttpMalformedHeaderException("Invalid request URI (see section 5.1.2 in RFC 2616)", e);
+        try {
+            // Request-URI (see section 5.1.2 in RFC 2616)
+            if (httpHeader.method == HttpMethod.CONNECT) {
+                httpHeader.uri = parseAuthority(requestLine[1]);
+            } else {
+                httpHeader.uri = new URI(requestLine[1]);
             }
-
-            // HTTP version (see section 3.1 in RFC 2616)
-            httpHeader.version = HttpHeader.parseVersion(stringTokenizer.nextToken());
-
-            while (stringTokenizer.hasMoreTokens()) {
-                String fieldName = stringTokenizer.nextToken("\r\n:");
-                String fieldValue = stringTokenizer.nextToken("\r\n");
-                fieldValue = fieldValue.substring(2);   // Avoid ": "
-
-                // general-header (see section 4.5 in RFC 2616)
-                if (httpHeader.setGeneralHeaderField(fieldName, fieldValue)) {
-                    continue;
-                }
-                // request-header (see section 5.3 in RFC 2616)
-                if (httpHeader.setRequestHeaderField(fieldName, fieldValue)) {
-                    continue;
-                }
-                // entity-header (see section 7.1 in RFC 2616)
-                httpHeader.setEntityHeaderField(fieldName, fieldValue);
+            if (httpHeader.uri.getPort() == -1) {
+                httpHeader.uri = new URI(httpHeader.uri.getScheme(),
+                        httpHeader.uri.getUserInfo(),
+                        httpHeader.uri.getHost(),
+                        80,
+                        httpHeader.uri.getPath(),
+                        httpHeader.uri.getQuery(),
+                        httpHeader.uri.getFragment());
             }
-        } catch (NoSuchElementException e) {
-            throw new HttpMalformedHeaderException("Unexpected end of the header (see section 5 in RFC 2616)", e);
+        } catch (URISyntaxException e) {
+            throw new HttpMalformedHeaderException("Invalid request URI (see section 5.1.2 in RFC 2616)", e);
+        }
+
+        // HTTP version (see section 3.1 in RFC 2616)
+        if (requestLine[2] == null) {
+            throw new HttpMalformedHeaderException("Unexpected end of the header (see section 5 in RFC 2616)");
         }
+        httpHeader.version = HttpHeader.parseVersion(requestLine[2]);
+
+        httpHeader.loadFields(parser);
+        httpHeader.checkDateField(HttpFieldName.IF_MODIFIED_SINCE);
 
         return httpHeader;
     }
 
-    private boolean setRequestHeaderField(String fieldName, String fieldValue) throws HttpMalformedHeaderException {
-        switch (fieldName) {
-            case "Accept":
-                accept = fieldValue;
-                return true;
-            case "Accept-Charset":
-                acceptCharset = fieldValue;
-                return true;
-            case "Accept-Encoding":
-                acceptEncoding = fieldValue;
-                return true;
-            case "Accept-Language":
-                acceptLanguage = fieldValue;
-                return true;
-            case "Authorization":
-                authorization = fieldValue;
-                return true;
-            case "Expect":
-                expect = fieldValue;
-                return true;
-            case "From":
-                from = fieldValue;
-                return true;
-            case "Host":
-                host = fieldValue;
-                return true;
-            case "If-Match":
-                ifMatch = fieldValue;
-                return true;
-            case "If-Modified-Since":
-                try {
-                    ifModifiedSince = HttpHeader.DATE_FORMATER.parse(fieldValue);
-                } catch (ParseException e) {
-                    throw new HttpPreconditionFailedException("Invalid date format of the field " + fieldName + ": " + fieldValue, e);
-                }
-                return true;
-            case "If-None-Match":
-                ifNoneMatch = fieldValue;
-                return true;
-            case "If-Range":
-                ifRange = fieldValue;
-                return true;
-            case "Max-Forwards":
-                maxForwards = fieldValue;
-                return true;
-            case "Proxy-Authorization":
-                proxyAuthorization = fieldValue;
-                return true;
-            case "Range":
-                range = fieldValue;
-                return true;
-            case "Referer":
-                referer = fieldValue;
-                return true;
-            case "TE":
-                te = fieldValue;
-                return true;
-            case "User-Agent":
-                userAgent = fieldValue;
-                return true;
-            default:
-                return false;
+    /**
+     * Parse the target of a CONNECT request, the host and the port of the
+     * tunnel (see section 5.2 in RFC 2817).
+     *
+     * @param authority The host and the port, as "host:port"
+     * @return A URI with only an authority
+     */
+    private static URI parseAuthority(String authority) throws URISyntaxException, HttpMalformedHeaderException {
+        URI uri = new URI("//" + authority);
+        if (uri.getHost() == null || uri.getPort() == -1 || !uri.getRawAuthority().equals(authority)) {
+            throw new HttpMalformedHeaderException("Invalid tunnel authority (see section 5.2 in RFC 2817)");
         }
+        return uri;
+    }
+
+    @Override
+    protected void clear() {
+        super.clear();
+        category = null;
+        method = null;
+        uri = null;
     }
 
     public boolean matchesCatagory(Category category) {
-        Map<String, String> regexs = category.getRegexs();
-        Set<Entry<String, String>> entrySet = regexs.entrySet();
-
-        for (Entry<String, String> entry : entrySet) {
-            switch (entry.getKey()) {
-                /**
-                 * Requested URL
-                 */
-                case "url":
-                    if (!uri.toString().matches(entry.getValue())) {
-                        return false;
-                    }
-                    break;
-                /**
-                 * General Header Fields
-                 */
-                case "Cache-Control":
-                    if (!(cacheControl == null ? "" : cacheControl).matches(entry.getValue())) {
-                        return false;
-                    }
-                    break;
-                case "Connection":
-                    if (!(connection == null ? "" : connection).matches(entry.getValue())) {
-                        return false;
-                    }
-                    break;
-                case "Date":
-                    if (!(date == null ? "" : HttpHeader.DATE_FORMATER.format(date)).matches(entry.getValue())) {
-                        return false;
-                    }
-                    break;
-                case "Pragma":
-                    if (!(pragma == null ? "" : pragma).matches(entry.getValue())) {
-                        return false;
-                    }
-                    break;
-                case "Trailer":
-                    if (!(trailer == null ? "" : trailer).matches(entry.getValue())) {
-                        return false;
-                    }
-                    break;
-                case "Transfer-Encoding":
-                    if (!(transferEncoding == null ? "" : transferEncoding).matches(entry.getValue())) {
-                        return false;
-                    }
-                    break;
-                case "Upgrade":
-                    if (!(upgrade == null ? "" : upgrade).matches(entry.getValue())) {
-                        return false;
-                    }
-                    break;
-                case "Via":
-                    if (!(via == null ? "" : via).matches(entry.getValue())) {
-                        return false;
-                    }
-                    break;
-                case "Warning":
-                    if (!(warning == null ? "" : warning).matches(entry.getValue())) {
-                        return false;
-                    }
-                    break;
-                /**
-                 * Request Header Fields
-                 */
-                case "Accept":
-                    if (!(accept == null ? "" : accept).matches(entry.getValue())) {
-                        return false;
-                    }
-                    break;
-                case "Accept-Charset":
-                    if (!(acceptCharset == null ? "" : acceptCharset).matches(entry.getValue())) {
-                        return false;
-                    }
-                    break;
-                case "Accept-Encoding":
-                    if (!(acceptEncoding == null ? "" : acceptEncoding).matches(entry.getValue())) {
-                        return false;
-                    }
-                    break;
-                case "Accept-Language":
-                    if (!(acceptLanguage == null ? "" : acceptLanguage).matches(entry.getValue())) {
-                        return false;
-                    }
-                    break;
-                case "Authorization":
-                    if (!(authorization == null ? "" : authorization).matches(entry.getValue())) {
-                        return false;
-                    }
-                    break;
-                case "Expect":
-                    if (!(expect == null ? "" : expect).matches(entry.getValue())) {
-                        return false;
-                    }
-                    break;
-                case "From":
-                    if (!(from == null ? "" : from).matches(entry.getValue())) {
-                        return false;
-                    }
-                    break;
-                case "Host":
-                    if (!(host == null ? "" : host).matches(entry.getValue())) {
-                        return false;
-                    }
-                    break;
-                case "If-Match":
-                    if (!(ifMatch == null ? "" : ifMatch).matches(entry.getValue())) {
-                        return false;
-                    }
-                    break;
-                case "If-Modified-Since":
-                    if (!(ifModifiedSince == null ? "" : HttpHeader.DATE_FORMATER.format(ifModifiedSince)).matches(entry.getValue())) {
-                        return false;
-                    }
-                    break;
-                case "If-None-Match":
-                    if (!(ifNoneMatch == null ? "" : ifNoneMatch).matches(entry.getValue())) {
-                        return false;
-                    }
-                    break;
-                case "If-Range":
-                    if (!(ifRange == null ? "" : ifRange).matches(entry.getValue())) {
-                        return false;
-                    }
-                    break;
-                case "Max-Forwards":
-                    if (!(maxForwards == null ? "" : maxForwards).matches(entry.getValue())) {
-                        return false;
-                    }
-                    break;
-                case "Proxy-Authorization":
-                    if (!(proxyAuthorization == null ? "" : proxyAuthorization).matches(entry.getValue())) {
-                        return false;
-                    }
-                    break;
-                case "Range":
-                    if (!(range == null ? "" : range).matches(entry.getValue())) {
-                        return false;
-                    }
-                    break;
-                case "Referer":
-                    if (!(referer == null ? "" : referer).matches(entry.getValue())) {
-                        return false;
-                    }
-                    break;
-                case "TE":
-                    if (!(te == null ? "" : te).matches(entry.getValue())) {
-                        return false;
-                    }
-                    break;
-                case "User-Agent":
-                    if (!(userAgent == null ? "" : userAgent).matches(entry.getValue())) {
-                        return false;
-                    }
-                    break;
-                /**
-                 * Entity Header Fields
-                 */
-                case "Allow":
-                    if (!(allow == null ? "" : allow).matches(entry.getValue())) {
-                        return false;
-                    }
-                    break;
-                case "Content-Encoding":
-                    if (!(contentEncoding == null ? "" : contentEncoding).matches(entry.getValue())) {
-                        return false;
-                    }
-                    break;
-                case "Content-Language":
-                    if (!(contentLanguage == null ? "" : contentLanguage).matches(entry.getValue())) {
-                        return false;
-                    }
-                    break;
-                case "Content-Length":
-                    if (!(contentLength == null ? "" : contentLength.toString()).matches(entry.getValue())) {
-                        return false;
-                    }
-                    break;
-                case "Content-Location":
-                    if (!(contentLocation == null ? "" : contentLocation).matches(entry.getValue())) {
-                        return false;
-                    }
-                    break;
-                case "Content-MD5":
-                    if (!(contentMD5 == null ? "" : contentMD5).matches(entry.getValue())) {
-                        return false;
-                    }
-                    break;
-                case "Content-Range":
-                    if (!(contentRange == null ? "" : contentRange).matches(entry.getValue())) {
-                        return false;
-                    }
-                    break;
-                case "Content-Type":
-                    if (!(contentType == null ? "" : contentType).matches(entry.getValue())) {
-                        return false;
-                    }
-                    break;
-                case "Expires":
-                    if (!(expires == null ? "" : HttpHeader.DATE_FORMATER.format(expires)).matches(entry.getValue())) {
-                        return false;
-                    }
-                    break;
-                case "Last-Modified":
-                    if (!(lastModified == null ? "" : HttpHeader.DATE_FORMATER.format(lastModified)).matches(entry.getValue())) {
-                        return false;
-                    }
-                    break;
-                default:
-                    String extensionValue = extensionHeader.get(entry.getKey());
-                    if (!(extensionValue == null ? "" : extensionValue).matches(entry.getValue())) {
-                        return false;
-                    }
+        for (Entry<String, String> entry : category.getRegexs().entrySet()) {
+            if (!getValueToMatch(entry.getKey()).matches(entry.getValue())) {
+                return false;
             }
         }
         return true;
     }
+
+    /**
+     * The value a regex of a category is applied on.
+     *
+     * @param applyOn "url" or the name of a field
+     * @return The value, an empty string if the field is not in the request
+     */
+    public String getValueToMatch(String applyOn) {
+        if (applyOn.equals("url")) {
+            return uri.toString();
+        }
+        String value = fields.get(applyOn);
+        return value == null ? "" : value;
+    }
     
     public static HttpRequestHeader getWhoHasRequest(URI resource) {
         Objects.requireNonNull(resource);
@@ -436,8 +187,21 @@ public class HttpRequestHeader extends HttpHeader {
     }
     
     public void setIfModifiedCheckFields(Date ifModifiedSince, String ifNoneMatch) {
-        this.ifModifiedSince = ifModifiedSince;
-        this.ifNoneMatch = ifNoneMatch;
+        fields.set(HttpFieldName.IF_MODIFIED_SINCE, ifModifiedSince == null ? null : HttpDates.format(ifModifiedSince));
+        fields.set(HttpFieldName.IF_NONE_MATCH, ifNoneMatch);
+    }
+
+    /**
+     * Classify the request with the compiled categories of the proxy.
+     *
+     * @param classifier The classifier of the categories
+     * @return The first category matching the request or null
+     */
+    public Category matchesCatagories(CategoryClassifier classifier) {
+        Objects.requireNonNull(classifier);
+
+        category = classifier.classify(this);
+        return category;
     }
 
     public Category matchesCatagories(Collection<Category> categories) {
@@ -458,10 +222,10 @@ public class HttpRequestHeader extends HttpHeader {
             return contentTransferMethod;
         }
 
-        if (contentLength != null) {
-            contentTransferMethod = ContentTransferMode.CONTENT_LENGTH;
-        } else if (contentLength == null && transferEncoding != null && !transferEncoding.equals("identity")) {
+        if (isTransferEncoded()) {
             contentTransferMethod = ContentTransferMode.CHUNKED;
+        } else if (contentLength != null) {
+            contentTransferMethod = ContentTransferMode.CONTENT_LENGTH;
         } else {
             contentTransferMethod = ContentTransferMode.NO_CONTENT;
         }
@@ -470,59 +234,59 @@ public class HttpRequestHeader extends HttpHeader {
     }
 
     public String getAccept() {
-        return accept;
+        return fields.get(HttpFieldName.ACCEPT);
     }
 
     public String getAcceptCharset() {
-        return acceptCharset;
+        return fields.get(HttpFieldName.ACCEPT_CHARSET);
     }
 
     public String getAcceptEncoding() {
-        return acceptEncoding;
+        return fields.get(HttpFieldName.ACCEPT_ENCODING);
     }
 
     public String getAcceptLanguage() {
-        return acceptLanguage;
+        return fields.get(HttpFieldName.ACCEPT_LANGUAGE);
     }
 
     public String getAuthorization() {
-        return authorization;
+        return fields.get(HttpFieldName.AUTHORIZATION);
     }
 
     public String getExpect() {
-        return expect;
+        return fields.get(HttpFieldName.EXPECT);
     }
 
     public String getFrom() {
-        return from;
+        return fields.get(HttpFieldName.FROM);
     }
 
     public String getHost() {
-        return host;
+        return fields.get(HttpFieldName.HOST);
     }
 
     public String getIfMatch() {
-        return ifMatch;
+        return fields.get(HttpFieldName.IF_MATCH);
     }
 
     public Date getIfModifiedSince() {
-        return ifModifiedSince;
+        return getDateField(HttpFieldName.IF_MODIFIED_SINCE);
     }
 
     public String getIfNoneMatch() {
-        return ifNoneMatch;
+        return fields.get(HttpFieldName.IF_NONE_MATCH);
     }
 
     public String getIfRange() {
-        return ifRange;
+        return fields.get(HttpFieldName.IF_RANGE);
     }
 
     public Date getIfUnmodifiedSince() {
-        return ifUnmodifiedSince;
+        return getDateField(HttpFieldName.IF_UNMODIFIED_SINCE);
     }
 
     public String getMaxForwards() {
-        return maxForwards;
+        return fields.get(HttpFieldName.MAX_FORWARDS);
     }
 
     public HttpMethod getMethod() {
@@ -530,15 +294,15 @@ public class HttpRequestHeader extends HttpHeader {
     }
 
     public String getProxyAuthorization() {
-        return proxyAuthorization;
+        return fields.get(HttpFieldName.PROXY_AUTHORIZATION);
     }
 
     public String getRange() {
-        return range;
+        return fields.get(HttpFieldName.RANGE);
     }
 
     public String getReferer() {
-        return referer;
+        return fields.get(HttpFieldName.REFERER);
     }
 
     public Category getCategory() {
@@ -546,7 +310,7 @@ public class HttpRequestHeader extends HttpHeader {
     }
 
     public String getTe() {
-        return te;
+        return fields.get(HttpFieldName.TE);
     }
 
     public URI getUri() {
@@ -554,71 +318,13 @@ public class HttpRequestHeader extends HttpHeader {
     }
 
     public String getUserAgent() {
-        return userAgent;
+        return fields.get(HttpFieldName.USER_AGENT);
     }
 
     @Override
     public String toString() {
         StringBuilder header = new StringBuilder(method.name()).append(" ").append(uri).append(" ").append(version).append("\r\n");
-        header.append(toStringGeneralFields());
-        if (accept != null) {
-            header.append("Accept: ").append(accept).append("\r\n");
-        }
-        if (acceptCharset != null) {
-            header.append("Accept-Charset: ").append(acceptCharset).append("\r\n");
-        }
-        if (acceptEncoding != null) {
-            header.append("Accept-Encoding: ").append(acceptEncoding).append("\r\n");
-        }
-        if (acceptLanguage != null) {
-            header.append("Accept-Language: ").append(acceptLanguage).append("\r\n");
-        }
-        if (authorization != null) {
-            header.append("Authorization: ").append(authorization).append("\r\n");
-        }
-        if (expect != null) {
-            header.append("Expect: ").append(expect).append("\r\n");
-        }
-        if (from != null) {
-            header.append("From: ").append(from).append("\r\n");
-        }
-        if (host != null) {
-            header.append("Host: ").append(host).append("\r\n");
-        }
-        if (ifMatch != null) {
-            header.append("If-Match: ").append(ifMatch).append("\r\n");
-        }
-        if (ifModifiedSince != null) {
-            header.append("If-Modified-Since: ").append(DATE_FORMATER.format(ifModifiedSince)).append("\r\n");
-        }
-        if (ifNoneMatch != null) {
-            header.append("If-None-Match: ").append(ifNoneMatch).append("\r\n");
-        }
-        if (ifRange != null) {
-            header.append("If-Range: ").append(ifRange).append("\r\n");
-        }
-        if (ifUnmodifiedSince != null) {
-            header.append("If-Unmodified-Since: ").append(DATE_FORMATER.format(ifUnmodifiedSince)).append("\r\n");
-        }
-        if (maxForwards != null) {
-            header.append("Max-Forwards: ").append(maxForwards).append("\r\n");
-        }
-        if (proxyAuthorization != null) {
-            header.append("Proxy-Authorization: ").append(proxyAuthorization).append("\r\n");
-        }
-        if (range != null) {
-            header.append("Range: ").append(range).append("\r\n");
-        }
-        if (referer != null) {
-            header.append("Referer: ").append(referer).append("\r\n");
-        }
-        if (te != null) {
-            header.append("TE: ").append(te).append("\r\n");
-        }
-        if (userAgent != null) {
-            header.append("User-Agent: ").append(userAgent).append("\r\n");
-        }
-        header.append(toStringEntityFields());
+        header.append(toStringFields());
         return header.append("\r\n").toString();
     }
 }
@@ -19,9 +19,8 @@ package fr.umlv.qroxy.http;
 import fr.umlv.qroxy.http.exceptions.HttpMalformedHeaderException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.NoSuchElementException;
+import java.util.Date;
 import java.util.Objects;
-import java.util.StringTokenizer;
 
 /**
  *
@@ -45,20 +44,10 @@ public class HttpResponseHeader extends HttpHeader {
      */
     protected int extensionStatusCode;
     /**
-     * Response Header Fields (see section 6.2 in RFC 2616)
+     * Location (see section 14.30 in RFC 2616), decoded when the fields are
+     * loaded to check it
      */
-    /**
-     *
-     */
-    protected String acceptRanges;
-    protected String age;
-    protected String eTag;
     protected URI location;
-    protected String proxyAuthenticate;
-    protected String retryAfter;
-    protected String server;
-    protected String vary;
-    protected String wwwAuthenticate;
 
     private HttpResponseHeader() {
     }
@@ -72,145 +61,174 @@ public class HttpResponseHeader extends HttpHeader {
      */
     public static HttpResponseHeader parse(String httpResponseMessage) throws HttpMalformedHeaderException {
         Objects.requireNonNull(httpResponseMessage);
-        HttpResponseHeader httpHeader = new HttpResponseHeader();
-        
-        // Cut the message body
-        int endOfHeader = httpResponseMessage.indexOf("\r\n\r\n");
-        if (endOfHeader == -1) {
+        HttpHeaderParser parser = new HttpHeaderParser();
+        if (!parser.parse(CHARSET.encode(httpResponseMessage))) {
             throw new HttpMalformedHeaderException("No HTTP header reconised");
         }
-        
-        StringTokenizer stringTokenizer = new StringTokenizer(httpResponseMessage.substring(0, endOfHeader));
+        return parse(parser);
+    }
+
+    /**
+     * Build the header of a response fully received by a parser.
+     *
+     * @param parser The parser having received the whole header
+     * @return The response header
+     */
+    public static HttpResponseHeader parse(HttpHeaderParser parser) throws HttpMalformedHeaderException {
+        return parse(parser, null);
+    }
+
+    /**
+     * Build the header of a response fully received by a parser, in the
+     * object of a previous response of the connection.
+     *
+     * @param parser The parser having received the whole header
+     * @param recycled A header no longer used, or null
+     * @return The response header
+     */
+    public static HttpResponseHeader parse(HttpHeaderParser parser, HttpResponseHeader recycled) throws HttpMalformedHeaderException {
+        Objects.requireNonNull(parser);
+        HttpResponseHeader httpHeader;
+        if (recycled == null) {
+            httpHeader = new HttpResponseHeader();
+        } else {
+            httpHeader = recycled;
+            httpHeader.clear();
+        }
 
         // Status-Line (see section 6.1 in RFC 2616)
+        String[] statusLine = splitStartLine(parser.getStartLine());
+        // HTTP-Version (see section 3.1 in RFC 2616)
+        httpHeader.version = parseVersion(statusLine[0]);
+
         try {
-            // HTTP-Version (see section 3.1 in RFC 2616)
-            httpHeader.version = parseVersion(stringTokenizer.nextToken());
-
-            try {
-                // Status code (see section 6.1.1 in RFC 2616)
-                int statusCode = Integer.parseInt(stringTokenizer.nextToken());
-                httpHeader.statusCode = HttpStatusCode.valueFor(statusCode);
-                if (httpHeader.statusCode == null) {
-                    httpHeader.extensionStatusCode = statusCode;
-                }
-                // Avoid the status message
-                stringTokenizer.nextToken("\r\n");
-            } catch (NumberFormatException e) {
-                throw new HttpMalformedHeaderException("Invalid HTTP status code (see section 6.1.1 in RFC 2616)", e);
+            // Status code (see section 6.1.1 in RFC 2616), the Reason-Phrase is ignored
+            int statusCode = Integer.parseInt(statusLine[1]);
+            httpHeader.statusCode = HttpStatusCode.valueFor(statusCode);
+            if (httpHeader.statusCode == null) {
+                httpHeader.extensionStatusCode = statusCode;
             }
+        } catch (NumberFormatException e) {
+            throw new HttpMalformedHeaderException("Invalid HTTP status code (see section 6.1.1 in RFC 2616)", e);
+        }
 
-            while (stringTokenizer.hasMoreTokens()) {
-                String fieldName = stringTokenizer.nextToken("\r\n:");
-                String fieldValue = stringTokenizer.nextToken("\r\n");
-                fieldValue = fieldValue.substring(2);   // Avoid ": "
-
-                // general-header (see section 4.5 in RFC 2616)
-                if (httpHeader.setGeneralHeaderField(fieldName, fieldValue)) {
-                    continue;
-                }
-                // request-header (see section 5.3 in RFC 2616)
-                if (httpHeader.setResponseHeaderField(fieldName, fieldValue)) {
-                    continue;
-                }
-                // entity-header (see section 7.1 in RFC 2616)
-                httpHeader.setEntityHeaderField(fieldName, fieldValue);
-            }
-        } catch (NoSuchElementException e) {
-            throw new HttpMalformedHeaderException("Unexpected end of the header (see section 6 in RFC 2616)", e);
+        httpHeader.loadFields(parser);
+        String location = httpHeader.fields.get(HttpFieldName.LOCATION);
+        if (location != null) {
+            httpHeader.location = parseLocation(location);
         }
 
         return httpHeader;
     }
 
-    private boolean setResponseHeaderField(String fieldName, String fieldValue) throws HttpMalformedHeaderException {
-        switch (fieldName) {
-            case "Accept-Ranges":
-                acceptRanges = fieldValue;
-                return true;
-            case "Age":
-                age = fieldValue;
-                return true;
-            case "ETag":
-                eTag = fieldValue;
-                return true;
-            case "Location":
-                try {
-                    location = new URI(fieldValue);
-                    if (location.getPort() == -1) {
-                        location = new URI(location.getScheme(),
-                                location.getUserInfo(),
-                                location.getHost(),
-                                80,
-                                location.getPath(),
-                                location.getQuery(),
-                                location.getFragment());
-                    }
-                } catch (URISyntaxException e) {
-                    throw new HttpMalformedHeaderException("Invalid location URI (see section 14.30 in RFC 2616)", e);
-                }
-                return true;
-            case "Proxy-Authenticate":
-                proxyAuthenticate = fieldValue;
-                return true;
-            case "Retry-After":
-                retryAfter = fieldValue;
-                return true;
-            case "Server":
-                server = fieldValue;
-                return true;
-            case "Vary":
-                vary = fieldValue;
-                return true;
-            case "WWW-Authenticate":
-                wwwAuthenticate = fieldValue;
-                return true;
-            default:
-                return false;
+    private static URI parseLocation(String fieldValue) throws HttpMalformedHeaderException {
+        try {
+            URI location = new URI(fieldValue);
+            if (location.getPort() == -1) {
+                location = new URI(location.getScheme(),
+                        location.getUserInfo(),
+                        location.getHost(),
+                        80,
+                        location.getPath(),
+                        location.getQuery(),
+                        location.getFragment());
+            }
+            return location;
+        } catch (URISyntaxException e) {
+            throw new HttpMalformedHeaderException("Invalid location URI (see section 14.30 in RFC 2616)", e);
         }
     }
+
+    @Override
+    protected void clear() {
+        super.clear();
+        statusCode = null;
+        extensionStatusCode = 0;
+        location = null;
+    }
     
     public static HttpResponseHeader getOwnResponse(HttpResponseHeader responseHeader) {
         HttpResponseHeader ownResponse = new HttpResponseHeader();
         ownResponse.version = HttpVersion.HTTP_1_1;
         ownResponse.statusCode = HttpStatusCode.OWN;
-        ownResponse.location = responseHeader.getLocation();
-        ownResponse.eTag = responseHeader.getETag();
-        ownResponse.date = responseHeader.getDate();
-        ownResponse.expires = responseHeader.getExpires();
+        ownResponse.location = responseHeader.location;
+        ownResponse.fields.set(HttpFieldName.LOCATION, responseHeader.fields.get(HttpFieldName.LOCATION));
+        ownResponse.fields.set(HttpFieldName.ETAG, responseHeader.fields.get(HttpFieldName.ETAG));
+        ownResponse.fields.set(HttpFieldName.DATE, responseHeader.fields.get(HttpFieldName.DATE));
+        ownResponse.fields.set(HttpFieldName.EXPIRES, responseHeader.fields.get(HttpFieldName.EXPIRES));
         
         return ownResponse;
     }
 
+    /**
+     * Build the OWN response of a cached resource from its metadata.
+     *
+     * @param location The URI of the resource
+     * @param eTag The entity tag of the resource, or null
+     * @param date The date of the resource, or null
+     * @param expires The expiration date of the resource, or null
+     * @return The OWN response
+     */
+    public static HttpResponseHeader getOwnResponse(URI location, String eTag, Date date, Date expires) {
+        Objects.requireNonNull(location);
+
+        HttpResponseHeader ownResponse = new HttpResponseHeader();
+        ownResponse.version = HttpVersion.HTTP_1_1;
+        ownResponse.statusCode = HttpStatusCode.OWN;
+        ownResponse.location = location;
+        ownResponse.fields.set(HttpFieldName.LOCATION, location.toString());
+        ownResponse.fields.set(HttpFieldName.ETAG, eTag);
+        ownResponse.fields.set(HttpFieldName.DATE, date == null ? null : HttpDates.format(date));
+        ownResponse.fields.set(HttpFieldName.EXPIRES, expires == null ? null : HttpDates.format(expires));
+
+        return ownResponse;
+    }
+
     @Override
     public ContentTransferMode contentTransferMode() {
         if (contentTransferMethod != null) {
             return contentTransferMethod;
         }
 
-        if (contentLength != null) {
-            contentTransferMethod = ContentTransferMode.CONTENT_LENGTH;
-        } else if (contentLength == null && transferEncoding != null && !transferEncoding.equals("identity")) {
+        int code = statusCode == null ? extensionStatusCode : statusCode.getStatusCode();
+        if (code / 100 == 1 || code == 204 || code == 304) {
+            // Never a body, whatever the fields
+            contentTransferMethod = ContentTransferMode.NO_CONTENT;
+        } else if (isTransferEncoded()) {
             contentTransferMethod = ContentTransferMode.CHUNKED;
-        } else if (contentLength == null && !"chunked".equals(transferEncoding) && "close".equals(connection)) {
-            contentTransferMethod = ContentTransferMode.CONNECTION_CLOSE;
+        } else if (contentLength != null) {
+            contentTransferMethod = ContentTransferMode.CONTENT_LENGTH;
         } else {
-            contentTransferMethod = ContentTransferMode.NO_CONTENT;
+            // Without length the body ends with the connection, even without
+            // Connection: close (see section 4.4 in RFC 2616)
+            contentTransferMethod = ContentTransferMode.CONNECTION_CLOSE;
         }
 
         return contentTransferMethod;
     }
 
+    /**
+     * @param requestMethod The method of the answered request
+     * @return The way to detect the end of the response, which has no body if
+     * it answers a HEAD request
+     */
+    public ContentTransferMode contentTransferMode(HttpMethod requestMethod) {
+        if (requestMethod == HttpMethod.HEAD) {
+            return ContentTransferMode.NO_CONTENT;
+        }
+        return contentTransferMode();
+    }
+
     public String getAcceptRanges() {
-        return acceptRanges;
+        return fields.get(HttpFieldName.ACCEPT_RANGES);
     }
 
     public String getAge() {
-        return age;
+        return fields.get(HttpFieldName.AGE);
     }
 
     public String getETag() {
-        return eTag;
+        return fields.get(HttpFieldName.ETAG);
     }
 
     /**
@@ -241,57 +259,29 @@ public class HttpResponseHeader extends HttpHeader {
     }
 
     public String getProxyAuthenticate() {
-        return proxyAuthenticate;
+        return fields.get(HttpFieldName.PROXY_AUTHENTICATE);
     }
 
     public String getRetryAfter() {
-        return retryAfter;
+        return fields.get(HttpFieldName.RETRY_AFTER);
     }
 
     public String getServer() {
-        return server;
+        return fields.get(HttpFieldName.SERVER);
     }
 
     public String getVary() {
-        return vary;
+        return fields.get(HttpFieldName.VARY);
     }
 
     public String getWwwAuthenticate() {
-        return wwwAuthenticate;
+        return fields.get(HttpFieldName.WWW_AUTHENTICATE);
     }
 
     @Override
     public String toString() {
         StringBuilder header = new StringBuilder(version.toString()).append(" ").append(new Integer(statusCode.getStatusCode())).append("\r\n");
-        header.append(toStringGeneralFields());
-        if (acceptRanges != null) {
-            header.append("Accept-Ranges: ").append(acceptRanges).append("\r\n");
-        }
-        if (age != null) {
-            header.append("Age: ").append(age).append("\r\n");
-        }
-        if (eTag != null) {
-            header.append("ETag: ").append(eTag).append("\r\n");
-        }
-        if (location != null) {
-            header.append("Location: ").append(location).append("\r\n");
-        }
-        if (proxyAuthenticate != null) {
-            header.append("Proxy-Authenticate: ").append(proxyAuthenticate).append("\r\n");
-        }
-        if (retryAfter != null) {
-            header.append("Retry-After: ").append(retryAfter).append("\r\n");
-        }
-        if (server != null) {
-            header.append("Server: ").append(server).append("\r\n");
-        }
-        if (vary != null) {
-            header.append("Vary: ").append(vary).append("\r\n");
-        }
-        if (wwwAuthenticate != null) {
-            header.append("WWW-Authenticate: ").append(wwwAuthenticate).append("\r\n");
-        }
-        header.append(toStringEntityFields());
+        header.append(toStringFields());
         return header.append("\r\n").toString();
     }
 }
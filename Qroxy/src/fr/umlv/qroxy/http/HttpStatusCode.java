@@ -16,8 +16,6 @@
  */
 package fr.umlv.qroxy.http;
 
-import java.util.Date;
-
 /**
  * Status Code Definitions (see section 10 in RFC 2616).
  *
@@ -66,7 +64,7 @@ public enum HttpStatusCode {
         @Override
         public String getHttpResponse() {
             return HttpVersion.HTTP_1_1.toString() + " " + statusCode + " " + message + "\r\n"
-                    + "Date: " + HttpHeader.DATE_FORMATER.format(new Date())
+                    + HttpDates.currentDateField()
                     + "Connection: close\r\n"
                     + "Cache-Control: no-cache, no-store, must-revalidate\r\n"
                     + "\r\n"
@@ -93,7 +91,7 @@ public enum HttpStatusCode {
         @Override
         public String getHttpResponse() {
             return HttpVersion.HTTP_1_1.toString() + " " + statusCode + " " + message + "\r\n"
-                    + "Date: " + HttpHeader.DATE_FORMATER.format(new Date())
+                    + HttpDates.currentDateField()
                     + "Connection: close\r\n"
                     + "Cache-Control: no-cache, no-store, must-revalidate\r\n"
                     + "\r\n"
@@ -147,7 +145,7 @@ public enum HttpStatusCode {
         @Override
         public String getHttpResponse() {
             return HttpVersion.HTTP_1_1.toString() + " " + statusCode + " " + message + "\r\n"
-                    + "Date: " + HttpHeader.DATE_FORMATER.format(new Date())
+                    + HttpDates.currentDateField()
                     + "Connection: close\r\n"
                     + "Cache-Control: no-cache, no-store, must-revalidate\r\n"
                     + "\r\n"
@@ -178,7 +176,7 @@ public enum HttpStatusCode {
         @Override
         public String getHttpResponse() {
             return HttpVersion.HTTP_1_1.toString() + " " + statusCode + " " + message + "\r\n"
-                    + "Date: " + HttpHeader.DATE_FORMATER.format(new Date())
+                    + HttpDates.currentDateField()
                     + "Connection: close\r\n"
                     + "Cache-Control: no-cache, no-store, must-revalidate\r\n"
                     + "\r\n"
@@ -208,7 +206,7 @@ public enum HttpStatusCode {
         @Override
         public String getHttpResponse() {
             return HttpVersion.HTTP_1_1.toString() + " " + statusCode + " " + message + "\r\n"
-                    + "Date: " + HttpHeader.DATE_FORMATER.format(new Date())
+                    + HttpDates.currentDateField()
                     + "Connection: close\r\n"
                     + "Cache-Control: no-cache, no-store, must-revalidate\r\n"
                     + "\r\n"
@@ -231,7 +229,7 @@ public enum HttpStatusCode {
         @Override
         public String getHttpResponse() {
             return HttpVersion.HTTP_1_1.toString() + " " + statusCode + " " + message + "\r\n"
-                    + "Date: " + HttpHeader.DATE_FORMATER.format(new Date())
+                    + HttpDates.currentDateField()
                     + "Connection: close\r\n"
                     + "Cache-Control: no-cache, no-store, must-revalidate\r\n"
                     + "\r\n"
@@ -262,7 +260,7 @@ public enum HttpStatusCode {
         @Override
         public String getHttpResponse() {
             return HttpVersion.HTTP_1_1.toString() + " " + statusCode + " " + message + "\r\n"
-                    + "Date: " + HttpHeader.DATE_FORMATER.format(new Date())
+                    + HttpDates.currentDateField()
                     + "Connection: close\r\n"
                     + "Cache-Control: no-cache, no-store, must-revalidate\r\n"
                     + "\r\n"
@@ -284,7 +282,7 @@ public enum HttpStatusCode {
         @Override
         public String getHttpResponse() {
             return HttpVersion.HTTP_1_1.toString() + " " + statusCode + " " + message + "\r\n"
-                    + "Date: " + HttpHeader.DATE_FORMATER.format(new Date())
+                    + HttpDates.currentDateField()
                     + "Connection: close\r\n"
                     + "Cache-Control: no-cache, no-store, must-revalidate\r\n"
                     + "\r\n"
@@ -336,7 +334,7 @@ public enum HttpStatusCode {
         @Override
         public String getHttpResponse() {
             return HttpVersion.HTTP_1_1.toString() + " " + statusCode + " " + message + "\r\n"
-                    + "Date: " + HttpHeader.DATE_FORMATER.format(new Date())
+                    + HttpDates.currentDateField()
                     + "Connection: close\r\n"
                     + "Cache-Control: no-cache, no-store, must-revalidate\r\n"
                     + "\r\n"
@@ -385,7 +383,7 @@ public enum HttpStatusCode {
         @Override
         public String getHttpResponse() {
             return HttpVersion.HTTP_1_1.toString() + " " + statusCode + " " + message + "\r\n"
-                    + "Date: " + HttpHeader.DATE_FORMATER.format(new Date())
+                    + HttpDates.currentDateField()
                     + "Connection: close\r\n"
                     + "Cache-Control: no-cache, no-store, must-revalidate\r\n"
                     + "\r\n"
@@ -420,7 +418,7 @@ public enum HttpStatusCode {
         @Override
         public String getHttpResponse() {
             return HttpVersion.HTTP_1_1.toString() + " " + statusCode + " " + message + "\r\n"
-                    + "Date: " + HttpHeader.DATE_FORMATER.format(new Date())
+                    + HttpDates.currentDateField()
                     + "Connection: close\r\n"
                     + "Cache-Control: no-cache, no-store, must-revalidate\r\n"
                     + "\r\n"
@@ -457,7 +455,7 @@ public enum HttpStatusCode {
         @Override
         public String getHttpResponse() {
             return HttpVersion.HTTP_1_1.toString() + " " + statusCode + " " + message + "\r\n"
-                    + "Date: " + HttpHeader.DATE_FORMATER.format(new Date())
+                    + HttpDates.currentDateField()
                     + "Connection: close\r\n"
                     + "Cache-Control: no-cache, no-store, must-revalidate\r\n"
                     + "\r\n"
@@ -489,7 +487,7 @@ public enum HttpStatusCode {
         @Override
         public String getHttpResponse() {
             return HttpVersion.HTTP_1_1.toString() + " " + statusCode + " " + message + "\r\n"
-                    + "Date: " + HttpHeader.DATE_FORMATER.format(new Date())
+                    + HttpDates.currentDateField()
                     + "Connection: close\r\n"
                     + "Cache-Control: no-cache, no-store, must-revalidate\r\n"
                     + "\r\n"
@@ -538,7 +536,7 @@ public enum HttpStatusCode {
         @Override
         public String getHttpResponse() {
             return HttpVersion.HTTP_1_1.toString() + " " + statusCode + " " + message + "\r\n"
-                    + "Date: " + HttpHeader.DATE_FORMATER.format(new Date())
+                    + HttpDates.currentDateField()
                     + "Connection: close\r\n"
                     + "Cache-Control: no-cache, no-store, must-revalidate\r\n"
                     + "\r\n"
@@ -562,7 +560,7 @@ public enum HttpStatusCode {
         @Override
         public String getHttpResponse() {
             return HttpVersion.HTTP_1_1.toString() + " " + statusCode + " " + message + "\r\n"
-                    + "Date: " + HttpHeader.DATE_FORMATER.format(new Date())
+                    + HttpDates.currentDateField()
                     + "Connection: close\r\n"
                     + "Cache-Control: no-cache, no-store, must-revalidate\r\n"
                     + "\r\n"
@@ -601,7 +599,7 @@ public enum HttpStatusCode {
         @Override
         public String getHttpResponse() {
             return HttpVersion.HTTP_1_1.toString() + " " + statusCode + " " + message + "\r\n"
-                    + "Date: " + HttpHeader.DATE_FORMATER.format(new Date())
+                    + HttpDates.currentDateField()
                     + "Connection: close\r\n"
                     + "Cache-Control: no-cache, no-store, must-revalidate\r\n"
                     + "\r\n"
@@ -637,7 +635,7 @@ public enum HttpStatusCode {
         @Override
         public String getHttpResponse() {
             return HttpVersion.HTTP_1_1.toString() + " " + statusCode + " " + message + "\r\n"
-                    + "Date: " + HttpHeader.DATE_FORMATER.format(new Date())
+                    + HttpDates.currentDateField()
                     + "Connection: close\r\n"
                     + "Cache-Control: no-cache, no-store, must-revalidate\r\n"
                     + "\r\n"
@@ -665,7 +663,7 @@ public enum HttpStatusCode {
         @Override
         public String getHttpResponse() {
             return HttpVersion.HTTP_1_1.toString() + " " + statusCode + " " + message + "\r\n"
-                    + "Date: " + HttpHeader.DATE_FORMATER.format(new Date())
+                    + HttpDates.currentDateField()
                     + "Connection: close\r\n"
                     + "Cache-Control: no-cache, no-store, must-revalidate\r\n"
                     + "\r\n"
@@ -682,7 +680,7 @@ public enum HttpStatusCode {
         @Override
         public String getHttpResponse() {
             return HttpVersion.HTTP_1_1.toString() + " " + statusCode + " " + message + "\r\n"
-                    + "Date: " + HttpHeader.DATE_FORMATER.format(new Date())
+                    + HttpDates.currentDateField()
                     + "Connection: close\r\n"
                     + "Cache-Control: no-cache, no-store, must-revalidate\r\n"
                     + "\r\n"
@@ -705,7 +703,7 @@ public enum HttpStatusCode {
         @Override
         public String getHttpResponse() {
             return HttpVersion.HTTP_1_1.toString() + " " + statusCode + " " + message + "\r\n"
-                    + "Date: " + HttpHeader.DATE_FORMATER.format(new Date())
+                    + HttpDates.currentDateField()
                     + "Connection: close\r\n"
                     + "Cache-Control: no-cache, no-store, must-revalidate\r\n"
                     + "\r\n"
@@ -728,7 +726,7 @@ public enum HttpStatusCode {
         @Override
         public String getHttpResponse() {
             return HttpVersion.HTTP_1_1.toString() + " " + statusCode + " " + message + "\r\n"
-                    + "Date: " + HttpHeader.DATE_FORMATER.format(new Date())
+                    + HttpDates.currentDateField()
                     + "Connection: close\r\n"
                     + "Cache-Control: no-cache, no-store, must-revalidate\r\n"
                     + "\r\n"
@@ -747,7 +745,7 @@ public enum HttpStatusCode {
         @Override
         public String getHttpResponse() {
             return HttpVersion.HTTP_1_1.toString() + " " + statusCode + " " + message + "\r\n"
-                    + "Date: " + HttpHeader.DATE_FORMATER.format(new Date())
+                    + HttpDates.currentDateField()
                     + "Connection: close\r\n"
                     + "Cache-Control: no-cache, no-store, must-revalidate\r\n"
                     + "\r\n"
@@ -785,7 +783,7 @@ public enum HttpStatusCode {
         @Override
         public String getHttpResponse() {
             return HttpVersion.HTTP_1_1.toString() + " " + statusCode + " " + message + "\r\n"
-                    + "Date: " + HttpHeader.DATE_FORMATER.format(new Date())
+                    + HttpDates.currentDateField()
                     + "Connection: close\r\n"
                     + "Cache-Control: no-cache, no-store, must-revalidate\r\n"
                     + "\r\n"
@@ -808,7 +806,7 @@ public enum HttpStatusCode {
         @Override
         public String getHttpResponse() {
             return HttpVersion.HTTP_1_1.toString() + " " + statusCode + " " + message + "\r\n"
-                    + "Date: " + HttpHeader.DATE_FORMATER.format(new Date())
+                    + HttpDates.currentDateField()
                     + "Connection: close\r\n"
                     + "Cache-Control: no-cache, no-store, must-revalidate\r\n"
                     + "\r\n"
@@ -827,7 +825,7 @@ public enum HttpStatusCode {
         @Override
         public String getHttpResponse() {
             return HttpVersion.HTTP_1_1.toString() + " " + statusCode + " " + message + "\r\n"
-                    + "Date: " + HttpHeader.DATE_FORMATER.format(new Date())
+                    + HttpDates.currentDateField()
                     + "Connection: close\r\n"
                     + "Cache-Control: no-cache, no-store, must-revalidate\r\n"
                     + "\r\n"
@@ -847,7 +845,7 @@ public enum HttpStatusCode {
         @Override
         public String getHttpResponse() {
             return HttpVersion.HTTP_1_1.toString() + " " + statusCode + " " + message + "\r\n"
-                    + "Date: " + HttpHeader.DATE_FORMATER.format(new Date())
+                    + HttpDates.currentDateField()
                     + "Connection: close\r\n"
                     + "Cache-Control: no-cache, no-store, must-revalidate\r\n"
                     + "\r\n"
@@ -879,7 +877,7 @@ public enum HttpStatusCode {
         @Override
         public String getHttpResponse() {
             return HttpVersion.HTTP_1_1.toString() + " " + statusCode + " " + message + "\r\n"
-                    + "Date: " + HttpHeader.DATE_FORMATER.format(new Date())
+                    + HttpDates.currentDateField()
                     + "Connection: close\r\n"
                     + "Cache-Control: no-cache, no-store, must-revalidate\r\n"
                     + "\r\n"
@@ -899,7 +897,7 @@ public enum HttpStatusCode {
         @Override
         public String getHttpResponse() {
             return HttpVersion.HTTP_1_1.toString() + " " + statusCode + " " + message + "\r\n"
-                    + "Date: " + HttpHeader.DATE_FORMATER.format(new Date())
+                    + HttpDates.currentDateField()
                     + "Connection: close\r\n"
                     + "Cache-Control: no-cache, no-store, must-revalidate\r\n"
                     + "\r\n"
@@ -920,7 +918,7 @@ public enum HttpStatusCode {
         @Override
         public String getHttpResponse() {
             return HttpVersion.HTTP_1_1.toString() + " " + statusCode + " " + message + "\r\n"
-                    + "Date: " + HttpHeader.DATE_FORMATER.format(new Date())
+                    + HttpDates.currentDateField()
                     + "Connection: close\r\n"
                     + "Cache-Control: no-cache, no-store, must-revalidate\r\n"
                     + "\r\n"
@@ -943,7 +941,7 @@ public enum HttpStatusCode {
         @Override
         public String getHttpResponse() {
             return HttpVersion.HTTP_1_1.toString() + " " + statusCode + " " + message + "\r\n"
-                    + "Date: " + HttpHeader.DATE_FORMATER.format(new Date())
+                    + HttpDates.currentDateField()
                     + "Connection: close\r\n"
                     + "Cache-Control: no-cache, no-store, must-revalidate\r\n"
                     + "\r\n"
@@ -968,7 +966,7 @@ public enum HttpStatusCode {
         @Override
         public String getHttpResponse() {
             return HttpVersion.HTTP_1_1.toString() + " " + statusCode + " " + message + "\r\n"
-                    + "Date: " + HttpHeader.DATE_FORMATER.format(new Date())
+                    + HttpDates.currentDateField()
                     + "Connection: close\r\n"
                     + "Cache-Control: no-cache, no-store, must-revalidate\r\n"
                     + "\r\n"
@@ -987,7 +985,7 @@ public enum HttpStatusCode {
         @Override
         public String getHttpResponse() {
             return HttpVersion.HTTP_1_1.toString() + " " + statusCode + " " + message + "\r\n"
-                    + "Date: " + HttpHeader.DATE_FORMATER.format(new Date())
+                    + HttpDates.currentDateField()
                     + "Connection: close\r\n"
                     + "Cache-Control: no-cache, no-store, must-revalidate\r\n"
                     + "\r\n"
@@ -1015,7 +1013,7 @@ public enum HttpStatusCode {
         @Override
         public String getHttpResponse() {
             return HttpVersion.HTTP_1_1.toString() + " " + statusCode + " " + message + "\r\n"
-                    + "Date: " + HttpHeader.DATE_FORMATER.format(new Date())
+                    + HttpDates.currentDateField()
                     + "Connection: close\r\n"
                     + "Cache-Control: no-cache, no-store, must-revalidate\r\n"
                     + "\r\n"
@@ -1035,7 +1033,7 @@ public enum HttpStatusCode {
         @Override
         public String getHttpResponse() {
             return HttpVersion.HTTP_1_1.toString() + " " + statusCode + " " + message + "\r\n"
-                    + "Date: " + HttpHeader.DATE_FORMATER.format(new Date())
+                    + HttpDates.currentDateField()
                     + "Connection: close\r\n"
                     + "Cache-Control: no-cache, no-store, must-revalidate\r\n"
                     + "\r\n"
@@ -1064,7 +1062,7 @@ public enum HttpStatusCode {
         @Override
         public String getHttpResponse() {
             return HttpVersion.HTTP_1_1.toString() + " " + statusCode + " " + message + "\r\n"
-                    + "Date: " + HttpHeader.DATE_FORMATER.format(new Date())
+                    + HttpDates.currentDateField()
                     + "Connection: close\r\n"
                     + "Cache-Control: no-cache, no-store, must-revalidate\r\n"
                     + "\r\n"
@@ -1084,7 +1082,7 @@ public enum HttpStatusCode {
         @Override
         public String getHttpResponse() {
             return HttpVersion.HTTP_1_1.toString() + " " + statusCode + " " + message + "\r\n"
-                    + "Date: " + HttpHeader.DATE_FORMATER.format(new Date())
+                    + HttpDates.currentDateField()
                     + "Connection: close\r\n"
                     + "Cache-Control: no-cache, no-store, must-revalidate\r\n"
                     + "\r\n"
@@ -1103,7 +1101,7 @@ public enum HttpStatusCode {
         @Override
         public String getHttpResponse() {
             return HttpVersion.HTTP_1_1.toString() + " " + statusCode + " " + message + "\r\n"
-                    + "Date: " + HttpHeader.DATE_FORMATER.format(new Date())
+                    + HttpDates.currentDateField()
                     + "Connection: close\r\n"
                     + "Cache-Control: no-cache, no-store, must-revalidate\r\n"
                     + "\r\n"
@@ -1129,7 +1127,7 @@ public enum HttpStatusCode {
         @Override
         public String getHttpResponse() {
             return HttpVersion.HTTP_1_1.toString() + " " + statusCode + " " + message + "\r\n"
-                    + "Date: " + HttpHeader.DATE_FORMATER.format(new Date())
+                    + HttpDates.currentDateField()
                     + "Connection: close\r\n"
                     + "Cache-Control: no-cache, no-store, must-revalidate\r\n"
                     + "\r\n"
@@ -1152,7 +1150,7 @@ public enum HttpStatusCode {
         @Override
         public String getHttpResponse() {
             return HttpVersion.HTTP_1_1.toString() + " " + statusCode + " " + message + "\r\n"
-                    + "Date: " + HttpHeader.DATE_FORMATER.format(new Date())
+                    + HttpDates.currentDateField()
                     + "Connection: close\r\n"
                     + "Cache-Control: no-cache, no-store, must-revalidate\r\n"
                     + "\r\n"
@@ -1175,7 +1173,7 @@ public enum HttpStatusCode {
         @Override
         public String getHttpResponse() {
             return HttpVersion.HTTP_1_1.toString() + " " + statusCode + " " + message + "\r\n"
-                    + "Date: " + HttpHeader.DATE_FORMATER.format(new Date())
+                    + HttpDates.currentDateField()
                     + "Connection: close\r\n"
                     + "Cache-Control: no-cache, no-store, must-revalidate\r\n"
                     + "\r\n"
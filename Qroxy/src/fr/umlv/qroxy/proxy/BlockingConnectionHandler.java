@@ -0,0 +1,625 @@
+/*
+ * Copyright (C) 2012 Joan Goyeau & Guillaume Demurger
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.qroxy.proxy;
+
+import fr.umlv.qroxy.buffer.BufferPool;
+import fr.umlv.qroxy.cache.CacheAccess;
+import fr.umlv.qroxy.cache.CacheEntry;
+import fr.umlv.qroxy.cache.CacheException;
+import fr.umlv.qroxy.cache.channels.CacheInputChannel;
+import fr.umlv.qroxy.cache.channels.CacheOutputChannel;
+import fr.umlv.qroxy.config.Category;
+import fr.umlv.qroxy.config.CategoryClassifier;
+import fr.umlv.qroxy.config.Config;
+import fr.umlv.qroxy.http.ChunkedDecoder;
+import fr.umlv.qroxy.http.ContentTransferMode;
+import fr.umlv.qroxy.http.HttpHeader;
+import fr.umlv.qroxy.http.HttpHeaderParser;
+import fr.umlv.qroxy.http.HttpHeaderRewriter;
+import fr.umlv.qroxy.http.HttpMethod;
+import fr.umlv.qroxy.http.HttpRequestHeader;
+import fr.umlv.qroxy.http.HttpResponseHeader;
+import fr.umlv.qroxy.http.HttpStatusCode;
+import fr.umlv.qroxy.http.exceptions.HttpMalformedHeaderException;
+import fr.umlv.qroxy.http.exceptions.HttpSendingErrorCodeException;
+import fr.umlv.qroxy.http.exceptions.HttpUnsupportedMethodException;
+import fr.umlv.qroxy.http.exceptions.HttpUnsupportedVersionException;
+import fr.umlv.qroxy.qos.HierarchicalShaper;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Sequential version of {@link HttpConnectionHandler}: one thread serves the
+ * requests of one client with blocking channels, one after the other.
+ *
+ * @author joan
+ */
+public class BlockingConnectionHandler implements Runnable {
+
+    private final SocketChannel client;
+    private final CacheAccess cache;
+    private final CategoryClassifier classifier;
+    private final HierarchicalShaper downloadShaper;
+    private final HierarchicalShaper uploadShaper;
+    private final OriginConnectionPool originPool;
+    private final HostResolver resolver;
+    /**
+     * Runs the client to server direction of a tunnel
+     */
+    private final Executor executor;
+    /**
+     * Closes the channel of a blocking operation which lasts too long
+     */
+    private final ScheduledExecutorService watchdog;
+    private volatile SocketChannel awaitedChannel;
+    private volatile long deadline;
+    private ByteBuffer clientBuffer;
+    private ByteBuffer serverBuffer;
+    private SocketChannel server;
+    private InetSocketAddress serverAddress;
+    private int headerLength;
+    private final HttpHeaderParser headerParser = new HttpHeaderParser();
+    private HttpHeaderRewriter requestRewriter;
+    private final ChunkedDecoder chunks = new ChunkedDecoder();
+    /**
+     * Headers of the last exchange, loaded again by the next one
+     */
+    private HttpRequestHeader lastRequestHeader;
+    private HttpResponseHeader lastResponseHeader;
+
+    public BlockingConnectionHandler(SocketChannel client, CacheAccess cache, CategoryClassifier classifier,
+            HierarchicalShaper downloadShaper, HierarchicalShaper uploadShaper,
+            OriginConnectionPool originPool, HostResolver resolver, Executor executor,
+            ScheduledExecutorService watchdog) {
+        this.client = client;
+        this.cache = cache;
+        this.classifier = classifier;
+        this.downloadShaper = downloadShaper;
+        this.uploadShaper = uploadShaper;
+        this.originPool = originPool;
+        this.resolver = resolver;
+        this.executor = executor;
+        this.watchdog = watchdog;
+    }
+
+    @Override
+    public void run() {
+        BufferPool pool = BufferPool.getDefault();
+        clientBuffer = pool.acquire(Config.MAX_HEADER_LENGTH);
+        serverBuffer = pool.acquire(Config.MAX_HEADER_LENGTH);
+        ScheduledFuture<?> timeouts = watchdog.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                SocketChannel channel = awaitedChannel;
+                if (channel != null && System.nanoTime() - deadline > 0) {
+                    // Unblock the thread waiting on it
+                    closeQuietly(channel);
+                }
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+        try {
+            clientBuffer.flip();
+            while (serveRequest()) {
+                // Keep alive
+            }
+        } catch (HttpSendingErrorCodeException e) {
+            // Do nothing
+        } catch (AsynchronousCloseException e) {
+            Proxy.LOGGER.log(Level.INFO, "Closing idle connection.");
+        } catch (IOException e) {
+            Proxy.LOGGER.log(Level.SEVERE, "Client connection closed.", e);
+        } finally {
+            timeouts.cancel(false);
+            closeQuietly(server);
+            closeQuietly(client);
+            pool.release(clientBuffer);
+            pool.release(serverBuffer);
+        }
+    }
+
+    /**
+     * Serve one request of the client.
+     *
+     * @return If the connection can be used for another request
+     */
+    private boolean serveRequest() throws IOException, HttpSendingErrorCodeException {
+        HttpRequestHeader requestHeader = readRequestHeader();
+        if (requestHeader == null) {
+            return false;
+        }
+
+        // Qos
+        Category category = requestHeader.matchesCatagories(classifier);
+        if (category != null && category.getQosRule() != null && category.getQosRule().isFiltering()) {
+            sendErrorCode(HttpStatusCode.NOT_ACCEPTABLE);
+        }
+
+        boolean tunnel = requestHeader.getMethod() == HttpMethod.CONNECT;
+        CacheInputChannel cachedResponse = null;
+        try {
+            if (!tunnel) {
+                cachedResponse = cache.getResource(requestHeader);
+            }
+        } catch (CacheException e) {
+            // Do not use cache
+        }
+        try {
+            if (cachedResponse != null) {
+                // The freshness is known from the index, without reading the file
+                CacheEntry entry = cachedResponse.getEntry();
+                if (!entry.isExpired(System.currentTimeMillis())) {
+                    writeToClientFromCache(cachedResponse);
+                    // The request is answered, drop it
+                    clientBuffer.position(clientBuffer.position() + headerLength);
+                    return !"close".equalsIgnoreCase(requestHeader.getConnection());
+                }
+                // Expired, kept open to be served if the server answers not modified
+                requestHeader.setIfModifiedCheckFields(entry.getDate(), entry.getETag());
+                requestRewriter.setConditionalFields(entry.getDate(), entry.getETag());
+            }
+
+            HierarchicalShaper.Leaf downloadLeaf = downloadShaper.open(category);
+            HierarchicalShaper.Leaf uploadLeaf = uploadShaper.open(category);
+            try {
+                if (tunnel) {
+                    tunnel(requestHeader.getUri(), downloadLeaf, uploadLeaf);
+                    return false;
+                }
+                return forwardToServer(requestHeader, cachedResponse, downloadLeaf, uploadLeaf);
+            } finally {
+                if (downloadLeaf != null) {
+                    downloadLeaf.close();
+                }
+                if (uploadLeaf != null) {
+                    uploadLeaf.close();
+                }
+            }
+        } finally {
+            if (cachedResponse != null) {
+                cachedResponse.close();
+            }
+        }
+    }
+
+    private HttpRequestHeader readRequestHeader() throws IOException, HttpSendingErrorCodeException {
+        while (true) {
+            if (clientBuffer.hasRemaining()) {
+                if (headerParser.parse(clientBuffer)) {
+                    headerLength = headerParser.getHeaderLength();
+                    try {
+                        lastRequestHeader = HttpRequestHeader.parse(headerParser, lastRequestHeader);
+                        requestRewriter = HttpHeaderRewriter.forRequest(headerParser);
+                        return lastRequestHeader;
+                    } catch (HttpUnsupportedVersionException e) {
+                        sendErrorCode(HttpStatusCode.HTTP_VERSION_NOT_SUPPORTED);
+                    } catch (HttpUnsupportedMethodException e) {
+                        sendErrorCode(HttpStatusCode.METHOD_NOT_ALLOWED);
+                    } catch (HttpMalformedHeaderException e) {
+                        sendErrorCode(HttpStatusCode.BAD_REQUEST);
+                    } finally {
+                        headerParser.reset();
+                    }
+                }
+                if (clientBuffer.remaining() == clientBuffer.capacity()) {
+                    // Buffer is full, so header is too long
+                    sendErrorCode(HttpStatusCode.REQUEST_ENTITY_TOO_LARGE);
+                }
+            }
+            clientBuffer.compact();
+            await(client, Config.IDLE_TIME_OUT);
+            int nbReaded = client.read(clientBuffer);
+            clientBuffer.flip();
+            if (nbReaded == -1) {
+                headerParser.reset();
+                return null;
+            }
+        }
+    }
+
+    private void writeToClientFromCache(CacheInputChannel cachedResponse) throws IOException {
+        // Sent from the file of the cache without copying it in the memory of the proxy
+        long size = cachedResponse.size();
+        long position = 0;
+        while (position < size) {
+            await(client, Config.IDLE_TIME_OUT);
+            position += cachedResponse.transferTo(client, position, size - position);
+        }
+    }
+
+    /**
+     * @param cachedResponse The expired cached response, served if the server
+     * answers not modified, or null
+     */
+    private boolean forwardToServer(HttpRequestHeader requestHeader, CacheInputChannel cachedResponse,
+            HierarchicalShaper.Leaf downloadLeaf, HierarchicalShaper.Leaf uploadLeaf) throws IOException, HttpSendingErrorCodeException {
+        connectToServer(requestHeader.getUri(), true);
+
+        // Request header, sent from the received bytes with the edits of the proxy
+        ByteBuffer[] header = requestRewriter.toBuffers(clientBuffer, clientBuffer.position());
+        while (header[header.length - 1].hasRemaining()) {
+            server.write(header);
+        }
+        clientBuffer.position(clientBuffer.position() + headerLength);
+
+        // Request body
+        if (requestHeader.contentTransferMode() == ContentTransferMode.CHUNKED) {
+            if (!relayChunked(client, clientBuffer, server, null, uploadLeaf)) {
+                return false;
+            }
+        } else {
+            long bodyLength = 0;
+            if (requestHeader.getContentLength() != null) {
+                bodyLength = requestHeader.getContentLength();
+            }
+            if (!relay(client, clientBuffer, server, bodyLength, null, uploadLeaf)) {
+                return false;
+            }
+        }
+
+        // Response
+        serverBuffer.clear();
+        serverBuffer.flip();
+        HttpResponseHeader responseHeader = readResponseHeader();
+        if (responseHeader == null) {
+            return false;
+        }
+        if (cachedResponse != null && responseHeader.getStatusCode() == HttpStatusCode.NOT_MODIFIED) {
+            // Answer of the conditional request for the cached resource
+            serverBuffer.position(serverBuffer.position() + headerLength);
+            writeToClientFromCache(cachedResponse);
+            releaseServer(requestHeader, responseHeader);
+            return !"close".equalsIgnoreCase(requestHeader.getConnection());
+        }
+        CacheOutputChannel cacher = null;
+        try {
+            cacher = cache.cacheResource(requestHeader);
+        } catch (CacheException e) {
+            // Not cachable
+        }
+
+        try {
+            boolean relayed;
+            switch (responseHeader.contentTransferMode(requestHeader.getMethod())) {
+                case CONTENT_LENGTH:
+                    relayed = relay(server, serverBuffer, client, headerLength + responseHeader.getContentLength(), cacher, downloadLeaf);
+                    break;
+                case NO_CONTENT:
+                    relayed = relay(server, serverBuffer, client, headerLength, cacher, downloadLeaf);
+                    break;
+                case CHUNKED:
+                    relayed = relay(server, serverBuffer, client, headerLength, cacher, downloadLeaf)
+                            && relayChunked(server, serverBuffer, client, cacher, downloadLeaf);
+                    break;
+                default:
+                    // Delimited by the end of the connection. Not cached: the
+                    // stored header could not delimit the body on a hit
+                    relay(server, serverBuffer, client, -1, cacher, downloadLeaf);
+                    return false;
+            }
+            if (relayed && cacher != null) {
+                // The whole response has been handed to the cache
+                cacher.commit();
+            }
+            if (responseHeader.hasConflictingLength()) {
+                // The client may not delimit the body as the proxy does
+                return false;
+            }
+            if (relayed) {
+                releaseServer(requestHeader, responseHeader);
+            }
+            // The client sends no request after Connection: close
+            return relayed && !"close".equalsIgnoreCase(requestHeader.getConnection());
+        } finally {
+            if (cacher != null) {
+                cacher.close();
+            }
+        }
+    }
+
+    /**
+     * Keep the connection to the server for a next request if the exchange
+     * allows it.
+     */
+    private void releaseServer(HttpRequestHeader requestHeader, HttpResponseHeader responseHeader) {
+        if (!serverBuffer.hasRemaining()
+                && !"close".equalsIgnoreCase(responseHeader.getConnection())
+                && !"close".equalsIgnoreCase(requestHeader.getConnection())) {
+            originPool.giveBack(serverAddress, server);
+            server = null;
+            serverAddress = null;
+        }
+    }
+
+    /**
+     * Answer a CONNECT request, then relay the bytes of both sides as they are
+     * until both have ended (see section 5.2 in RFC 2817). The bytes of the
+     * client are relayed by an other task of the executor.
+     */
+    private void tunnel(URI uri, HierarchicalShaper.Leaf downloadLeaf,
+            final HierarchicalShaper.Leaf uploadLeaf) throws IOException, HttpSendingErrorCodeException {
+        connectToServer(uri, false);
+        ByteBuffer established = ByteBuffer.wrap(HttpConnectionHandler.CONNECTION_ESTABLISHED);
+        while (established.hasRemaining()) {
+            client.write(established);
+        }
+        clientBuffer.position(clientBuffer.position() + headerLength);
+
+        final SocketChannel tunnelServer = server;
+        FutureTask<Void> upstream = new FutureTask<>(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    relay(client, clientBuffer, tunnelServer, -1, null, uploadLeaf);
+                    tunnelServer.shutdownOutput();
+                } catch (IOException e) {
+                    // Unblock the other direction
+                    closeQuietly(client);
+                    closeQuietly(tunnelServer);
+                }
+            }
+        }, null);
+        executor.execute(upstream);
+
+        boolean relayed = false;
+        try {
+            serverBuffer.clear();
+            serverBuffer.flip();
+            relay(server, serverBuffer, client, -1, null, downloadLeaf);
+            client.shutdownOutput();
+            relayed = true;
+        } finally {
+            if (!relayed) {
+                // Unblock the other direction
+                closeQuietly(client);
+                closeQuietly(server);
+            }
+            try {
+                // The buffer of the client is used until the other direction ends
+                upstream.get();
+            } catch (InterruptedException | ExecutionException e) {
+                closeQuietly(client);
+                closeQuietly(server);
+            }
+        }
+    }
+
+    private HttpResponseHeader readResponseHeader() throws IOException, HttpSendingErrorCodeException {
+        while (true) {
+            if (serverBuffer.hasRemaining()) {
+                if (headerParser.parse(serverBuffer)) {
+                    headerLength = headerParser.getHeaderLength();
+                    try {
+                        lastResponseHeader = HttpResponseHeader.parse(headerParser, lastResponseHeader);
+                        return lastResponseHeader;
+                    } finally {
+                        headerParser.reset();
+                    }
+                }
+                if (serverBuffer.remaining() == serverBuffer.capacity()) {
+                    throw new HttpMalformedHeaderException("Response header too long");
+                }
+            }
+            serverBuffer.compact();
+            await(server, Config.REQUEST_TIME_OUT);
+            int nbReaded;
+            try {
+                nbReaded = server.read(serverBuffer);
+            } catch (AsynchronousCloseException e) {
+                // Closed by the watchdog, the server did not answer in time
+                sendErrorCode(HttpStatusCode.GATWAY_TIMEOUT);
+                return null;
+            }
+            serverBuffer.flip();
+            if (nbReaded == -1) {
+                headerParser.reset();
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Relay bytes from a buffered source to a destination. Pending bytes of
+     * the buffer are sent first.
+     *
+     * @param count The number of bytes to relay or -1 to relay up to the end
+     * of the source
+     * @return false if the source reached its end
+     */
+    private boolean relay(SocketChannel source, ByteBuffer buffer, SocketChannel destination,
+            long count, CacheOutputChannel cacher, HierarchicalShaper.Leaf shaper) throws IOException {
+        long left = count;
+        while (left != 0) {
+            if (!buffer.hasRemaining() && !fill(source, buffer, shaper)) {
+                return false;
+            }
+
+            int limit = buffer.limit();
+            if (left > 0 && buffer.remaining() > left) {
+                buffer.limit(buffer.position() + (int) left);
+            }
+            int nbWrited = send(buffer, destination, cacher);
+            buffer.limit(limit);
+            if (left > 0) {
+                left -= nbWrited;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Relay a chunked body, up to its last chunk and its trailer (see section
+     * 3.6.1 in RFC 2616). Pending bytes of the buffer are sent first.
+     *
+     * @return If the whole body has been relayed
+     */
+    private boolean relayChunked(SocketChannel source, ByteBuffer buffer, SocketChannel destination,
+            CacheOutputChannel cacher, HierarchicalShaper.Leaf shaper) throws IOException {
+        chunks.reset();
+        while (!chunks.isComplete()) {
+            if (!buffer.hasRemaining() && !fill(source, buffer, shaper)) {
+                return false;
+            }
+
+            int limit = buffer.limit();
+            buffer.limit(buffer.position() + chunks.scan(buffer));
+            send(buffer, destination, cacher);
+            buffer.limit(limit);
+        }
+        return true;
+    }
+
+    /**
+     * Read the next bytes of the source in the empty buffer.
+     *
+     * @return If some bytes have been read, false at the end of the stream
+     */
+    private boolean fill(SocketChannel source, ByteBuffer buffer, HierarchicalShaper.Leaf shaper) throws IOException {
+        buffer.clear();
+        if (shaper != null) {
+            // Read no more than the available tokens
+            buffer.limit((int) Math.min(buffer.capacity(), waitForTokens(shaper)));
+        }
+        await(source, Config.IDLE_TIME_OUT);
+        int nbReaded = source.read(buffer);
+        buffer.flip();
+        if (nbReaded == -1) {
+            return false;
+        }
+        if (shaper != null) {
+            shaper.consume(nbReaded);
+        }
+        return true;
+    }
+
+    /**
+     * Write the remaining bytes of the buffer, and cache them.
+     *
+     * @return The number of bytes written
+     */
+    private int send(ByteBuffer buffer, SocketChannel destination, CacheOutputChannel cacher) throws IOException {
+        if (cacher != null) {
+            cacher.write(buffer.duplicate());
+        }
+        int nbWrited = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            await(destination, Config.IDLE_TIME_OUT);
+            destination.write(buffer);
+        }
+        return nbWrited;
+    }
+
+    /**
+     * Give up the next blocking operation on a channel if it does not end
+     * before the time out. The watchdog closes the channel, the blocked
+     * operation then throws an {@link AsynchronousCloseException}.
+     *
+     * @param channel The channel of the operation
+     * @param timeOut Time out in milliseconds
+     */
+    private void await(SocketChannel channel, int timeOut) {
+        deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeOut);
+        awaitedChannel = channel;
+    }
+
+    /**
+     * Sleep until the shaper has tokens.
+     *
+     * @return The number of available tokens
+     */
+    private static long waitForTokens(HierarchicalShaper.Leaf shaper) throws InterruptedIOException {
+        while (true) {
+            long tokens = shaper.available();
+            if (tokens > 0) {
+                return tokens;
+            }
+            try {
+                Thread.sleep(Math.max(shaper.delay(), 1));
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while throttling");
+            }
+        }
+    }
+
+    /**
+     * @param pooled If an idle connection to the server can be reused
+     */
+    private void connectToServer(URI uri, boolean pooled) throws IOException, HttpSendingErrorCodeException {
+        InetAddress address;
+        try {
+            address = resolver.resolveNow(uri.getHost());
+        } catch (UnknownHostException e) {
+            sendErrorCode(HttpStatusCode.NOT_FOUND);
+            return;
+        }
+        connectToServer(new InetSocketAddress(address, uri.getPort() == -1 ? HttpHeader.DEFAULT_PORT : uri.getPort()), pooled);
+    }
+
+    private void connectToServer(InetSocketAddress address, boolean pooled) throws IOException, HttpSendingErrorCodeException {
+        closeQuietly(server);
+        server = pooled ? originPool.borrow(address) : null;
+        serverAddress = address;
+        if (server != null) {
+            return;
+        }
+        try {
+            server = SocketChannel.open();
+            server.socket().connect(address, Config.REQUEST_TIME_OUT);
+        } catch (UnresolvedAddressException e) {
+            sendErrorCode(HttpStatusCode.NOT_FOUND);
+        } catch (SocketTimeoutException e) {
+            sendErrorCode(HttpStatusCode.GATWAY_TIMEOUT);
+        }
+    }
+
+    private void sendErrorCode(HttpStatusCode statusCode) throws IOException, HttpSendingErrorCodeException {
+        ByteBuffer response = ByteBuffer.wrap(statusCode.getHttpResponse().getBytes(HttpHeader.CHARSET));
+        while (response.hasRemaining()) {
+            client.write(response);
+        }
+        throw new HttpSendingErrorCodeException();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Do nothing
+        }
+    }
+}
@@ -16,9 +16,12 @@
  */
 package fr.umlv.qroxy.proxy;
 
+import fr.umlv.qroxy.buffer.BufferPool;
 import fr.umlv.qroxy.cache.CacheAccess;
+import fr.umlv.qroxy.cache.CacheEntry;
 import fr.umlv.qroxy.cache.channels.CacheInputChannel;
 import fr.umlv.qroxy.config.Config;
+import fr.umlv.qroxy.config.QosRule;
 import fr.umlv.qroxy.http.*;
 import fr.umlv.qroxy.http.exceptions.HttpMalformedHeaderException;
 import java.io.IOException;
@@ -49,11 +52,12 @@ public class CacheExchangingHandler implements LinkHandler {
     }
 
     @Override
-    public void read(SelectionKey key) {
+    public int read(SelectionKey key, int budget) {
+        int nbReaded = 0;
+        ByteBuffer buffer = BufferPool.getDefault().acquire(BUFFER_SIZE);
         try {
             // Searching for a WHOHAS request
             DatagramChannel channel = (DatagramChannel) key.channel();
-            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
             buffer.flip();
 
             SocketAddress source;
@@ -64,8 +68,9 @@ public class CacheExchangingHandler implements LinkHandler {
                     break;
                 }
                 buffer.flip();
+                nbReaded += buffer.remaining();
 
-                String data = HttpHeader.DECODER.decode(buffer).toString();
+                String data = HttpHeader.CHARSET.decode(buffer).toString();
                 try {
                     HttpRequestHeader whohasRequest = HttpRequestHeader.parse(data);
                     if (whohasRequest.getMethod().equals(HttpMethod.WHOHAS)) {
@@ -87,20 +92,23 @@ public class CacheExchangingHandler implements LinkHandler {
             }
         } catch (IOException e) {
             // Do nothing
+        } finally {
+            BufferPool.getDefault().release(buffer);
         }
+        return nbReaded;
     }
 
     @Override
     public void write(SelectionKey key) {
         try {
-            // Send OWN response
+            // Send OWN response, built from the index without reading the files
             DatagramChannel channel = (DatagramChannel) key.channel();
 
-            for (CacheInputChannel resource : myResources) {
-                ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
-                resource.read(buffer);
-                HttpResponseHeader responseHeader = HttpResponseHeader.parse(HttpHeader.DECODER.decode(buffer).toString());
-                HttpResponseHeader ownResponse = HttpResponseHeader.getOwnResponse(responseHeader);
+            while (!myResources.isEmpty()) {
+                CacheInputChannel resource = myResources.getFirst();
+                CacheEntry entry = resource.getEntry();
+                HttpResponseHeader ownResponse = HttpResponseHeader.getOwnResponse(entry.getUri(),
+                        entry.getETag(), entry.getDate(), entry.getExpires());
 
                 // Send OWN on the multicast if in furtur version proxy remember resource owners
                 int nbWrited = channel.send(ByteBuffer.wrap(ownResponse.toString().getBytes(HttpHeader.CHARSET)),
@@ -110,6 +118,7 @@ public class CacheExchangingHandler implements LinkHandler {
                     break;
                 }
                 myResources.removeFirst();
+                resource.close();
             }
 
             if (myResources.isEmpty()) {
@@ -133,7 +142,7 @@ public class CacheExchangingHandler implements LinkHandler {
     }
 
     @Override
-    public int priority() {
-        return 10;
+    public int weight(SelectionKey key) {
+        return QosRule.MAX_WEIGHT;
     }
 }
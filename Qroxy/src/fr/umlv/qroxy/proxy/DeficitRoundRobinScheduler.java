@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2012 Joan Goyeau & Guillaume Demurger
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.qroxy.proxy;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Weighted deficit round robin over the readable keys of a selector loop.
+ * Each round, every readable link earns its weight times the quantum in
+ * bytes and may read up to its deficit. Backlogged links therefore share the
+ * bandwidth in proportion to their weight. The deficit of a link which
+ * drained its socket is dropped, as in DRR an idle flow keeps no credit.
+ *
+ * The weights only share the bandwidth between the links of a round: a link
+ * alone in its round reads as much as its maximum deficit.
+ *
+ * @author joan
+ */
+public class DeficitRoundRobinScheduler {
+
+    private final int quantum;
+    private final int maxDeficit;
+    private final ArrayList<SelectionKey> readyKeys = new ArrayList<>();
+    private final HashMap<SelectionKey, Deficit> deficits = new HashMap<>();
+    private long round;
+
+    /**
+     * @param quantum Bytes earned by a link of weight 1 at each round
+     * @param maxDeficit Maximum credit a link can keep between rounds, and
+     * the bytes read by a link alone in its round
+     */
+    public DeficitRoundRobinScheduler(int quantum, int maxDeficit) {
+        if (quantum <= 0) {
+            throw new IllegalArgumentException("The quantum has to be positive");
+        }
+        this.quantum = quantum;
+        this.maxDeficit = Math.max(maxDeficit, quantum);
+    }
+
+    /**
+     * Add a readable key to the current round.
+     */
+    public void add(SelectionKey key) {
+        readyKeys.add(key);
+    }
+
+    /**
+     * Serve the readable keys of the current round. A link failing to read
+     * is closed without stopping the round.
+     */
+    public void serve() {
+        round++;
+        boolean alone = readyKeys.size() == 1;
+        try {
+            for (SelectionKey key : readyKeys) {
+                if (!key.isValid() || key.attachment() == null) {
+                    // Closed or released by an other link of this round
+                    continue;
+                }
+                LinkHandler link = (LinkHandler) key.attachment();
+                Deficit deficit = deficits.get(key);
+                if (deficit == null) {
+                    deficit = new Deficit();
+                    deficits.put(key, deficit);
+                }
+                deficit.round = round;
+                if (alone) {
+                    // Not competing with any other link
+                    deficit.bytes = maxDeficit;
+                } else {
+                    deficit.bytes = Math.min(deficit.bytes + link.weight(key) * quantum, maxDeficit);
+                }
+
+                int budget = deficit.bytes;
+                int nbReaded;
+                try {
+                    nbReaded = link.read(key, budget);
+                } catch (IOException | RuntimeException e) {
+                    // Only this link is lost
+                    Reactor.closeLink(key, e);
+                    deficits.remove(key);
+                    continue;
+                }
+                if (nbReaded < budget) {
+                    // Drained, an idle link keeps no credit
+                    deficit.bytes = 0;
+                } else {
+                    deficit.bytes -= nbReaded;
+                }
+            }
+        } finally {
+            readyKeys.clear();
+        }
+
+        // Forget the links which were not readable this round
+        for (Iterator<Deficit> it = deficits.values().iterator(); it.hasNext();) {
+            if (it.next().round != round) {
+                it.remove();
+            }
+        }
+    }
+
+    private static class Deficit {
+
+        private int bytes;
+        private long round;
+    }
+}
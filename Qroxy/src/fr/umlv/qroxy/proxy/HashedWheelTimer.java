@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2012 Joan Goyeau & Guillaume Demurger
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.qroxy.proxy;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Hashed timing wheel driven by a selector loop. Scheduling and cancelling
+ * are O(1): a timeout is linked in the slot of its deadline tick and counts
+ * the wheel rounds left before it expires.
+ *
+ * This class is not thread safe, it must only be used by the thread running
+ * the loop which calls {@link #expire()}.
+ *
+ * @author joan
+ */
+public class HashedWheelTimer {
+
+    private final long tickDuration;
+    private final Timeout[] wheel;
+    private final int mask;
+    private final long startTime;
+    private final ArrayList<Timeout> expired = new ArrayList<>();
+    /**
+     * Next tick to process
+     */
+    private long tick;
+    private int pending;
+    /**
+     * Earliest tick holding a timeout to expire, out of date once it is
+     * before the next tick to process
+     */
+    private long nextDeadlineTick = -1;
+
+    /**
+     * @param tickDuration Duration of a tick in milliseconds
+     * @param wheelSize Number of slots in the wheel, rounded up to a power of
+     * 2
+     */
+    public HashedWheelTimer(long tickDuration, int wheelSize) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("The tick duration has to be positive");
+        }
+        if (wheelSize <= 0) {
+            throw new IllegalArgumentException("The wheel size has to be positive");
+        }
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        this.tickDuration = tickDuration;
+        this.wheel = new Timeout[size];
+        this.mask = size - 1;
+        this.startTime = currentTime();
+    }
+
+    /**
+     * Schedule a task.
+     *
+     * @param task The task to run
+     * @param delay Delay in milliseconds before running the task
+     * @return The timeout to cancel the task
+     */
+    public Timeout schedule(Runnable task, long delay) {
+        long deadlineTick = (currentTime() + Math.max(delay, 0) - startTime + tickDuration - 1) / tickDuration;
+        deadlineTick = Math.max(deadlineTick, tick);
+
+        Timeout timeout = new Timeout(task, (deadlineTick - tick) / wheel.length);
+        timeout.slot = (int) (deadlineTick & mask);
+        timeout.next = wheel[timeout.slot];
+        if (timeout.next != null) {
+            timeout.next.previous = timeout;
+        }
+        wheel[timeout.slot] = timeout;
+        timeout.linked = true;
+        pending++;
+        if (deadlineTick < nextDeadlineTick) {
+            nextDeadlineTick = deadlineTick;
+        }
+        return timeout;
+    }
+
+    /**
+     * Run the tasks whose deadline is reached.
+     */
+    public void expire() {
+        long currentTick = (currentTime() - startTime) / tickDuration;
+        for (; tick <= currentTick && pending > 0; tick++) {
+            Timeout timeout = wheel[(int) (tick & mask)];
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.rounds <= 0) {
+                    unlink(timeout);
+                    expired.add(timeout);
+                } else {
+                    timeout.rounds--;
+                }
+                timeout = next;
+            }
+        }
+        if (pending == 0) {
+            tick = Math.max(tick, currentTick + 1);
+        }
+
+        // Run after walking the wheel, tasks may schedule or cancel timeouts
+        for (Timeout timeout : expired) {
+            Runnable task = timeout.task;
+            timeout.task = null;
+            if (task == null) {
+                // Cancelled by a previous task
+                continue;
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Proxy.LOGGER.log(Level.WARNING, "Timer task failed.", e);
+            }
+        }
+        expired.clear();
+    }
+
+    /**
+     * Time to wait before the earliest deadline, to be used as the selector
+     * timeout. The empty slots of the wheel do not wake up the loop.
+     *
+     * @return The number of milliseconds before the earliest deadline or 0 if
+     * there is nothing scheduled
+     */
+    public long timeToNextDeadline() {
+        if (pending == 0) {
+            return 0;
+        }
+        if (nextDeadlineTick < tick) {
+            nextDeadlineTick = findNextDeadlineTick();
+        }
+        return Math.max(startTime + nextDeadlineTick * tickDuration - currentTime(), 1);
+    }
+
+    /**
+     * Walk one revolution of the wheel from the next tick to process.
+     *
+     * @return The first tick with a timeout of the current round, or the
+     * tick one revolution ahead if all the timeouts are in later rounds
+     */
+    private long findNextDeadlineTick() {
+        for (int i = 0; i < wheel.length; i++) {
+            for (Timeout timeout = wheel[(int) ((tick + i) & mask)]; timeout != null; timeout = timeout.next) {
+                if (timeout.rounds <= 0) {
+                    return tick + i;
+                }
+            }
+        }
+        return tick + wheel.length;
+    }
+
+    /**
+     * @return The number of scheduled tasks
+     */
+    public int size() {
+        return pending;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.previous != null) {
+            timeout.previous.next = timeout.next;
+        } else {
+            wheel[timeout.slot] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.previous = timeout.previous;
+        }
+        timeout.previous = null;
+        timeout.next = null;
+        timeout.linked = false;
+        pending--;
+    }
+
+    private static long currentTime() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * Handle of a scheduled task.
+     */
+    public class Timeout {
+
+        private Runnable task;
+        private long rounds;
+        private int slot;
+        private boolean linked;
+        private Timeout previous;
+        private Timeout next;
+
+        private Timeout(Runnable task, long rounds) {
+            this.task = task;
+            this.rounds = rounds;
+        }
+
+        /**
+         * Cancel the task.
+         *
+         * @return false if the task already ran or has already been cancelled
+         */
+        public boolean cancel() {
+            if (task == null) {
+                return false;
+            }
+            task = null;
+            if (linked) {
+                unlink(this);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2012 Joan Goyeau & Guillaume Demurger
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.qroxy.proxy;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resolves host names on its own threads so that a slow DNS server does not
+ * stall a selector loop. Results are cached, failures for a shorter time,
+ * and concurrent resolutions of the same host share one lookup.
+ *
+ * @author joan
+ */
+public class HostResolver {
+
+    private static final int MAX_CACHED_HOSTS = 4096;
+    private final ExecutorService lookupExecutor;
+    private final long positiveTtl;
+    private final long negativeTtl;
+    private final ConcurrentHashMap<String, CachedHost> cache = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Lookup> pendingLookups = new ConcurrentHashMap<>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong lookupTime = new AtomicLong();
+
+    /**
+     * Receives the result of a resolution.
+     */
+    public interface Callback {
+
+        public void resolved(InetAddress address);
+
+        public void failed(UnknownHostException e);
+    }
+
+    /**
+     * @param threads Number of threads doing the lookups
+     * @param positiveTtl Time in milliseconds a resolved host is cached
+     * @param negativeTtl Time in milliseconds an unknown host is cached
+     */
+    public HostResolver(int threads, long positiveTtl, long negativeTtl) {
+        this.positiveTtl = TimeUnit.MILLISECONDS.toNanos(positiveTtl);
+        this.negativeTtl = TimeUnit.MILLISECONDS.toNanos(negativeTtl);
+        this.lookupExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable lookup) {
+                Thread thread = new Thread(lookup, "Qroxy resolver");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Resolve a host. If the host is in the cache the callback is called at
+     * once by the calling thread, otherwise it is called later through the
+     * executor.
+     *
+     * @param host The host name or address
+     * @param executor Executor running the callback, like the reactor of the
+     * caller
+     * @param callback The callback receiving the result
+     */
+    public void resolve(String host, Executor executor, Callback callback) {
+        requests.incrementAndGet();
+        CachedHost cached = cache.get(host);
+        if (cached != null && cached.expires - System.nanoTime() > 0) {
+            hits.incrementAndGet();
+            cached.notify(callback);
+            return;
+        }
+
+        // Join the pending lookup of this host or start one
+        Lookup lookup = new Lookup(host);
+        Lookup pending = pendingLookups.putIfAbsent(host, lookup);
+        if (pending != null) {
+            if (!pending.addWaiter(executor, callback)) {
+                // Completed meanwhile
+                pending.result.notify(callback);
+            }
+            return;
+        }
+        lookup.addWaiter(executor, callback);
+        lookupExecutor.execute(lookup);
+    }
+
+    /**
+     * Resolve a host, waiting for the result. To be used by the threads
+     * serving a single connection.
+     *
+     * @param host The host name or address
+     * @return The address of the host
+     * @throws UnknownHostException If the host could not be resolved
+     */
+    public InetAddress resolveNow(String host) throws UnknownHostException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final InetAddress[] address = new InetAddress[1];
+        final UnknownHostException[] failure = new UnknownHostException[1];
+        resolve(host, null, new Callback() {
+
+            @Override
+            public void resolved(InetAddress resolved) {
+                address[0] = resolved;
+                done.countDown();
+            }
+
+            @Override
+            public void failed(UnknownHostException e) {
+                failure[0] = e;
+                done.countDown();
+            }
+        });
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnknownHostException("Interrupted while resolving " + host);
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return address[0];
+    }
+
+    public void shutdown() {
+        lookupExecutor.shutdownNow();
+    }
+
+    /**
+     * @return The part of the resolutions answered by the cache, from 0 to 1
+     */
+    public double getHitRate() {
+        long total = requests.get();
+        return total == 0 ? 0 : (double) hits.get() / total;
+    }
+
+    /**
+     * @return The number of DNS lookups done
+     */
+    public long getLookups() {
+        return lookups.get();
+    }
+
+    /**
+     * @return The mean duration of the DNS lookups in milliseconds
+     */
+    public double getMeanLookupTime() {
+        long total = lookups.get();
+        return total == 0 ? 0 : (double) lookupTime.get() / total / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Resolver: %d lookups, %.1f%% cache hits, %.1fms mean lookup time",
+                getLookups(), getHitRate() * 100, getMeanLookupTime());
+    }
+
+    private void cache(String host, CachedHost cached) {
+        if (cache.size() >= MAX_CACHED_HOSTS) {
+            long now = System.nanoTime();
+            for (Iterator<Map.Entry<String, CachedHost>> it = cache.entrySet().iterator(); it.hasNext();) {
+                if (it.next().getValue().expires - now <= 0) {
+                    it.remove();
+                }
+            }
+            if (cache.size() >= MAX_CACHED_HOSTS) {
+                // Still full of valid hosts, start again
+                cache.clear();
+            }
+        }
+        cache.put(host, cached);
+    }
+
+    /**
+     * Result of a lookup, the address or the failure
+     */
+    private static class CachedHost {
+
+        private final InetAddress address;
+        private final UnknownHostException failure;
+        private final long expires;
+
+        CachedHost(InetAddress address, UnknownHostException failure, long expires) {
+            this.address = address;
+            this.failure = failure;
+            this.expires = expires;
+        }
+
+        void notify(Callback callback) {
+            if (address != null) {
+                callback.resolved(address);
+            } else {
+                callback.failed(failure);
+            }
+        }
+    }
+
+    /**
+     * Lookup of a host and the callbacks waiting for it
+     */
+    private class Lookup implements Runnable {
+
+        private final String host;
+        private final ArrayList<Executor> executors = new ArrayList<>();
+        private final ArrayList<Callback> callbacks = new ArrayList<>();
+        private CachedHost result;
+
+        Lookup(String host) {
+            this.host = host;
+        }
+
+        /**
+         * @return false if the lookup is already completed
+         */
+        synchronized boolean addWaiter(Executor executor, Callback callback) {
+            if (result != null) {
+                return false;
+            }
+            executors.add(executor);
+            callbacks.add(callback);
+            return true;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            CachedHost cached;
+            try {
+                InetAddress address = InetAddress.getByName(host);
+                cached = new CachedHost(address, null, System.nanoTime() + positiveTtl);
+            } catch (UnknownHostException e) {
+                cached = new CachedHost(null, e, System.nanoTime() + negativeTtl);
+            }
+            lookups.incrementAndGet();
+            lookupTime.addAndGet(System.nanoTime() - start);
+
+            cache(host, cached);
+            synchronized (this) {
+                result = cached;
+            }
+            pendingLookups.remove(host, this);
+
+            for (int i = 0; i < callbacks.size(); i++) {
+                final Callback callback = callbacks.get(i);
+                Executor executor = executors.get(i);
+                if (executor == null) {
+                    result.notify(callback);
+                } else {
+                    executor.execute(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            result.notify(callback);
+                        }
+                    });
+                }
+            }
+        }
+    }
+}
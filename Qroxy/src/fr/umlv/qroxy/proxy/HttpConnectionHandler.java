@@ -16,594 +16,1353 @@
  */
 package fr.umlv.qroxy.proxy;
 
+import fr.umlv.qroxy.buffer.BufferPool;
 import fr.umlv.qroxy.cache.CacheAccess;
+import fr.umlv.qroxy.cache.CacheEntry;
 import fr.umlv.qroxy.cache.CacheException;
 import fr.umlv.qroxy.cache.channels.CacheInputChannel;
 import fr.umlv.qroxy.cache.channels.CacheOutputChannel;
 import fr.umlv.qroxy.config.Category;
+import fr.umlv.qroxy.config.CategoryClassifier;
 import fr.umlv.qroxy.config.Config;
+import fr.umlv.qroxy.config.QosRule;
+import fr.umlv.qroxy.config.RateRule;
+import fr.umlv.qroxy.http.ChunkedDecoder;
 import fr.umlv.qroxy.http.HttpHeader;
+import fr.umlv.qroxy.http.HttpHeaderParser;
+import fr.umlv.qroxy.http.HttpHeaderRewriter;
+import fr.umlv.qroxy.http.HttpMethod;
 import fr.umlv.qroxy.http.HttpRequestHeader;
 import fr.umlv.qroxy.http.HttpResponseHeader;
 import fr.umlv.qroxy.http.HttpStatusCode;
+import fr.umlv.qroxy.http.exceptions.HttpMalformedBodyException;
 import fr.umlv.qroxy.http.exceptions.HttpMalformedHeaderException;
-import fr.umlv.qroxy.http.exceptions.HttpSendingErrorCodeException;
 import fr.umlv.qroxy.http.exceptions.HttpUnsupportedMethodException;
 import fr.umlv.qroxy.http.exceptions.HttpUnsupportedVersionException;
+import fr.umlv.qroxy.qos.HierarchicalShaper;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.URI;
+import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.UnresolvedAddressException;
 import java.util.*;
-import java.util.concurrent.Delayed;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 /**
+ * Connection of a client served by a reactor.
+ *
+ * The bytes of the client are received in an inbound buffer, those sent to
+ * the client in an outbound buffer, so both directions progress at the same
+ * time. The requests of the client are parsed as soon as they are received,
+ * even while the response of a previous one is still streaming, and queued
+ * in a pipeline. They are served one after the other, so the responses are
+ * written in the order of the requests (see section 8.1.2.2 in RFC 2616).
+ *
+ * The interest of both keys is derived from the state of the connection by
+ * {@link #updateInterests()} after each event.
+ *
+ * A CONNECT request turns the connection into a tunnel: the buffers then
+ * relay the bytes of both sides as they are.
  *
  * @author joan
  */
-public class HttpConnectionHandler implements LinkHandler, Delayed {
+public class HttpConnectionHandler implements LinkHandler {
 
+    /**
+     * Response to a CONNECT request once the tunnel is open
+     */
+    static final byte[] CONNECTION_ESTABLISHED = "HTTP/1.1 200 Connection established\r\n\r\n".getBytes(HttpHeader.CHARSET);
     private final CacheAccess cache;
     private final SelectionKey clientKey;
     private final CacheExchangingHandler cacheExchangingHandler;
-    private Timer whohasCancelTimer;
-    private final Collection<Category> categories;
-    private final Proxy proxy;
-    private ByteBuffer buffer;
+    private HashedWheelTimer.Timeout whohasCancelTimeout;
+    private HashedWheelTimer.Timeout requestTimeout;
+    private HashedWheelTimer.Timeout idleTimeout;
+    private HashedWheelTimer.Timeout resumeTimeout;
+    private long lastActivity;
+    private final CategoryClassifier classifier;
+    private final HierarchicalShaper downloadShaper;
+    private final HierarchicalShaper uploadShaper;
+    private final HostResolver resolver;
+    private final Reactor reactor;
+    /**
+     * Bytes received from the client and not sent to a server yet, in read
+     * mode. The unsent part of the current request comes first, followed by
+     * the requests parsed ahead.
+     */
+    private ByteBuffer inbound;
+    /**
+     * Bytes of the current response to send to the client, in read mode
+     */
+    private ByteBuffer outbound;
+    /**
+     * Offset in the stream of the client of the position of inbound
+     */
+    private long inboundOffset;
+    /**
+     * Number of bytes received from the client
+     */
+    private long received;
+    /**
+     * Offset in the stream of the client of the next request to parse
+     */
+    private long nextRequestStart;
+    /**
+     * Requests received and not answered yet, the first one is being served
+     */
+    private final ArrayDeque<Exchange> pipeline = new ArrayDeque<>();
+    private final HttpHeaderParser requestParser = new HttpHeaderParser();
+    private HttpHeaderParser responseParser;
+    /**
+     * Headers of the last exchange, loaded again by the next one
+     */
+    private HttpRequestHeader spareRequestHeader;
+    private HttpResponseHeader spareResponseHeader;
+    /**
+     * The exchange being served, first of the pipeline
+     */
+    private Exchange current;
+    private boolean requestHeaderSent;
+    /**
+     * Bytes of the rewritten header already sent, while it is not fully sent
+     */
+    private int requestHeaderProgress;
     private SelectionKey serverKey;
-    private HttpRequestHeader requestedHeader;
+    private boolean serverConnected;
+    private boolean serverEnded;
+    private InetSocketAddress currentServerAddress;
     private HttpResponseHeader respondedHeader;
-    private boolean closed;
-    private boolean keepAlive = true;
+    private int responseHeaderLength;
+    /**
+     * Bytes of the current response read from the server
+     */
+    private long responseBytes;
+    private boolean responseComplete;
+    private final ChunkedDecoder responseChunks = new ChunkedDecoder();
+    /**
+     * The bytes of outbound can be sent to the client
+     */
+    private boolean clientWritable;
+    /**
+     * The connection is closed once outbound has been sent
+     */
+    private boolean closing;
+    private boolean inputShutdown;
+    private boolean terminated;
     private CacheInputChannel cachedResponse;
+    private boolean servingFromCache;
+    /**
+     * Bytes of the cached response already sent to the client
+     */
+    private long cachedPosition;
     private CacheOutputChannel cacher;
-    private InetSocketAddress currentServerAddress;
-    private long nbReadedByte;
-    private int currentHeaderLength;
-    private Integer bytesLeftInSecond;
-    private Integer clientPausedInterestOps;
-    private Integer serverPausedInterestOps;
-    private long minDate;
+    /**
+     * Incremented for each request, to ignore the late results of the
+     * previous ones
+     */
+    private long requestGeneration;
+    private HierarchicalShaper.Leaf downloadLeaf;
+    private HierarchicalShaper.Leaf uploadLeaf;
+    private boolean uploadThrottled;
+    private boolean downloadThrottled;
+    /**
+     * The connection relays the bytes of a CONNECT tunnel
+     */
+    private boolean tunnel;
+
+    /**
+     * A request of the client, from its parsing to the end of its response.
+     */
+    private static class Exchange {
+
+        /**
+         * Offset of the request in the stream of the client
+         */
+        private final long start;
+        private HttpRequestHeader header;
+        private int headerLength;
+        private HttpHeaderRewriter rewriter;
+        /**
+         * Offset following the body of the request in the stream of the
+         * client, -1 while the end of a chunked body has not been received
+         */
+        private long end = -1;
+        private ChunkedDecoder chunks;
+        /**
+         * Error to answer instead of forwarding the request
+         */
+        private HttpStatusCode error;
+        /**
+         * The client closes the connection after this request
+         */
+        private boolean lastOfConnection;
+
+        Exchange(long start) {
+            this.start = start;
+        }
+    }
 
     public HttpConnectionHandler(SelectionKey client,
             CacheAccess cache,
             CacheExchangingHandler cacheExchangingHandler,
-            Collection<Category> categories,
-            Proxy proxy) {
-        this.buffer = ByteBuffer.allocate(Config.MAX_HEADER_LENGTH);
-        this.buffer.flip();
+            CategoryClassifier classifier,
+            HierarchicalShaper downloadShaper,
+            HierarchicalShaper uploadShaper,
+            HostResolver resolver,
+            Reactor reactor) {
         this.cache = cache;
         this.clientKey = client;
         this.cacheExchangingHandler = cacheExchangingHandler;
-        this.categories = categories;
-        this.proxy = proxy;
+        this.classifier = classifier;
+        this.downloadShaper = downloadShaper;
+        this.uploadShaper = uploadShaper;
+        this.resolver = resolver;
+        this.reactor = reactor;
+        this.lastActivity = System.nanoTime();
+        scheduleIdleTimeout(Config.IDLE_TIME_OUT);
     }
 
     @Override
-    public void read(SelectionKey key) throws IOException {
-        try {
-            if (key == clientKey) {
-                readFromClient();
-            } else if (key == serverKey) {
-                if (cachedResponse == null) {
-                    readFromServer();
-                } else {
-                    // If modified sent
-                    readIfModifiedResponseFromServer();
-                }
-            } else {
-                throw new IOException("SelectionKey is neither a client or a server !");
-            }
-        } catch (HttpSendingErrorCodeException e) {
-            // Do nothing
+    public int read(SelectionKey key, int budget) throws IOException {
+        lastActivity = System.nanoTime();
+        int nbReaded;
+        if (tunnel) {
+            nbReaded = readTunnel(key, budget);
+        } else if (key == clientKey) {
+            nbReaded = readFromClient(budget);
+        } else if (key == serverKey) {
+            nbReaded = readFromServer(budget);
+        } else {
+            throw new IOException("SelectionKey is neither a client or a server !");
         }
+        updateInterests();
+        return nbReaded;
     }
 
     @Override
     public void write(SelectionKey key) throws IOException {
-        if (key == clientKey) {
-            if (cachedResponse == null) {
-                writeToClientFromBuffer();
-            } else {
+        lastActivity = System.nanoTime();
+        if (tunnel) {
+            writeTunnel(key);
+        } else if (key == clientKey) {
+            if (servingFromCache) {
                 writeToClientFromCache();
+            } else {
+                writeToClient();
             }
         } else if (key == serverKey) {
             writeToServer();
         } else {
             throw new IOException("SelectionKey is neither a client or a server !");
         }
+        updateInterests();
     }
 
-    private void readIfModifiedResponseFromServer() throws HttpSendingErrorCodeException {
-        if (cachedResponse != null) {
-            // If modified response is expected
-            if (respondedHeader.getStatusCode() == HttpStatusCode.NOT_MODIFIED) {
-                if (requestedHeader == null) {
-                    clientKey.interestOps(SelectionKey.OP_WRITE);
-                } else {
-                    readFromServer();
-                }
-            } else {
-                cachedResourceExpired(respondedHeader);
-            }
-        }
+    /**
+     * Called by the reactor once the connection to the server is
+     * established.
+     */
+    void connected() {
+        serverConnected = true;
+        updateInterests();
     }
 
-    private void readFromServer() {
-        SocketChannel channel = (SocketChannel) serverKey.channel();
-        try {
-            buffer.compact();
-            int nbReaded = channel.read(buffer);
-            buffer.flip();
+    private int readFromClient(int budget) {
+        SocketChannel channel = (SocketChannel) clientKey.channel();
+        acquireInbound();
 
-            if (nbReaded == -1) {
-                channel.shutdownInput();
-                serverKey.interestOps(0);
-                closed = true;
-                return;
+        // Qos: the body of the request is read no faster than the upload speed
+        long allowed = budget;
+        boolean shaped = uploadLeaf != null && serverKey != null;
+        if (shaped) {
+            allowed = Math.min(allowed, uploadLeaf.available());
+            if (allowed == 0) {
+                throttle(uploadLeaf, true);
+                return 0;
+            }
+        }
+        int nbReaded;
+        try {
+            nbReaded = receive(channel, inbound, allowed);
+        } catch (IOException e) {
+            Proxy.LOGGER.log(Level.SEVERE, "Client connection closed.");
+            close();
+            return 0;
+        }
+        if (nbReaded == -1) {
+            inputShutdown = true;
+            if (current == null) {
+                close();
             }
+            return 0;
+        }
+        if (shaped) {
+            uploadLeaf.consume(nbReaded);
+        }
+        received += nbReaded;
+        parseRequests();
+        return nbReaded;
+    }
 
-            //Qos
-            if (bytesLeftInSecond != null) {
-                bytesLeftInSecond -= nbReaded;
-                if (bytesLeftInSecond <= 0) {
-                    if (System.nanoTime() < minDate) {
-                        proxy.addDelayedConnection(this);
+    /**
+     * Parse the requests received ahead, up to the size of the pipeline. The
+     * first one is dispatched at once if no other request is being served.
+     */
+    private void parseRequests() {
+        while (true) {
+            Exchange last = pipeline.peekLast();
+            if (last != null) {
+                if (last.end == -1) {
+                    try {
+                        if (!frameChunkedBody(last)) {
+                            return;
+                        }
+                    } catch (HttpMalformedBodyException e) {
+                        Proxy.LOGGER.log(Level.SEVERE, "Malformed chunked request body.");
+                        close();
                         return;
                     }
-                    bytesLeftInSecond += requestedHeader.getCategory().getQosRule().getMaxSpeed();
-                    minDate = System.nanoTime() + 1000000000;
                 }
-            }
-
-            nbReadedByte += nbReaded;
-
-            if (respondedHeader == null) {
-                if (!readResponseHeader()) {
+                if (last.error != null || last.lastOfConnection) {
+                    // Nothing is read after this request
                     return;
                 }
-                clientKey.interestOps(SelectionKey.OP_WRITE);
             }
-            readContentFromServer();
-        } catch (IOException e) {
-            try {
-                channel.shutdownInput();
-            } catch (IOException ex) {
+            if (pipeline.size() >= Config.MAX_PIPELINED_REQUESTS || nextRequestStart >= received) {
+                return;
+            }
+
+            ByteBuffer request = inbound.duplicate();
+            request.position(indexOf(nextRequestStart));
+            if (!requestParser.parse(request)) {
+                if (request.position() == 0 && request.limit() == request.capacity()) {
+                    // Buffer is full, so header is too long
+                    requestParser.reset();
+                    Exchange exchange = new Exchange(nextRequestStart);
+                    exchange.error = HttpStatusCode.REQUEST_ENTITY_TOO_LARGE;
+                    enqueue(exchange);
+                }
+                return;
             }
-            serverKey.interestOps(0);
-            closed = true;
+            enqueue(parseExchange());
         }
     }
 
-    private boolean readResponseHeader() throws IOException {
-        String data = HttpHeader.DECODER.decode(buffer).toString();
-        buffer.rewind();
+    /**
+     * Build the exchange of the request fully received by the parser.
+     */
+    private Exchange parseExchange() {
+        Exchange exchange = new Exchange(nextRequestStart);
         try {
-            respondedHeader = HttpResponseHeader.parse(data);
-            currentHeaderLength = data.indexOf("\r\n\r\n") + 4;
-            try {
-                cacher = cache.cacheResource(requestedHeader.getUri());
-            } catch (CacheException e) {
-                // Not cachable
+            exchange.headerLength = requestParser.getHeaderLength();
+            HttpRequestHeader spare = spareRequestHeader;
+            spareRequestHeader = null;
+            exchange.header = HttpRequestHeader.parse(requestParser, spare);
+            exchange.rewriter = HttpHeaderRewriter.forRequest(requestParser);
+
+            // Qos
+            Category category = exchange.header.matchesCatagories(classifier);
+            if (category != null && category.getQosRule() != null && category.getQosRule().isFiltering()) {
+                exchange.error = HttpStatusCode.NOT_ACCEPTABLE;
             }
-            clientKey.interestOps(SelectionKey.OP_WRITE);
-            return true;
+        } catch (HttpUnsupportedVersionException e) {
+            exchange.error = HttpStatusCode.HTTP_VERSION_NOT_SUPPORTED;
+        } catch (HttpUnsupportedMethodException e) {
+            exchange.error = HttpStatusCode.METHOD_NOT_ALLOWED;
         } catch (HttpMalformedHeaderException e) {
-            if (data.contains("\r\n\r\n")) {
-                throw e;
-            }
+            exchange.error = HttpStatusCode.BAD_REQUEST;
+        } finally {
+            requestParser.reset();
+        }
+        if (exchange.error != null) {
+            exchange.end = exchange.start + exchange.headerLength;
+            return exchange;
         }
-        return false;
-    }
 
-    private void readContentFromServer() {
-        switch (respondedHeader.contentTransferMode()) {
+        // The bytes following a CONNECT request belong to the tunnel
+        exchange.lastOfConnection = exchange.header.getMethod() == HttpMethod.CONNECT
+                || "close".equalsIgnoreCase(exchange.header.getConnection());
+        switch (exchange.header.contentTransferMode()) {
             case CONTENT_LENGTH:
-                if (nbReadedByte >= currentHeaderLength + respondedHeader.getContentLength()) {
-                    serverKey.interestOps(0);
-                }
-                break;
-            case CONNECTION_CLOSE:
+                exchange.end = exchange.start + exchange.headerLength + exchange.header.getContentLength();
                 break;
             case CHUNKED:
-                // TODO
-                System.out.println("Chunked");
+                exchange.chunks = new ChunkedDecoder();
                 break;
-            case NO_CONTENT:
-                serverKey.interestOps(0);
+            default:
+                exchange.end = exchange.start + exchange.headerLength;
         }
+        return exchange;
     }
 
-    private void readFromClient() throws HttpSendingErrorCodeException {
-        try {
-            SocketChannel channel = (SocketChannel) clientKey.channel();
-            buffer.compact();
-            int nbReaded = channel.read(buffer);
-            buffer.flip();
+    private void enqueue(Exchange exchange) {
+        pipeline.add(exchange);
+        if (exchange.end != -1) {
+            nextRequestStart = exchange.end;
+        }
+        if (pipeline.size() == 1) {
+            dispatch();
+        }
+    }
 
-            if (nbReaded == -1) {
-                close();
-                return;
+    /**
+     * Follow the chunks of the body of a request over the bytes received
+     * since the last call.
+     *
+     * @return If the end of the body has been received
+     */
+    private boolean frameChunkedBody(Exchange exchange) throws HttpMalformedBodyException {
+        long scanned = exchange.start + exchange.headerLength + exchange.chunks.getConsumed();
+        if (scanned < received) {
+            ByteBuffer body = inbound.duplicate();
+            body.position(indexOf(scanned));
+            exchange.chunks.scan(body);
+        }
+        if (!exchange.chunks.isComplete()) {
+            return false;
+        }
+        exchange.end = exchange.start + exchange.headerLength + exchange.chunks.getConsumed();
+        nextRequestStart = exchange.end;
+        return true;
+    }
+
+    /**
+     * Serve the first request of the pipeline.
+     */
+    private void dispatch() {
+        current = pipeline.peek();
+        requestGeneration++;
+        if (current.error != null) {
+            sendErrorCode(current.error);
+            return;
+        }
+
+        Category category = current.header.getCategory();
+        downloadLeaf = downloadShaper.open(category);
+        uploadLeaf = uploadShaper.open(category);
+        if (current.header.getMethod() == HttpMethod.CONNECT) {
+            connectToServer(current.header.getUri());
+            return;
+        }
+        try {
+            cachedResponse = cache.getResource(current.header);
+            if (cachedResponse != null) {
+                // Is in local cache
+                inCache();
+            } else {
+                notInCache();
             }
-            nbReadedByte += nbReaded;
+        } catch (CacheException e) {
+            // Do not use cache
+            connectToServer(current.header.getUri());
+        }
+    }
 
-            if (respondedHeader == null) {
-                if (!readRequestHeader()) {
-                    return;
-                }
+    private void writeToServer() {
+        if (current.header.getMethod() == HttpMethod.CONNECT) {
+            // Connected to the end of the tunnel
+            openTunnel();
+            return;
+        }
+        SocketChannel channel = (SocketChannel) serverKey.channel();
 
-                // Connection
-                try {
-                    cachedResponse = cache.getResource(requestedHeader);
-                    if (cachedResponse != null) {
-                        // Is in local cache
-                        inCache();
-                    } else {
-                        notInCache();
-                    }
-                } catch (CacheException e) {
-                    // Do not use cache
-                    doNotUseCacheForRequest();
+        // The header is sent from the received bytes, with the edits of the proxy
+        ByteBuffer[] header = {};
+        if (!requestHeaderSent) {
+            header = current.rewriter.toBuffers(inbound, indexOf(current.start));
+            skip(header, requestHeaderProgress);
+        }
+        ByteBuffer body = inbound.duplicate();
+        body.position(requestHeaderSent ? inbound.position() : indexOf(current.start + current.headerLength));
+        body.limit(indexOf(requestEnd()));
+        ByteBuffer[] request = Arrays.copyOf(header, header.length + 1);
+        request[header.length] = body;
+
+        try {
+            long nbWrited = channel.write(request);
+            if (!requestHeaderSent) {
+                if (header[header.length - 1].hasRemaining()) {
+                    requestHeaderProgress += nbWrited;
+                    return;
                 }
+                requestHeaderSent = true;
             }
-            readContentFromClient();
+            consumeInbound(body.position());
         } catch (IOException e) {
-            Proxy.LOGGER.log(Level.SEVERE, "Client connection closed.");
             close();
         }
     }
 
-    private boolean readRequestHeader() throws IOException, HttpSendingErrorCodeException {
-        resetAllForNewRequest();
-        String data = HttpHeader.DECODER.decode(buffer).toString();
-        buffer.rewind();
+    /**
+     * @return The offset following the bytes of the current request received
+     * so far
+     */
+    private long requestEnd() {
+        return current.end == -1 ? received : Math.min(current.end, received);
+    }
+
+    /**
+     * @return If some bytes of the current request have to be sent to the
+     * server
+     */
+    private boolean hasRequestBytesToSend() {
+        return current != null && current.error == null && !servingFromCache
+                && (!requestHeaderSent || inboundOffset < requestEnd());
+    }
+
+    private int readFromServer(int budget) {
+        SocketChannel channel = (SocketChannel) serverKey.channel();
+        acquireOutbound();
+
+        // Qos: read no more than the available tokens and the budget
+        long allowed = budget;
+        if (downloadLeaf != null) {
+            allowed = Math.min(allowed, downloadLeaf.available());
+            if (allowed == 0) {
+                throttle(downloadLeaf, false);
+                return 0;
+            }
+        }
         try {
-            requestedHeader = HttpRequestHeader.parse(data);
-            currentHeaderLength = data.indexOf("\r\n\r\n") + 4;
+            int nbReaded = receive(channel, outbound, allowed);
+            if (nbReaded == -1) {
+                serverEnded();
+                return 0;
+            }
+            if (downloadLeaf != null) {
+                downloadLeaf.consume(nbReaded);
+            }
+            responseBytes += nbReaded;
 
-            // Qos
-            try {
-                requestedHeader.matchesCatagories(categories);
-                if (requestedHeader.getCategory().getQosRule().getMaxSpeed() == 0) {
-                    sendErrorCode(HttpStatusCode.NOT_ACCEPTABLE);
+            if (respondedHeader == null) {
+                if (!readResponseHeader()) {
+                    return nbReaded;
+                }
+                if (servingFromCache) {
+                    return nbReaded;
                 }
-                // Activate speed limit juste by puting something not null
-                bytesLeftInSecond = 0;
-            } catch (NullPointerException e) {
-                // No QosRule
+                cacheResponse(outbound.position());
+            } else {
+                cacheResponse(outbound.limit() - nbReaded);
             }
+            readContentFromServer();
+            if (responseComplete && cacher != null) {
+                // The whole response has been handed to the cache
+                cacher.commit();
+            }
+            return nbReaded;
+        } catch (IOException e) {
+            serverEnded();
+            return 0;
+        }
+    }
 
-            return true;
-        } catch (HttpUnsupportedVersionException e) {
-            sendErrorCode(HttpStatusCode.HTTP_VERSION_NOT_SUPPORTED);
-        } catch (HttpUnsupportedMethodException e) {
-            sendErrorCode(HttpStatusCode.METHOD_NOT_ALLOWED);
-        } catch (HttpMalformedHeaderException e) {
-            if (buffer.limit() == buffer.capacity()) {
-                // Buffer is full, so header is too long
-                sendErrorCode(HttpStatusCode.REQUEST_ENTITY_TOO_LARGE);
-            } else if (data.contains("\r\n\r\n")) {
-                sendErrorCode(HttpStatusCode.BAD_REQUEST);
+    private boolean readResponseHeader() throws IOException {
+        if (responseParser == null) {
+            responseParser = new HttpHeaderParser();
+        }
+        if (!responseParser.parse(outbound)) {
+            if (outbound.remaining() == outbound.capacity()) {
+                throw new HttpMalformedHeaderException("Response header too long");
             }
+            return false;
+        }
+        try {
+            HttpResponseHeader spare = spareResponseHeader;
+            spareResponseHeader = null;
+            respondedHeader = HttpResponseHeader.parse(responseParser, spare);
+            responseHeaderLength = responseParser.getHeaderLength();
+        } finally {
+            responseParser.reset();
         }
+        cancelRequestTimeout();
 
-        return false;
+        if (cachedResponse != null) {
+            // Answer of the conditional request for the cached resource
+            if (respondedHeader.getStatusCode() == HttpStatusCode.NOT_MODIFIED) {
+                outbound.position(outbound.limit());
+                responseComplete = true;
+                servingFromCache = true;
+                return true;
+            }
+            closeCachedResponse();
+        }
+        if (respondedHeader.hasConflictingLength()) {
+            // The client may not delimit the body as the proxy does
+            closing = true;
+        }
+        try {
+            cacher = cache.cacheResource(current.header);
+        } catch (CacheException e) {
+            // Not cachable
+        }
+        clientWritable = true;
+        return true;
+    }
+
+    /**
+     * Store the bytes of the response read from the server.
+     *
+     * @param from The index of outbound where the new bytes start
+     */
+    private void cacheResponse(int from) {
+        if (cacher == null) {
+            return;
+        }
+        ByteBuffer fresh = outbound.duplicate();
+        fresh.position(from);
+        cacher.write(fresh);
     }
 
-    private void readContentFromClient() {
-        switch (requestedHeader.contentTransferMode()) {
+    private void readContentFromServer() throws HttpMalformedBodyException {
+        switch (respondedHeader.contentTransferMode(current.header.getMethod())) {
             case CONTENT_LENGTH:
-                if (nbReadedByte >= currentHeaderLength + requestedHeader.getContentLength()) {
-                    clientKey.interestOps(0);
-                }
+                responseComplete = responseBytes >= responseHeaderLength + respondedHeader.getContentLength();
+                break;
+            case CONNECTION_CLOSE:
                 break;
             case CHUNKED:
-                // TODO
-                System.out.println("Chunked");
+                long fresh = responseBytes - responseHeaderLength - responseChunks.getConsumed();
+                ByteBuffer body = outbound.duplicate();
+                body.position(outbound.limit() - (int) fresh);
+                responseChunks.scan(body);
+                responseComplete = responseChunks.isComplete();
                 break;
             case NO_CONTENT:
-            // Do not set clientKey.interestOps(0); because it depends on cache connection in local
+                responseComplete = true;
         }
     }
 
-    private void inCache() throws HttpSendingErrorCodeException {
-        // Is in local cache
-        ByteBuffer cachedData = ByteBuffer.allocate(Config.MAX_HEADER_LENGTH);
-        HttpResponseHeader cachedResponseHeader;
+    /**
+     * The server closed the connection or failed.
+     */
+    private void serverEnded() {
+        serverEnded = true;
         try {
-            cachedResponse.read(cachedData);
-            cachedData.flip();
-            cachedResponseHeader = HttpResponseHeader.parse(HttpHeader.DECODER.decode(cachedData).toString());
-            cachedResponse.resetPosition();
+            serverKey.channel().close();
         } catch (IOException e) {
-            cache.corruptCachedResource(cachedResponse);
-            cachedResponse = null;
-            notInCache();
+            // Do nothing
+        }
+        if (respondedHeader == null) {
+            sendErrorCode(HttpStatusCode.BAD_GATWAY);
             return;
         }
+        if (!responseComplete) {
+            // Delimited by the end of the connection, or truncated. Not
+            // cached: the stored header could not delimit the body on a hit
+            responseComplete = true;
+            closing = true;
+        }
+        if (!servingFromCache && !outbound.hasRemaining()) {
+            endOfResponseSent();
+        }
+    }
 
-        if (cachedResponseHeader.getExpires().before(new Date())) {
-            // Expired
-            cachedResourceExpired(cachedResponseHeader);
-        } else {
-            // Not expired
-            clientKey.interestOps(SelectionKey.OP_WRITE);
+    private void writeToClient() {
+        SocketChannel channel = (SocketChannel) clientKey.channel();
+        try {
+            channel.write(outbound);
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        if (!outbound.hasRemaining()) {
+            endOfResponseSent();
         }
     }
 
-    private void doNotUseCacheForRequest() throws HttpSendingErrorCodeException {
+    /**
+     * Send the cached response from the file of the cache to the client. The
+     * system sends it without copying it in the memory of the proxy.
+     */
+    private void writeToClientFromCache() {
+        Objects.requireNonNull(cachedResponse);
+        SocketChannel channel = (SocketChannel) clientKey.channel();
         try {
-            connectToServer(requestedHeader.getUri());
-            clientKey.interestOps(0);
+            long size = cachedResponse.size();
+            cachedPosition += cachedResponse.transferTo(channel, cachedPosition, size - cachedPosition);
+
+            if (cachedPosition >= size) {
+                closeCachedResponse();
+                servingFromCache = false;
+                responseComplete = true;
+                endOfResponseSent();
+            }
         } catch (IOException e) {
-            Proxy.LOGGER.log(Level.SEVERE, "Unable to connect to the server.");
             close();
         }
     }
 
-    private void notInCache() throws HttpSendingErrorCodeException {
+    /**
+     * The bytes of outbound have all been sent to the client.
+     */
+    private void endOfResponseSent() {
+        if (closing) {
+            close();
+        } else if (responseComplete) {
+            finishExchange();
+        }
+    }
+
+    /**
+     * The response of the current request has been fully sent: forget the
+     * request and serve the next one.
+     */
+    private void finishExchange() {
+        releaseServer();
+        cancelRequestTimeout();
+        closeShaper();
+        closeCacher();
+        closeCachedResponse();
+
+        Exchange done = pipeline.poll();
+        current = null;
+        if (done.header != null) {
+            spareRequestHeader = done.header;
+        }
+        if (respondedHeader != null) {
+            spareResponseHeader = respondedHeader;
+        }
+        respondedHeader = null;
+        responseHeaderLength = 0;
+        responseBytes = 0;
+        responseComplete = false;
+        responseChunks.reset();
+        requestHeaderSent = false;
+        requestHeaderProgress = 0;
+        clientWritable = false;
+        servingFromCache = false;
+
+        if (done.lastOfConnection || done.end == -1 || done.end > received) {
+            // The rest of the request can not be told apart from the next one
+            close();
+            return;
+        }
+        // Drop what has not been sent of the request
+        consumeInbound(indexOf(done.end));
+
+        if (!pipeline.isEmpty()) {
+            dispatch();
+        }
+        parseRequests();
+        if (terminated) {
+            return;
+        }
+        if (pipeline.isEmpty()) {
+            if (inputShutdown) {
+                close();
+                return;
+            }
+            releaseIdleBuffers();
+        }
+    }
+
+    private void inCache() {
+        // Is in local cache, the freshness is known from the index
+        CacheEntry entry = cachedResponse.getEntry();
+        if (entry.isExpired(System.currentTimeMillis())) {
+            // Expired, kept open to be served if the server answers not modified
+            cachedResourceExpired(entry.getDate(), entry.getETag());
+        } else {
+            // Not expired
+            servingFromCache = true;
+        }
+    }
+
+    private void notInCache() {
+        final URI uri = current.header.getUri();
         try {
             // Ask on multicast
-            cacheExchangingHandler.sendWhoHas(requestedHeader.getUri(), this);
-            clientKey.interestOps(0);
+            cacheExchangingHandler.sendWhoHas(uri, this);
 
-            whohasCancelTimer = new Timer();
-            whohasCancelTimer.schedule(new TimerTask() {
+            final long generation = requestGeneration;
+            whohasCancelTimeout = reactor.schedule(new Runnable() {
 
                 @Override
                 public void run() {
-                    try {
-                        cacheExchangingHandler.cancelWhoHas(requestedHeader.getUri());
-                        connectToServer(requestedHeader.getUri());
-                    } catch (IOException e) {
-                        close();
-                    } catch (HttpSendingErrorCodeException e) {
-                        // Do nothing
+                    cacheExchangingHandler.cancelWhoHas(uri);
+                    if (!terminated && generation == requestGeneration) {
+                        connectToServer(uri);
                     }
                 }
             }, Config.WHOHAS_CANCEL_TIME_OUT);
         } catch (IOException e) {
-            try {
-                connectToServer(requestedHeader.getUri());
-                clientKey.interestOps(0);
-            } catch (IOException ex) {
-                Proxy.LOGGER.log(Level.SEVERE, "Unable to connect to the server.");
-                close();
-            }
+            connectToServer(uri);
         }
     }
 
-    public void ownResponse(InetSocketAddress source, HttpResponseHeader ownResponse) {
-        try {
-            whohasCancelTimer.cancel();
-            if (ownResponse.getExpires().before(new Date())) {
-                // Expired
-                cachedResourceExpired(ownResponse);
-            } else {
-                // Not expired  
-                try {
-                    respondedHeader = null;
-                    connectToServer(source);
-                    clientKey.interestOps(SelectionKey.OP_WRITE);
-                } catch (IOException e) {
-                    try {
-                        connectToServer(requestedHeader.getUri());
-                        clientKey.interestOps(0);
-                    } catch (IOException ex) {
-                        Proxy.LOGGER.log(Level.SEVERE, "Unable to request neighbor caches.");
-                        close();
-                    }
-                }
+    /**
+     * Called from the cache exchanging loop when a neighbor cache owns the
+     * requested resource. The work is handed over to the reactor owning this
+     * connection.
+     */
+    public void ownResponse(final InetSocketAddress source, final HttpResponseHeader ownResponse) {
+        reactor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                useOwnResponse(source, ownResponse);
+                updateInterests();
             }
-        } catch (HttpSendingErrorCodeException e) {
-        }
+        });
     }
 
-    private void cachedResourceExpired(HttpResponseHeader cachedResponseHeader) throws HttpSendingErrorCodeException {
+    private void useOwnResponse(InetSocketAddress source, HttpResponseHeader ownResponse) {
+        if (whohasCancelTimeout == null || !whohasCancelTimeout.cancel() || current == null) {
+            // Too late, the server has already been requested
+            return;
+        }
+        if (ownResponse.getExpires() == null || ownResponse.getExpires().before(new Date())) {
+            // Expired, without a local copy to serve on a not modified answer
+            connectToServer(current.header.getUri());
+            return;
+        }
+        // Not expired, the neighbor is a proxy
+        current.rewriter.keepAbsoluteForm();
         try {
-            // Modify the header with If-Modified-Since, If-None-Match and Connection: close;
-            requestedHeader.setIfModifiedCheckFields(cachedResponseHeader.getDate(), cachedResponseHeader.getETag());
-            connectToServer(requestedHeader.getUri());
-            clientKey.interestOps(0);
+            connectToServer(source);
         } catch (IOException e) {
-            Proxy.LOGGER.log(Level.SEVERE, "Unable to connect to the server.");
-            close();
+            connectToServer(current.header.getUri());
         }
     }
 
-    private void connectToServer(InetSocketAddress address) throws IOException, HttpSendingErrorCodeException {
+    private void cachedResourceExpired(Date date, String eTag) {
+        // Modify the header with If-Modified-Since and If-None-Match
+        current.header.setIfModifiedCheckFields(date, eTag);
+        current.rewriter.setConditionalFields(date, eTag);
+        connectToServer(current.header.getUri());
+    }
+
+    private void connectToServer(InetSocketAddress address) throws IOException {
         if (address.equals(currentServerAddress)) {
             return;
         }
+        releaseServer();
+
+        // Reuse a keep-alive connection, a tunnel has its own
+        SelectionKey idleKey = null;
+        if (current.header.getMethod() != HttpMethod.CONNECT) {
+            idleKey = reactor.borrowOriginConnection(address);
+        }
+        if (idleKey != null) {
+            serverKey = idleKey;
+            serverKey.attach(this);
+            serverConnected = true;
+            currentServerAddress = address;
+            scheduleRequestTimeout();
+            return;
+        }
+
         try {
             SocketChannel serverChannel = SocketChannel.open();
             serverChannel.configureBlocking(false);
             serverKey = serverChannel.register(clientKey.selector(), SelectionKey.OP_CONNECT, this);
-            serverChannel.connect(address);
             currentServerAddress = address;
+            serverConnected = false;
+            scheduleRequestTimeout();
+            if (serverChannel.connect(address)) {
+                serverKey.interestOps(0);
+                serverConnected = true;
+            }
         } catch (UnresolvedAddressException e) {
             sendErrorCode(HttpStatusCode.NOT_FOUND);
         }
     }
 
-    private void connectToServer(URI uri) throws IOException, HttpSendingErrorCodeException {
-        connectToServer(new InetSocketAddress(uri.getHost(), uri.getPort()));
-    }
-
-    private void writeToClientFromCache() {
-        Objects.requireNonNull(cachedResponse);
-        try {
-            SocketChannel channel = (SocketChannel) clientKey.channel();
-            buffer.compact();
-            int nbReaded = cachedResponse.read(buffer);
-            buffer.flip();
-            channel.write(buffer);
+    /**
+     * Resolve the host of the server off the reactor thread, then connect to
+     * it. Nothing is done if the connection has moved to an other request
+     * meanwhile.
+     */
+    private void connectToServer(URI uri) {
+        final int port = uri.getPort() == -1 ? HttpHeader.DEFAULT_PORT : uri.getPort();
+        final long generation = requestGeneration;
+        resolver.resolve(uri.getHost(), reactor, new HostResolver.Callback() {
 
-            if (!buffer.hasRemaining() && nbReaded == -1) {
-                if (!keepAlive) {
+            @Override
+            public void resolved(InetAddress address) {
+                if (terminated || generation != requestGeneration) {
+                    return;
+                }
+                try {
+                    connectToServer(new InetSocketAddress(address, port));
+                } catch (IOException e) {
+                    Proxy.LOGGER.log(Level.SEVERE, "Unable to connect to the server.");
                     close();
                 }
+                updateInterests();
             }
-        } catch (IOException e) {
-            close();
+
+            @Override
+            public void failed(UnknownHostException e) {
+                if (terminated || generation != requestGeneration) {
+                    return;
+                }
+                sendErrorCode(HttpStatusCode.NOT_FOUND);
+                updateInterests();
+            }
+        });
+    }
+
+    /**
+     * Give the connection to the server back to the reactor if it can be
+     * used for an other request, otherwise close it.
+     */
+    private void releaseServer() {
+        if (serverKey == null) {
+            return;
         }
+        if (isServerReusable()) {
+            reactor.giveBackOriginConnection(currentServerAddress, serverKey);
+        } else {
+            try {
+                serverKey.channel().close();
+            } catch (IOException e) {
+                // Do nothing
+            }
+        }
+        serverKey = null;
+        serverConnected = false;
+        serverEnded = false;
+        currentServerAddress = null;
     }
 
-    private void writeToServer() {
-        SocketChannel channel = (SocketChannel) serverKey.channel();
+    /**
+     * @return If the request has been sent, the response fully read and the
+     * server keeps the connection open
+     */
+    private boolean isServerReusable() {
+        if (tunnel || serverEnded || !serverConnected || respondedHeader == null || !responseComplete
+                || !serverKey.isValid() || hasRequestBytesToSend() || current.end == -1 || inboundOffset < current.end
+                || "close".equalsIgnoreCase(respondedHeader.getConnection())
+                || "close".equalsIgnoreCase(current.header.getConnection())
+                || respondedHeader.hasConflictingLength()) {
+            return false;
+        }
+        switch (respondedHeader.contentTransferMode(current.header.getMethod())) {
+            case CONTENT_LENGTH:
+                return responseBytes == responseHeaderLength + respondedHeader.getContentLength();
+            case NO_CONTENT:
+                return responseBytes == responseHeaderLength;
+            case CHUNKED:
+                return responseChunks.isComplete() && responseBytes == responseHeaderLength + responseChunks.getConsumed();
+            default:
+                return false;
+        }
+    }
 
-        try {
-            channel.write(buffer);
-        } catch (IOException e) {
+    /**
+     * Answer the client with an error, then close the connection.
+     */
+    private void sendErrorCode(HttpStatusCode statusCode) {
+        if (clientWritable && respondedHeader != null) {
+            // A response is already being sent
             close();
             return;
         }
+        closing = true;
+        servingFromCache = false;
+        closeCachedResponse();
+        acquireOutbound();
+        outbound.clear();
+        outbound.put(statusCode.getHttpResponse().getBytes(HttpHeader.CHARSET));
+        outbound.flip();
+        clientWritable = true;
+        responseComplete = true;
+        if (serverKey != null) {
+            try {
+                serverKey.channel().close();
+            } catch (IOException e) {
+                // Do nothing
+            }
+            serverEnded = true;
+        }
+    }
 
-        if (!buffer.hasRemaining()) {
-            if (closed) {
-                close();
-                return;
+    /**
+     * Set the interest of both keys from the state of the connection.
+     */
+    private void updateInterests() {
+        if (terminated) {
+            return;
+        }
+        if (tunnel) {
+            updateTunnelInterests();
+            return;
+        }
+        int clientOps = 0;
+        if (!closing && !inputShutdown && !uploadThrottled && wantsClientBytes()) {
+            clientOps |= SelectionKey.OP_READ;
+        }
+        if (servingFromCache || (clientWritable && outbound.hasRemaining())) {
+            clientOps |= SelectionKey.OP_WRITE;
+        }
+        clientKey.interestOps(clientOps);
+
+        if (serverKey != null && serverConnected && !serverEnded && serverKey.isValid()) {
+            int serverOps = 0;
+            if (hasRequestBytesToSend()) {
+                serverOps |= SelectionKey.OP_WRITE;
             }
-            if (clientKey.interestOps() == 0) {
-                // Request sent, now read the response
-                respondedHeader = null;
-                nbReadedByte = 0;
-                serverKey.interestOps(SelectionKey.OP_READ);
+            if (!responseComplete && !downloadThrottled && hasRoom(outbound)) {
+                serverOps |= SelectionKey.OP_READ;
             }
+            serverKey.interestOps(serverOps);
         }
     }
 
-    private void writeToClientFromBuffer() {
-        SocketChannel channel = (SocketChannel) clientKey.channel();
+    private void updateTunnelInterests() {
+        int clientOps = 0;
+        if (!inputShutdown && !uploadThrottled && hasRoom(inbound)) {
+            clientOps |= SelectionKey.OP_READ;
+        }
+        if (outbound.hasRemaining()) {
+            clientOps |= SelectionKey.OP_WRITE;
+        }
+        clientKey.interestOps(clientOps);
+
+        int serverOps = 0;
+        if (inbound.hasRemaining()) {
+            serverOps |= SelectionKey.OP_WRITE;
+        }
+        if (!serverEnded && !downloadThrottled && hasRoom(outbound)) {
+            serverOps |= SelectionKey.OP_READ;
+        }
+        serverKey.interestOps(serverOps);
+    }
 
+    /**
+     * Answer the CONNECT request once the server is connected. The response
+     * is followed by the bytes of the server, the bytes received after the
+     * request are the first ones for the server (see section 5.2 in RFC
+     * 2817).
+     */
+    private void openTunnel() {
+        cancelRequestTimeout();
+        requestHeaderSent = true;
+        consumeInbound(indexOf(current.end));
+        acquireOutbound();
+        outbound.clear();
+        outbound.put(CONNECTION_ESTABLISHED);
+        outbound.flip();
+        clientWritable = true;
+        tunnel = true;
+    }
+
+    /**
+     * Relay the bytes of a side of the tunnel, with the Qos of the category
+     * of its host and port. The bytes are not parsed.
+     */
+    private int readTunnel(SelectionKey key, int budget) {
+        boolean upload = key == clientKey;
+        ByteBuffer buffer = upload ? inbound : outbound;
+        HierarchicalShaper.Leaf leaf = upload ? uploadLeaf : downloadLeaf;
+        long allowed = budget;
+        if (leaf != null) {
+            allowed = Math.min(allowed, leaf.available());
+            if (allowed == 0) {
+                throttle(leaf, upload);
+                return 0;
+            }
+        }
+        int nbReaded;
         try {
-            int limit = buffer.limit();
-            if (cacher != null) {
-                cacher.write(buffer);
-                buffer.limit(buffer.position());
-                buffer.rewind();
-            }
-            channel.write(buffer);
-            buffer.limit(limit);
+            nbReaded = receive((SocketChannel) key.channel(), buffer, allowed);
+        } catch (IOException e) {
+            close();
+            return 0;
+        }
+        if (nbReaded == -1) {
+            if (upload) {
+                inputShutdown = true;
+            } else {
+                serverEnded = true;
+            }
+            shutdownTunnel();
+            return 0;
+        }
+        if (leaf != null) {
+            leaf.consume(nbReaded);
+        }
+        return nbReaded;
+    }
+
+    private void writeTunnel(SelectionKey key) {
+        ByteBuffer buffer = key == clientKey ? outbound : inbound;
+        try {
+            ((SocketChannel) key.channel()).write(buffer);
         } catch (IOException e) {
             close();
             return;
         }
+        shutdownTunnel();
+    }
 
-        if (!buffer.hasRemaining()) {
-            if (closed) {
-                close();
-                return;
+    /**
+     * Pass the end of the stream of a side to the other once its last bytes
+     * have been relayed. The tunnel is closed when both sides have ended.
+     */
+    private void shutdownTunnel() {
+        try {
+            if (inputShutdown && !inbound.hasRemaining()) {
+                ((SocketChannel) serverKey.channel()).shutdownOutput();
             }
-            if (serverKey.interestOps() == 0) {
-                // Response sent
-                if (!keepAlive) {
-                    close();
-                    return;
-                }
-                // Now reset all
-                resetAllForNewRequest();
+            if (serverEnded && !outbound.hasRemaining()) {
+                ((SocketChannel) clientKey.channel()).shutdownOutput();
             }
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        if (inputShutdown && serverEnded && !inbound.hasRemaining() && !outbound.hasRemaining()) {
+            close();
         }
     }
 
-    private void resetAllForNewRequest() {
-        requestedHeader = null;
-        respondedHeader = null;
-        cachedResponse = null;
-        cacher = null;
-        currentServerAddress = null;
-        nbReadedByte = 0;
-        currentHeaderLength = 0;
-        bytesLeftInSecond = null;
-        minDate = 0;
-        clientKey.interestOps(SelectionKey.OP_READ);
-        if (serverKey != null) {
-            serverKey.interestOps(0);
+    /**
+     * @return If bytes of the client are expected and can be stored
+     */
+    private boolean wantsClientBytes() {
+        if (!hasRoom(inbound)) {
+            return false;
+        }
+        Exchange last = pipeline.peekLast();
+        if (last == null || last.end == -1 || received < last.end) {
+            // A request, or the rest of its body
+            return true;
         }
+        return last.error == null && !last.lastOfConnection && pipeline.size() < Config.MAX_PIPELINED_REQUESTS;
     }
 
-    private void sendErrorCode(HttpStatusCode statusCode) throws HttpSendingErrorCodeException {
-        buffer = ByteBuffer.wrap(statusCode.getHttpResponse().getBytes(HttpHeader.CHARSET));
-        closed = true;
-        cachedResponse = null;
-        clientKey.interestOps(SelectionKey.OP_WRITE);
-        if (serverKey != null) {
-            serverKey.interestOps(0);
+    private static boolean hasRoom(ByteBuffer buffer) {
+        return buffer == null || buffer.position() > 0 || buffer.limit() < buffer.capacity();
+    }
+
+    /**
+     * Read from a channel after the bytes of a buffer in read mode.
+     *
+     * @return The number of bytes read, or -1 at the end of the stream
+     */
+    private static int receive(SocketChannel channel, ByteBuffer buffer, long allowed) throws IOException {
+        buffer.compact();
+        if (allowed < buffer.remaining()) {
+            buffer.limit(buffer.position() + (int) allowed);
+        }
+        try {
+            return channel.read(buffer);
+        } finally {
+            buffer.flip();
+        }
+    }
+
+    /**
+     * Advance the buffers to skip bytes already sent.
+     */
+    private static void skip(ByteBuffer[] buffers, int count) {
+        for (ByteBuffer buffer : buffers) {
+            int skipped = Math.min(count, buffer.remaining());
+            buffer.position(buffer.position() + skipped);
+            count -= skipped;
+        }
+    }
+
+    /**
+     * @return The index in inbound of an offset of the stream of the client
+     */
+    private int indexOf(long offset) {
+        return inbound.position() + (int) (offset - inboundOffset);
+    }
+
+    /**
+     * Forget the bytes of inbound before an index.
+     */
+    private void consumeInbound(int index) {
+        inboundOffset += index - inbound.position();
+        inbound.position(index);
+    }
+
+    private void acquireInbound() {
+        if (inbound == null) {
+            inbound = BufferPool.getDefault().acquire(Config.MAX_HEADER_LENGTH);
+            inbound.flip();
+        }
+    }
+
+    private void acquireOutbound() {
+        if (outbound == null) {
+            outbound = BufferPool.getDefault().acquire(Config.MAX_HEADER_LENGTH);
+            outbound.flip();
+        }
+    }
+
+    /**
+     * Give the buffers back to the pool while the connection waits for its
+     * next request, unless the client has already sent some bytes of it.
+     */
+    private void releaseIdleBuffers() {
+        if (inbound != null && !inbound.hasRemaining()) {
+            BufferPool.getDefault().release(inbound);
+            inbound = null;
+        }
+        if (outbound != null && !outbound.hasRemaining()) {
+            BufferPool.getDefault().release(outbound);
+            outbound = null;
+        }
+        responseParser = null;
+    }
+
+    private void closeCacher() {
+        if (cacher != null) {
+            cacher.close();
+            cacher = null;
+        }
+    }
+
+    private void closeCachedResponse() {
+        if (cachedResponse != null) {
+            try {
+                cachedResponse.close();
+            } catch (IOException e) {
+                // Do nothing
+            }
+            cachedResponse = null;
+            cachedPosition = 0;
         }
-        throw new HttpSendingErrorCodeException();
     }
 
     public void close() {
+        if (terminated) {
+            return;
+        }
+        terminated = true;
+        reactor.connectionClosed();
+        cancelTimeouts();
+        closeShaper();
+        closeCacher();
+        closeCachedResponse();
         try {
             clientKey.channel().close();
             if (serverKey != null) {
                 serverKey.channel().close();
             }
-            if (cacher != null) {
-                cacher.close();
-            }
         } catch (IOException ex) {
             Proxy.LOGGER.log(Level.SEVERE, "Unable to close connections.");
         }
+        if (inbound != null) {
+            BufferPool.getDefault().release(inbound);
+            inbound = null;
+        }
+        if (outbound != null) {
+            BufferPool.getDefault().release(outbound);
+            outbound = null;
+        }
+    }
+
+    /**
+     * Stop reading one direction until the shaper has tokens again.
+     *
+     * @param leaf The shaper out of tokens
+     * @param upload If the upload is throttled, otherwise the download
+     */
+    private void throttle(HierarchicalShaper.Leaf leaf, boolean upload) {
+        if (upload) {
+            uploadThrottled = true;
+        } else {
+            downloadThrottled = true;
+        }
+        if (resumeTimeout != null) {
+            // Already paused
+            return;
+        }
+        resumeTimeout = reactor.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                resumeTimeout = null;
+                uploadThrottled = false;
+                downloadThrottled = false;
+                updateInterests();
+            }
+        }, leaf.delay());
     }
 
-    public void pauseConnection() {
-        clientPausedInterestOps = clientKey.interestOps();
-        serverPausedInterestOps = serverKey.interestOps();
-        clientKey.interestOps(0);
-        serverKey.interestOps(0);
+    private void closeShaper() {
+        if (downloadLeaf != null) {
+            downloadLeaf.close();
+            downloadLeaf = null;
+        }
+        if (uploadLeaf != null) {
+            uploadLeaf.close();
+            uploadLeaf = null;
+        }
     }
 
-    public void resumeConnection() throws IOException {
-        if (clientPausedInterestOps != null && serverPausedInterestOps != null) {
-            clientKey.interestOps(clientPausedInterestOps);
-            serverKey.interestOps(serverPausedInterestOps);
-            clientPausedInterestOps = null;
-            serverPausedInterestOps = null;
-        } else {
-            throw new IOException("Connection already running");
+    private void scheduleRequestTimeout() {
+        if (requestTimeout != null) {
+            requestTimeout.cancel();
         }
+        requestTimeout = reactor.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                requestTimeout = null;
+                if (current != null && respondedHeader == null) {
+                    sendErrorCode(HttpStatusCode.GATWAY_TIMEOUT);
+                    updateInterests();
+                }
+            }
+        }, Config.REQUEST_TIME_OUT);
     }
 
-    @Override
-    public long getDelay(TimeUnit unit) {
-        switch (unit) {
-            case DAYS:
-                return (minDate - System.nanoTime() > 0 ? minDate - System.nanoTime() / 1000000000000000000l : 0);
-            case HOURS:
-                return (minDate - System.nanoTime() > 0 ? minDate - System.nanoTime() / 1000000000000000l : 0);
-            case MINUTES:
-                return (minDate - System.nanoTime() > 0 ? minDate - System.nanoTime() / 1000000000000l : 0);
-            case SECONDS:
-                return (minDate - System.nanoTime() > 0 ? minDate - System.nanoTime() / 1000000000l : 0);
-            case MILLISECONDS:
-                return (minDate - System.nanoTime() > 0 ? minDate - System.nanoTime() / 1000000l : 0);
-            case MICROSECONDS:
-                return (minDate - System.nanoTime() > 0 ? minDate - System.nanoTime() / 1000l : 0);
-            case NANOSECONDS:
-                return (minDate - System.nanoTime() > 0 ? minDate - System.nanoTime() : 0);
-            default:
-                return 0;
+    private void cancelRequestTimeout() {
+        if (requestTimeout != null) {
+            requestTimeout.cancel();
+            requestTimeout = null;
         }
     }
 
-    @Override
-    public int compareTo(Delayed o) {
-        return (getDelay(TimeUnit.NANOSECONDS) < o.getDelay(TimeUnit.NANOSECONDS) ? -1 : 1);
+    /**
+     * Close the connection if nothing has been exchanged during the idle time
+     * out. Activity does not reschedule the timeout, the timeout checks the
+     * last activity when it expires.
+     */
+    private void scheduleIdleTimeout(long delay) {
+        idleTimeout = reactor.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastActivity);
+                if (idle >= Config.IDLE_TIME_OUT) {
+                    Proxy.LOGGER.log(Level.INFO, "Closing idle connection.");
+                    close();
+                } else {
+                    scheduleIdleTimeout(Config.IDLE_TIME_OUT - idle);
+                }
+            }
+        }, delay);
+    }
+
+    private void cancelTimeouts() {
+        for (HashedWheelTimer.Timeout timeout : new HashedWheelTimer.Timeout[]{whohasCancelTimeout, requestTimeout, idleTimeout, resumeTimeout}) {
+            if (timeout != null) {
+                timeout.cancel();
+            }
+        }
     }
 
     @Override
-    public int priority() {
+    public int weight(SelectionKey key) {
         try {
-            return requestedHeader.getCategory().getQosRule().getPriority();
+            QosRule qosRule = current.header.getCategory().getQosRule();
+            RateRule rateRule = key == clientKey ? qosRule.getUpload() : qosRule.getDownload();
+            return rateRule.getWeight();
         } catch (NullPointerException e) {
-            return 5;
+            return QosRule.weightOf(QosRule.DEFAULT_PRIORITY);
         }
     }
 }
@@ -16,6 +16,7 @@
  */
 package fr.umlv.qroxy.proxy;
 
+import fr.umlv.qroxy.config.QosRule;
 import java.io.IOException;
 import java.nio.channels.SelectionKey;
 
@@ -25,9 +26,23 @@ import java.nio.channels.SelectionKey;
  */
 public interface LinkHandler {
 
-    public void read(SelectionKey key) throws IOException;
+    /**
+     * Read from the channel of the key.
+     *
+     * @param key The readable key
+     * @param budget The maximum number of bytes to read
+     * @return The number of bytes read
+     */
+    public int read(SelectionKey key, int budget) throws IOException;
 
     public void write(SelectionKey key) throws IOException;
     
-    public int priority();
+    /**
+     * Share of the bandwidth given to this link when several links are
+     * readable.
+     *
+     * @param key The readable key
+     * @return The weight, from 1 to {@link QosRule#MAX_WEIGHT}
+     */
+    public int weight(SelectionKey key);
 }
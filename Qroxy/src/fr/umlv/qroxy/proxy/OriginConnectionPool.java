@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2012 Joan Goyeau & Guillaume Demurger
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.qroxy.proxy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Idle keep-alive connections to the origin servers, by server address.
+ * A connection is checked before being reused: the server must not have
+ * closed it nor sent anything since it was given back.
+ *
+ * @author joan
+ */
+public class OriginConnectionPool {
+
+    private final int maxIdlePerHost;
+    private final long idleTimeout;
+    private final HashMap<InetSocketAddress, ArrayDeque<IdleConnection>> idleConnections = new HashMap<>();
+    private final ByteBuffer probe = ByteBuffer.allocate(1);
+
+    /**
+     * @param maxIdlePerHost Maximum number of idle connections kept for a
+     * server
+     * @param idleTimeout Time in milliseconds after which an idle connection
+     * is closed
+     */
+    public OriginConnectionPool(int maxIdlePerHost, long idleTimeout) {
+        this.maxIdlePerHost = maxIdlePerHost;
+        this.idleTimeout = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+    }
+
+    /**
+     * Take an idle connection to a server.
+     *
+     * @param address The address of the server
+     * @return A connection to the server, in the blocking mode it was given
+     * back in, or null if there is none
+     */
+    public synchronized SocketChannel borrow(InetSocketAddress address) {
+        ArrayDeque<IdleConnection> connections = idleConnections.get(address);
+        if (connections == null) {
+            return null;
+        }
+        long now = System.nanoTime();
+        try {
+            // Most recently used first, it is the most likely to be alive
+            IdleConnection connection;
+            while ((connection = connections.pollLast()) != null) {
+                if (now - connection.since < idleTimeout && isAlive(connection.channel)) {
+                    return connection.channel;
+                }
+                closeQuietly(connection.channel);
+            }
+            return null;
+        } finally {
+            if (connections.isEmpty()) {
+                idleConnections.remove(address);
+            }
+        }
+    }
+
+    /**
+     * Give back a connection whose last response has been fully read. The
+     * connection is closed if there are too many idle connections to the
+     * server.
+     *
+     * @param address The address of the server
+     * @param channel The connection to the server
+     */
+    public synchronized void giveBack(InetSocketAddress address, SocketChannel channel) {
+        ArrayDeque<IdleConnection> connections = idleConnections.get(address);
+        if (connections == null) {
+            connections = new ArrayDeque<>();
+            idleConnections.put(address, connections);
+        }
+        if (connections.size() >= maxIdlePerHost) {
+            // Drop the oldest
+            closeQuietly(connections.pollFirst().channel);
+        }
+        connections.addLast(new IdleConnection(channel, System.nanoTime()));
+    }
+
+    /**
+     * Close the connections idle for too long.
+     */
+    public synchronized void purge() {
+        long now = System.nanoTime();
+        for (Iterator<ArrayDeque<IdleConnection>> it = idleConnections.values().iterator(); it.hasNext();) {
+            ArrayDeque<IdleConnection> connections = it.next();
+            while (!connections.isEmpty() && now - connections.peekFirst().since >= idleTimeout) {
+                closeQuietly(connections.pollFirst().channel);
+            }
+            if (connections.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Close all the idle connections.
+     */
+    public synchronized void close() {
+        for (ArrayDeque<IdleConnection> connections : idleConnections.values()) {
+            for (IdleConnection connection : connections) {
+                closeQuietly(connection.channel);
+            }
+        }
+        idleConnections.clear();
+    }
+
+    /**
+     * @return The number of idle connections
+     */
+    public synchronized int size() {
+        int size = 0;
+        for (ArrayDeque<IdleConnection> connections : idleConnections.values()) {
+            size += connections.size();
+        }
+        return size;
+    }
+
+    /**
+     * An idle connection is alive if reading it would block: at the end of
+     * the stream the server closed it, and data would not be the answer to
+     * the next request.
+     */
+    private boolean isAlive(SocketChannel channel) {
+        if (!channel.isOpen()) {
+            return false;
+        }
+        boolean blocking = channel.isBlocking();
+        try {
+            if (blocking) {
+                channel.configureBlocking(false);
+            }
+            probe.clear();
+            int nbReaded = channel.read(probe);
+            if (blocking) {
+                channel.configureBlocking(true);
+            }
+            return nbReaded == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Do nothing
+        }
+    }
+
+    private static class IdleConnection {
+
+        private final SocketChannel channel;
+        private final long since;
+
+        IdleConnection(SocketChannel channel, long since) {
+            this.channel = channel;
+            this.since = since;
+        }
+    }
+}
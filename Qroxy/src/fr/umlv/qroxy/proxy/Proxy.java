@@ -16,8 +16,14 @@
  */
 package fr.umlv.qroxy.proxy;
 
+import fr.umlv.qroxy.buffer.BufferPool;
 import fr.umlv.qroxy.cache.CacheAccess;
+import fr.umlv.qroxy.cache.CacheException;
+import fr.umlv.qroxy.config.CategoryClassifier;
 import fr.umlv.qroxy.config.Config;
+import fr.umlv.qroxy.config.ConnectionEngine;
+import fr.umlv.qroxy.qos.Direction;
+import fr.umlv.qroxy.qos.HierarchicalShaper;
 import java.io.IOException;
 import java.net.InterfaceAddress;
 import java.net.NetworkInterface;
@@ -26,11 +32,19 @@ import java.net.StandardSocketOptions;
 import java.nio.channels.*;
 import java.util.Enumeration;
 import java.util.Set;
-import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * The proxy accepts clients and exchanges cache informations on one selector,
+ * and spreads the client connections over several {@link Reactor}s each
+ * running its own selector loop, or serves each of them on its own thread
+ * depending on the configured {@link ConnectionEngine}.
  *
  * @author joan
  */
@@ -41,7 +55,15 @@ public class Proxy {
     private final CacheAccess cache;
     private Selector selector;
     private CacheExchangingHandler cacheExchangingHandler;
-    private DelayQueue<HttpConnectionHandler> delayedConnections = new DelayQueue();
+    private Reactor[] reactors;
+    private int nextReactor;
+    private Executor connectionExecutor;
+    private OriginConnectionPool originPool;
+    private ScheduledExecutorService watchdog;
+    private HostResolver resolver;
+    private HierarchicalShaper downloadShaper;
+    private HierarchicalShaper uploadShaper;
+    private CategoryClassifier classifier;
 
     public Proxy(Config config, CacheAccess cache) {
         this.config = config;
@@ -82,56 +104,164 @@ public class Proxy {
         cacheExchangingHandler = new CacheExchangingHandler(cache, config);
         cacheExchanger.register(selector, SelectionKey.OP_READ, cacheExchangingHandler);
 
-        for (int i = 0; selector.isOpen(); i = ++i % 10) {
-            selector.select(500);
-            
-            while (true) {
-                HttpConnectionHandler connection = delayedConnections.poll();
-                if (connection == null) {
-                    break;
-                }
-                connection.resumeConnection();
+        // Qos shared by all the clients
+        classifier = new CategoryClassifier(config.getCategories());
+        downloadShaper = new HierarchicalShaper(config.getLinkCapacity(), config.getCategories(), Direction.DOWNLOAD);
+        uploadShaper = new HierarchicalShaper(config.getUplinkCapacity(), config.getCategories(), Direction.UPLOAD);
+
+        resolver = new HostResolver(Config.RESOLVER_THREADS, Config.RESOLVER_POSITIVE_TTL, Config.RESOLVER_NEGATIVE_TTL);
+
+        // Time outs of the blocking connections and periodic statistics
+        watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Qroxy watchdog");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        watchdog.scheduleAtFixedRate(new Runnable() {
+
+            @Override
+            public void run() {
+                logStatistics();
             }
-            
-            for (SelectionKey key : selectedKeys) {
-                if (!key.isValid()) {
-                    ((HttpConnectionHandler) key.attachment()).close();
-                } else if (key.isAcceptable()) {
-                    doAcceptNewClient(key);
-                } else if (key.isConnectable()) {
-                    doConnectServer(key);
-                } else if (key.isReadable() && ((LinkHandler) key.attachment()).priority() > i) {
-                    ((LinkHandler) key.attachment()).read(key);
-                } else if (key.isWritable() && ((LinkHandler) key.attachment()).priority() > i) {
-                    ((LinkHandler) key.attachment()).write(key);
+        }, Config.STATISTICS_PERIOD, Config.STATISTICS_PERIOD, TimeUnit.MILLISECONDS);
+
+        // Reactors or threads serving the clients
+        if (config.getEngine() == ConnectionEngine.THREAD) {
+            connectionExecutor = newConnectionExecutor();
+            originPool = new OriginConnectionPool(Config.MAX_IDLE_ORIGIN_CONNECTIONS, Config.ORIGIN_IDLE_TIME_OUT);
+        }
+        reactors = new Reactor[connectionExecutor == null ? config.getWorkers() : 0];
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor(cache, cacheExchangingHandler, classifier, downloadShaper, uploadShaper, resolver);
+            Thread thread = new Thread(reactors[i], "Qroxy reactor #" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        // The cache exchanges are served by this loop
+        BufferPool.getDefault().enableThreadCache();
+        try {
+            while (selector.isOpen()) {
+                if (originPool == null) {
+                    selector.select();
+                } else {
+                    // Wake up to close the idle origin connections
+                    selector.select(Config.ORIGIN_IDLE_TIME_OUT);
+                    originPool.purge();
                 }
+
+                for (SelectionKey key : selectedKeys) {
+                    if (key.isValid() && key.isAcceptable()) {
+                        doAcceptNewClient(key);
+                    } else {
+                        if (key.isValid() && key.isWritable()) {
+                            ((LinkHandler) key.attachment()).write(key);
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            ((LinkHandler) key.attachment()).read(key, Integer.MAX_VALUE);
+                        }
+                    }
+                }
+
+                selectedKeys.clear();
+            }
+        } catch (ClosedSelectorException e) {
+            // Stopped
+        } finally {
+            for (Reactor reactor : reactors) {
+                reactor.stop();
+            }
+            if (originPool != null) {
+                originPool.close();
+            }
+            watchdog.shutdownNow();
+            resolver.shutdown();
+            try {
+                cache.close();
+            } catch (CacheException e) {
+                LOGGER.log(Level.WARNING, "Cache not saved.", e);
+            }
+            logStatistics();
+            for (Throwable site : BufferPool.getDefault().getOutstandingSites()) {
+                LOGGER.log(Level.WARNING, "Buffer not released.", site);
             }
-            
-            selectedKeys.clear();
         }
     }
 
+    /**
+     * Log the counters of the resolver, the classifier and the buffer pool
+     * since the start.
+     */
+    private void logStatistics() {
+        LOGGER.log(Level.INFO, resolver.toString());
+        LOGGER.log(Level.INFO, classifier.toString());
+        LOGGER.log(Level.INFO, BufferPool.getDefault().toString());
+    }
+
     private void doAcceptNewClient(SelectionKey key) throws IOException {
         SocketChannel client = ((ServerSocketChannel) key.channel()).accept();
-        try {
-            client.configureBlocking(false);
-            SelectionKey clientKey = client.register(key.selector(), SelectionKey.OP_READ);
-            clientKey.attach(new HttpConnectionHandler(clientKey, cache, cacheExchangingHandler, config.getCategories(), this));
-        } catch (Exception e) {
-            LOGGER.log(Level.SEVERE, "Unable to configure new client connection.");
+        if (client == null) {
+            return;
+        }
+        if (connectionExecutor != null) {
+            // Accepted channels are in blocking mode
+            connectionExecutor.execute(new BlockingConnectionHandler(client, cache, classifier, downloadShaper, uploadShaper, originPool, resolver, connectionExecutor, watchdog));
+        } else {
+            nextReactor().register(client);
         }
     }
 
-    private void doConnectServer(SelectionKey key) {
-        SocketChannel channel = (SocketChannel) key.channel();
+    /**
+     * Executor running each BlockingConnectionHandler in its own thread. Use
+     * a virtual thread per connection if the JVM supports it, otherwise a
+     * cached pool of daemon threads.
+     */
+    private static Executor newConnectionExecutor() {
         try {
-            if (channel.finishConnect()) {
-                key.interestOps(SelectionKey.OP_WRITE);
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            final ThreadFactory factory = (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+            LOGGER.log(Level.INFO, "Serving each connection on a virtual thread.");
+            return new Executor() {
+
+                @Override
+                public void execute(Runnable connection) {
+                    factory.newThread(connection).start();
+                }
+            };
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            LOGGER.log(Level.INFO, "Virtual threads unavailable, serving each connection on a platform thread.");
+            return Executors.newCachedThreadPool(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable connection) {
+                    Thread thread = new Thread(connection, "Qroxy connection");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    /**
+     * Choose the least loaded reactor. The search starts from a rotating
+     * index so that equally loaded reactors are used in round-robin.
+     */
+    private Reactor nextReactor() {
+        int start = nextReactor;
+        nextReactor = (nextReactor + 1) % reactors.length;
+
+        Reactor chosen = reactors[start];
+        for (int i = 1; i < reactors.length; i++) {
+            Reactor reactor = reactors[(start + i) % reactors.length];
+            if (reactor.load() < chosen.load()) {
+                chosen = reactor;
             }
-        } catch (IOException e) {
-            LOGGER.log(Level.SEVERE, "Unable to connect to the server.");
-            ((HttpConnectionHandler) key.attachment()).close();
         }
+        return chosen;
     }
 
     /**
@@ -140,9 +270,4 @@ public class Proxy {
     public void stop() throws IOException {
         selector.close();
     }
-
-    public boolean addDelayedConnection(HttpConnectionHandler connection) {
-        connection.pauseConnection();
-        return delayedConnections.add(connection);
-    }
 }
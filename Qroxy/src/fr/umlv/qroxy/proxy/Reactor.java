@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2012 Joan Goyeau & Guillaume Demurger
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.qroxy.proxy;
+
+import fr.umlv.qroxy.buffer.BufferPool;
+import fr.umlv.qroxy.cache.CacheAccess;
+import fr.umlv.qroxy.config.CategoryClassifier;
+import fr.umlv.qroxy.config.Config;
+import fr.umlv.qroxy.config.QosRule;
+import fr.umlv.qroxy.qos.HierarchicalShaper;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Selector loop owning a subset of the client connections. Every
+ * HttpConnectionHandler, and the server channel it opens, is only touched by
+ * the thread running its reactor. Other threads hand work over with
+ * {@link #execute(Runnable)}.
+ *
+ * @author joan
+ */
+public class Reactor implements Runnable, Executor {
+
+    private static final long TIMER_TICK_DURATION = 10;
+    private static final int TIMER_WHEEL_SIZE = 512;
+    private final Selector selector;
+    /**
+     * Bytes read at each round by a link of weight 1, rounded up so that a
+     * link of the best priority fills a buffer
+     */
+    private static final int SCHEDULER_QUANTUM = (Config.MAX_HEADER_LENGTH + QosRule.MAX_WEIGHT - 1) / QosRule.MAX_WEIGHT;
+    private final HashedWheelTimer timer = new HashedWheelTimer(TIMER_TICK_DURATION, TIMER_WHEEL_SIZE);
+    private final DeficitRoundRobinScheduler scheduler = new DeficitRoundRobinScheduler(SCHEDULER_QUANTUM, Config.MAX_HEADER_LENGTH);
+    private final CacheAccess cache;
+    private final CacheExchangingHandler cacheExchangingHandler;
+    private final CategoryClassifier classifier;
+    private final HierarchicalShaper downloadShaper;
+    private final HierarchicalShaper uploadShaper;
+    private final HostResolver resolver;
+    private final OriginConnectionPool originPool = new OriginConnectionPool(Config.MAX_IDLE_ORIGIN_CONNECTIONS, Config.ORIGIN_IDLE_TIME_OUT);
+    private HashedWheelTimer.Timeout purgeTimeout;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger connections = new AtomicInteger();
+
+    Reactor(CacheAccess cache, CacheExchangingHandler cacheExchangingHandler, CategoryClassifier classifier,
+            HierarchicalShaper downloadShaper, HierarchicalShaper uploadShaper, HostResolver resolver) throws IOException {
+        this.selector = Selector.open();
+        this.cache = cache;
+        this.cacheExchangingHandler = cacheExchangingHandler;
+        this.classifier = classifier;
+        this.downloadShaper = downloadShaper;
+        this.uploadShaper = uploadShaper;
+        this.resolver = resolver;
+    }
+
+    /**
+     * Hand a freshly accepted client over to this reactor.
+     *
+     * @param client The accepted client channel
+     */
+    void register(final SocketChannel client) {
+        connections.incrementAndGet();
+        execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    client.configureBlocking(false);
+                    SelectionKey clientKey = client.register(selector, SelectionKey.OP_READ);
+                    clientKey.attach(new HttpConnectionHandler(clientKey, cache, cacheExchangingHandler, classifier, downloadShaper, uploadShaper, resolver, Reactor.this));
+                } catch (IOException e) {
+                    Proxy.LOGGER.log(Level.SEVERE, "Unable to configure new client connection.");
+                    connectionClosed();
+                    try {
+                        client.close();
+                    } catch (IOException ex) {
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Run a task on the reactor thread.
+     *
+     * @param task The task to run on the next loop
+     */
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * @return The number of client connections owned by this reactor
+     */
+    int load() {
+        return connections.get();
+    }
+
+    void connectionClosed() {
+        connections.decrementAndGet();
+    }
+
+    /**
+     * Take an idle connection to a server, registered with this reactor.
+     *
+     * @param address The address of the server
+     * @return The key of the connection, with no interest and no attachment,
+     * or null if there is no idle connection to the server
+     */
+    SelectionKey borrowOriginConnection(InetSocketAddress address) {
+        SocketChannel channel = originPool.borrow(address);
+        if (channel == null) {
+            return null;
+        }
+        return channel.keyFor(selector);
+    }
+
+    /**
+     * Keep a connection to a server for a next request.
+     *
+     * @param address The address of the server
+     * @param serverKey The key of the connection, whose last response has
+     * been fully read
+     */
+    void giveBackOriginConnection(InetSocketAddress address, SelectionKey serverKey) {
+        serverKey.interestOps(0);
+        serverKey.attach(null);
+        originPool.giveBack(address, (SocketChannel) serverKey.channel());
+        if (purgeTimeout == null) {
+            schedulePurge();
+        }
+    }
+
+    private void schedulePurge() {
+        purgeTimeout = timer.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                purgeTimeout = null;
+                originPool.purge();
+                if (originPool.size() > 0) {
+                    schedulePurge();
+                }
+            }
+        }, Config.ORIGIN_IDLE_TIME_OUT);
+    }
+
+    @Override
+    public void run() {
+        BufferPool.getDefault().enableThreadCache();
+        Set<SelectionKey> selectedKeys = selector.selectedKeys();
+        try {
+            while (selector.isOpen()) {
+                // Wake up in time for the earliest timeout
+                selector.select(timer.timeToNextDeadline());
+
+                while (true) {
+                    Runnable task = tasks.poll();
+                    if (task == null) {
+                        break;
+                    }
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        Proxy.LOGGER.log(Level.SEVERE, "Reactor task failed", e);
+                    }
+                }
+
+                timer.expire();
+
+                for (SelectionKey key : selectedKeys) {
+                    if (key.attachment() == null) {
+                        // Idle origin connection
+                        continue;
+                    }
+                    try {
+                        if (!key.isValid()) {
+                            ((HttpConnectionHandler) key.attachment()).close();
+                        } else if (key.isConnectable()) {
+                            doConnectServer(key);
+                        } else {
+                            // Both directions of a link progress in the same round
+                            if (key.isWritable()) {
+                                ((LinkHandler) key.attachment()).write(key);
+                            }
+                            if (key.isValid() && key.isReadable() && (key.interestOps() & SelectionKey.OP_READ) != 0) {
+                                scheduler.add(key);
+                            }
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        closeLink(key, e);
+                    }
+                }
+
+                selectedKeys.clear();
+                scheduler.serve();
+            }
+        } catch (IOException e) {
+            Proxy.LOGGER.log(Level.SEVERE, "Reactor stopped due to a network error: " + e.getMessage());
+        } catch (ClosedSelectorException e) {
+            // Stopped
+        } finally {
+            originPool.close();
+        }
+    }
+
+    /**
+     * Close the link of a key which failed, the other links of the reactor
+     * keep running.
+     *
+     * @param key The failed key
+     * @param e The cause of the failure
+     */
+    static void closeLink(SelectionKey key, Exception e) {
+        Object attachment = key.attachment();
+        if (attachment instanceof HttpConnectionHandler) {
+            Proxy.LOGGER.log(Level.WARNING, "Connection closed after an error: " + e);
+            ((HttpConnectionHandler) attachment).close();
+        } else {
+            Proxy.LOGGER.log(Level.SEVERE, "Link failed", e);
+        }
+    }
+
+    private void doConnectServer(SelectionKey key) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        try {
+            if (channel.finishConnect()) {
+                key.interestOps(0);
+                ((HttpConnectionHandler) key.attachment()).connected();
+            }
+        } catch (IOException e) {
+            Proxy.LOGGER.log(Level.SEVERE, "Unable to connect to the server.");
+            ((HttpConnectionHandler) key.attachment()).close();
+        }
+    }
+
+    /**
+     * Stop the reactor brutally
+     */
+    void stop() throws IOException {
+        selector.close();
+    }
+
+    /**
+     * Schedule a task on the timer of this reactor. Must be called from the
+     * reactor thread.
+     *
+     * @param task The task to run
+     * @param delay Delay in milliseconds
+     * @return The timeout to cancel the task
+     */
+    public HashedWheelTimer.Timeout schedule(Runnable task, long delay) {
+        return timer.schedule(task, delay);
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2012 Joan Goyeau & Guillaume Demurger
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.qroxy.qos;
+
+import fr.umlv.qroxy.config.QosRule;
+import fr.umlv.qroxy.config.RateRule;
+
+/**
+ * Direction of a transfer through the proxy.
+ *
+ * @author joan
+ */
+public enum Direction {
+
+    /**
+     * From the server to the client
+     */
+    DOWNLOAD {
+        @Override
+        public RateRule rateRuleOf(QosRule qosRule) {
+            return qosRule.getDownload();
+        }
+    },
+    /**
+     * From the client to the server
+     */
+    UPLOAD {
+        @Override
+        public RateRule rateRuleOf(QosRule qosRule) {
+            return qosRule.getUpload();
+        }
+    };
+
+    /**
+     * @return The settings of this direction or null if not shaped
+     */
+    public abstract RateRule rateRuleOf(QosRule qosRule);
+}
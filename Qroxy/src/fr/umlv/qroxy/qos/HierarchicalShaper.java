@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2012 Joan Goyeau & Guillaume Demurger
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.qroxy.qos;
+
+import fr.umlv.qroxy.config.Category;
+import fr.umlv.qroxy.config.QosRule;
+import fr.umlv.qroxy.config.RateRule;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hierarchical token buckets shaping the traffic of the proxy in one
+ * direction.
+ *
+ * The root is the capacity of the link. Each category with a QoS rule is a
+ * class under the root, and each transfer is a leaf under its class. A class
+ * is first given its minSpeed from its own assured bucket, then borrows from
+ * what is left of the link. The tokens of the link are lent to the classes in
+ * proportion to their priority weight, among the classes having transfers.
+ * The maxSpeed of a category is a ceiling shared by all its transfers, and
+ * its requestMaxSpeed a ceiling of each transfer.
+ *
+ * The shaper is lock free and shared by all the connections of the proxy.
+ * Concurrent transfers may together take a bit more than the available
+ * tokens, the buckets then go in debt and the following transfers wait.
+ *
+ * @author joan
+ */
+public class HierarchicalShaper {
+
+    /**
+     * Burst of the link and of the assured buckets, as a fraction of their
+     * rate (100ms of traffic)
+     */
+    private static final int BURST_DIVISOR = 10;
+    private final TokenBucket root;
+    private final HashMap<Category, ShapingClass> classes = new HashMap<>();
+    private final ShapingClass defaultClass;
+    /**
+     * Sum of the weights of the classes having transfers
+     */
+    private final AtomicInteger activeWeight = new AtomicInteger();
+
+    /**
+     * @param linkCapacity Capacity of the link in bytes per second, 0 if
+     * unknown. Minimum speeds are only guaranteed if the capacity is known.
+     * @param categories Categories, each having its own class
+     * @param direction The direction of the shaped transfers
+     */
+    public HierarchicalShaper(long linkCapacity, Collection<Category> categories, Direction direction) {
+        if (linkCapacity < 0) {
+            throw new IllegalArgumentException("The link capacity has to be positive");
+        }
+        root = linkCapacity == 0 ? null : new TokenBucket(linkCapacity, burstOf(linkCapacity));
+        for (Category category : categories) {
+            if (category.getQosRule() != null && direction.rateRuleOf(category.getQosRule()) != null) {
+                classes.put(category, new ShapingClass(direction.rateRuleOf(category.getQosRule())));
+            }
+        }
+        defaultClass = new ShapingClass(null);
+    }
+
+    /**
+     * Start shaping a transfer.
+     *
+     * @param category The category of the transfer or null if it has none
+     * @return The leaf of the transfer, to close at the end of the transfer,
+     * or null if the transfer is not limited
+     */
+    public Leaf open(Category category) {
+        ShapingClass shapingClass = classes.get(category);
+        if (shapingClass == null) {
+            shapingClass = defaultClass;
+        }
+        Integer requestMaxSpeed = shapingClass.rule == null ? null : shapingClass.rule.getRequestMaxSpeed();
+        if (root == null && shapingClass.ceiling == null && requestMaxSpeed == null) {
+            return null;
+        }
+        TokenBucket ceiling = requestMaxSpeed == null ? null : new TokenBucket(requestMaxSpeed, burstOf(requestMaxSpeed));
+        return new Leaf(shapingClass, ceiling);
+    }
+
+    private static long burstOf(long rate) {
+        return Math.max(rate / BURST_DIVISOR, 1);
+    }
+
+    private class ShapingClass {
+
+        private final RateRule rule;
+        private final int weight;
+        private final TokenBucket assured;
+        private final TokenBucket ceiling;
+        private final AtomicInteger leaves = new AtomicInteger();
+
+        ShapingClass(RateRule rule) {
+            this.rule = rule;
+            this.weight = rule == null ? QosRule.weightOf(QosRule.DEFAULT_PRIORITY) : rule.getWeight();
+            Integer minSpeed = rule == null ? null : rule.getMinSpeed();
+            this.assured = root == null || minSpeed == null || minSpeed == 0 ? null : new TokenBucket(minSpeed, burstOf(minSpeed));
+            Integer maxSpeed = rule == null ? null : rule.getMaxSpeed();
+            this.ceiling = maxSpeed == null || maxSpeed == 0 ? null : new TokenBucket(maxSpeed, rule.getBurst());
+        }
+
+        void leafOpened() {
+            if (leaves.incrementAndGet() == 1) {
+                activeWeight.addAndGet(weight);
+            }
+        }
+
+        void leafClosed() {
+            if (leaves.decrementAndGet() == 0) {
+                activeWeight.addAndGet(-weight);
+            }
+        }
+
+        /**
+         * @return The tokens of the link this class can borrow now
+         */
+        long borrowable() {
+            if (root == null) {
+                return Long.MAX_VALUE;
+            }
+            int totalWeight = Math.max(activeWeight.get(), weight);
+            return root.available() * weight / totalWeight;
+        }
+    }
+
+    /**
+     * Shaping of one transfer.
+     */
+    public class Leaf {
+
+        private final ShapingClass shapingClass;
+        /**
+         * Ceiling of the transfer, null if not limited
+         */
+        private final TokenBucket ceiling;
+        private boolean closed;
+
+        private Leaf(ShapingClass shapingClass, TokenBucket ceiling) {
+            this.shapingClass = shapingClass;
+            this.ceiling = ceiling;
+            shapingClass.leafOpened();
+        }
+
+        /**
+         * @return The number of bytes which can be transfered now
+         */
+        public long available() {
+            long allowed = ceiling == null ? Long.MAX_VALUE : ceiling.available();
+            if (shapingClass.ceiling != null) {
+                allowed = Math.min(allowed, shapingClass.ceiling.available());
+            }
+            if (allowed == 0) {
+                return 0;
+            }
+            long borrowable = shapingClass.borrowable();
+            if (borrowable >= allowed) {
+                return allowed;
+            }
+            long assured = shapingClass.assured == null ? 0 : shapingClass.assured.available();
+            return Math.min(allowed, assured + borrowable);
+        }
+
+        /**
+         * Take the transfered bytes from the buckets. The bytes are taken from
+         * the assured rate of the class first, and always count in the link.
+         *
+         * @param bytes The number of bytes transfered
+         */
+        public void consume(long bytes) {
+            if (bytes <= 0) {
+                return;
+            }
+            if (ceiling != null) {
+                ceiling.consume(bytes);
+            }
+            if (shapingClass.ceiling != null) {
+                shapingClass.ceiling.consume(bytes);
+            }
+            if (shapingClass.assured != null) {
+                shapingClass.assured.consume(Math.min(bytes, shapingClass.assured.available()));
+            }
+            if (root != null) {
+                root.consume(bytes);
+            }
+        }
+
+        /**
+         * @return The number of milliseconds to wait before one byte can be
+         * transfered
+         */
+        public long delay() {
+            long delay = Long.MAX_VALUE;
+            if (shapingClass.assured != null) {
+                delay = shapingClass.assured.delayFor(1);
+            }
+            if (root != null) {
+                // Enough tokens for this class to have at least one byte
+                int totalWeight = Math.max(activeWeight.get(), shapingClass.weight);
+                long share = (totalWeight + shapingClass.weight - 1) / shapingClass.weight;
+                delay = Math.min(delay, root.delayFor(share));
+            } else {
+                delay = 0;
+            }
+            if (ceiling != null) {
+                delay = Math.max(delay, ceiling.delayFor(1));
+            }
+            if (shapingClass.ceiling != null) {
+                delay = Math.max(delay, shapingClass.ceiling.delayFor(1));
+            }
+            return delay;
+        }
+
+        /**
+         * End of the transfer.
+         */
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            shapingClass.leafClosed();
+        }
+    }
+}
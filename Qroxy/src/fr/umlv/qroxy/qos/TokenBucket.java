@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2012 Joan Goyeau & Guillaume Demurger
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.qroxy.qos;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket limiting a flow of bytes to a rate with bursts of a given size.
+ * Tokens are refilled continuously, not once per second.
+ *
+ * The whole state is the time at which the bucket was last empty, so the
+ * bucket is lock free and can be shared by several threads.
+ *
+ * @author joan
+ */
+public class TokenBucket {
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    private final long rate;
+    private final long burst;
+    private final long burstDuration;
+    /**
+     * Time at which the bucket was empty. Tokens are the bytes earned since
+     * this time, at most burst.
+     */
+    private final AtomicLong emptyTime;
+
+    /**
+     * @param rate The rate in bytes per second
+     * @param burst The maximum number of bytes which can be sent at once
+     */
+    public TokenBucket(long rate, long burst) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("The rate has to be positive");
+        }
+        if (burst <= 0) {
+            throw new IllegalArgumentException("The burst has to be positive");
+        }
+        this.rate = rate;
+        this.burst = burst;
+        this.burstDuration = toNanos(burst);
+        // Start full
+        this.emptyTime = new AtomicLong(System.nanoTime() - burstDuration);
+    }
+
+    /**
+     * @return The number of bytes which can be sent now
+     */
+    public long available() {
+        long now = System.nanoTime();
+        long empty = Math.max(emptyTime.get(), now - burstDuration);
+        return Math.max(toBytes(now - empty), 0);
+    }
+
+    /**
+     * Take tokens from the bucket. The bucket can go in debt if more bytes
+     * than available have been transfered, later calls will have to wait for
+     * the debt to be paid.
+     *
+     * @param bytes The number of bytes sent
+     */
+    public void consume(long bytes) {
+        if (bytes <= 0) {
+            return;
+        }
+        long cost = toNanos(bytes);
+        while (true) {
+            long now = System.nanoTime();
+            long current = emptyTime.get();
+            long next = Math.max(current, now - burstDuration) + cost;
+            if (emptyTime.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param bytes The number of bytes to send, truncated to the burst size
+     * @return The number of milliseconds to wait before these bytes can be
+     * sent
+     */
+    public long delayFor(long bytes) {
+        long now = System.nanoTime();
+        long empty = Math.max(emptyTime.get(), now - burstDuration);
+        long wait = empty + toNanos(Math.min(bytes, burst)) - now;
+        return wait <= 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(wait + TimeUnit.MILLISECONDS.toNanos(1) - 1);
+    }
+
+    public long getRate() {
+        return rate;
+    }
+
+    public long getBurst() {
+        return burst;
+    }
+
+    private long toNanos(long bytes) {
+        return bytes * NANOS_PER_SECOND / rate;
+    }
+
+    private long toBytes(long nanos) {
+        return nanos * rate / NANOS_PER_SECOND;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2012 Joan Goyeau & Guillaume Demurger
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.qroxy.cache;
+
+import java.lang.reflect.Field;
+import java.net.URI;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Lookups by normalized URI, entries sharing a fingerprint, and writers of
+ * several threads.
+ *
+ * @author gdemurge
+ */
+public class CacheIndexTest {
+
+    @Test
+    public void normalizedUris() throws Exception {
+        assertEquals("http://example.com/a?x=1", CacheIndex.normalize(new URI("HTTP://Example.COM:80/a?x=1#top")));
+        assertEquals("http://example.com/", CacheIndex.normalize(new URI("http://example.com")));
+        assertEquals("http://example.com:8080/A", CacheIndex.normalize(new URI("http://example.com:8080/A")));
+
+        CacheIndex index = new CacheIndex();
+        index.put(entry("http://Example.com:80/a?x=1#frag", "1"));
+        assertEquals("1", index.get(new URI("http://example.com/a?x=1")).getETag());
+        assertNull(index.get(new URI("http://example.com/a?x=2")));
+    }
+
+    @Test
+    public void putReplacesTheEntryOfTheUri() throws Exception {
+        CacheIndex index = new CacheIndex();
+        CacheEntry first = entry("http://example.com/a", "1");
+        CacheEntry second = entry("http://example.com/a", "2");
+        assertNull(index.put(first));
+        assertSame(first, index.put(second));
+        assertSame(second, index.get(new URI("http://example.com/a")));
+
+        // Stale operations of a writer which lost the race
+        assertFalse(index.replace(first, entry("http://example.com/a", "3")));
+        assertFalse(index.remove(first));
+        assertTrue(index.replace(second, first));
+        assertTrue(index.remove(first));
+        assertNull(index.get(new URI("http://example.com/a")));
+    }
+
+    @Test
+    public void collidingFingerprints() throws Exception {
+        CacheIndex index = new CacheIndex();
+        CacheEntry c1 = entry("http://example.com/c1", "c1");
+        CacheEntry c2 = collidingWith(c1, "http://example.com/c2", "c2");
+        CacheEntry c3 = collidingWith(c1, "http://example.com/c3", "c3");
+        assertNull(index.put(c2));
+        assertNull(index.put(c1));
+        assertNull(index.put(c3));
+        // The URI tells apart the entries of the slot
+        assertSame(c1, index.get(c1.getKey()));
+        assertEquals(set(c1, c2, c3), entries(index));
+
+        CacheEntry c2bis = collidingWith(c1, "http://example.com/c2", "c2bis");
+        assertSame(c2, index.put(c2bis));
+        assertEquals(set(c1, c2bis, c3), entries(index));
+        assertTrue(index.remove(c1));
+        assertNull(index.get(c1.getKey()));
+        assertEquals(set(c2bis, c3), entries(index));
+        assertFalse(index.remove(c2));
+        CacheEntry c3bis = collidingWith(c1, "http://example.com/c3", "c3bis");
+        assertTrue(index.replace(c3, c3bis));
+        assertFalse(index.replace(c3, c3bis));
+        assertEquals(set(c2bis, c3bis), entries(index));
+        assertTrue(index.remove(c2bis));
+        assertTrue(index.remove(c3bis));
+        assertEquals(set(), entries(index));
+    }
+
+    @Test
+    public void concurrentWriters() throws Exception {
+        final CacheIndex index = new CacheIndex();
+        final int uris = 1000;
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                final int thread = t;
+                futures.add(executor.submit(new Callable<Void>() {
+
+                    @Override
+                    public Void call() throws Exception {
+                        for (int i = 0; i < 20000; i++) {
+                            URI uri = new URI("http://example.com/" + (i % uris));
+                            index.put(entry(uri.toString(), thread + ":" + i));
+                            assertNotNull(index.get(uri));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get(1, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdown();
+        }
+        HashSet<String> keys = new HashSet<>();
+        for (CacheEntry entry : index.entries()) {
+            assertTrue(keys.add(entry.getKey()));
+        }
+        assertEquals(uris, keys.size());
+    }
+
+    private static CacheEntry entry(String uri, String eTag) throws Exception {
+        return new CacheEntry(new URI(uri), null, null, null, null, eTag).stored(Paths.get("/tmp", eTag), 1);
+    }
+
+    /**
+     * An entry stored with the fingerprint of another one, a 64 bits
+     * collision being too rare to be found. Only the other entry can be
+     * looked up by its URI.
+     */
+    private static CacheEntry collidingWith(CacheEntry other, String uri, String eTag) throws Exception {
+        CacheEntry entry = entry(uri, eTag);
+        Field fingerprint = CacheEntry.class.getDeclaredField("fingerprint");
+        fingerprint.setAccessible(true);
+        fingerprint.setLong(entry, other.getFingerprint());
+        return entry;
+    }
+
+    private static HashSet<String> entries(CacheIndex index) {
+        HashSet<String> eTags = new HashSet<>();
+        for (CacheEntry entry : index.entries()) {
+            assertTrue(eTags.add(entry.getETag()));
+        }
+        return eTags;
+    }
+
+    private static HashSet<String> set(CacheEntry... entries) {
+        HashSet<String> eTags = new HashSet<>();
+        for (CacheEntry entry : entries) {
+            eTags.add(entry.getETag());
+        }
+        return eTags;
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2012 Joan Goyeau & Guillaume Demurger
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.qroxy.cache;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The index saved by a journal is the same once loaded again, even after a
+ * crash in the middle of a record.
+ *
+ * @author gdemurge
+ */
+public class CacheJournalTest {
+
+    private Path directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("qroxy-journal");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void replay() throws Exception {
+        CacheIndex index = new CacheIndex();
+        CacheJournal journal = CacheJournal.open(directory, index);
+        for (int i = 0; i < 100; i++) {
+            put(index, journal, entry(i));
+        }
+        CacheEntry removed = index.get(key(1));
+        index.remove(removed);
+        journal.remove(removed);
+        put(index, journal, new CacheEntry("http://example.com/2", key(2), null, 5, 6, 7, "\"new\"",
+                directory.resolve("segment"), 100, 9));
+        journal.close();
+
+        CacheIndex loaded = load();
+        assertEquals(99, count(loaded));
+        assertNull(loaded.get(key(1)));
+        CacheEntry replaced = loaded.get(key(2));
+        assertEquals("\"new\"", replaced.getETag());
+        assertEquals(7, replaced.getLastModified().getTime());
+        assertEquals(100, replaced.getOffset());
+        assertEquals(9, replaced.getSize());
+        assertTrue(replaced.isInSegment());
+        CacheEntry entry = loaded.get(key(3));
+        assertEquals("video", entry.getCategory());
+        assertEquals(3000, entry.getDate().getTime());
+        assertEquals(6000, entry.getExpires().getTime());
+        assertNull(entry.getLastModified());
+        assertEquals(directory.resolve("qroxy3.cache"), entry.getPath());
+        assertFalse(entry.isInSegment());
+        assertNull(loaded.get(key(4)).getExpires());
+        assertNull(loaded.get(key(5)).getCategory());
+    }
+
+    @Test
+    public void tornRecordEndsTheJournal() throws Exception {
+        CacheIndex index = new CacheIndex();
+        CacheJournal journal = CacheJournal.open(directory, index);
+        for (int i = 0; i < 10; i++) {
+            put(index, journal, entry(i));
+        }
+        journal.close();
+        long size = Files.size(directory.resolve("index.journal"));
+
+        // Crash while writing a record of 50 bytes
+        try (FileChannel channel = FileChannel.open(directory.resolve("index.journal"), StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[]{0, 0, 0, 50, 1, 2, 3, 4, 5}));
+        }
+        CacheIndex loaded = new CacheIndex();
+        journal = CacheJournal.open(directory, loaded);
+        assertEquals(10, count(loaded));
+        assertEquals(size, Files.size(directory.resolve("index.journal")));
+
+        // The next records follow the last complete one
+        put(loaded, journal, entry(10));
+        journal.close();
+        loaded = load();
+        assertEquals(11, count(loaded));
+        assertNotNull(loaded.get(key(10)));
+    }
+
+    @Test
+    public void corruptedRecordEndsTheJournal() throws Exception {
+        CacheIndex index = new CacheIndex();
+        CacheJournal journal = CacheJournal.open(directory, index);
+        put(index, journal, entry(0));
+        journal.close();
+        long size = Files.size(directory.resolve("index.journal"));
+        journal = CacheJournal.open(directory, new CacheIndex());
+        put(index, journal, entry(1));
+        put(index, journal, entry(2));
+        journal.close();
+
+        // A byte of the second record changed, its checksum is wrong
+        try (FileChannel channel = FileChannel.open(directory.resolve("index.journal"), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{'X'}), size + 20);
+        }
+        CacheIndex loaded = load();
+        assertEquals(1, count(loaded));
+        assertNotNull(loaded.get(key(0)));
+        assertEquals(size, Files.size(directory.resolve("index.journal")));
+    }
+
+    @Test
+    public void taskRunsAfterThePreviousChanges() throws Exception {
+        CacheIndex index = new CacheIndex();
+        CacheJournal journal = CacheJournal.open(directory, index);
+        for (int i = 0; i < 100; i++) {
+            put(index, journal, entry(i));
+        }
+        final AtomicLong written = new AtomicLong();
+        journal.afterWrite(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    written.set(Files.size(directory.resolve("index.journal")));
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        journal.close();
+        assertEquals(Files.size(directory.resolve("index.journal")), written.get());
+        assertEquals(100, count(load()));
+    }
+
+    @Test
+    public void snapshotOfABigJournal() throws Exception {
+        CacheIndex index = new CacheIndex();
+        CacheJournal journal = CacheJournal.open(directory, index);
+        // About 100 bytes per record, more than the compaction threshold
+        int count = 200000;
+        for (int i = 0; i < count; i++) {
+            put(index, journal, entry(i));
+        }
+        journal.close();
+        assertTrue(Files.exists(directory.resolve("index.snapshot")));
+        assertTrue(Files.size(directory.resolve("index.journal")) < Files.size(directory.resolve("index.snapshot")));
+
+        CacheIndex loaded = load();
+        assertEquals(count, count(loaded));
+        assertEquals("\"etag" + (count - 1) + "\"", loaded.get(key(count - 1)).getETag());
+    }
+
+    private CacheIndex load() throws IOException {
+        CacheIndex loaded = new CacheIndex();
+        CacheJournal.open(directory, loaded).close();
+        return loaded;
+    }
+
+    private static void put(CacheIndex index, CacheJournal journal, CacheEntry entry) {
+        index.put(entry);
+        journal.put(entry);
+    }
+
+    private CacheEntry entry(int i) throws Exception {
+        String location = "http://host" + (i % 97) + ".example.com/path/to/resource/" + i + "?q=" + i;
+        return new CacheEntry(location, CacheIndex.normalize(new URI(location)), i % 3 == 0 ? "video" : null,
+                1000L * i, i % 2 == 0 ? Long.MIN_VALUE : 2000L * i, Long.MIN_VALUE, "\"etag" + i + "\"",
+                directory.resolve("qroxy" + i + ".cache"), CacheEntry.WHOLE_FILE, i);
+    }
+
+    private static String key(int i) throws Exception {
+        return CacheIndex.normalize(new URI("http://host" + (i % 97) + ".example.com/path/to/resource/" + i + "?q=" + i));
+    }
+
+    private static int count(CacheIndex index) {
+        int count = 0;
+        for (CacheEntry entry : index.entries()) {
+            count++;
+        }
+        return count;
+    }
+}
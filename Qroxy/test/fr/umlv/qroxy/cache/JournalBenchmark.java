@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2012 Joan Goyeau & Guillaume Demurger
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.qroxy.cache;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Measures the startup of the cache: the time to load an index of millions
+ * of entries from its snapshot and journal, and the memory it takes.
+ *
+ * Run with: java -Xmx8g -cp build/classes:build/test/classes
+ * fr.umlv.qroxy.cache.JournalBenchmark [entries...]
+ *
+ * @author gdemurge
+ */
+public class JournalBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            args = new String[]{"1000000"};
+        }
+        for (String arg : args) {
+            run(Integer.parseInt(arg));
+        }
+    }
+
+    private static void run(int count) throws Exception {
+        Path directory = Files.createTempDirectory("qroxy-journal");
+        try {
+            CacheIndex index = new CacheIndex();
+            CacheJournal journal = CacheJournal.open(directory, index);
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                CacheEntry entry = entry(directory, i);
+                index.put(entry);
+                journal.put(entry);
+            }
+            journal.close();
+            long written = System.nanoTime() - start;
+            index = null;
+            long files = 0;
+            try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory)) {
+                for (Path path : paths) {
+                    files += Files.size(path);
+                }
+            }
+
+            long before = usedMemory();
+            start = System.nanoTime();
+            CacheIndex loaded = new CacheIndex();
+            CacheJournal.open(directory, loaded).close();
+            long loadTime = System.nanoTime() - start;
+            long memory = usedMemory() - before;
+            if (loaded.get(entry(directory, count - 1).getKey()) == null) {
+                throw new IllegalStateException("Entry lost");
+            }
+            System.out.printf("%,d entries: written in %,d ms, %,d MB on disk, loaded in %,d ms, %,d MB of heap (%d bytes per entry)%n",
+                    count, written / 1000000, files / 1000000, loadTime / 1000000, memory / 1000000, memory / count);
+        } finally {
+            try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory)) {
+                for (Path path : paths) {
+                    Files.delete(path);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+    private static CacheEntry entry(Path directory, int i) throws IOException {
+        String location = "http://host" + (i % 1000) + ".example.com/path/to/resource/" + i + "?q=" + i;
+        try {
+            return new CacheEntry(location, CacheIndex.normalize(new URI(location)), i % 3 == 0 ? "video" : null,
+                    1000L * i, 2000L * i, Long.MIN_VALUE, "\"etag" + i + "\"",
+                    directory.resolve("segment-" + i / 10000 + ".seg"), 4096L * (i % 10000), 4096);
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static long usedMemory() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
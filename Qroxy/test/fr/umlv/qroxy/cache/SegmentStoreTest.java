@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2012 Joan Goyeau & Guillaume Demurger
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.qroxy.cache;
+
+import fr.umlv.qroxy.config.Config;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Resources appended to segments, then moved out of a sparse segment.
+ *
+ * @author gdemurge
+ */
+public class SegmentStoreTest {
+
+    private static final int RESOURCE_SIZE = 1024 * 1024;
+    private Path directory;
+    private Path source;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("qroxy-segments");
+        source = Files.createTempFile("qroxy-resource", ".tmp");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+        Files.delete(source);
+    }
+
+    @Test
+    public void resourcesReadBack() throws Exception {
+        SegmentStore store = SegmentStore.open(directory, new CacheIndex());
+        CacheEntry first = append(store, 0, 1000);
+        CacheEntry second = append(store, 1, 2000);
+        assertTrue(first.isInSegment());
+        assertEquals(first.getPath(), second.getPath());
+        assertEquals(0, first.getOffset());
+        assertEquals(1000, second.getOffset());
+        check(store, first, 0);
+        check(store, second, 1);
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        CacheIndex index = new CacheIndex();
+        SegmentStore store = SegmentStore.open(directory, index);
+        int count = Config.CACHE_SEGMENT_SIZE / RESOURCE_SIZE + 4;
+        List<CacheEntry> entries = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            CacheEntry entry = append(store, i, RESOURCE_SIZE);
+            index.put(entry);
+            entries.add(entry);
+        }
+        Path first = entries.get(0).getPath();
+        assertFalse(first.equals(entries.get(count - 1).getPath()));
+        assertTrue(store.sparseSegments().isEmpty());
+
+        // Only the resources 0 and 1 are still live in the first segment
+        for (int i = 2; i < count - 4; i++) {
+            store.free(entries.get(i));
+            index.remove(entries.get(i));
+        }
+        assertEquals(Arrays.asList(first), store.sparseSegments());
+
+        // A reader of the first segment
+        CacheEntry stale = entries.get(1);
+        SegmentStore.Segment held = store.retain(stale);
+        for (int i = 0; i < 2; i++) {
+            CacheEntry moved = store.move(entries.get(i));
+            assertFalse(first.equals(moved.getPath()));
+            assertTrue(index.replace(entries.get(i), moved));
+            entries.set(i, moved);
+        }
+        store.retire(first);
+        assertFalse(Files.exists(first));
+        assertNull(store.retain(stale));
+        assertTrue(held.getChannel().isOpen());
+        held.close();
+        assertFalse(held.getChannel().isOpen());
+
+        for (CacheEntry entry : index.entries()) {
+            check(store, entry, index(entry));
+        }
+
+        // Opened again, the live resources are found
+        store = SegmentStore.open(directory, index);
+        assertTrue(store.sparseSegments().isEmpty());
+        for (CacheEntry entry : index.entries()) {
+            check(store, entry, index(entry));
+        }
+    }
+
+    @Test
+    public void segmentsWithoutLiveResourcesDeletedAtOpen() throws Exception {
+        SegmentStore store = SegmentStore.open(directory, new CacheIndex());
+        CacheEntry dead = append(store, 0, 1000);
+        assertTrue(Files.exists(dead.getPath()));
+        SegmentStore.open(directory, new CacheIndex());
+        assertFalse(Files.exists(dead.getPath()));
+    }
+
+    private CacheEntry append(SegmentStore store, int i, int size) throws Exception {
+        byte[] data = data(i, size);
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.WRITE, StandardOpenOption.READ,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.wrap(data));
+            CacheEntry entry = new CacheEntry(new URI("http://example.com/" + i), null, null, null, null, null);
+            return store.append(entry, channel, 0, size);
+        }
+    }
+
+    private static void check(SegmentStore store, CacheEntry entry, int i) throws IOException {
+        try (SegmentStore.Segment segment = store.retain(entry)) {
+            assertNotNull(segment);
+            ByteBuffer read = ByteBuffer.allocate((int) entry.getSize());
+            while (read.hasRemaining()) {
+                if (segment.getChannel().read(read, entry.getOffset() + read.position()) == -1) {
+                    fail("Truncated resource " + i);
+                }
+            }
+            assertArrayEquals(data(i, (int) entry.getSize()), read.array());
+        }
+    }
+
+    private static int index(CacheEntry entry) {
+        String key = entry.getKey();
+        return Integer.parseInt(key.substring(key.lastIndexOf('/') + 1));
+    }
+
+    private static byte[] data(int i, int size) {
+        byte[] data = new byte[size];
+        for (int j = 0; j < size; j++) {
+            data[j] = (byte) (j * 31 + i);
+        }
+        return data;
+    }
+}
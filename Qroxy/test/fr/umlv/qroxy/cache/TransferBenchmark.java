@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2012 Joan Goyeau & Guillaume Demurger
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.qroxy.cache;
+
+import fr.umlv.qroxy.cache.channels.CacheInputChannel;
+import fr.umlv.qroxy.cache.channels.CacheInputChannelFactory;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+/**
+ * Sends a cached resource to a socket with transferTo, then by copying it
+ * through a buffer as the handlers did before, and prints the throughput and
+ * the CPU time of the sending thread per GB.
+ *
+ * Run with: java -cp build/classes:build/test/classes
+ * fr.umlv.qroxy.cache.TransferBenchmark [size in MB] [rounds]
+ *
+ * @author gdemurge
+ */
+public class TransferBenchmark {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        int sizeMB = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        Path file = Files.createTempFile("qroxy-benchmark", ".cache");
+        try {
+            byte[] chunk = new byte[1024 * 1024];
+            new Random(0).nextBytes(chunk);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                for (int i = 0; i < sizeMB; i++) {
+                    channel.write(ByteBuffer.wrap(chunk));
+                }
+            }
+            CacheEntry entry = new CacheEntry(new URI("http://example.com/benchmark"), null, null, null, null, null)
+                    .stored(file, (long) sizeMB * chunk.length);
+
+            System.out.printf("%d MB resource, %d rounds%n", sizeMB, rounds);
+            for (int round = 0; round < rounds; round++) {
+                // The first round warms up the JIT and the page cache
+                run("transferTo", entry, 0, round == 0);
+                run("heap copy 4 KB", entry, 4096, round == 0);
+                run("direct copy 64 KB", entry, -65536, round == 0);
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * @param bufferSize 0 for transferTo, the size of a heap buffer, or minus
+     * the size of a direct buffer
+     */
+    private static void run(String name, CacheEntry entry, int bufferSize, boolean warmUp) throws IOException, InterruptedException {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress("127.0.0.1", 0));
+            SocketChannel client = SocketChannel.open(server.getLocalAddress());
+            final SocketChannel drained = server.accept();
+            final long[] received = new long[1];
+            Thread drainer = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+                    try {
+                        int n;
+                        while ((n = drained.read(buffer)) != -1) {
+                            received[0] += n;
+                            buffer.clear();
+                        }
+                        drained.close();
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            });
+            drainer.start();
+
+            FileChannel fileChannel = FileChannel.open(entry.getPath(), StandardOpenOption.READ);
+            long startCpu = THREADS.getCurrentThreadCpuTime();
+            long start = System.nanoTime();
+            try (CacheInputChannel input = new CacheInputChannelFactory().createCacheInputeChannel(fileChannel, entry, fileChannel)) {
+                if (bufferSize == 0) {
+                    long position = 0;
+                    while (position < input.size()) {
+                        position += input.transferTo(client, position, input.size() - position);
+                    }
+                } else {
+                    ByteBuffer buffer = bufferSize > 0 ? ByteBuffer.allocate(bufferSize) : ByteBuffer.allocateDirect(-bufferSize);
+                    while (input.read(buffer) != -1) {
+                        buffer.flip();
+                        while (buffer.hasRemaining()) {
+                            client.write(buffer);
+                        }
+                        buffer.clear();
+                    }
+                }
+            }
+            long cpu = THREADS.getCurrentThreadCpuTime() - startCpu;
+            client.close();
+            drainer.join();
+            long elapsed = System.nanoTime() - start;
+            if (received[0] != entry.getSize()) {
+                throw new IllegalStateException("Received " + received[0] + " bytes of " + entry.getSize());
+            }
+            if (!warmUp) {
+                double gb = entry.getSize() / 1e9;
+                System.out.printf("%-18s %8.0f MB/s %8.0f ms CPU/GB%n", name,
+                        entry.getSize() / 1e6 / (elapsed / 1e9), cpu / 1e6 / gb);
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2012 Joan Goyeau & Guillaume Demurger
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.qroxy.config;
+
+import fr.umlv.qroxy.http.HttpRequestHeader;
+import fr.umlv.qroxy.http.exceptions.HttpMalformedHeaderException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * The classifier has to find the same category as trying the categories one
+ * by one, in the order of the configuration.
+ *
+ * @author joan
+ */
+public class CategoryClassifierTest {
+
+    // The default port is added to the URL of the requests
+
+    private static final Category VIDEO = category("video", "url", ".*\\.mp4");
+    private static final Category EXAMPLE = category("example", "url", "http://example\\.com:80/.*");
+    private static final Category ALTERNATIVE = category("alternative", "url", "http://(a|b)\\.com:80/.*");
+    private static final Category CURL = category("curl", "User-Agent", "curl/.*");
+    private static final Category ALL = category("all", "url", ".*");
+
+    @Test
+    public void firstMatchInConfigurationOrder() throws HttpMalformedHeaderException {
+        CategoryClassifier classifier = new CategoryClassifier(Arrays.asList(VIDEO, EXAMPLE, ALL));
+        assertSame(VIDEO, classify(classifier, "http://example.com/a.mp4", null));
+        assertSame(EXAMPLE, classify(classifier, "http://example.com/a.txt", null));
+        assertSame(ALL, classify(classifier, "http://other.com/a.txt", null));
+
+        classifier = new CategoryClassifier(Arrays.asList(EXAMPLE, VIDEO, ALL));
+        assertSame(EXAMPLE, classify(classifier, "http://example.com/a.mp4", null));
+        assertSame(VIDEO, classify(classifier, "http://other.com/a.mp4", null));
+    }
+
+    @Test
+    public void unindexedCategoryBeforeIndexedOne() throws HttpMalformedHeaderException {
+        Category a = category("a", "url", "http://a\\.com:80/.*");
+        CategoryClassifier classifier = new CategoryClassifier(Arrays.asList(ALTERNATIVE, a));
+        assertSame(ALTERNATIVE, classify(classifier, "http://a.com/x", null));
+        assertSame(ALTERNATIVE, classify(classifier, "http://b.com/x", null));
+        assertNull(classify(classifier, "http://c.com/x", null));
+    }
+
+    @Test
+    public void categoryOnSeveralValues() throws HttpMalformedHeaderException {
+        HashMap<String, String> regexs = new HashMap<>();
+        regexs.put("url", "http://example\\.com:80/.*");
+        regexs.put("User-Agent", "curl/.*");
+        Category both = new Category("both", regexs, null, new CacheRule(100));
+        CategoryClassifier classifier = new CategoryClassifier(Arrays.asList(both, CURL, EXAMPLE));
+        assertSame(both, classify(classifier, "http://example.com/x", "curl/7.0"));
+        assertSame(EXAMPLE, classify(classifier, "http://example.com/x", "wget"));
+        assertSame(EXAMPLE, classify(classifier, "http://example.com/x", null));
+        assertSame(CURL, classify(classifier, "http://other.com/x", "curl/7.0"));
+    }
+
+    @Test
+    public void memoSharedByTheRequestsToAHost() throws HttpMalformedHeaderException {
+        CategoryClassifier classifier = new CategoryClassifier(Arrays.asList(EXAMPLE));
+        assertSame(EXAMPLE, classify(classifier, "http://example.com/1", null));
+        assertSame(EXAMPLE, classify(classifier, "http://example.com/2", null));
+        assertNull(classify(classifier, "http://another.com/1", null));
+        assertNull(classify(classifier, "http://another.com/2", null));
+        assertEquals(2, classifier.getMemoMisses());
+        assertEquals(2, classifier.getMemoHits());
+    }
+
+    @Test
+    public void memoKeepsPrefixAndSuffixApart() throws HttpMalformedHeaderException {
+        CategoryClassifier classifier = new CategoryClassifier(Arrays.asList(VIDEO, EXAMPLE));
+        assertSame(EXAMPLE, classify(classifier, "http://example.com/a.txt", null));
+        assertSame(VIDEO, classify(classifier, "http://example.com/a.mp4", null));
+        assertSame(EXAMPLE, classify(classifier, "http://example.com/b.txt", null));
+        assertNull(classify(classifier, "http://other.com/b.txt", null));
+    }
+
+    @Test
+    public void literals() {
+        assertEquals("http://example.com/", CategoryClassifier.literalPrefix("http://example\\.com/.*"));
+        assertEquals("", CategoryClassifier.literalSuffix("http://example\\.com/.*"));
+        assertEquals(".mp4", CategoryClassifier.literalSuffix(".*\\.mp4"));
+        assertEquals("http://", CategoryClassifier.literalPrefix("http://\\w+\\.com"));
+        assertEquals(".com", CategoryClassifier.literalSuffix("http://\\w+\\.com"));
+        // The optional character is not part of the literal
+        assertEquals("http", CategoryClassifier.literalPrefix("https?://.*"));
+        assertEquals("", CategoryClassifier.literalPrefix("http://(a|b)\\.com:80/.*"));
+    }
+
+    @Test
+    public void sameCategoryAsTheConfigurationOrder() throws HttpMalformedHeaderException {
+        List<Category> categories = Arrays.asList(
+                category("jpg", "url", ".*\\.jpg"),
+                category("host1", "url", "http://host1\\.com:80/.*"),
+                category("secure", "url", "https?://host[0-9]\\.com:80/secure/.*"),
+                ALTERNATIVE,
+                CURL,
+                category("host2", "url", "http://host2\\.com:80/.*"),
+                VIDEO);
+        CategoryClassifier classifier = new CategoryClassifier(categories);
+        String[] hosts = {"host1.com", "host2.com", "host3.com", "a.com", "c.com"};
+        String[] paths = {"", "secure/", "x/"};
+        String[] files = {"a.jpg", "a.mp4", "a.txt", "jpg"};
+        String[] agents = {null, "curl/7.0", "wget"};
+        Random random = new Random(0);
+        for (int i = 0; i < 2000; i++) {
+            String url = "http://" + hosts[random.nextInt(hosts.length)] + "/"
+                    + paths[random.nextInt(paths.length)] + files[random.nextInt(files.length)];
+            HttpRequestHeader request = request(url, agents[random.nextInt(agents.length)]);
+            assertSame(url, request.matchesCatagories(categories), classifier.classify(request));
+        }
+        assertTrue(classifier.getMemoHits() > 0);
+    }
+
+    private static Category category(String name, String applyOn, String regex) {
+        HashMap<String, String> regexs = new HashMap<>();
+        regexs.put(applyOn, regex);
+        return new Category(name, regexs, null, new CacheRule(100));
+    }
+
+    private static Category classify(CategoryClassifier classifier, String url, String userAgent) throws HttpMalformedHeaderException {
+        return classifier.classify(request(url, userAgent));
+    }
+
+    private static HttpRequestHeader request(String url, String userAgent) throws HttpMalformedHeaderException {
+        List<String> lines = new ArrayList<>();
+        lines.add("GET " + url + " HTTP/1.1");
+        if (userAgent != null) {
+            lines.add("User-Agent: " + userAgent);
+        }
+        StringBuilder message = new StringBuilder();
+        for (String line : lines) {
+            message.append(line).append("\r\n");
+        }
+        return HttpRequestHeader.parse(message.append("\r\n").toString());
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2012 Joan Goyeau & Guillaume Demurger
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.qroxy.config;
+
+import fr.umlv.qroxy.http.HttpRequestHeader;
+import fr.umlv.qroxy.http.exceptions.HttpMalformedHeaderException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures how fast the requests are classified: trying the categories one
+ * by one, as before the classifier, then with the classifier, on requests
+ * often repeated and on requests which all differ.
+ *
+ * Run with: java -cp build/classes:build/test/classes
+ * fr.umlv.qroxy.config.ClassifierBenchmark [categories] [requests]
+ *
+ * @author joan
+ */
+public class ClassifierBenchmark {
+
+    public static void main(String[] args) throws HttpMalformedHeaderException {
+        int categoryCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int requestCount = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+
+        // Hosts, file types, and a few regexs which can not be indexed
+        List<Category> categories = new ArrayList<>();
+        for (int i = 0; i < categoryCount; i++) {
+            String regex;
+            if (i % 10 == 0) {
+                regex = "http://(www|cdn)" + i + "\\.example\\.com:80/.*";
+            } else if (i % 4 == 0) {
+                regex = ".*\\.ext" + i;
+            } else {
+                regex = "http://host" + i + "\\.example\\.com:80/.*";
+            }
+            HashMap<String, String> regexs = new HashMap<>();
+            regexs.put("url", regex);
+            categories.add(new Category("category" + i, regexs, null, new CacheRule(100)));
+        }
+
+        Random random = new Random(0);
+        HttpRequestHeader[] repeated = new HttpRequestHeader[requestCount];
+        HttpRequestHeader[] distinct = new HttpRequestHeader[requestCount];
+        for (int i = 0; i < requestCount; i++) {
+            int host = random.nextInt(categoryCount * 2);
+            repeated[i] = request("http://host" + host % 50 + ".example.com/page" + i % 20 + ".html");
+            distinct[i] = request("http://host" + host + ".example.com/" + i + ".ext" + random.nextInt(categoryCount));
+        }
+
+        System.out.printf("%d categories, %d requests%n", categoryCount, requestCount);
+        for (int round = 0; round < 3; round++) {
+            // The first round warms up the JIT
+            boolean print = round > 0;
+            linear("linear, repeated", categories, repeated, print);
+            classifier("classifier, repeated", categories, repeated, print);
+            linear("linear, distinct", categories, distinct, print);
+            classifier("classifier, distinct", categories, distinct, print);
+        }
+    }
+
+    private static void linear(String name, List<Category> categories, HttpRequestHeader[] requests, boolean print) {
+        long start = System.nanoTime();
+        int matched = 0;
+        for (HttpRequestHeader request : requests) {
+            if (request.matchesCatagories(categories) != null) {
+                matched++;
+            }
+        }
+        report(name, requests.length, matched, System.nanoTime() - start, print);
+    }
+
+    private static void classifier(String name, List<Category> categories, HttpRequestHeader[] requests, boolean print) {
+        // A new classifier starts with an empty memo
+        CategoryClassifier classifier = new CategoryClassifier(categories);
+        long start = System.nanoTime();
+        int matched = 0;
+        for (HttpRequestHeader request : requests) {
+            if (classifier.classify(request) != null) {
+                matched++;
+            }
+        }
+        report(name + String.format(" (%.0f%% memo hits)", classifier.getMemoHitRate() * 100),
+                requests.length, matched, System.nanoTime() - start, print);
+    }
+
+    private static void report(String name, int requests, int matched, long elapsed, boolean print) {
+        if (print) {
+            System.out.printf("%-38s %12.0f requests/s %6d matched%n", name, requests / (elapsed / 1e9), matched);
+        }
+    }
+
+    private static HttpRequestHeader request(String url) throws HttpMalformedHeaderException {
+        return HttpRequestHeader.parse("GET " + url + " HTTP/1.1\r\n\r\n");
+    }
+}
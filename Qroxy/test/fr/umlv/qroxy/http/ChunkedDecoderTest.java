@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2012 Joan Goyeau & Guillaume Demurger
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.qroxy.http;
+
+import fr.umlv.qroxy.http.exceptions.HttpMalformedBodyException;
+import java.nio.ByteBuffer;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Chunked bodies received whole or in pieces, followed by the next message.
+ *
+ * @author joan
+ */
+public class ChunkedDecoderTest {
+
+    private static final String BODY = "4\r\nWiki\r\n"
+            + "5;name=value\r\npedia\r\n"
+            + "E\r\n in\r\n\r\nchunks.\r\n"
+            + "0\r\n"
+            + "Expires: never\r\n"
+            + "X-Trailer: yes\r\n"
+            + "\r\n";
+    private static final String NEXT = "HTTP/1.1 200 OK\r\n";
+
+    @Test
+    public void wholeBody() throws HttpMalformedBodyException {
+        ChunkedDecoder decoder = new ChunkedDecoder();
+        ByteBuffer buffer = bytes(BODY + NEXT);
+        assertEquals(BODY.length(), decoder.scan(buffer));
+        assertEquals(0, buffer.position());
+        assertTrue(decoder.isComplete());
+        assertEquals(BODY.length(), decoder.getConsumed());
+    }
+
+    @Test
+    public void bodySplitAtEveryOffset() throws HttpMalformedBodyException {
+        ByteBuffer message = bytes(BODY + NEXT);
+        for (int split = 0; split < BODY.length(); split++) {
+            ChunkedDecoder decoder = new ChunkedDecoder();
+            message.limit(split).position(0);
+            assertEquals(split, decoder.scan(message));
+            assertFalse("Complete at " + split, decoder.isComplete());
+            message.limit(message.capacity()).position(split);
+            assertEquals(BODY.length() - split, decoder.scan(message));
+            assertTrue("Incomplete at " + split, decoder.isComplete());
+            assertEquals(BODY.length(), decoder.getConsumed());
+        }
+    }
+
+    @Test
+    public void bodyReceivedByteByByte() throws HttpMalformedBodyException {
+        ChunkedDecoder decoder = new ChunkedDecoder();
+        ByteBuffer message = bytes(BODY + NEXT);
+        int position = 0;
+        while (!decoder.isComplete()) {
+            message.limit(position + 1).position(position);
+            position += decoder.scan(message);
+        }
+        assertEquals(BODY.length(), position);
+        assertEquals(BODY.length(), decoder.getConsumed());
+    }
+
+    @Test
+    public void noTrailerAndBareLineFeeds() throws HttpMalformedBodyException {
+        ChunkedDecoder decoder = new ChunkedDecoder();
+        String body = "3\nabc\n0\n\n";
+        assertEquals(body.length(), decoder.scan(bytes(body + NEXT)));
+        assertTrue(decoder.isComplete());
+        assertEquals(body.length(), decoder.getConsumed());
+
+        decoder.reset();
+        assertFalse(decoder.isComplete());
+        body = "0\r\n\r\n";
+        assertEquals(body.length(), decoder.scan(bytes(body)));
+        assertTrue(decoder.isComplete());
+        assertEquals(body.length(), decoder.getConsumed());
+    }
+
+    @Test
+    public void largeChunk() throws HttpMalformedBodyException {
+        ChunkedDecoder decoder = new ChunkedDecoder();
+        ByteBuffer size = bytes("100000\r\n");
+        decoder.scan(size);
+        ByteBuffer data = ByteBuffer.allocate(4096);
+        for (int i = 0; i < 0x100000 / 4096; i++) {
+            assertEquals(4096, decoder.scan(data));
+        }
+        assertFalse(decoder.isComplete());
+        decoder.scan(bytes("\r\n0\r\n\r\n"));
+        assertTrue(decoder.isComplete());
+        assertEquals(8 + 0x100000 + 7, decoder.getConsumed());
+    }
+
+    @Test
+    public void malformedBodies() {
+        String[] bodies = {"\r\n", "g\r\n", "4\r\nWiki0\r\n\r\n", "4\rWiki\r\n", "0\r\n\rx",
+            "fffffffffffffffff\r\n"};
+        for (String body : bodies) {
+            try {
+                new ChunkedDecoder().scan(bytes(body));
+                fail(body);
+            } catch (HttpMalformedBodyException e) {
+                // Expected
+            }
+        }
+    }
+
+    private static ByteBuffer bytes(String message) {
+        return ByteBuffer.wrap(message.getBytes(HttpHeader.CHARSET));
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2012 Joan Goyeau & Guillaume Demurger
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.qroxy.http;
+
+import fr.umlv.qroxy.http.exceptions.HttpMalformedHeaderException;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * How the body of a message is delimited (see section 4.4 in RFC 2616).
+ *
+ * @author joan
+ */
+public class ContentTransferModeTest {
+
+    @Test
+    public void transferEncodingWinsOverContentLength() throws HttpMalformedHeaderException {
+        HttpResponseHeader response = response("200 OK", "Content-Length: 10\r\nTransfer-Encoding: chunked\r\n");
+        assertEquals(ContentTransferMode.CHUNKED, response.contentTransferMode());
+        assertTrue(response.hasConflictingLength());
+
+        HttpRequestHeader request = HttpRequestHeader.parse("POST /a HTTP/1.1\r\n"
+                + "Transfer-Encoding: chunked\r\nContent-Length: 10\r\n\r\n");
+        assertEquals(ContentTransferMode.CHUNKED, request.contentTransferMode());
+    }
+
+    @Test
+    public void responseDelimiters() throws HttpMalformedHeaderException {
+        assertEquals(ContentTransferMode.CONTENT_LENGTH, response("200 OK", "Content-Length: 10\r\n").contentTransferMode());
+        assertEquals(ContentTransferMode.CONNECTION_CLOSE, response("200 OK", "Connection: close\r\n").contentTransferMode());
+        assertEquals(ContentTransferMode.CONNECTION_CLOSE, response("200 OK", "").contentTransferMode());
+        assertFalse(response("200 OK", "Content-Length: 10\r\n").hasConflictingLength());
+    }
+
+    @Test
+    public void responsesWithoutBody() throws HttpMalformedHeaderException {
+        String[] statuses = {"100 Continue", "204 No Content", "304 Not Modified"};
+        for (String status : statuses) {
+            HttpResponseHeader response = response(status, "Content-Length: 10\r\nTransfer-Encoding: chunked\r\n");
+            assertEquals(status, ContentTransferMode.NO_CONTENT, response.contentTransferMode());
+        }
+        HttpResponseHeader response = response("200 OK", "Content-Length: 10\r\n");
+        assertEquals(ContentTransferMode.NO_CONTENT, response.contentTransferMode(HttpMethod.HEAD));
+        assertEquals(ContentTransferMode.CONTENT_LENGTH, response.contentTransferMode(HttpMethod.GET));
+    }
+
+    private static HttpResponseHeader response(String status, String fields) throws HttpMalformedHeaderException {
+        return HttpResponseHeader.parse("HTTP/1.1 " + status + "\r\n" + fields + "\r\n");
+    }
+}
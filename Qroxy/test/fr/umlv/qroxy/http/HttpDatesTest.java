@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2012 Joan Goyeau & Guillaume Demurger
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.qroxy.http;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Checks the codec against {@link SimpleDateFormat}.
+ *
+ * @author joan
+ */
+public class HttpDatesTest {
+
+    @Test
+    public void examplesOfTheRfc() throws ParseException {
+        Date date = HttpDates.parse("Sun, 06 Nov 1994 08:49:37 GMT");
+        assertEquals(784111777000L, date.getTime());
+        assertEquals(date, HttpDates.parse("Sunday, 06-Nov-94 08:49:37 GMT"));
+        assertEquals(date, HttpDates.parse("Sun Nov  6 08:49:37 1994"));
+        assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", HttpDates.format(date));
+    }
+
+    @Test
+    public void roundTrips() throws ParseException {
+        SimpleDateFormat rfc1123 = format("EEE, dd MMM yyyy HH:mm:ss 'GMT'");
+        SimpleDateFormat rfc850 = format("EEEE, dd-MMM-yy HH:mm:ss 'GMT'");
+        SimpleDateFormat asctime = format("EEE MMM d HH:mm:ss yyyy");
+        Random random = new Random(0);
+        for (int i = 0; i < 10000; i++) {
+            // From 1970 to 2069, the range of the two digit years
+            long time = (random.nextLong() & Long.MAX_VALUE) % 3155760000L * 1000;
+            Date date = new Date(time);
+            String formatted = HttpDates.format(date);
+            assertEquals(rfc1123.format(date), formatted);
+            assertEquals(formatted, time, HttpDates.parse(formatted).getTime());
+            assertEquals(formatted, time, HttpDates.parse(rfc850.format(date)).getTime());
+            assertEquals(formatted, time, HttpDates.parse(asctime.format(date)).getTime());
+        }
+    }
+
+    @Test
+    public void millisecondsAreTruncated() {
+        Date date = new Date(784111777999L);
+        assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", HttpDates.format(date));
+        // The cache of the last formatted second
+        assertEquals("Sun, 06 Nov 1994 08:49:38 GMT", HttpDates.format(new Date(784111778000L)));
+        assertEquals("Thu, 01 Jan 1970 00:00:00 GMT", HttpDates.format(new Date(0)));
+        assertEquals("Wed, 31 Dec 1969 23:59:59 GMT", HttpDates.format(new Date(-1)));
+    }
+
+    @Test
+    public void leapYears() throws ParseException {
+        assertEquals("Tue, 29 Feb 2000 12:00:00 GMT",
+                HttpDates.format(HttpDates.parse("Tue, 29 Feb 2000 12:00:00 GMT")));
+        assertEquals(HttpDates.parse("Wed, 01 Mar 2100 00:00:00 GMT").getTime() - 86400000L,
+                HttpDates.parse("Tue, 28 Feb 2100 00:00:00 GMT").getTime());
+    }
+
+    @Test
+    public void currentDateField() {
+        String field = HttpDates.currentDateField();
+        assertTrue(field, field.startsWith("Date: ") && field.endsWith(" GMT\r\n"));
+        assertEquals(field.length(), "Date: Sun, 06 Nov 1994 08:49:37 GMT\r\n".length());
+    }
+
+    @Test
+    public void invalidDates() {
+        String[] values = {"", "yesterday", "Sun, 06 Nov 1994 08:49:37 CET",
+            "Sun, 06 Foo 1994 08:49:37 GMT", "Sun, 32 Nov 1994 08:49:37 GMT",
+            "Sun, 06 Nov 1994 24:00:00 GMT", "Sun, 06 Nov 1994 8:49:37 GMT",
+            "Sun, 06 Nov 1994 08:49:37 GMT extra", "Sun Nov  6 08:49:37"};
+        for (String value : values) {
+            try {
+                HttpDates.parse(value);
+                fail(value);
+            } catch (ParseException e) {
+                // Expected
+            }
+        }
+    }
+
+    private static SimpleDateFormat format(String pattern) {
+        SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2012 Joan Goyeau & Guillaume Demurger
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.qroxy.http;
+
+import fr.umlv.qroxy.http.exceptions.HttpMalformedHeaderException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Locale;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Every well-known name has its own slot of the perfect hash.
+ *
+ * @author joan
+ */
+public class HttpFieldNameTest {
+
+    @Test
+    public void everyNameFound() {
+        for (HttpFieldName name : HttpFieldName.values()) {
+            String fieldName = name.getFieldName();
+            assertSame(name, HttpFieldName.forName(fieldName));
+            assertSame(name, HttpFieldName.forName(fieldName.toLowerCase(Locale.ROOT)));
+            assertSame(name, HttpFieldName.forName(fieldName.toUpperCase(Locale.ROOT)));
+            assertSame(name, HttpFieldName.candidateFor(HttpFieldName.hashOf(fieldName)));
+        }
+    }
+
+    @Test
+    public void oneSlotPerName() {
+        HashSet<HttpFieldName> candidates = new HashSet<>();
+        for (HttpFieldName name : HttpFieldName.values()) {
+            candidates.add(HttpFieldName.candidateFor(HttpFieldName.hashOf(name.getFieldName())));
+        }
+        assertEquals(HttpFieldName.values().length, candidates.size());
+    }
+
+    @Test
+    public void unknownNames() {
+        String[] names = {"", "X-Forwarded-For", "Hos", "Hostt", "Content-Lengths", "Date2", "Cookie"};
+        for (String name : names) {
+            assertNull(name, HttpFieldName.forName(name));
+        }
+    }
+
+    @Test
+    public void parserHashesLikeTheNames() throws HttpMalformedHeaderException {
+        StringBuilder header = new StringBuilder("GET / HTTP/1.1\r\n");
+        for (HttpFieldName name : HttpFieldName.values()) {
+            header.append(name.getFieldName().toLowerCase(Locale.ROOT)).append(": x\r\n");
+        }
+        header.append("\r\n");
+        HttpHeaderParser parser = new HttpHeaderParser();
+        assertTrue(parser.parse(ByteBuffer.wrap(header.toString().getBytes(HttpHeader.CHARSET))));
+        for (int i = 0; i < parser.getFieldCount(); i++) {
+            assertEquals(HttpFieldName.hashOf(parser.getFieldName(i)), parser.hashFieldName(i));
+            assertSame(HttpFieldName.values()[i], HttpFieldName.candidateFor(parser.hashFieldName(i)));
+        }
+    }
+}
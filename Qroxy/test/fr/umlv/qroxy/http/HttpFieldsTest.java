@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2012 Joan Goyeau & Guillaume Demurger
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.qroxy.http;
+
+import fr.umlv.qroxy.http.exceptions.HttpMalformedHeaderException;
+import java.nio.ByteBuffer;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Fields loaded from a parser, then read and edited.
+ *
+ * @author joan
+ */
+public class HttpFieldsTest {
+
+    @Test
+    public void wellKnownAndExtensionFields() throws HttpMalformedHeaderException {
+        HttpFields fields = load("Host: example.com\r\n"
+                + "x-custom:  value \r\n"
+                + "Content-Length: 10\r\n");
+        assertEquals("example.com", fields.get(HttpFieldName.HOST));
+        assertEquals("example.com", fields.get("host"));
+        assertEquals("value", fields.get("X-Custom"));
+        assertEquals("10", fields.get(HttpFieldName.CONTENT_LENGTH));
+        assertTrue(fields.contains(HttpFieldName.CONTENT_LENGTH));
+        assertFalse(fields.contains(HttpFieldName.TRANSFER_ENCODING));
+        assertNull(fields.get("X-Other"));
+        assertTrue(fields.valueEquals(HttpFieldName.HOST, "EXAMPLE.com"));
+        assertFalse(fields.valueEquals(HttpFieldName.HOST, "example.co"));
+    }
+
+    @Test
+    public void repeatedFieldsAreCombined() throws HttpMalformedHeaderException {
+        HttpFields fields = load("Cache-Control: no-cache\r\nX-A: first\r\nVia: 1.1 a\r\n"
+                + "cache-control: max-age=0\r\nx-a: second\r\nVia: 1.1 b\r\nCache-Control: private\r\n");
+        assertEquals("no-cache, max-age=0, private", fields.get(HttpFieldName.CACHE_CONTROL));
+        assertEquals("1.1 a, 1.1 b", fields.get(HttpFieldName.VIA));
+        assertEquals("first, second", fields.get("X-A"));
+        assertTrue(fields.valueEquals(HttpFieldName.VIA, "1.1 A, 1.1 B"));
+    }
+
+    @Test
+    public void contentLengthsMustAgree() throws HttpMalformedHeaderException {
+        HttpRequestHeader request = HttpRequestHeader.parse("POST /a HTTP/1.1\r\n"
+                + "Content-Length: 10\r\nContent-Length: 10\r\n\r\n");
+        assertEquals(Integer.valueOf(10), request.getContentLength());
+        try {
+            HttpRequestHeader.parse("POST /a HTTP/1.1\r\nContent-Length: 10\r\nContent-Length: 20\r\n\r\n");
+            fail("Different lengths accepted");
+        } catch (HttpMalformedHeaderException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void contentLengthIsOnlyDigits() {
+        String[] lengths = {"-1", "+5", "", "1 0", "0x10", "99999999999"};
+        for (String length : lengths) {
+            try {
+                HttpRequestHeader.parse("POST /a HTTP/1.1\r\nContent-Length: " + length + "\r\n\r\n");
+                fail("Content-Length accepted: " + length);
+            } catch (HttpMalformedHeaderException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void setAndRemove() throws HttpMalformedHeaderException {
+        HttpFields fields = load("Host: example.com\r\n");
+        fields.set(HttpFieldName.IF_NONE_MATCH, "\"tag\"");
+        assertEquals("\"tag\"", fields.get(HttpFieldName.IF_NONE_MATCH));
+        fields.set(HttpFieldName.HOST, null);
+        assertNull(fields.get(HttpFieldName.HOST));
+        assertFalse(fields.contains(HttpFieldName.HOST));
+        fields.set(HttpFieldName.HOST, "other.com");
+        assertEquals("other.com", fields.get(HttpFieldName.HOST));
+    }
+
+    @Test
+    public void everyWellKnownField() throws HttpMalformedHeaderException {
+        StringBuilder header = new StringBuilder();
+        for (HttpFieldName name : HttpFieldName.values()) {
+            header.append(name.getFieldName()).append(": ").append(name.ordinal()).append("\r\n");
+        }
+        HttpFields fields = load(header.toString());
+        for (HttpFieldName name : HttpFieldName.values()) {
+            assertEquals(Integer.toString(name.ordinal()), fields.get(name));
+        }
+    }
+
+    @Test
+    public void clearedForTheNextMessage() throws HttpMalformedHeaderException {
+        StringBuilder header = new StringBuilder("Host: example.com\r\n");
+        for (int i = 0; i < 50; i++) {
+            header.append("X-Field-").append(i).append(": ").append(i).append("\r\n");
+        }
+        HttpFields fields = load(header.toString());
+        assertEquals("49", fields.get("X-Field-49"));
+
+        fields.clear();
+        assertNull(fields.get(HttpFieldName.HOST));
+        assertNull(fields.get("X-Field-49"));
+        fields.load(parser("Date: today\r\nX-Field-1: again\r\n"));
+        assertEquals("today", fields.get(HttpFieldName.DATE));
+        assertEquals("again", fields.get("X-Field-1"));
+        assertNull(fields.get("X-Field-2"));
+
+        StringBuilder appended = new StringBuilder();
+        fields.appendTo(appended);
+        assertEquals("Date: today\r\nX-Field-1: again\r\n", appended.toString());
+    }
+
+    private static HttpFields load(String fields) throws HttpMalformedHeaderException {
+        HttpFields loaded = new HttpFields();
+        loaded.load(parser(fields));
+        return loaded;
+    }
+
+    private static HttpHeaderParser parser(String fields) {
+        HttpHeaderParser parser = new HttpHeaderParser();
+        String header = "GET / HTTP/1.1\r\n" + fields + "\r\n";
+        assertTrue(parser.parse(ByteBuffer.wrap(header.getBytes(HttpHeader.CHARSET))));
+        return parser;
+    }
+}
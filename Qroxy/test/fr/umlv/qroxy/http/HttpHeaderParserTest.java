@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2012 Joan Goyeau & Guillaume Demurger
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.qroxy.http;
+
+import fr.umlv.qroxy.http.exceptions.HttpMalformedHeaderException;
+import java.nio.ByteBuffer;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Feeds headers to the parser the way the reads of a socket do, in pieces.
+ *
+ * @author joan
+ */
+public class HttpHeaderParserTest {
+
+    private static final String REQUEST = "GET http://example.com/x?y HTTP/1.1\r\n"
+            + "host:  example.com \r\n"
+            + "User-Agent: curl\r\n"
+            + "X-Empty:\r\n"
+            + "Content-Length: 4\r\n"
+            + "\r\n";
+    private static final String BODY = "abcd";
+
+    @Test
+    public void wholeHeader() throws HttpMalformedHeaderException {
+        HttpHeaderParser parser = new HttpHeaderParser();
+        assertTrue(parser.parse(bytes(REQUEST + BODY)));
+        checkRequest(parser);
+    }
+
+    @Test
+    public void headerSplitAtEveryOffset() throws HttpMalformedHeaderException {
+        byte[] message = (REQUEST + BODY).getBytes(HttpHeader.CHARSET);
+        for (int split = 0; split < REQUEST.length(); split++) {
+            HttpHeaderParser parser = new HttpHeaderParser();
+            ByteBuffer buffer = ByteBuffer.wrap(message);
+            buffer.limit(split);
+            assertFalse("Complete at " + split, parser.parse(buffer));
+            buffer.limit(message.length);
+            assertTrue("Incomplete at " + split, parser.parse(buffer));
+            checkRequest(parser);
+        }
+    }
+
+    @Test
+    public void headerReceivedByteByByte() throws HttpMalformedHeaderException {
+        byte[] message = REQUEST.getBytes(HttpHeader.CHARSET);
+        HttpHeaderParser parser = new HttpHeaderParser();
+        ByteBuffer buffer = ByteBuffer.wrap(message);
+        for (int limit = 0; limit < message.length; limit++) {
+            buffer.limit(limit);
+            assertFalse(parser.parse(buffer));
+        }
+        buffer.limit(message.length);
+        assertTrue(parser.parse(buffer));
+        checkRequest(parser);
+    }
+
+    @Test
+    public void bufferCompactedBetweenReads() throws HttpMalformedHeaderException {
+        // The previous message is consumed, then the buffer is compacted
+        String previous = "previous message";
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        buffer.put(bytes(previous + REQUEST.substring(0, 30)));
+        buffer.flip();
+        buffer.position(previous.length());
+
+        HttpHeaderParser parser = new HttpHeaderParser();
+        assertFalse(parser.parse(buffer));
+        buffer.compact();
+        buffer.put(bytes(REQUEST.substring(30) + BODY));
+        buffer.flip();
+        assertTrue(parser.parse(buffer));
+        checkRequest(parser);
+    }
+
+    @Test
+    public void bareLineFeedsAndLeadingEmptyLines() throws HttpMalformedHeaderException {
+        HttpHeaderParser parser = new HttpHeaderParser();
+        String header = "\r\n\nHTTP/1.1 200 OK\nServer: test\n\n";
+        assertTrue(parser.parse(bytes(header)));
+        assertEquals("HTTP/1.1 200 OK", parser.getStartLine());
+        assertEquals(1, parser.getFieldCount());
+        assertEquals("Server", parser.getFieldName(0));
+        assertEquals("test", parser.getFieldValue(0));
+        assertEquals(header.length(), parser.getHeaderLength());
+    }
+
+    @Test
+    public void emptyValues() throws HttpMalformedHeaderException {
+        HttpHeaderParser parser = new HttpHeaderParser();
+        assertTrue(parser.parse(bytes("HTTP/1.1 200 OK\r\nX-Empty:\r\nX-Blank:  \t \r\n\r\n")));
+        assertEquals(2, parser.getFieldCount());
+        assertEquals("", parser.getFieldValue(0));
+        assertEquals("", parser.getFieldValue(1));
+        assertEquals(parser.getValueStart(1), parser.getValueEnd(1));
+    }
+
+    @Test
+    public void resetForTheNextMessage() throws HttpMalformedHeaderException {
+        HttpHeaderParser parser = new HttpHeaderParser();
+        StringBuilder big = new StringBuilder("HTTP/1.1 200 OK\r\n");
+        for (int i = 0; i < 100; i++) {
+            big.append("X-Field-").append(i).append(": ").append(i).append("\r\n");
+        }
+        assertTrue(parser.parse(bytes(big.append("\r\n").toString())));
+        assertEquals(100, parser.getFieldCount());
+        assertEquals("99", parser.getFieldValue(99));
+
+        parser.reset();
+        assertFalse(parser.isComplete());
+        assertTrue(parser.parse(bytes(REQUEST)));
+        checkRequest(parser);
+    }
+
+    private static void checkRequest(HttpHeaderParser parser) throws HttpMalformedHeaderException {
+        assertTrue(parser.isComplete());
+        assertEquals(REQUEST.length(), parser.getHeaderLength());
+        assertEquals("GET http://example.com/x?y HTTP/1.1", parser.getStartLine());
+        assertEquals(4, parser.getFieldCount());
+        assertEquals("host", parser.getFieldName(0));
+        assertEquals("example.com", parser.getFieldValue(0));
+        assertTrue(parser.isFieldNamed(0, "Host"));
+        assertFalse(parser.isFieldNamed(0, "Hos"));
+        assertEquals("User-Agent", parser.getFieldName(1));
+        assertEquals("curl", parser.getFieldValue(1));
+        assertEquals("", parser.getFieldValue(2));
+        assertEquals("4", parser.getFieldValue(3));
+    }
+
+    private static ByteBuffer bytes(String message) {
+        return ByteBuffer.wrap(message.getBytes(HttpHeader.CHARSET));
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2012 Joan Goyeau & Guillaume Demurger
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.qroxy.http;
+
+import fr.umlv.qroxy.http.exceptions.HttpMalformedHeaderException;
+import java.nio.ByteBuffer;
+import java.util.Date;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Compares the forwarded headers to the expected ones.
+ *
+ * @author joan
+ */
+public class HttpHeaderRewriterTest {
+
+    /**
+     * The header given to the last rewriter
+     */
+    private ByteBuffer received;
+
+    @Test
+    public void originFormAndHostOfTheUri() throws HttpMalformedHeaderException {
+        HttpHeaderRewriter rewriter = rewriter("GET http://user:pw@example.com:8080/a/b?c HTTP/1.1\r\n"
+                + "Host: other.com\r\n"
+                + "Accept: */*\r\n"
+                + "\r\n");
+        assertEquals("GET /a/b?c HTTP/1.1\r\n"
+                + "Host: example.com:8080\r\n"
+                + "Accept: */*\r\n"
+                + "Via: 1.1 qroxy\r\n"
+                + "\r\n", forward(rewriter));
+    }
+
+    @Test
+    public void emptyPathAndQueryWithoutPath() throws HttpMalformedHeaderException {
+        assertEquals("GET / HTTP/1.1\r\nHost: example.com\r\nVia: 1.1 qroxy\r\n\r\n",
+                forward(rewriter("GET http://example.com HTTP/1.1\r\n\r\n")));
+        assertEquals("GET ?q HTTP/1.1\r\nHost: example.com\r\nVia: 1.1 qroxy\r\n\r\n",
+                forward(rewriter("GET http://example.com?q HTTP/1.1\r\n\r\n")));
+    }
+
+    @Test
+    public void requestAlreadyInOriginForm() throws HttpMalformedHeaderException {
+        assertEquals("GET /a HTTP/1.1\r\nHost: example.com\r\nVia: 1.1 qroxy\r\n\r\n",
+                forward(rewriter("GET /a HTTP/1.1\r\nHost: example.com\r\n\r\n")));
+    }
+
+    @Test
+    public void absoluteFormKeptForAnotherProxy() throws HttpMalformedHeaderException {
+        HttpHeaderRewriter rewriter = rewriter("GET http://example.com/a HTTP/1.1\r\n"
+                + "Host: example.com\r\n"
+                + "\r\n");
+        rewriter.keepAbsoluteForm();
+        assertEquals("GET http://example.com/a HTTP/1.1\r\n"
+                + "Host: example.com\r\n"
+                + "Via: 1.1 qroxy\r\n"
+                + "\r\n", forward(rewriter));
+    }
+
+    @Test
+    public void hopByHopFieldsRemoved() throws HttpMalformedHeaderException {
+        HttpHeaderRewriter rewriter = rewriter("GET /a HTTP/1.1\r\n"
+                + "Connection: keep-alive, X-Private\r\n"
+                + "keep-alive: timeout=5\r\n"
+                + "Proxy-Connection: keep-alive\r\n"
+                + "Proxy-Authorization: Basic xyz\r\n"
+                + "X-Private: secret\r\n"
+                + "TE: trailers\r\n"
+                + "User-Agent: curl\r\n"
+                + "\r\n");
+        assertEquals("GET /a HTTP/1.1\r\n"
+                + "User-Agent: curl\r\n"
+                + "Via: 1.1 qroxy\r\n"
+                + "\r\n", forward(rewriter));
+    }
+
+    @Test
+    public void conditionalFieldsOfTheProxy() throws HttpMalformedHeaderException {
+        HttpHeaderRewriter rewriter = rewriter("GET /a HTTP/1.1\r\n"
+                + "If-Modified-Since: Sat, 01 Jan 2000 00:00:00 GMT\r\n"
+                + "If-None-Match: \"client\"\r\n"
+                + "Accept: */*\r\n"
+                + "\r\n");
+        rewriter.setConditionalFields(new Date(784111777000L), "\"proxy\"");
+        assertEquals("GET /a HTTP/1.1\r\n"
+                + "Accept: */*\r\n"
+                + "If-Modified-Since: Sun, 06 Nov 1994 08:49:37 GMT\r\n"
+                + "If-None-Match: \"proxy\"\r\n"
+                + "Via: 1.1 qroxy\r\n"
+                + "\r\n", forward(rewriter));
+    }
+
+    @Test
+    public void conditionalFieldsOfTheClientKept() throws HttpMalformedHeaderException {
+        String header = "GET /a HTTP/1.1\r\n"
+                + "If-None-Match: \"client\"\r\n"
+                + "\r\n";
+        assertEquals("GET /a HTTP/1.1\r\n"
+                + "If-None-Match: \"client\"\r\n"
+                + "Via: 1.1 qroxy\r\n"
+                + "\r\n", forward(rewriter(header)));
+    }
+
+    @Test
+    public void transferCodingDropsContentLength() throws HttpMalformedHeaderException {
+        HttpHeaderRewriter rewriter = rewriter("POST /a HTTP/1.1\r\n"
+                + "Content-Length: 10\r\n"
+                + "Transfer-Encoding: chunked\r\n"
+                + "\r\n");
+        assertEquals("POST /a HTTP/1.1\r\n"
+                + "Transfer-Encoding: chunked\r\n"
+                + "Via: 1.1 qroxy\r\n"
+                + "\r\n", forward(rewriter));
+
+        rewriter = rewriter("POST /a HTTP/1.1\r\n"
+                + "Content-Length: 10\r\n"
+                + "\r\n");
+        assertEquals("POST /a HTTP/1.1\r\n"
+                + "Content-Length: 10\r\n"
+                + "Via: 1.1 qroxy\r\n"
+                + "\r\n", forward(rewriter));
+    }
+
+    @Test
+    public void headerAfterOtherBytes() throws HttpMalformedHeaderException {
+        // The rewriter works on the offsets of the parser, from the base
+        String header = "GET http://example.com/a HTTP/1.1\r\nAccept: */*\r\n\r\n";
+        ByteBuffer buffer = ByteBuffer.wrap(("previous" + header + "body").getBytes(HttpHeader.CHARSET));
+        buffer.position(8);
+        HttpHeaderParser parser = new HttpHeaderParser();
+        assertTrue(parser.parse(buffer));
+        HttpHeaderRewriter rewriter = HttpHeaderRewriter.forRequest(parser);
+        assertEquals(header.length(), rewriter.getReceivedLength());
+        assertEquals("GET /a HTTP/1.1\r\nHost: example.com\r\nAccept: */*\r\nVia: 1.1 qroxy\r\n\r\n",
+                toString(rewriter.toBuffers(buffer, 8)));
+    }
+
+    private HttpHeaderRewriter rewriter(String header) throws HttpMalformedHeaderException {
+        received = ByteBuffer.wrap(header.getBytes(HttpHeader.CHARSET));
+        HttpHeaderParser parser = new HttpHeaderParser();
+        assertTrue(parser.parse(received));
+        return HttpHeaderRewriter.forRequest(parser);
+    }
+
+    private String forward(HttpHeaderRewriter rewriter) {
+        return toString(rewriter.toBuffers(received, 0));
+    }
+
+    private static String toString(ByteBuffer[] buffers) {
+        StringBuilder builder = new StringBuilder();
+        for (ByteBuffer buffer : buffers) {
+            builder.append(HttpHeader.CHARSET.decode(buffer));
+        }
+        return builder.toString();
+    }
+}
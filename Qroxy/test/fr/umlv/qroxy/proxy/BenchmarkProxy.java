@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2012 Joan Goyeau & Guillaume Demurger
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.qroxy.proxy;
+
+import fr.umlv.qroxy.cache.CacheTmpImpl;
+import fr.umlv.qroxy.config.Config;
+import fr.umlv.qroxy.config.ConnectionEngine;
+import fr.umlv.qroxy.config.XMLQroxyConfigException;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.logging.Level;
+
+/**
+ * A proxy without cache running in the background of a benchmark, with the
+ * given engine.
+ *
+ * @author joan
+ */
+class BenchmarkProxy {
+
+    private final Proxy proxy;
+    private final Thread thread;
+    private final InetSocketAddress address;
+
+    /**
+     * @param engine The engine serving the connections
+     * @param workers The number of reactors of the selector engine
+     * @param categories The categories element of the configuration, or an
+     * empty string
+     */
+    BenchmarkProxy(ConnectionEngine engine, int workers, String categories) throws IOException, XMLQroxyConfigException {
+        Proxy.LOGGER.setLevel(Level.WARNING);
+        address = new InetSocketAddress(InetAddress.getLoopbackAddress(), freePort());
+        Config config = new Config(null, null, null, 0, InetAddress.getByName("239.252.0.0"));
+        Path file = Files.createTempFile("qroxy-benchmark", ".xml");
+        try {
+            try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
+                writer.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+                writer.println("<qroxyConfig version=\"1.0\">");
+                writer.println("<proxy><bindAddress>" + address.getAddress().getHostAddress() + "</bindAddress><bindPort>"
+                        + address.getPort() + "</bindPort><engine>" + engine.name() + "</engine><workers>" + workers + "</workers></proxy>");
+                writer.println(categories);
+                writer.println("</qroxyConfig>");
+            }
+            config.loadFromXml(new File(file.toString()));
+        } finally {
+            Files.delete(file);
+        }
+
+        proxy = new Proxy(config, new CacheTmpImpl());
+        thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    proxy.launch();
+                } catch (IOException e) {
+                    Proxy.LOGGER.log(Level.SEVERE, "Benchmark proxy stopped.", e);
+                }
+            }
+        }, "Benchmark proxy");
+        thread.setDaemon(true);
+        thread.start();
+        // Listening once launched
+        while (true) {
+            try {
+                new Socket(address.getAddress(), address.getPort()).close();
+                break;
+            } catch (IOException e) {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(ie);
+                }
+            }
+        }
+    }
+
+    InetSocketAddress getAddress() {
+        return address;
+    }
+
+    void stop() throws IOException, InterruptedException {
+        proxy.stop();
+        thread.join();
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
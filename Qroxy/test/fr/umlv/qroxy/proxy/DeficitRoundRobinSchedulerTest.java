@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2012 Joan Goyeau & Guillaume Demurger
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.qroxy.proxy;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.AbstractSelectionKey;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Runs the scheduler on links which always have bytes to read.
+ *
+ * @author joan
+ */
+public class DeficitRoundRobinSchedulerTest {
+
+    private static final int QUANTUM = 1024;
+    private static final int ROUNDS = 1000;
+
+    @Test
+    public void backloggedLinksShareInProportionToTheirWeight() {
+        DeficitRoundRobinScheduler scheduler = new DeficitRoundRobinScheduler(QUANTUM, 16 * QUANTUM);
+        FakeLink light = new FakeLink(1, Long.MAX_VALUE);
+        FakeLink medium = new FakeLink(3, Long.MAX_VALUE);
+        FakeLink heavy = new FakeLink(8, Long.MAX_VALUE);
+        SelectionKey[] keys = {new FakeKey(light), new FakeKey(medium), new FakeKey(heavy)};
+
+        for (int round = 0; round < ROUNDS; round++) {
+            for (SelectionKey key : keys) {
+                scheduler.add(key);
+            }
+            scheduler.serve();
+        }
+
+        assertEquals((long) ROUNDS * QUANTUM, light.readed);
+        assertEquals(3.0, (double) medium.readed / light.readed, 0.01);
+        assertEquals(8.0, (double) heavy.readed / light.readed, 0.01);
+    }
+
+    @Test
+    public void drainedLinkKeepsNoCredit() {
+        DeficitRoundRobinScheduler scheduler = new DeficitRoundRobinScheduler(QUANTUM, 16 * QUANTUM);
+        FakeLink link = new FakeLink(1, QUANTUM / 2);
+        SelectionKey key = new FakeKey(link);
+        SelectionKey other = new FakeKey(new FakeLink(1, Long.MAX_VALUE));
+
+        scheduler.add(key);
+        scheduler.add(other);
+        scheduler.serve();
+        link.backlog = Long.MAX_VALUE;
+        scheduler.add(key);
+        scheduler.add(other);
+        scheduler.serve();
+
+        // Half a quantum the first round, a single quantum the next one
+        assertEquals(QUANTUM / 2 + QUANTUM, link.readed);
+    }
+
+    @Test
+    public void linkAloneReadsItsMaximumDeficit() {
+        DeficitRoundRobinScheduler scheduler = new DeficitRoundRobinScheduler(QUANTUM, 16 * QUANTUM);
+        FakeLink link = new FakeLink(1, Long.MAX_VALUE);
+        SelectionKey key = new FakeKey(link);
+
+        for (int round = 0; round < 3; round++) {
+            scheduler.add(key);
+            scheduler.serve();
+        }
+        assertEquals(3 * 16 * QUANTUM, link.readed);
+    }
+
+    @Test
+    public void failingLinkDoesNotStopTheRound() {
+        DeficitRoundRobinScheduler scheduler = new DeficitRoundRobinScheduler(QUANTUM, 16 * QUANTUM);
+        FakeLink failing = new FakeLink(1, Long.MAX_VALUE) {
+
+            @Override
+            public int read(SelectionKey key, int budget) throws IOException {
+                throw new IOException("Connection reset");
+            }
+        };
+        FakeLink link = new FakeLink(1, Long.MAX_VALUE);
+
+        scheduler.add(new FakeKey(failing));
+        scheduler.add(new FakeKey(link));
+        scheduler.serve();
+
+        assertEquals(QUANTUM, link.readed);
+    }
+
+    private static class FakeLink implements LinkHandler {
+
+        private final int weight;
+        private long backlog;
+        private long readed;
+
+        FakeLink(int weight, long backlog) {
+            this.weight = weight;
+            this.backlog = backlog;
+        }
+
+        @Override
+        public int read(SelectionKey key, int budget) throws IOException {
+            int nbReaded = (int) Math.min(budget, backlog);
+            backlog -= nbReaded;
+            readed += nbReaded;
+            return nbReaded;
+        }
+
+        @Override
+        public void write(SelectionKey key) {
+        }
+
+        @Override
+        public int weight(SelectionKey key) {
+            return weight;
+        }
+    }
+
+    private static class FakeKey extends AbstractSelectionKey {
+
+        FakeKey(LinkHandler link) {
+            attach(link);
+        }
+
+        @Override
+        public SelectableChannel channel() {
+            return null;
+        }
+
+        @Override
+        public Selector selector() {
+            return null;
+        }
+
+        @Override
+        public int interestOps() {
+            return OP_READ;
+        }
+
+        @Override
+        public SelectionKey interestOps(int ops) {
+            return this;
+        }
+
+        @Override
+        public int readyOps() {
+            return OP_READ;
+        }
+    }
+}
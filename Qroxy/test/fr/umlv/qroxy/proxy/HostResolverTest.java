@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2012 Joan Goyeau & Guillaume Demurger
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.qroxy.proxy;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Resolves literal addresses and reserved names, without a DNS server.
+ *
+ * @author joan
+ */
+public class HostResolverTest {
+
+    private HostResolver resolver;
+
+    @After
+    public void tearDown() {
+        if (resolver != null) {
+            resolver.shutdown();
+        }
+    }
+
+    @Test
+    public void resolvedHostIsCached() throws UnknownHostException {
+        resolver = new HostResolver(1, 60000, 1000);
+        InetAddress first = resolver.resolveNow("127.0.0.1");
+        InetAddress second = resolver.resolveNow("127.0.0.1");
+
+        assertEquals(InetAddress.getByName("127.0.0.1"), first);
+        assertSame(first, second);
+        assertEquals(1, resolver.getLookups());
+        assertEquals(0.5, resolver.getHitRate(), 0);
+    }
+
+    @Test
+    public void expiredHostIsLookedUpAgain() throws UnknownHostException, InterruptedException {
+        resolver = new HostResolver(1, 1, 1);
+        resolver.resolveNow("127.0.0.1");
+        Thread.sleep(5);
+        resolver.resolveNow("127.0.0.1");
+
+        assertEquals(2, resolver.getLookups());
+    }
+
+    @Test
+    public void unknownHostIsCached() {
+        resolver = new HostResolver(1, 60000, 60000);
+        for (int i = 0; i < 2; i++) {
+            try {
+                resolver.resolveNow("qroxy-test.invalid");
+                fail("The .invalid domain can not be resolved");
+            } catch (UnknownHostException e) {
+                // Expected
+            }
+        }
+        assertEquals(1, resolver.getLookups());
+    }
+
+    @Test
+    public void callbackRunsOnTheExecutorOfTheCaller() throws InterruptedException {
+        resolver = new HostResolver(2, 60000, 1000);
+        final AtomicInteger executed = new AtomicInteger();
+        Executor executor = new Executor() {
+
+            @Override
+            public void execute(Runnable command) {
+                executed.incrementAndGet();
+                command.run();
+            }
+        };
+        final CountDownLatch done = new CountDownLatch(1);
+        final InetAddress[] resolved = new InetAddress[1];
+        resolver.resolve("127.0.0.1", executor, new HostResolver.Callback() {
+
+            @Override
+            public void resolved(InetAddress address) {
+                resolved[0] = address;
+                done.countDown();
+            }
+
+            @Override
+            public void failed(UnknownHostException e) {
+                done.countDown();
+            }
+        });
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertNotNull(resolved[0]);
+        assertEquals(1, executed.get());
+    }
+}
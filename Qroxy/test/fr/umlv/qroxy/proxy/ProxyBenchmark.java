@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2012 Joan Goyeau & Guillaume Demurger
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.qroxy.proxy;
+
+import fr.umlv.qroxy.config.ConnectionEngine;
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measures the throughput of the engines: clients send keep-alive GET
+ * requests through the proxy to an origin answering each one with a body of
+ * fixed size. Nothing is cached.
+ *
+ * Run with: java -cp build/classes:build/test/classes
+ * fr.umlv.qroxy.proxy.ProxyBenchmark [clients] [requests per client]
+ * [body size] [reactors]
+ *
+ * @author joan
+ */
+public class ProxyBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int bodySize = args.length > 2 ? Integer.parseInt(args[2]) : 1024;
+        int workers = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+        Origin origin = new Origin(bodySize);
+        try {
+            System.out.printf("%d clients, %d requests each, %d bytes bodies%n", clients, requests, bodySize);
+            for (int round = 0; round < 2; round++) {
+                // The first round warms up the JIT
+                for (ConnectionEngine engine : ConnectionEngine.values()) {
+                    BenchmarkProxy proxy = new BenchmarkProxy(engine, workers, "");
+                    try {
+                        long start = System.nanoTime();
+                        long received = run(proxy.getAddress(), origin.getPort(), clients, requests);
+                        double seconds = (System.nanoTime() - start) / 1e9;
+                        if (round > 0) {
+                            System.out.printf("%-8s %10.0f requests/s %8.1f MB/s%n", engine,
+                                    clients * requests / seconds, received / 1e6 / seconds);
+                        }
+                    } finally {
+                        proxy.stop();
+                    }
+                }
+            }
+        } finally {
+            origin.close();
+        }
+    }
+
+    /**
+     * @return The number of bytes received by the clients
+     */
+    private static long run(final InetSocketAddress proxy, final int originPort, int clients, final int requests) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        try {
+            List<Future<Long>> futures = new ArrayList<>();
+            for (int i = 0; i < clients; i++) {
+                futures.add(executor.submit(new Callable<Long>() {
+
+                    @Override
+                    public Long call() throws IOException {
+                        byte[] request = ("GET http://127.0.0.1:" + originPort + "/resource HTTP/1.1\r\n"
+                                + "Host: 127.0.0.1:" + originPort + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+                        long received = 0;
+                        try (Socket socket = new Socket(proxy.getAddress(), proxy.getPort())) {
+                            socket.setTcpNoDelay(true);
+                            OutputStream output = socket.getOutputStream();
+                            InputStream input = new BufferedInputStream(socket.getInputStream());
+                            for (int i = 0; i < requests; i++) {
+                                output.write(request);
+                                received += readResponse(input);
+                            }
+                        }
+                        return received;
+                    }
+                }));
+            }
+            long received = 0;
+            for (Future<Long> future : futures) {
+                received += future.get();
+            }
+            return received;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Read a response delimited by its Content-Length.
+     *
+     * @return The length of the body
+     */
+    static long readResponse(InputStream input) throws IOException {
+        long contentLength = -1;
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            int b = input.read();
+            if (b == -1) {
+                throw new EOFException("Connection closed in the header");
+            }
+            if (b != '\n') {
+                if (b != '\r') {
+                    line.append((char) b);
+                }
+                continue;
+            }
+            if (line.length() == 0) {
+                break;
+            }
+            String field = line.toString();
+            if (field.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                contentLength = Long.parseLong(field.substring(15).trim());
+            }
+            line.setLength(0);
+        }
+        if (contentLength == -1) {
+            throw new IOException("No Content-Length");
+        }
+        for (long skipped = 0; skipped < contentLength;) {
+            long n = input.skip(contentLength - skipped);
+            if (n <= 0) {
+                if (input.read() == -1) {
+                    throw new EOFException("Connection closed in the body");
+                }
+                n = 1;
+            }
+            skipped += n;
+        }
+        return contentLength;
+    }
+
+    /**
+     * Origin server answering every request with the same response, a
+     * thread per connection.
+     */
+    private static class Origin implements Runnable {
+
+        private final ServerSocket server;
+        private final byte[] response;
+
+        Origin(int bodySize) throws IOException {
+            server = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+            byte[] header = ("HTTP/1.1 200 OK\r\nContent-Type: application/octet-stream\r\nContent-Length: "
+                    + bodySize + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            response = new byte[header.length + bodySize];
+            System.arraycopy(header, 0, response, 0, header.length);
+            Thread thread = new Thread(this, "Benchmark origin");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int getPort() {
+            return server.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            while (!server.isClosed()) {
+                final Socket socket;
+                try {
+                    socket = server.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                Thread connection = new Thread(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try (Socket client = socket) {
+                            client.setTcpNoDelay(true);
+                            InputStream input = new BufferedInputStream(client.getInputStream());
+                            OutputStream output = client.getOutputStream();
+                            while (skipRequest(input)) {
+                                output.write(response);
+                            }
+                        } catch (IOException e) {
+                            // Closed by the proxy
+                        }
+                    }
+                });
+                connection.setDaemon(true);
+                connection.start();
+            }
+        }
+
+        /**
+         * Read a request header, the requests have no body.
+         *
+         * @return false at the end of the connection
+         */
+        private static boolean skipRequest(InputStream input) throws IOException {
+            int lineLength = 0;
+            while (true) {
+                int b = input.read();
+                if (b == -1) {
+                    return false;
+                }
+                if (b == '\n') {
+                    if (lineLength == 0) {
+                        return true;
+                    }
+                    lineLength = 0;
+                } else if (b != '\r') {
+                    lineLength++;
+                }
+            }
+        }
+
+        void close() throws IOException {
+            server.close();
+        }
+    }
+}
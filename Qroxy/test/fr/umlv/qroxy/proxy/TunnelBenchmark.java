@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2012 Joan Goyeau & Guillaume Demurger
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.qroxy.proxy;
+
+import fr.umlv.qroxy.config.ConnectionEngine;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measures the throughput of the CONNECT tunnels of both engines: clients
+ * open tunnels to an origin which sends them a fixed amount of bytes, then
+ * closes.
+ *
+ * Run with: java -cp build/classes:build/test/classes
+ * fr.umlv.qroxy.proxy.TunnelBenchmark [tunnels] [MB per tunnel] [reactors]
+ *
+ * @author joan
+ */
+public class TunnelBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int tunnels = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int sizeMB = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        int workers = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        Sender origin = new Sender((long) sizeMB * 1024 * 1024);
+        try {
+            System.out.printf("%d tunnels, %d MB each%n", tunnels, sizeMB);
+            for (int round = 0; round < 2; round++) {
+                // The first round warms up the JIT
+                for (ConnectionEngine engine : ConnectionEngine.values()) {
+                    BenchmarkProxy proxy = new BenchmarkProxy(engine, workers, "");
+                    try {
+                        long start = System.nanoTime();
+                        long received = run(proxy.getAddress(), origin.getPort(), tunnels);
+                        double seconds = (System.nanoTime() - start) / 1e9;
+                        if (round > 0) {
+                            System.out.printf("%-8s %8.0f MB/s%n", engine, received / 1e6 / seconds);
+                        }
+                    } finally {
+                        proxy.stop();
+                    }
+                }
+            }
+        } finally {
+            origin.close();
+        }
+    }
+
+    /**
+     * @return The number of bytes received through the tunnels
+     */
+    private static long run(final InetSocketAddress proxy, final int originPort, int tunnels) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(tunnels);
+        try {
+            List<Future<Long>> futures = new ArrayList<>();
+            for (int i = 0; i < tunnels; i++) {
+                futures.add(executor.submit(new Callable<Long>() {
+
+                    @Override
+                    public Long call() throws IOException {
+                        try (Socket socket = new Socket(proxy.getAddress(), proxy.getPort())) {
+                            OutputStream output = socket.getOutputStream();
+                            output.write(("CONNECT 127.0.0.1:" + originPort + " HTTP/1.1\r\n"
+                                    + "Host: 127.0.0.1:" + originPort + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                            InputStream input = socket.getInputStream();
+                            skipHeader(input);
+                            byte[] buffer = new byte[64 * 1024];
+                            long received = 0;
+                            int n;
+                            while ((n = input.read(buffer)) != -1) {
+                                received += n;
+                            }
+                            return received;
+                        }
+                    }
+                }));
+            }
+            long received = 0;
+            for (Future<Long> future : futures) {
+                received += future.get();
+            }
+            return received;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Read the response to the CONNECT request byte per byte, the following
+     * bytes come from the origin.
+     */
+    private static void skipHeader(InputStream input) throws IOException {
+        StringBuilder header = new StringBuilder();
+        while (header.length() < 4 || header.lastIndexOf("\r\n\r\n") != header.length() - 4) {
+            int b = input.read();
+            if (b == -1) {
+                throw new EOFException("Tunnel refused: " + header);
+            }
+            header.append((char) b);
+        }
+        if (header.indexOf("HTTP/1.1 200") != 0) {
+            throw new IOException("Tunnel refused: " + header);
+        }
+    }
+
+    /**
+     * Origin sending the same amount of bytes on every connection, a thread
+     * per connection.
+     */
+    private static class Sender implements Runnable {
+
+        private final ServerSocket server;
+        private final long size;
+
+        Sender(long size) throws IOException {
+            this.server = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+            this.size = size;
+            Thread thread = new Thread(this, "Benchmark origin");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int getPort() {
+            return server.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            while (!server.isClosed()) {
+                final Socket socket;
+                try {
+                    socket = server.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                Thread connection = new Thread(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        byte[] buffer = new byte[64 * 1024];
+                        try (Socket client = socket) {
+                            OutputStream output = client.getOutputStream();
+                            for (long sent = 0; sent < size; sent += buffer.length) {
+                                output.write(buffer, 0, (int) Math.min(buffer.length, size - sent));
+                            }
+                        } catch (IOException e) {
+                            // Closed by the proxy
+                        }
+                    }
+                });
+                connection.setDaemon(true);
+                connection.start();
+            }
+        }
+
+        void close() throws IOException {
+            server.close();
+        }
+    }
+}